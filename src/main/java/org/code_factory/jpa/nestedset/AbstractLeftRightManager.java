@@ -0,0 +1,174 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * INTERNAL: The base of the managers whose nodes have left and right values.
+ * The managed nodes are kept in step with the shifts of the positions in the
+ * database; the nested interval encoding has no such values and does not
+ * extend this class.
+ *
+ * @author gabbol
+ */
+abstract class AbstractLeftRightManager extends AbstractNestedSetManager {
+
+    AbstractLeftRightManager(Configuration configuration, Map<Key, Node<?>> nodes) {
+        super(configuration, nodes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void clearPosition(Node<?> node) {
+        node.setLongLeftValue(0);
+        node.setLongRightValue(0);
+        node.setLevel(0);
+        node.setRootValue(0);
+    }
+
+    /**
+     * INTERNAL: Updates the left values of all nodes currently known to the
+     * manager.
+     *
+     * @param minLeft
+     *            The lower bound (inclusive) of the left values to update.
+     * @param maxLeft
+     *            The upper bound (inclusive) of the left values to update.
+     * @param delta
+     *            The delta to apply on the left values within the range.
+     */
+    void updateLeftValues(long minLeft, long maxLeft, long delta, int rootId) {
+        for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+            Node<?> node = it.next();
+            if (node.getRootValue() == rootId) {
+                long left = node.getLongLeftValue();
+                if (left >= minLeft && (maxLeft == 0 || left <= maxLeft)) {
+                    node.setLongLeftValue(left + delta);
+                    ((ManagedNode<?>) node).invalidate();
+                }
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Updates the right values of all nodes currently known to the
+     * manager.
+     *
+     * @param minRight
+     *            The lower bound (inclusive) of the right values to update.
+     * @param maxRight
+     *            The upper bound (inclusive) of the right values to update.
+     * @param delta
+     *            The delta to apply on the right values within the range.
+     */
+    void updateRightValues(long minRight, long maxRight, long delta, int rootId) {
+        for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+            Node<?> node = it.next();
+            if (node.getRootValue() == rootId) {
+                long right = node.getLongRightValue();
+                if (right >= minRight && (maxRight == 0 || right <= maxRight)) {
+                    node.setLongRightValue(right + delta);
+                    ((ManagedNode<?>) node).invalidate();
+                }
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Updates the level values of all nodes currently known to the
+     * manager.
+     *
+     * @param left
+     *            The lower bound left value.
+     * @param right
+     *            The upper bound right value.
+     * @param delta
+     *            The delta to apply on the level values of the nodes within the
+     *            range.
+     */
+    void updateLevels(long left, long right, int delta, int rootId) {
+        for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+            Node<?> node = it.next();
+            if (node.getRootValue() == rootId) {
+                if (node.getLongLeftValue() > left && node.getLongRightValue() < right) {
+                    node.setLevel(node.getLevel() + delta);
+                    ((ManagedNode<?>) node).invalidate();
+                }
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Removes the deleted nodes of the given range from the manager.
+     */
+    void removeNodes(long left, long right, int rootId) {
+        List<Node<?>> removed = new ArrayList<Node<?>>();
+        for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+            Node<?> node = it.next();
+            if (node.getRootValue() == rootId) {
+                if (node.getLongLeftValue() >= left && node.getLongRightValue() <= right) {
+                    removed.add(node);
+                }
+            }
+        }
+        for (Node<?> node : removed) {
+            removeNode(node.unwrap().getClass(), node.getId());
+        }
+    }
+
+    /**
+     * Returns the smallest left value, the greatest right value and the
+     * common root value of the given nodes, or null if they are in different
+     * trees.
+     */
+    static <T extends NodeInfo> long[] enclosingRange(Collection<Node<T>> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes given");
+        }
+        Iterator<Node<T>> it = nodes.iterator();
+        Node<T> first = it.next();
+        long[] range = { first.getLongLeftValue(), first.getLongRightValue(), first.getRootValue() };
+        while (it.hasNext()) {
+            Node<T> n = it.next();
+            if (n.getRootValue() != range[2]) {
+                return null;
+            }
+            range[0] = Math.min(range[0], n.getLongLeftValue());
+            range[1] = Math.max(range[1], n.getLongRightValue());
+        }
+        return range;
+    }
+
+    /**
+     * INTERNAL: Checks that the left and right values of the given rows use
+     * every position between the bounds exactly once.
+     */
+    static boolean usesEachPositionOnce(long left, long right, List<?> rows) {
+        boolean[] used = new boolean[Positions.toInt(right - left + 1)];
+        for (Object row : rows) {
+            Object[] values = (Object[]) row;
+            for (Object value : values) {
+                int position = (int) (((Number) value).longValue() - left);
+                if (used[position]) {
+                    return false;
+                }
+                used[position] = true;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,1021 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+
+import org.code_factory.jpa.nestedset.dialect.Dialect;
+import org.code_factory.jpa.nestedset.events.EventBuilder;
+import org.code_factory.jpa.nestedset.events.NestedSetListenerProvider;
+
+/**
+ * The part of a {@link NestedSetManager} that does not depend on how the
+ * nodes are stored: the identity map of the nodes, the bookkeeping of the
+ * cached positions, the lookups by linked entity, the events and the
+ * snapshots.
+ *
+ * @author Roman Borschel <roman@code-factory.org>
+ * @author gabbol
+ */
+public abstract class AbstractNestedSetManager implements NestedSetManager {
+
+    private final Map<Key, Node<?>> nodes;
+    /** The nodes as an identity map, null if a subclass supplies its own map. */
+    private final NodeIdentityMap identityMap;
+    private final Configuration configuration;
+    protected static final int DEPTH_INFINITE = 0;
+    protected static final int DEPTH_ONE = 1;
+    private NestedSetListenerProvider listenerProvider;
+    /** The published snapshots by root value, 0 when there is no root column. */
+    private final ConcurrentMap<Integer, TreeSnapshot> snapshots = new ConcurrentHashMap<Integer, TreeSnapshot>();
+    private final Set<Integer> staleSnapshots = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile boolean allSnapshotsStale;
+    private volatile boolean allSnapshotsLoaded;
+    /**
+     * Serializes the loading and publishing of the snapshots, so that an older
+     * load never replaces a newer one.
+     */
+    private final Object snapshotLock = new Object();
+    private volatile Dialect dialect;
+    private volatile boolean dialectDetected;
+    private LinkedClosureCache linkedClosureCache;
+    /** The maximum number of nodes in the identity map, 0 for no limit. */
+    private volatile int maxCachedNodes;
+    /** The keys of the cached nodes of each tree, when there is a limit. */
+    private final ConcurrentMap<Integer, CachedTree> cachedTrees = new ConcurrentHashMap<Integer, CachedTree>();
+    /** Orders the uses of the trees; concurrent uses may share a value. */
+    private volatile long useClock;
+    private long evictedNodes;
+
+    AbstractNestedSetManager(Configuration configuration, Map<Key, Node<?>> nodes) {
+        this.configuration = configuration;
+        this.nodes = nodes;
+        this.identityMap = nodes instanceof NodeIdentityMap ? (NodeIdentityMap) nodes : null;
+    }
+
+    /**
+     * Creates the manager of the encoding selected by the given configuration:
+     * a {@link JpaNestedSetManager} for nested sets, a
+     * {@link JpaNestedIntervalManager} for nested intervals.
+     */
+    public static AbstractNestedSetManager create(Configuration configuration, EntityManager em) {
+        if (configuration.getEncoding() == Configuration.NESTED_INTERVALS) {
+            return new JpaNestedIntervalManager(configuration, em);
+        }
+        return new JpaNestedSetManager(configuration, em);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        this.nodes.clear();
+        if (this.maxCachedNodes != 0) {
+            synchronized (this) {
+                this.cachedTrees.clear();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> getNode(T nodeInfo) {
+        @SuppressWarnings("unchecked")
+        Node<T> cached = (Node<T>) getCachedNode(nodeInfo.getClass(), nodeInfo.getId());
+        if (cached != null) {
+            touchTree(cached.getRootValue());
+            return cached;
+        }
+        evictTrees();
+        return loadNode(nodeInfo);
+    }
+
+    /**
+     * INTERNAL: Returns the node of the given entity, creating and registering
+     * it if needed. Unlike {@link #getNode(NodeInfo)} it never evicts trees,
+     * so that an operation loading many nodes keeps them all; the public
+     * lookups evict before they start.
+     */
+    <T extends NodeInfo> Node<T> loadNode(T nodeInfo) {
+        @SuppressWarnings("unchecked")
+        Node<T> cached = (Node<T>) getCachedNode(nodeInfo.getClass(), nodeInfo.getId());
+        if (cached != null) {
+            touchTree(cached.getRootValue());
+            return cached;
+        }
+        Node<T> created = createNode(nodeInfo);
+        if (!created.isValid()) {
+            throw new IllegalArgumentException("The given NodeInfo instance has no position " + "in a tree and is thus not yet a node.");
+        }
+        Key key = new Key(nodeInfo.getClass(), nodeInfo.getId());
+        @SuppressWarnings("unchecked")
+        Node<T> node = (Node<T>) registerNode(key, created);
+        if (node == created && this.maxCachedNodes != 0) {
+            indexNode(key, node.getRootValue());
+        } else {
+            touchTree(node.getRootValue());
+        }
+        return node;
+    }
+
+    /**
+     * Bounds the identity map to about the given number of nodes. When a node
+     * is looked up beyond the limit, the nodes of the least recently used
+     * trees are dropped with their cached relatives, as {@link #clear()} does
+     * for all trees: they no longer follow the changes made through this
+     * manager and must be looked up again, as moving, deleting or adding
+     * children to them throws an {@link IllegalStateException}. A single tree
+     * larger than the limit is dropped as a whole. The nodes loaded by a
+     * running operation, such as the result of {@link #find(Class, Object)},
+     * are only dropped by a later lookup.
+     *
+     * @param maxCachedNodes
+     *            the maximum number of nodes, or 0 for no limit
+     */
+    public void setMaxCachedNodes(int maxCachedNodes) {
+        if (maxCachedNodes < 0) {
+            throw new IllegalArgumentException("The maximum number of cached nodes must not be negative: "
+                    + maxCachedNodes);
+        }
+        synchronized (this) {
+            int previous = this.maxCachedNodes;
+            this.maxCachedNodes = maxCachedNodes;
+            if (maxCachedNodes == 0) {
+                this.cachedTrees.clear();
+                return;
+            }
+            if (previous == 0) {
+                for (Map.Entry<Key, Node<?>> entry : this.nodes.entrySet()) {
+                    indexNode(entry.getKey(), entry.getValue().getRootValue());
+                }
+            }
+        }
+        evictTrees();
+    }
+
+    /**
+     * @return the maximum number of nodes in the identity map, 0 for no limit
+     */
+    public int getMaxCachedNodes() {
+        return this.maxCachedNodes;
+    }
+
+    /**
+     * @return the number of nodes in the identity map
+     */
+    public int getCachedNodeCount() {
+        return this.nodes.size();
+    }
+
+    /**
+     * @return the number of nodes dropped from the identity map by the limit
+     *         on the number of nodes
+     */
+    public synchronized long getEvictedNodeCount() {
+        return this.evictedNodes;
+    }
+
+    /**
+     * The keys of the cached nodes of a tree, so that the tree is evicted
+     * without a scan of the identity map.
+     */
+    private static final class CachedTree {
+        final Set<Key> keys = new HashSet<Key>();
+        volatile long lastUse;
+    }
+
+    private static final Comparator<Map.Entry<Integer, CachedTree>> LEAST_RECENTLY_USED =
+            new Comparator<Map.Entry<Integer, CachedTree>>() {
+        @Override
+        public int compare(Map.Entry<Integer, CachedTree> o1, Map.Entry<Integer, CachedTree> o2) {
+            long use1 = o1.getValue().lastUse;
+            long use2 = o2.getValue().lastUse;
+            return use1 < use2 ? -1 : (use1 == use2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * Marks the given tree as the most recently used one. Takes no lock, so
+     * concurrent uses may lose an increment of the clock, which only blurs
+     * the order of the trees.
+     */
+    private void touchTree(int rootValue) {
+        if (this.maxCachedNodes == 0) {
+            return;
+        }
+        CachedTree tree = this.cachedTrees.get(rootValue);
+        if (tree != null) {
+            tree.lastUse = ++this.useClock;
+        }
+    }
+
+    /**
+     * Adds a newly registered node to the keys of its tree.
+     */
+    private synchronized void indexNode(Key key, int rootValue) {
+        CachedTree tree = this.cachedTrees.get(rootValue);
+        if (tree == null) {
+            tree = new CachedTree();
+            this.cachedTrees.put(rootValue, tree);
+        }
+        tree.keys.add(key);
+        tree.lastUse = ++this.useClock;
+    }
+
+    /**
+     * Drops the least recently used trees until the identity map is back
+     * within the limit. The dropped nodes are detached, and the trees keep
+     * their versions, as their rows have not changed.
+     */
+    private void evictTrees() {
+        int max = this.maxCachedNodes;
+        if (max == 0 || this.nodes.size() <= max) {
+            return;
+        }
+        synchronized (this) {
+            List<Map.Entry<Integer, CachedTree>> trees = new ArrayList<Map.Entry<Integer, CachedTree>>(
+                    this.cachedTrees.entrySet());
+            Collections.sort(trees, LEAST_RECENTLY_USED);
+            for (Map.Entry<Integer, CachedTree> tree : trees) {
+                if (this.nodes.size() <= max) {
+                    break;
+                }
+                this.evictedNodes += evictIndexedTree(tree.getKey(), true);
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Creates the node wrapping the given NodeInfo instance.
+     */
+    abstract <T extends NodeInfo> Node<T> createNode(T nodeInfo);
+
+    /**
+     * INTERNAL: Resets the position of a deleted node, so that it is no longer
+     * valid.
+     */
+    abstract void clearPosition(Node<?> node);
+
+    /**
+     * INTERNAL: Called when a deleted node has been removed from the manager.
+     * The default implementation does nothing.
+     */
+    void nodeRemoved(Node<?> node) {
+    }
+
+    /**
+     * INTERNAL: Detects the dialect of the database.
+     *
+     * @return the dialect, or null if the database is not supported
+     */
+    abstract Dialect detectDialect();
+
+    /**
+     * Searches the nodes with the given linked entity, except the excluded
+     * ones, ordered by left value.
+     */
+    protected abstract <T extends NodeInfo> List<Node<T>> find(int refType, Object refId, Collection<Node<T>> excludedNodes);
+
+    /**
+     * INTERNAL: Loads the committed state of the given tree, or of all trees if
+     * rootValue is null.
+     *
+     * @return the snapshots by root value
+     */
+    abstract Map<Integer, TreeSnapshot> loadSnapshots(Integer rootValue);
+
+    /**
+     * Returns the configuration
+     *
+     * @return a configuration
+     */
+    protected Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * INTERNAL: Adds a newly created node to the identity map.
+     *
+     * @return the node registered for the key, which is the given node unless
+     *         another one has been registered in the meantime.
+     */
+    Node<?> registerNode(Key key, Node<?> node) {
+        this.nodes.put(key, node);
+        return node;
+    }
+
+    /**
+     * INTERNAL: Called before a node reads the tree with the given root ID.
+     * The default implementation does nothing.
+     */
+    void beginRead(int rootId) {
+    }
+
+    /**
+     * INTERNAL: Called after a node has read the tree with the given root ID.
+     */
+    void endRead(int rootId) {
+    }
+
+    /**
+     * INTERNAL: Called before a structural operation modifies the tree with
+     * the given root ID only. The default implementation does nothing.
+     */
+    void beginWrite(int rootId) {
+    }
+
+    /**
+     * INTERNAL: Calls {@link #beginWrite(int)} for the tree of the given node
+     * and checks the root value of the node again once the tree is locked, as
+     * another writer may have moved it to another tree in the meantime.
+     *
+     * @return the root value of the locked tree
+     */
+    int beginWrite(Node<?> node) {
+        checkAttached(node);
+        for (;;) {
+            int rootId = node.getRootValue();
+            beginWrite(rootId);
+            if (node.getRootValue() == rootId) {
+                return rootId;
+            }
+            cancelWrite(rootId);
+        }
+    }
+
+    /**
+     * INTERNAL: Rejects the modification of a node dropped from the identity
+     * map by the limit on the number of cached nodes, whose position may be
+     * stale.
+     *
+     * @throws IllegalStateException
+     *             if the node is detached
+     */
+    void checkAttached(Node<?> node) {
+        if (node instanceof ManagedNode && ((ManagedNode<?>) node).isDetached()) {
+            throw new IllegalStateException("The node has been evicted from the manager and must be looked up again: "
+                    + node);
+        }
+    }
+
+    /**
+     * INTERNAL: Called instead of {@link #endWrite(int)} when the tree has
+     * been locked by {@link #beginWrite(int)} but not modified. The default
+     * implementation does nothing.
+     */
+    void cancelWrite(int rootId) {
+    }
+
+    /**
+     * INTERNAL: Called after a structural operation has modified the tree with
+     * the given root ID. The default implementation calls
+     * {@link #treeWritten(int)} at once, as the caller commits before it
+     * publishes the snapshots.
+     */
+    void endWrite(int rootId) {
+        treeWritten(rootId);
+    }
+
+    /**
+     * INTERNAL: Called once the changes made to the tree with the given root
+     * ID are final, that is committed or rolled back. Marks the snapshot of
+     * the tree as stale.
+     */
+    void treeWritten(int rootId) {
+        this.staleSnapshots.add(getSnapshotKey(rootId));
+    }
+
+    /**
+     * INTERNAL: Called before an operation that creates trees, moves nodes
+     * between trees or renumbers the roots. The default implementation does
+     * nothing.
+     */
+    void beginForestWrite() {
+    }
+
+    /**
+     * INTERNAL: Called after an operation that has modified several trees.
+     * The default implementation calls {@link #forestWritten()} at once.
+     */
+    void endForestWrite() {
+        forestWritten();
+    }
+
+    /**
+     * INTERNAL: Called once the changes made to several trees are final.
+     * Marks all snapshots as stale.
+     */
+    void forestWritten() {
+        this.allSnapshotsStale = true;
+    }
+
+    /**
+     * INTERNAL: Converts a position to the type of the left and right
+     * columns, to be bound as a query parameter.
+     *
+     * @throws ArithmeticException
+     *             if the columns are int and the position does not fit
+     */
+    Number position(long value) {
+        if (getConfiguration().hasLongPositions()) {
+            return Long.valueOf(value);
+        }
+        return Integer.valueOf(Positions.toInt(value));
+    }
+
+    /**
+     * Returns the dialect used for the native statements, detected from the
+     * JDBC URL of the database unless set explicitly.
+     *
+     * @return the dialect, or null if the generic JPQL statements are used
+     */
+    public Dialect getDialect() {
+        if (!this.dialectDetected) {
+            this.dialect = detectDialect();
+            this.dialectDetected = true;
+        }
+        return this.dialect;
+    }
+
+    /**
+     * Sets the dialect used for the native statements.
+     *
+     * @param dialect
+     *            the dialect, or null to use the generic JPQL statements only
+     */
+    public void setDialect(Dialect dialect) {
+        this.dialect = dialect;
+        this.dialectDetected = true;
+    }
+
+    /**
+     * INTERNAL: Returns the node of the given entity known to the manager, or
+     * null if it has not been loaded. Managers supplying their own map
+     * override it, as well as {@link #removeCachedNode(Class, int)}.
+     */
+    Node<?> getCachedNode(Class<?> clazz, int id) {
+        return this.identityMap.get(clazz, id);
+    }
+
+    /**
+     * INTERNAL: Removes the node of the given entity from the identity map.
+     *
+     * @return the removed node, or null
+     */
+    Node<?> removeCachedNode(Class<?> clazz, int id) {
+        return this.identityMap.remove(clazz, id);
+    }
+
+    /**
+     * INTERNAL: Clears the local caches of all nodes of the given tree
+     * currently known to the manager.
+     */
+    void invalidateNodes(int rootId) {
+        for (Node<?> node : this.nodes.values()) {
+            if (node.getRootValue() == rootId) {
+                ((ManagedNode<?>) node).invalidate();
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Drops all nodes of the given tree from the manager, as
+     * {@link #clear()} does for all trees.
+     *
+     * @return the number of dropped nodes
+     */
+    int evictTree(int rootId) {
+        if (this.maxCachedNodes != 0) {
+            return evictIndexedTree(rootId, false);
+        }
+        int evicted = 0;
+        for (Iterator<Node<?>> it = this.nodes.values().iterator(); it.hasNext();) {
+            Node<?> node = it.next();
+            if (node.getRootValue() == rootId) {
+                it.remove();
+                ((ManagedNode<?>) node).invalidate();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Drops the nodes of the given tree listed by its keys. A node moved to
+     * another tree since it was registered is listed again under that tree.
+     *
+     * @param detach
+     *            true to detach the dropped nodes
+     */
+    private synchronized int evictIndexedTree(int rootId, boolean detach) {
+        CachedTree tree = this.cachedTrees.remove(rootId);
+        if (tree == null) {
+            return 0;
+        }
+        int evicted = 0;
+        for (Key key : tree.keys) {
+            Node<?> node = this.nodes.get(key);
+            if (node == null) {
+                continue;
+            }
+            if (node.getRootValue() != rootId) {
+                indexNode(key, node.getRootValue());
+                continue;
+            }
+            this.nodes.remove(key);
+            ((ManagedNode<?>) node).invalidate();
+            if (detach) {
+                ((ManagedNode<?>) node).detach();
+            }
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the key of a deleted node from the keys of its tree, or of any
+     * tree if it has moved since it was registered.
+     */
+    private synchronized void unindexNode(Key key, int rootValue) {
+        CachedTree tree = this.cachedTrees.get(rootValue);
+        if (tree != null && tree.keys.remove(key)) {
+            return;
+        }
+        for (CachedTree other : this.cachedTrees.values()) {
+            if (other.keys.remove(key)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Removes a deleted node from the manager.
+     */
+    void removeNode(Class<?> clazz, int id) {
+        Node<?> n = removeCachedNode(clazz, id);
+        if (n != null) {
+            if (this.maxCachedNodes != 0) {
+                unindexNode(new Key(clazz, id), n.getRootValue());
+            }
+            clearPosition(n);
+            nodeRemoved(n);
+        }
+    }
+
+    
+    
+    protected <T extends NodeInfo> void retrieveAncestors(int entityType, Object entityId, int deep, Set<Node<T>> history) {
+        List<Node<T>> elements = find(entityType, entityId, history);
+
+        if (elements.size() == 0 && history.size() == 0) {
+            throw new IllegalArgumentException("The given NodeInfo instance has no position in a tree and is thus not yet a node.");
+        }
+
+        if (deep == DEPTH_ONE) {
+            for (Node<T> e : elements) {
+                Node<T> p = e.getParent();
+                if (p != null) {
+                    history.add(p);
+                }
+            }
+        } else {
+            for (Node<T> e : elements) {
+                List<Node<T>> ancestors = new ArrayList<Node<T>>(e.getAncestors());
+                for (Iterator<Node<T>> it = ancestors.iterator(); it.hasNext();) {
+                    Node<T> a = it.next();
+                    if (history.contains(a)) {
+                        it.remove();
+                    } else {
+                        history.add(a);
+                    }
+                }
+
+                for (Node<T> a : ancestors) {
+                    T info = a.unwrap();
+                    retrieveAncestors(info.getLinkedTypeCode(), info.getLinkedId(), deep, history);
+                }
+
+            }
+        }
+    }
+
+    protected <T extends NodeInfo> void retrieveDescendants(int entityType, Object entityId, int deep, Set<Node<T>> history) {
+        List<Node<T>> elements = find(entityType, entityId, history);
+
+        if (elements.size() == 0 && history.size() == 0) {
+            throw new IllegalArgumentException("The given NodeInfo instance has no position in a tree and is thus not yet a node.");
+        }
+
+        if (deep == DEPTH_ONE) {
+            for (Node<T> e : elements) {
+                history.addAll(e.getChildren());
+            }
+        } else {
+            for (Node<T> e : elements) {
+                List<Node<T>> descendants = new ArrayList<Node<T>>(e.getDescendants(deep));
+                for (Iterator<Node<T>> it = descendants.iterator(); it.hasNext();) {
+                    Node<T> a = it.next();
+                    if (history.contains(a)) {
+                        it.remove();
+                    } else {
+                        history.add(a);
+                    }
+                }
+                for (Node<T> a : descendants) {
+                    T info = a.unwrap();
+                    retrieveDescendants(info.getLinkedTypeCode(), info.getId(), deep, history);
+                }
+            }
+        }
+    }
+
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> find(Class<?> refTypeClass, Object refId) {
+        evictTrees();
+        Configuration config = getConfiguration();
+        return find(config.getLinkedTypeCode(refTypeClass), refId, new HashSet<Node<T>>());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Collection<Node<T>> getAncestors(Class<?> refTypeClass, Object refId) {
+        evictTrees();
+        Set<Node<T>> result = new HashSet<Node<T>>();
+        retrieveAncestors(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_INFINITE, result);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Collection<Node<T>> getChildren(Class<?> refTypeClass, Object refId) {
+        Set<Node<T>> result = new HashSet<Node<T>>();
+        retrieveDescendants(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_ONE, result);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Collection<Node<T>> getDescendants(Class<?> refTypeClass, Object refId) {
+        evictTrees();
+        Set<Node<T>> result = new HashSet<Node<T>>();
+        retrieveDescendants(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_INFINITE, result);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Collection<Node<T>> getParents(Class<?> refTypeClass, Object refId) {
+        Set<Node<T>> result = new HashSet<Node<T>>();
+        retrieveAncestors(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_ONE, result);
+        return result;
+    }
+
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<T> unwrap(Collection<Node<T>> list) {
+        List<T> result = new ArrayList<T>();
+        for (Node<T> node : list) {
+            result.add(node.unwrap());
+        }
+        return result;
+    }
+
+
+    protected EventBuilder createEventBuilder() {
+        return new EventBuilder(getConfiguration().getId(), this.getListenerProvider());
+    }
+
+    public NestedSetListenerProvider getListenerProvider() {
+        return listenerProvider;
+    }
+
+    public void setListenerProvider(NestedSetListenerProvider listenerProvider) {
+        this.listenerProvider = listenerProvider;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized LinkedClosureCache getLinkedClosureCache() {
+        if (this.linkedClosureCache == null) {
+            this.linkedClosureCache = new LinkedClosureCache(this);
+            if (this.listenerProvider != null) {
+                this.listenerProvider.addListener(this.linkedClosureCache);
+            }
+        }
+        return this.linkedClosureCache;
+    }
+
+    Iterator<Node<?>> getCachedNodes() {
+    	return nodes.values().iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo, E>  List<E> lookupLinkedObjects(Collection<Node<T>>  list, TypeFilter<E> filter){
+        HashMap<String, Node<? extends NodeInfo>> refId2node = new HashMap<String, Node<? extends NodeInfo>>();
+        for (Node<? extends NodeInfo> node: list){
+            if (filter.accept(node)) {
+                refId2node.put(node.getLinkedId(), node);
+            }
+        }
+        List<E> result = new ArrayList<E>(refId2node.size());
+        for (Node<? extends NodeInfo> node : refId2node.values()){
+            result.add((E)node.lookupLinkedObject());
+        }
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> lowestCommonAncestor(Node<T> a, Node<T> b) {
+        List<Node<T>> pair = new ArrayList<Node<T>>(2);
+        pair.add(a);
+        pair.add(b);
+        return lowestCommonAncestor(pair);
+    }
+
+    /**
+     * Climbs from the first node until its subtree holds all the others. The
+     * managers with left/right values override this with a single query.
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> lowestCommonAncestor(Collection<Node<T>> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes given");
+        }
+        Iterator<Node<T>> it = nodes.iterator();
+        Node<T> candidate = it.next();
+        while (it.hasNext()) {
+            Node<T> n = it.next();
+            while (candidate != null && n.getId() != candidate.getId() && !n.isDescendantOf(candidate)) {
+                candidate = candidate.getParent();
+            }
+            if (candidate == null) {
+                return null;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> pathBetween(Node<T> a, Node<T> b) {
+        Node<T> lca = lowestCommonAncestor(a, b);
+        List<Node<T>> path = new ArrayList<Node<T>>();
+        if (lca == null) {
+            return path;
+        }
+        if (a.getId() != lca.getId()) {
+            // the nearest ancestors start with the common one
+            List<Node<T>> up = a.getAncestors(a.getLevel() - lca.getLevel());
+            path.add(a);
+            for (int i = up.size() - 1; i > 0; i--) {
+                path.add(up.get(i));
+            }
+        }
+        path.add(lca);
+        if (b.getId() != lca.getId()) {
+            List<Node<T>> down = b.getAncestors(b.getLevel() - lca.getLevel());
+            path.addAll(down.subList(1, down.size()));
+            path.add(b);
+        }
+        return path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TreeSnapshot getSnapshot(int rootValue) {
+        int key = getSnapshotKey(rootValue);
+        TreeSnapshot snapshot = this.snapshots.get(key);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (this.snapshotLock) {
+            snapshot = this.snapshots.get(key);
+            if (snapshot == null) {
+                snapshot = loadSnapshots(key).get(key);
+                if (snapshot == null) {
+                    throw new IllegalArgumentException("There is no tree with root " + rootValue);
+                }
+                this.snapshots.put(key, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<SnapshotNode> findInSnapshots(Class<?> linkedTypeClass, Object linkedId) {
+        if (!this.allSnapshotsLoaded) {
+            synchronized (this.snapshotLock) {
+                if (!this.allSnapshotsLoaded) {
+                    for (Map.Entry<Integer, TreeSnapshot> entry : loadSnapshots(null).entrySet()) {
+                        this.snapshots.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                    this.allSnapshotsLoaded = true;
+                }
+            }
+        }
+        int linkedTypeCode = getConfiguration().getLinkedTypeCode(linkedTypeClass);
+        String id = String.valueOf(linkedId);
+        List<TreeSnapshot> trees = new ArrayList<TreeSnapshot>(this.snapshots.values());
+        Collections.sort(trees, new Comparator<TreeSnapshot>() {
+            @Override
+            public int compare(TreeSnapshot o1, TreeSnapshot o2) {
+                return o1.getRootValue() < o2.getRootValue() ? -1 : (o1.getRootValue() == o2.getRootValue() ? 0 : 1);
+            }
+        });
+        List<SnapshotNode> result = new ArrayList<SnapshotNode>();
+        for (TreeSnapshot tree : trees) {
+            result.addAll(tree.find(linkedTypeCode, id));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publishSnapshots() {
+        synchronized (this.snapshotLock) {
+            if (this.allSnapshotsStale) {
+                this.allSnapshotsStale = false;
+                this.staleSnapshots.clear();
+                if (this.snapshots.isEmpty()) {
+                    return;
+                }
+                Map<Integer, TreeSnapshot> fresh = loadSnapshots(null);
+                for (Integer key : this.snapshots.keySet()) {
+                    if (!fresh.containsKey(key)) {
+                        this.snapshots.remove(key);
+                    } else if (!this.allSnapshotsLoaded) {
+                        this.snapshots.put(key, fresh.get(key));
+                    }
+                }
+                if (this.allSnapshotsLoaded) {
+                    this.snapshots.putAll(fresh);
+                }
+            } else {
+                for (Integer key : this.staleSnapshots) {
+                    this.staleSnapshots.remove(key);
+                    if (this.snapshots.containsKey(key)) {
+                        TreeSnapshot snapshot = loadSnapshots(key).get(key);
+                        if (snapshot == null) {
+                            this.snapshots.remove(key);
+                        } else {
+                            this.snapshots.put(key, snapshot);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Splits the rows of a snapshot query into one snapshot per
+     * tree. The rows hold the id, left, right, level, linked type code and
+     * linked id, followed by the root value when there is a root column, and
+     * are ordered by root and left value.
+     */
+    Map<Integer, TreeSnapshot> groupSnapshots(List<?> rows) {
+        Configuration config = getConfiguration();
+        boolean manyRoots = config.hasManyRoots();
+        Map<Integer, TreeSnapshot> result = new HashMap<Integer, TreeSnapshot>();
+        List<Object[]> treeRows = new ArrayList<Object[]>();
+        int currentRoot = 0;
+        for (Object row : rows) {
+            Object[] values = (Object[]) row;
+            int root = manyRoots ? ((Number) values[6]).intValue() : 0;
+            if (root != currentRoot && !treeRows.isEmpty()) {
+                result.put(currentRoot, new TreeSnapshot(config, currentRoot, treeRows));
+                treeRows = new ArrayList<Object[]>();
+            }
+            currentRoot = root;
+            treeRows.add(values);
+        }
+        if (!treeRows.isEmpty()) {
+            result.put(currentRoot, new TreeSnapshot(config, currentRoot, treeRows));
+        }
+        return result;
+    }
+
+    private int getSnapshotKey(int rootValue) {
+        return getConfiguration().hasManyRoots() ? rootValue : 0;
+    }
+
+    /**
+     * Returns to the field that is the primary key, otherwise null
+     * 
+     * @param entityClass Entity Class 
+     * @return Field Primary key field
+     */
+    public Field findPrimaryKeyField(Class<?> entityClass)  {
+        for (Field field : entityClass.getDeclaredFields()) {
+            if (field.getAnnotation(Id.class) != null) {
+                return field;
+            }
+        }
+        Class<?> parent = entityClass.getSuperclass();
+        if (parent != null) {
+            return findPrimaryKeyField(parent);
+        }
+        return null;
+    }
+
+    /**
+     * Convert the primary key serialized into the correct type
+     * @param primaryKeyValue primary key serialized
+     * @param entityClass the entity class that contains the primary key
+     * @return returns the primary key value converted
+     */
+    public Object convertPrimaryKey(String primaryKeyValue, Class<?> entityClass) {
+        Field primaryKeyField = findPrimaryKeyField(entityClass);
+        Class<?> typeId = primaryKeyField.getType(); 
+        
+        if (typeId == String.class) {
+            return primaryKeyValue;
+        }
+        if (typeId == int.class || typeId == Integer.class) {
+            return Integer.parseInt(primaryKeyValue);
+        }
+        if (typeId == long.class || typeId == Long.class){
+            return Long.parseLong(primaryKeyValue);
+        }
+        throw new IllegalArgumentException("The type of the id entity is not supported");
+    }
+
+    /**
+     * Gets primary key of the entity object
+     * @param entity object
+     * @return primary key of the entity object
+     */
+    public String getPrimaryKeyValue(Object entity) {
+        Field field = findPrimaryKeyField(entity.getClass());
+        if (field != null) {
+            try {
+                field.setAccessible(true);
+                Object value = field.get(entity);
+                if (value != null) {
+                    return value.toString();
+                }
+            } catch (IllegalArgumentException e) {
+                //nothing
+            } catch (IllegalAccessException e) {
+                //nothing
+            }
+        }
+        return null;
+    }
+}
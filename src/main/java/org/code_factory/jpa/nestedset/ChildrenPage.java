@@ -0,0 +1,162 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of the children of a node, ordered by left value. The next page
+ * starts after the left value of the last child of this one, so paging does
+ * not skip rows the way an offset does and each page is answered by an index
+ * on the level and left columns. The children of a nested interval are paged
+ * by their slot under the parent, numbered from 1, instead.
+ *
+ * @see Node#getChildren(long, int)
+ * @author gabbol
+ */
+public final class ChildrenPage<T extends NodeInfo> {
+    private final Node<T> parent;
+    private final long afterLeft;
+    private final int limit;
+    private final List<Node<T>> children;
+    private final int totalCount;
+    private final boolean hasMore;
+    private final long nextAfterLeft;
+
+    ChildrenPage(Node<T> parent, long afterLeft, int limit, List<Node<T>> children, int totalCount, boolean hasMore,
+            long nextAfterLeft) {
+        this.parent = parent;
+        this.afterLeft = afterLeft;
+        this.limit = limit;
+        this.children = Collections.unmodifiableList(children);
+        this.totalCount = totalCount;
+        this.hasMore = hasMore;
+        this.nextAfterLeft = nextAfterLeft;
+    }
+
+    /**
+     * @return the node whose children are paged
+     */
+    public Node<T> getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the left value the children of this page follow
+     */
+    public long getAfterLeft() {
+        return afterLeft;
+    }
+
+    /**
+     * @return the maximum number of children of a page
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the children of this page
+     */
+    public List<Node<T>> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the number of children of the parent, on all pages
+     */
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return true if there are children after this page
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * @return the left value to pass for the next page: the left value of the
+     *         last child of this page, or its slot for a nested interval
+     */
+    public long getNextAfterLeft() {
+        return this.nextAfterLeft;
+    }
+
+    /**
+     * Gets the next page with the same limit.
+     *
+     * @return the next page, or null if this is the last one
+     */
+    public ChildrenPage<T> next() {
+        return this.hasMore ? this.parent.getChildren(getNextAfterLeft(), this.limit) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "[ChildrenPage: parent=" + this.parent.getId() + ", afterLeft=" + this.afterLeft + ", size="
+                + this.children.size() + ", total=" + this.totalCount + "]";
+    }
+
+    /**
+     * INTERNAL: Cuts a page out of all the children of a node, ordered by
+     * left value.
+     */
+    static <T extends NodeInfo> ChildrenPage<T> of(Node<T> parent, List<Node<T>> children, long afterLeft,
+            int limit) {
+        long[] keys = new long[children.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = children.get(i).getLongLeftValue();
+        }
+        return of(parent, children, keys, afterLeft, limit);
+    }
+
+    /**
+     * INTERNAL: Cuts a page out of all the children of a node, given the
+     * ascending keys the children are paged by.
+     */
+    static <T extends NodeInfo> ChildrenPage<T> of(Node<T> parent, List<Node<T>> children, long[] keys,
+            long afterKey, int limit) {
+        checkLimit(limit);
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= afterKey) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = (int) Math.min(keys.length, (long) low + limit);
+        return new ChildrenPage<T>(parent, afterKey, limit, children.subList(low, end), keys.length,
+                end < keys.length, end > low ? keys[end - 1] : afterKey);
+    }
+
+    /**
+     * INTERNAL: Makes a page from the rows loaded with a limit one greater
+     * than the page limit, the extra row telling that there are more.
+     */
+    static <T extends NodeInfo> ChildrenPage<T> ofLoaded(Node<T> parent, List<Node<T>> loaded, long afterLeft,
+            int limit, int totalCount) {
+        boolean hasMore = loaded.size() > limit;
+        List<Node<T>> children = hasMore ? loaded.subList(0, limit) : loaded;
+        return new ChildrenPage<T>(parent, afterLeft, limit, children, totalCount, hasMore, children.isEmpty()
+                ? afterLeft : children.get(children.size() - 1).getLongLeftValue());
+    }
+
+    static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The limit of a page must be positive: " + limit);
+        }
+    }
+}
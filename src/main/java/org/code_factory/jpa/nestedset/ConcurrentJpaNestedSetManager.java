@@ -0,0 +1,356 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A {@link JpaNestedSetManager} that can be shared by several threads, so that
+ * the nodes it caches survive between requests.
+ * <p>
+ * Each thread binds its own EntityManager with
+ * {@link #setEntityManager(EntityManager)}. The identity map is a lock-striped
+ * concurrent map, and the trees are coordinated in-process with one read/write
+ * lock per root: readers never block each other, and writers are serialized
+ * only with the readers and writers of the same tree. Operations that create
+ * trees or move nodes between trees lock the whole forest.
+ * <p>
+ * The locks taken by a structural operation are held until the end of the
+ * transaction, so that no other thread sees positions that are not committed.
+ * Writers must thus end their transactions with {@link #commit()} and
+ * {@link #rollback()}, or report the outcome with
+ * {@link #afterCompletion(boolean)}; a rollback drops the nodes of the
+ * modified trees and restores the positions of the dropped instances. A
+ * thread that has modified a single tree cannot modify the forest in the same
+ * transaction, and a thread modifying several trees in one transaction must
+ * do so in increasing order of their root values.
+ * <p>
+ * The entities wrapped by the cached nodes are shared between the threads, so
+ * they are detached from the EntityManager that loaded them as they are
+ * cached, and new nodes are flushed before. Changes to the other fields of a
+ * cached entity must be merged by the thread making them, and the tree
+ * columns must be mapped with <code>updatable = false</code> so that a merge
+ * never writes stale positions.
+ *
+ * @author gabbol
+ */
+@ThreadSafe
+public class ConcurrentJpaNestedSetManager extends JpaNestedSetManager {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private final ThreadLocal<EntityManager> entityManagers = new ThreadLocal<EntityManager>();
+    private final ConcurrentMap<Key, Node<?>> nodes;
+    /** Held in read mode by any single-tree operation, in write mode by forest-wide ones. */
+    private final ReentrantReadWriteLock forestLock = new ReentrantReadWriteLock();
+    private final ConcurrentMap<Integer, ReadWriteLock> rootLocks;
+    /** The locks held by the current thread until the end of its transaction. */
+    private final ThreadLocal<HeldLocks> heldLocks = new ThreadLocal<HeldLocks>();
+
+    public ConcurrentJpaNestedSetManager(Configuration configuration) {
+        this(configuration, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param configuration
+     * @param concurrencyLevel
+     *            the estimated number of threads modifying the trees
+     *            concurrently, used to size the concurrent maps.
+     */
+    public ConcurrentJpaNestedSetManager(Configuration configuration, int concurrencyLevel) {
+        this(configuration, stripes(concurrencyLevel), new ConcurrentHashMap<Key, Node<?>>(64, 0.75f,
+                stripes(concurrencyLevel)));
+    }
+
+    private ConcurrentJpaNestedSetManager(Configuration configuration, int stripes,
+            ConcurrentMap<Key, Node<?>> nodes) {
+        super(configuration, null, nodes, new ConcurrentHashMap<Integer, Integer>(16, 0.75f, stripes));
+        this.nodes = nodes;
+        this.rootLocks = new ConcurrentHashMap<Integer, ReadWriteLock>(16, 0.75f, stripes);
+    }
+
+    private static int stripes(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("The concurrency level must be positive");
+        }
+        int stripes = 1;
+        while (stripes < concurrencyLevel) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private ReadWriteLock getRootLock(int rootId) {
+        ReadWriteLock lock = this.rootLocks.get(rootId);
+        if (lock == null) {
+            ReadWriteLock created = new ReentrantReadWriteLock();
+            lock = this.rootLocks.putIfAbsent(rootId, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Returns the EntityManager bound to the current thread.
+     *
+     * @throws IllegalStateException
+     *             if no EntityManager has been bound to the current thread.
+     */
+    @Override
+    public EntityManager getEntityManager() {
+        EntityManager em = this.entityManagers.get();
+        if (em == null) {
+            throw new IllegalStateException("No EntityManager is bound to the current thread");
+        }
+        return em;
+    }
+
+    /**
+     * Binds the EntityManager used by the current thread, or unbinds it if
+     * <code>null</code>. Unlike the single-threaded manager, the cached nodes
+     * are kept.
+     */
+    @Override
+    public void setEntityManager(EntityManager entityManager) {
+        if (entityManager == null) {
+            this.entityManagers.remove();
+        } else {
+            this.entityManagers.set(entityManager);
+        }
+    }
+
+    /**
+     * Detaches the entity of a node before other threads can reach it, so that
+     * it is never flushed by the EntityManager of the thread that loaded it.
+     */
+    @Override
+    Node<?> registerNode(Key key, Node<?> node) {
+        Node<?> registered = this.nodes.putIfAbsent(key, node);
+        if (registered != null) {
+            return registered;
+        }
+        EntityManager em = this.entityManagers.get();
+        if (em != null && em.contains(node.unwrap())) {
+            em.detach(node.unwrap());
+        }
+        return node;
+    }
+
+    /**
+     * Writes a new node right away, as its entity is detached once it is
+     * cached.
+     */
+    @Override
+    void nodeInserted(NodeInfo child, NodeInfo parent) {
+        super.nodeInserted(child, parent);
+        getEntityManager().flush();
+    }
+
+    @Override
+    Node<?> getCachedNode(Class<?> clazz, int id) {
+        return this.nodes.get(new Key(clazz, id));
+    }
+
+    @Override
+    Node<?> removeCachedNode(Class<?> clazz, int id) {
+        return this.nodes.remove(new Key(clazz, id));
+    }
+
+    @Override
+    void beginRead(int rootId) {
+        this.forestLock.readLock().lock();
+        try {
+            getRootLock(rootId).readLock().lock();
+        } catch (RuntimeException e) {
+            this.forestLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    void endRead(int rootId) {
+        getRootLock(rootId).readLock().unlock();
+        this.forestLock.readLock().unlock();
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             if the current thread already holds the lock of a tree with
+     *             a greater root value, as two threads locking the same trees
+     *             in opposite orders would deadlock.
+     */
+    @Override
+    void beginWrite(int rootId) {
+        HeldLocks held = this.heldLocks.get();
+        if (held != null) {
+            for (int heldRoot : held.roots) {
+                if (heldRoot > rootId) {
+                    throw new IllegalStateException("The tree " + rootId + " cannot be modified after the tree "
+                            + heldRoot + " in the same transaction");
+                }
+            }
+        }
+        this.forestLock.readLock().lock();
+        try {
+            getRootLock(rootId).writeLock().lock();
+        } catch (RuntimeException e) {
+            this.forestLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    void cancelWrite(int rootId) {
+        getRootLock(rootId).writeLock().unlock();
+        this.forestLock.readLock().unlock();
+    }
+
+    /**
+     * Keeps the lock of the tree until the end of the transaction, when the
+     * snapshot of the tree is marked as stale.
+     */
+    @Override
+    void endWrite(int rootId) {
+        getHeldLocks().roots.add(rootId);
+    }
+
+    /**
+     * Locks the whole forest. A thread already holding the lock of a single
+     * tree cannot upgrade it.
+     */
+    @Override
+    void beginForestWrite() {
+        if (this.forestLock.getReadHoldCount() > 0 && !this.forestLock.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("Cannot modify the forest while reading or writing a single tree");
+        }
+        this.forestLock.writeLock().lock();
+    }
+
+    /**
+     * Keeps the lock of the forest until the end of the transaction, when all
+     * snapshots are marked as stale.
+     */
+    @Override
+    void endForestWrite() {
+        getHeldLocks().forestWrites++;
+    }
+
+    private HeldLocks getHeldLocks() {
+        HeldLocks held = this.heldLocks.get();
+        if (held == null) {
+            held = new HeldLocks();
+            this.heldLocks.set(held);
+        }
+        return held;
+    }
+
+    /**
+     * Commits the transaction of the EntityManager bound to the current thread
+     * and releases the locks of the trees it has modified. If the commit
+     * fails, the nodes of these trees are dropped as by {@link #rollback()}.
+     */
+    public void commit() {
+        boolean committed = false;
+        try {
+            getEntityManager().getTransaction().commit();
+            committed = true;
+        } finally {
+            afterCompletion(committed);
+        }
+    }
+
+    /**
+     * Rolls back the transaction of the EntityManager bound to the current
+     * thread, drops the nodes of the trees it has modified and releases their
+     * locks.
+     */
+    public void rollback() {
+        try {
+            EntityTransaction tx = getEntityManager().getTransaction();
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        } finally {
+            afterCompletion(false);
+        }
+    }
+
+    /**
+     * Releases the locks of the trees modified by the current thread once its
+     * transaction has ended, for transactions not ended through
+     * {@link #commit()} or {@link #rollback()}. If the transaction has been
+     * rolled back, the cached nodes of these trees are dropped first, and the
+     * positions of their instances still held by other threads are read again
+     * from the database. The snapshots of the trees are marked as stale before
+     * the locks are released.
+     *
+     * @param committed
+     *            whether the transaction has been committed
+     */
+    public void afterCompletion(boolean committed) {
+        HeldLocks held = this.heldLocks.get();
+        if (held == null) {
+            return;
+        }
+        this.heldLocks.remove();
+        try {
+            if (!committed) {
+                List<Node<?>> rolledBack = new ArrayList<Node<?>>();
+                for (Node<?> node : this.nodes.values()) {
+                    if (held.forestWrites > 0 || held.roots.contains(node.getRootValue())) {
+                        rolledBack.add(node);
+                    }
+                }
+                if (held.forestWrites > 0) {
+                    clear();
+                } else {
+                    for (int rootId : held.roots) {
+                        evictTree(rootId);
+                    }
+                }
+                restorePositions(rolledBack);
+            }
+            // a snapshot published from now on sees the end of the transaction
+            if (held.forestWrites > 0) {
+                forestWritten();
+            }
+            for (int rootId : held.roots) {
+                treeWritten(rootId);
+            }
+        } finally {
+            for (int rootId : held.roots) {
+                getRootLock(rootId).writeLock().unlock();
+                this.forestLock.readLock().unlock();
+            }
+            for (int i = 0; i < held.forestWrites; i++) {
+                this.forestLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The locks held by a thread, once per structural operation.
+     */
+    private static final class HeldLocks {
+        final List<Integer> roots = new ArrayList<Integer>();
+        int forestWrites;
+    }
+}
@@ -10,16 +10,29 @@
 package org.code_factory.jpa.nestedset;
 
 import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
 
+import org.code_factory.jpa.nestedset.annotations.IntervalColumn;
 import org.code_factory.jpa.nestedset.annotations.LeftColumn;
 import org.code_factory.jpa.nestedset.annotations.LevelColumn;
 import org.code_factory.jpa.nestedset.annotations.LinkedIdColumn;
 import org.code_factory.jpa.nestedset.annotations.LinkedType;
 import org.code_factory.jpa.nestedset.annotations.LinkedTypeColumn;
+import org.code_factory.jpa.nestedset.annotations.ParentColumn;
+import org.code_factory.jpa.nestedset.annotations.PathColumn;
 import org.code_factory.jpa.nestedset.annotations.RightColumn;
 import org.code_factory.jpa.nestedset.annotations.RootColumn;
+import org.code_factory.jpa.nestedset.annotations.RootVersionColumn;
+import org.code_factory.jpa.nestedset.annotations.SubtreeCount;
+import org.code_factory.jpa.nestedset.annotations.SubtreeSum;
 
 /**
  * A configuration for a class managed by a NestedSetManager.
@@ -28,17 +41,35 @@ import org.code_factory.jpa.nestedset.annotations.RootColumn;
  * @author gabbol
  */
 public class Configuration {
+    /** The nodes are stored as nested sets, with left and right columns. */
+    public static final int NESTED_SETS = 0;
+    /** The nodes are stored as nested intervals, with numerator and denominator columns. */
+    public static final int NESTED_INTERVALS = 1;
+
     private String id; 
     private final Class<? extends NodeInfo> nodeInfoClass;
     private String leftFieldName;
     private String rightFieldName;
     private String levelFieldName;
     private String rootIdFieldName;
+    private String rootVersionFieldName;
+    private String parentFieldName;
+    private String pathFieldName;
+    private String closureTableName;
+    private String subtreeCountFieldName;
+    private final Map<String, String> subtreeSumFieldNames = new LinkedHashMap<String, String>();
     private String entityName;
+    private String tableName;
+    private String idFieldName;
+    private final Map<String, String> columnNames = new HashMap<String, String>();
     private String linkedIdFieldName;
     private String linkedTypeCodeFieldName;
-    private LinkedType[] linkedTypes; 
+    private final Map<Integer, Class<?>> linkedTypeClassesByCode = new HashMap<Integer, Class<?>>();
+    private final Map<Class<?>, Integer> linkedTypeCodesByClass = new HashMap<Class<?>, Integer>();
     private boolean hasManyRoots = false;
+    private boolean longPositions = false;
+    private int encoding = NESTED_SETS;
+    private final String[] intervalFieldNames = new String[4];
     
     
     public Configuration(String id, Class<? extends NodeInfo> nodeInfoClass) {
@@ -57,20 +88,39 @@ public class Configuration {
      * @throws IllegalArgumentException
      */
     private void init(Class<?> clazz) {
-        Entity entity = clazz.getAnnotation(Entity.class);
-        String name = entity.name();
-        setEntityName((name != null && name.length() > 0) ? name : clazz.getSimpleName());
+        setEntityName(entityNameOf(clazz));
+        setTableName(tableNameOf(clazz));
     
         while (clazz != null) {
             for (Field field : clazz.getDeclaredFields()) {
+                if (!this.columnNames.containsKey(field.getName())) {
+                    Column column = field.getAnnotation(Column.class);
+                    this.columnNames.put(field.getName(), (column != null && column.name().length() > 0) ? column.name() : field.getName());
+                }
+                if (field.getAnnotation(Id.class) != null && getIdFieldName() == null) {
+                    setIdFieldName(field.getName());
+                }
                 if (field.getAnnotation(LeftColumn.class) != null) {
                     setLeftFieldName(field.getName());
+                    setLongPositions(field.getType() == long.class || field.getType() == Long.class);
+                } else if (field.getAnnotation(IntervalColumn.class) != null) {
+                    setIntervalFieldName(field.getAnnotation(IntervalColumn.class).value(), field.getName());
                 } else if (field.getAnnotation(RightColumn.class) != null) {
                     setRightFieldName(field.getName());
                 } else if (field.getAnnotation(LevelColumn.class) != null) {
                     setLevelFieldName(field.getName());
                 } else if (field.getAnnotation(RootColumn.class) != null) {
                     setRootIdFieldName(field.getName());
+                } else if (field.getAnnotation(RootVersionColumn.class) != null) {
+                    setRootVersionFieldName(field.getName());
+                } else if (field.getAnnotation(ParentColumn.class) != null) {
+                    setParentFieldName(field.getName());
+                } else if (field.getAnnotation(PathColumn.class) != null) {
+                    setPathFieldName(field.getName());
+                } else if (field.getAnnotation(SubtreeCount.class) != null) {
+                    setSubtreeCountFieldName(field.getName());
+                } else if (field.getAnnotation(SubtreeSum.class) != null) {
+                    setSubtreeSumFieldName(field.getName(), field.getAnnotation(SubtreeSum.class).of());
                 } else if (field.getAnnotation(LinkedTypeColumn.class) != null) {
                     setLinkedTypeCodeFieldName(field.getName());
                     LinkedTypeColumn refTypeAnnotation = field.getAnnotation(LinkedTypeColumn.class);
@@ -88,6 +138,35 @@ public class Configuration {
         if (getLinkedIdFieldName() == null){
             throw new IllegalArgumentException("Configuration wrong: missing linked id field");
         }        
+        if (hasLongPositions() && !LongNodeInfo.class.isAssignableFrom(this.nodeInfoClass)) {
+            throw new IllegalArgumentException("Configuration wrong: the long left column of " + this.nodeInfoClass
+                    + " needs an implementation of LongNodeInfo");
+        }
+        if (hasParentColumn() && !ParentNodeInfo.class.isAssignableFrom(this.nodeInfoClass)) {
+            throw new IllegalArgumentException("Configuration wrong: the parent column of " + this.nodeInfoClass
+                    + " needs an implementation of ParentNodeInfo");
+        }
+        if (hasPathColumn() && !PathNodeInfo.class.isAssignableFrom(this.nodeInfoClass)) {
+            throw new IllegalArgumentException("Configuration wrong: the path column of " + this.nodeInfoClass
+                    + " needs an implementation of PathNodeInfo");
+        }
+        if (getEncoding() == NESTED_INTERVALS) {
+            for (String intervalFieldName : this.intervalFieldNames) {
+                if (intervalFieldName == null) {
+                    throw new IllegalArgumentException("Configuration wrong: missing interval column");
+                }
+            }
+            if (getLeftFieldName() != null || getRootIdFieldName() != null) {
+                throw new IllegalArgumentException("Configuration wrong: " + this.nodeInfoClass
+                        + " has both nested interval and nested set columns");
+            }
+            if (!IntervalNodeInfo.class.isAssignableFrom(this.nodeInfoClass)) {
+                throw new IllegalArgumentException("Configuration wrong: the interval columns of " + this.nodeInfoClass
+                        + " need an implementation of IntervalNodeInfo");
+            }
+            // every root has its own interval
+            this.hasManyRoots = true;
+        }
     }
     
     /**
@@ -155,6 +234,190 @@ public class Configuration {
         return this.hasManyRoots;
     }
 
+    /**
+     * @return true if the left and right columns are long, accessed through
+     *         {@link LongNodeInfo}
+     */
+    public boolean hasLongPositions() {
+        return longPositions;
+    }
+
+    /**
+     * @param longPositions
+     *            true if the left and right columns are long
+     */
+    public void setLongPositions(boolean longPositions) {
+        this.longPositions = longPositions;
+    }
+
+    /**
+     * @return how the nodes are stored, {@link #NESTED_SETS} or
+     *         {@link #NESTED_INTERVALS}
+     */
+    public int getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @param encoding
+     *            {@link #NESTED_SETS} or {@link #NESTED_INTERVALS}
+     */
+    public void setEncoding(int encoding) {
+        if (encoding != NESTED_SETS && encoding != NESTED_INTERVALS) {
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+        this.encoding = encoding;
+    }
+
+    /**
+     * @param column
+     *            one of the constants of {@link IntervalColumn}
+     * @return the name of the field holding the given part of the interval
+     */
+    public String getIntervalFieldName(int column) {
+        return intervalFieldNames[column];
+    }
+
+    /**
+     * Sets the field holding the given part of the interval, which selects
+     * the nested interval encoding.
+     *
+     * @param column
+     *            one of the constants of {@link IntervalColumn}
+     * @param fieldName
+     *            the name of the field
+     */
+    public void setIntervalFieldName(int column, String fieldName) {
+        if (column < 0 || column >= intervalFieldNames.length) {
+            throw new IllegalArgumentException("Unknown interval column: " + column);
+        }
+        this.intervalFieldNames[column] = fieldName;
+        setEncoding(NESTED_INTERVALS);
+    }
+
+    /**
+     * @return the rootVersionFieldName, or null if the trees are not versioned
+     */
+    public String getRootVersionFieldName() {
+        return rootVersionFieldName;
+    }
+
+    /**
+     * @param rootVersionFieldName
+     *            the rootVersionFieldName to set
+     */
+    public void setRootVersionFieldName(String rootVersionFieldName) {
+        this.rootVersionFieldName = rootVersionFieldName;
+    }
+
+    public boolean isRootVersioned() {
+        return this.rootVersionFieldName != null;
+    }
+
+    /**
+     * @return the parentFieldName, or null if there is no parent column
+     */
+    public String getParentFieldName() {
+        return parentFieldName;
+    }
+
+    /**
+     * @param parentFieldName
+     *            the parentFieldName to set
+     */
+    public void setParentFieldName(String parentFieldName) {
+        this.parentFieldName = parentFieldName;
+    }
+
+    public boolean hasParentColumn() {
+        return this.parentFieldName != null;
+    }
+
+    /**
+     * @return the pathFieldName, or null if there is no path column
+     */
+    public String getPathFieldName() {
+        return pathFieldName;
+    }
+
+    /**
+     * @param pathFieldName
+     *            the pathFieldName to set
+     */
+    public void setPathFieldName(String pathFieldName) {
+        this.pathFieldName = pathFieldName;
+    }
+
+    public boolean hasPathColumn() {
+        return this.pathFieldName != null;
+    }
+
+    /**
+     * @return the name of the closure table, or null if there is none
+     */
+    public String getClosureTableName() {
+        return closureTableName;
+    }
+
+    /**
+     * Names a table (ancestor_id, descendant_id, depth) that the
+     * JpaNestedSetManager keeps in sync with the nested set and joins to load
+     * ancestors and descendants. The table is not mapped and must exist; it is
+     * only used by managers created after this call.
+     *
+     * @param closureTableName
+     *            the closureTableName to set, or null for none
+     */
+    public void setClosureTableName(String closureTableName) {
+        this.closureTableName = closureTableName;
+    }
+
+    public boolean hasClosureTable() {
+        return this.closureTableName != null;
+    }
+
+    /**
+     * @return the subtreeCountFieldName, or null if there is no subtree count
+     *         column
+     */
+    public String getSubtreeCountFieldName() {
+        return subtreeCountFieldName;
+    }
+
+    /**
+     * @param subtreeCountFieldName
+     *            the subtreeCountFieldName to set
+     */
+    public void setSubtreeCountFieldName(String subtreeCountFieldName) {
+        this.subtreeCountFieldName = subtreeCountFieldName;
+    }
+
+    /**
+     * @return the names of the subtree sum fields, each mapped to the name of
+     *         the field it sums
+     */
+    public Map<String, String> getSubtreeSumFieldNames() {
+        return Collections.unmodifiableMap(subtreeSumFieldNames);
+    }
+
+    /**
+     * @param fieldName
+     *            the field holding the sum
+     * @param summedFieldName
+     *            the summed field, or null to remove the sum
+     */
+    public void setSubtreeSumFieldName(String fieldName, String summedFieldName) {
+        if (summedFieldName == null) {
+            this.subtreeSumFieldNames.remove(fieldName);
+        } else {
+            this.subtreeSumFieldNames.put(fieldName, summedFieldName);
+        }
+    }
+
+    public boolean hasSubtreeAggregates() {
+        return this.subtreeCountFieldName != null || !this.subtreeSumFieldNames.isEmpty();
+    }
+
     @Override
     public String toString() {
         return "Configuration: " + this.nodeInfoClass.getName();
@@ -176,29 +439,117 @@ public class Configuration {
         this.entityName = tableName;
     }
     
+
+    /**
+     * @return the name of the table mapped by the entity
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @param tableName
+     *            the tableName to set
+     */
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * @return the name of the primary key field
+     */
+    public String getIdFieldName() {
+        return idFieldName;
+    }
+
+    /**
+     * @param idFieldName
+     *            the idFieldName to set
+     */
+    public void setIdFieldName(String idFieldName) {
+        this.idFieldName = idFieldName;
+    }
+
+    /**
+     * INTERNAL: Returns the name of the given entity class in JPQL queries, as
+     * declared by its <code>@Entity</code> annotation.
+     */
+    static String entityNameOf(Class<?> entityClass) {
+        Entity entity = entityClass.getAnnotation(Entity.class);
+        return (entity != null && entity.name().length() > 0) ? entity.name() : entityClass.getSimpleName();
+    }
+
+    /**
+     * INTERNAL: Returns the name of the table mapped by the given entity class,
+     * as declared by its <code>@Table</code> or <code>@Entity</code>
+     * annotation.
+     */
+    static String tableNameOf(Class<?> entityClass) {
+        Table table = entityClass.getAnnotation(Table.class);
+        if (table != null && table.name().length() > 0) {
+            return table.name();
+        }
+        Entity entity = entityClass.getAnnotation(Entity.class);
+        return (entity != null && entity.name().length() > 0) ? entity.name() : entityClass.getSimpleName();
+    }
+
+    /**
+     * INTERNAL: Returns the name of the column mapped by a field of the given
+     * entity class or its superclasses.
+     *
+     * @throws IllegalArgumentException if there is no such field
+     */
+    static String columnNameOf(Class<?> entityClass, String fieldName) {
+        for (Class<?> clazz = entityClass; clazz != null; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (field.getName().equals(fieldName)) {
+                    Column column = field.getAnnotation(Column.class);
+                    return (column != null && column.name().length() > 0) ? column.name() : fieldName;
+                }
+            }
+        }
+        throw new IllegalArgumentException("There is no field " + fieldName + " in " + entityClass);
+    }
+
+    /**
+     * Returns the name of the column mapped by the given field, as declared by
+     * its <code>@Column</code> annotation.
+     *
+     * @param fieldName
+     * @return the column name
+     */
+    public String getColumnName(String fieldName) {
+        String columnName = this.columnNames.get(fieldName);
+        return columnName != null ? columnName : fieldName;
+    }
     
     /**
      * @return the class given the linked entity code
      */
     public Class<?> getLinkedTypeClass(int code) {
-        for ( LinkedType refType : linkedTypes ) {
-            if (refType.code() == code) {
-                return refType.entityClass();
-            }
+        Class<?> entityClass = this.linkedTypeClassesByCode.get(code);
+        if (entityClass == null) {
+            throw new IllegalArgumentException("Class Reference Type not found. Code '"+ code+ "' is invalid.");
         }
-        throw new IllegalArgumentException("Class Reference Type not found. Code '"+ code+ "' is invalid.");
+        return entityClass;
     }
     
     /**
      * @return the code class given the linked entity class
      */
     public int getLinkedTypeCode(Class<?> entityClass) {
-        for ( LinkedType refType : linkedTypes ) {
-            if (refType.entityClass().equals(entityClass)) {
-                return refType.code();
-            }
+        Integer code = this.linkedTypeCodesByClass.get(entityClass);
+        if (code == null) {
+            throw new IllegalArgumentException("Code Reference Type not found. Class '" + entityClass + "' is invalid.");
         }
-        throw new IllegalArgumentException("Code Reference Type not found. Class '" + entityClass + "' is invalid.");
+        return code;
+    }
+
+    /**
+     * @return true if the given class is one of the linked entity classes
+     */
+    public boolean isLinkedType(Class<?> entityClass) {
+        return this.linkedTypeCodesByClass.containsKey(entityClass);
     }
     
     
@@ -207,7 +558,12 @@ public class Configuration {
      *            the linkedTypes to set
      */
 	public void setLinkedTypes(LinkedType[] linkedTypes) {
-		this.linkedTypes = linkedTypes;
+		this.linkedTypeClassesByCode.clear();
+		this.linkedTypeCodesByClass.clear();
+		for (LinkedType refType : linkedTypes) {
+			this.linkedTypeClassesByCode.put(refType.code(), refType.entityClass());
+			this.linkedTypeCodesByClass.put(refType.entityClass(), refType.code());
+		}
 	}
 
 	 /**
@@ -0,0 +1,40 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import javax.persistence.EntityManager;
+
+/**
+ * A {@link NestedSetManager} whose nodes are entities of an EntityManager,
+ * such as the {@link JpaNestedSetManager} and the
+ * {@link JpaNestedIntervalManager}. Code that needs the EntityManager should
+ * depend on this interface rather than on {@link NestedSetManager}, which also
+ * covers the {@link JdbcNestedSetManager}.
+ *
+ * @author gabbol
+ */
+public interface EntityNestedSetManager extends NestedSetManager {
+
+    /**
+     * Gets the EntityManager used by this NestedSetManager.
+     *
+     * @return The EntityManager.
+     */
+    @Override
+    EntityManager getEntityManager();
+
+    /**
+     * Sets the EntityManager used by this NestedSetManager.
+     *
+     * @param The EntityManager.
+     */
+    @Override
+    void setEntityManager(EntityManager entityManager);
+}
@@ -0,0 +1,210 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.code_factory.jpa.nestedset.events.EventNode;
+import org.code_factory.jpa.nestedset.events.EventNodeVisitor;
+import org.code_factory.jpa.nestedset.events.NestedSetEvent;
+import org.code_factory.jpa.nestedset.events.NestedSetListener;
+
+/**
+ * A bounded cache of the ids and root values of the nodes of each linked
+ * entity, serving {@link NestedSetManager#find(Class, Object)} without a
+ * query. The least recently used entities are evicted beyond the maximum
+ * number of entries or of cached node ids.
+ * <p>
+ * The manager drops the entries of a tree it modifies and of the entities it
+ * inserts; as a {@link NestedSetListener} the cache also drops the entities
+ * on the paths of the events of other managers.
+ *
+ * @see JpaNestedSetManager#setFindCache(int, int)
+ * @author gabbol
+ */
+public final class FindCache implements NestedSetListener {
+    private final Configuration configuration;
+    private final int maxEntries;
+    private final int maxWeight;
+    private final Map<LinkedKey, int[][]> entries;
+    private int weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    FindCache(Configuration configuration, int maxEntries, int maxWeight) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of entries must be positive: " + maxEntries);
+        }
+        this.configuration = configuration;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.entries = new LinkedHashMap<LinkedKey, int[][]>(16, 0.75f, true);
+    }
+
+    /**
+     * INTERNAL: Returns the ids and the root values of the nodes of the given
+     * entity, or null if they are not cached. The lookup is counted by
+     * {@link #recordHit()} or {@link #recordMiss()} once the caller knows
+     * whether the cached nodes still exist.
+     */
+    synchronized int[][] get(LinkedKey key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * INTERNAL: Counts a lookup served from the cache.
+     */
+    synchronized void recordHit() {
+        this.hits++;
+    }
+
+    /**
+     * INTERNAL: Counts a lookup that had to query the database.
+     */
+    synchronized void recordMiss() {
+        this.misses++;
+    }
+
+    /**
+     * INTERNAL: Caches the ids and the root values of the nodes of the given
+     * entity, evicting the least recently used entries beyond the limits.
+     */
+    synchronized void put(LinkedKey key, int[] ids, int[] rootValues) {
+        int[][] previous = this.entries.put(key, new int[][] { ids, rootValues });
+        if (previous != null) {
+            this.weight -= previous[0].length;
+        }
+        this.weight += ids.length;
+        Iterator<int[][]> it = this.entries.values().iterator();
+        while (this.entries.size() > 1
+                && (this.entries.size() > this.maxEntries || this.maxWeight > 0 && this.weight > this.maxWeight)) {
+            this.weight -= it.next()[0].length;
+            it.remove();
+            this.evictions++;
+        }
+    }
+
+    /**
+     * INTERNAL: Drops the entry of the given entity.
+     */
+    synchronized void invalidate(LinkedKey key) {
+        int[][] entry = this.entries.remove(key);
+        if (entry != null) {
+            this.weight -= entry[0].length;
+        }
+    }
+
+    /**
+     * INTERNAL: Drops the entries of the entities with a node in the given
+     * tree.
+     */
+    synchronized void invalidateRoot(int rootValue) {
+        for (Iterator<int[][]> it = this.entries.values().iterator(); it.hasNext();) {
+            int[][] entry = it.next();
+            for (int root : entry[1]) {
+                if (root == rootValue) {
+                    this.weight -= entry[0].length;
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all entries.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.weight = 0;
+    }
+
+    /**
+     * Drops the entries of the entities on the paths of the event.
+     */
+    @Override
+    public void nestedSetChanged(NestedSetEvent e) {
+        if (!this.configuration.getId().equals(e.getId())) {
+            return;
+        }
+        EventNodeVisitor visitor = new EventNodeVisitor() {
+            @Override
+            public boolean inNode(EventNode node) {
+                if (node.getLinkedTypeClass() == null) {
+                    clear();
+                    return false;
+                }
+                invalidate(new LinkedKey(configuration.getLinkedTypeCode(node.getLinkedTypeClass()),
+                        node.getLinkedId()));
+                return true;
+            }
+
+            @Override
+            public boolean outNode(EventNode node) {
+                return true;
+            }
+        };
+        for (EventNode root : e.getRoots()) {
+            root.accept(visitor);
+        }
+    }
+
+    /**
+     * @return the number of cached entities
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of cached node ids
+     */
+    public synchronized int getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * @return the maximum number of cached entities
+     */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * @return the maximum number of cached node ids, 0 for no limit
+     */
+    public int getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    /**
+     * @return the number of lookups served from the cache
+     */
+    public synchronized long getHitCount() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of lookups that had to query the database
+     */
+    public synchronized long getMissCount() {
+        return this.misses;
+    }
+
+    /**
+     * @return the number of entries evicted by the limits
+     */
+    public synchronized long getEvictionCount() {
+        return this.evictions;
+    }
+}
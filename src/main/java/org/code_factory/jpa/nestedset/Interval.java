@@ -0,0 +1,235 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Comparator;
+
+/**
+ * INTERNAL: The nested interval [a/b, c/d) of a node, whose bounds are Farey
+ * neighbours: c * b - a * d = 1. Both fractions are thus irreducible and the
+ * interval can be split without limit.
+ * <p>
+ * The root with value k has the interval [k/1, (k+1)/1). The children of the
+ * interval [p/q, r/s) are the consecutive slots between the points
+ * (p + i * r) / (q + i * s), i = 0, 1, 2..., which approach r/s without ever
+ * reaching it: the first child starts at p/q and each slot ends at the
+ * mediant of its left bound and r/s. The roots are the children of the
+ * interval [1/1, 1/0) standing for the whole forest.
+ * <p>
+ * A node is a descendant of another one iff its left bound is not below the
+ * left bound of the other and its right bound is below the right bound of the
+ * other. Sorting by ascending left bound and descending right bound gives the
+ * preorder of the nodes.
+ *
+ * @author gabbol
+ */
+final class Interval {
+
+    /** The interval whose children are the roots. */
+    static final Interval FOREST = new Interval(1, 1, 1, 0);
+
+    /** Orders the intervals in preorder. */
+    static final Comparator<Interval> PREORDER = new Comparator<Interval>() {
+        @Override
+        public int compare(Interval o1, Interval o2) {
+            int c = compareFractions(o1.leftNumerator, o1.leftDenominator, o2.leftNumerator, o2.leftDenominator);
+            if (c != 0) {
+                return c;
+            }
+            return compareFractions(o2.rightNumerator, o2.rightDenominator, o1.rightNumerator, o1.rightDenominator);
+        }
+    };
+
+    final long leftNumerator;
+    final long leftDenominator;
+    final long rightNumerator;
+    final long rightDenominator;
+
+    Interval(long leftNumerator, long leftDenominator, long rightNumerator, long rightDenominator) {
+        this.leftNumerator = leftNumerator;
+        this.leftDenominator = leftDenominator;
+        this.rightNumerator = rightNumerator;
+        this.rightDenominator = rightDenominator;
+    }
+
+    static Interval of(IntervalNodeInfo info) {
+        return new Interval(info.getLeftNumerator(), info.getLeftDenominator(), info.getRightNumerator(),
+                info.getRightDenominator());
+    }
+
+    void applyTo(IntervalNodeInfo info) {
+        info.setLeftNumerator(this.leftNumerator);
+        info.setLeftDenominator(this.leftDenominator);
+        info.setRightNumerator(this.rightNumerator);
+        info.setRightDenominator(this.rightDenominator);
+    }
+
+    /**
+     * @return the first child slot of this interval
+     */
+    Interval firstChild() {
+        return new Interval(this.leftNumerator, this.leftDenominator, add(this.leftNumerator, this.rightNumerator),
+                add(this.leftDenominator, this.rightDenominator));
+    }
+
+    /**
+     * @return the child slot of the given parent following this one
+     */
+    Interval nextSibling(Interval parent) {
+        return new Interval(this.rightNumerator, this.rightDenominator, add(this.rightNumerator,
+                parent.rightNumerator), add(this.rightDenominator, parent.rightDenominator));
+    }
+
+    /**
+     * @return true if this interval is one of the child slots of the given one
+     */
+    boolean isChildOf(Interval parent) {
+        if (this.rightNumerator != add(this.leftNumerator, parent.rightNumerator)
+                || this.rightDenominator != add(this.leftDenominator, parent.rightDenominator)) {
+            return false;
+        }
+        if (parent.rightDenominator == 0) {
+            return this.leftDenominator == 1 && this.leftNumerator >= 1;
+        }
+        long steps = this.leftDenominator - parent.leftDenominator;
+        return steps >= 0 && steps % parent.rightDenominator == 0
+                && this.leftNumerator - parent.leftNumerator == multiply(steps / parent.rightDenominator,
+                        parent.rightNumerator);
+    }
+
+    /**
+     * @return the number of the slot of this interval among the children of
+     *         the given one, starting with 1
+     */
+    long slotIn(Interval parent) {
+        if (parent.rightDenominator == 0) {
+            return this.leftNumerator;
+        }
+        return (this.leftDenominator - parent.leftDenominator) / parent.rightDenominator + 1;
+    }
+
+    /**
+     * @return true if the given interval is a descendant of this one
+     */
+    boolean contains(Interval other) {
+        return compareFractions(other.leftNumerator, other.leftDenominator, this.leftNumerator,
+                this.leftDenominator) >= 0
+                && compareFractions(other.rightNumerator, other.rightDenominator, this.rightNumerator,
+                        this.rightDenominator) < 0;
+    }
+
+    /**
+     * @return true if the bounds are positive Farey neighbours
+     */
+    boolean isValid() {
+        return this.leftDenominator > 0 && this.rightDenominator > 0
+                && subtract(multiply(this.rightNumerator, this.leftDenominator),
+                        multiply(this.leftNumerator, this.rightDenominator)) == 1;
+    }
+
+    /**
+     * @return the value of the root of the tree holding this interval, 0 for
+     *         the cleared interval of a deleted node
+     */
+    int getRootValue() {
+        if (this.leftDenominator == 0) {
+            return 0;
+        }
+        return Positions.toInt(this.leftNumerator / this.leftDenominator);
+    }
+
+    /**
+     * Computes the matrix mapping the bounds of this interval onto the bounds
+     * of the given one. Applied with {@link #transform(long[])}, it maps every
+     * descendant of this interval onto the same place below the target.
+     */
+    long[] mappingTo(Interval target) {
+        return new long[] {
+                subtract(multiply(target.rightNumerator, this.leftDenominator),
+                        multiply(target.leftNumerator, this.rightDenominator)),
+                subtract(multiply(target.leftNumerator, this.rightNumerator),
+                        multiply(target.rightNumerator, this.leftNumerator)),
+                subtract(multiply(target.rightDenominator, this.leftDenominator),
+                        multiply(target.leftDenominator, this.rightDenominator)),
+                subtract(multiply(target.leftDenominator, this.rightNumerator),
+                        multiply(target.rightDenominator, this.leftNumerator)) };
+    }
+
+    Interval transform(long[] m) {
+        return new Interval(add(multiply(m[0], this.leftNumerator), multiply(m[1], this.leftDenominator)),
+                add(multiply(m[2], this.leftNumerator), multiply(m[3], this.leftDenominator)),
+                add(multiply(m[0], this.rightNumerator), multiply(m[1], this.rightDenominator)),
+                add(multiply(m[2], this.rightNumerator), multiply(m[3], this.rightDenominator)));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Interval)) {
+            return false;
+        }
+        Interval other = (Interval) obj;
+        return this.leftNumerator == other.leftNumerator && this.leftDenominator == other.leftDenominator
+                && this.rightNumerator == other.rightNumerator && this.rightDenominator == other.rightDenominator;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * (31 * (31 * this.leftNumerator + this.leftDenominator) + this.rightNumerator)
+                + this.rightDenominator);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + this.leftNumerator + "/" + this.leftDenominator + ", " + this.rightNumerator + "/"
+                + this.rightDenominator + ")";
+    }
+
+    /**
+     * Compares the fractions a/b and c/d with non-negative denominators; a
+     * zero denominator stands for infinity.
+     */
+    static int compareFractions(long a, long b, long c, long d) {
+        long x = multiply(a, d);
+        long y = multiply(c, b);
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
+    /**
+     * @throws ArithmeticException
+     *             if the result does not fit in a long column
+     */
+    static long multiply(long a, long b) {
+        long result = a * b;
+        if (a != 0 && (result / a != b || (a == -1 && b == Long.MIN_VALUE))) {
+            throw tooDeep();
+        }
+        return result;
+    }
+
+    static long add(long a, long b) {
+        long result = a + b;
+        if (((a ^ result) & (b ^ result)) < 0) {
+            throw tooDeep();
+        }
+        return result;
+    }
+
+    static long subtract(long a, long b) {
+        long result = a - b;
+        if (((a ^ b) & (a ^ result)) < 0) {
+            throw tooDeep();
+        }
+        return result;
+    }
+
+    private static ArithmeticException tooDeep() {
+        return new ArithmeticException("The tree is too deep or too wide for the long interval columns.");
+    }
+}
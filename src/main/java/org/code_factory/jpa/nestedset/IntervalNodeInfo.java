@@ -0,0 +1,34 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * A NodeInfo implementor whose position is a nested interval rather than a
+ * pair of left and right values. Both bounds are fractions, stored in the
+ * columns marked with
+ * {@link org.code_factory.jpa.nestedset.annotations.IntervalColumn}.
+ * <p>
+ * The left, right and root accessors of {@link NodeInfo} are not used for
+ * such entities: the root value is derived from the interval.
+ *
+ * @author gabbol
+ */
+public interface IntervalNodeInfo extends NodeInfo {
+
+    long getLeftNumerator();
+    long getLeftDenominator();
+    long getRightNumerator();
+    long getRightDenominator();
+
+    void setLeftNumerator(long value);
+    void setLeftDenominator(long value);
+    void setRightNumerator(long value);
+    void setRightDenominator(long value);
+}
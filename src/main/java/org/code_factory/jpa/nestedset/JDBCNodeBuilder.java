@@ -0,0 +1,65 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * Implements {@link NodeBuilder} for a {@link JdbcNestedSetManager}, creating
+ * instances of the configured NodeInfo class.
+ *
+ * @author gabbol
+ */
+public class JDBCNodeBuilder implements NodeBuilder {
+
+    private JdbcNestedSetManager manager;
+
+    public JDBCNodeBuilder(JdbcNestedSetManager manager) {
+        this.manager = manager;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T extends NodeInfo> T createNodeInfo(Object linkedEntity) {
+        try {
+            Configuration configuration = manager.getConfiguration();
+            T row = (T) configuration.getNodeInfoClass().newInstance();
+            row.setLinkedTypeCode(configuration.getLinkedTypeCode(linkedEntity.getClass()));
+            row.setLinkedId(manager.getPrimaryKeyValue(linkedEntity));
+            return row;
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public <T extends NodeInfo> Node<T> create(Object linkedEntity) {
+        T row = this.<T> createNodeInfo(linkedEntity);
+        return manager.createRoot(row);
+    }
+
+    @Override
+    public <T extends NodeInfo> Node<T> create(Node<T> parent, Object linkedEntity) {
+        T row = this.<T> createNodeInfo(linkedEntity);
+        return parent.addChild(row);
+    }
+
+    @Override
+    public <T extends NodeInfo> Node<T> create(Integer parentId, Object linkedEntity) {
+        Node<T> parent = manager.getNode(parentId.intValue());
+        if (parent == null) {
+            throw new IllegalArgumentException("There is no node with id " + parentId);
+        }
+        return create(parent, linkedEntity);
+    }
+
+    protected JdbcNestedSetManager getManager() {
+        return manager;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * Implements {@link NodeBuilder} for a {@link JpaNestedIntervalManager},
+ * creating instances of the configured entity class.
+ *
+ * @author gabbol
+ */
+public class JPAIntervalNodeBuilder implements NodeBuilder {
+
+    private JpaNestedIntervalManager manager;
+
+    public JPAIntervalNodeBuilder(JpaNestedIntervalManager manager) {
+        this.manager = manager;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T extends NodeInfo> T createNodeInfo(Object linkedEntity) {
+        try {
+            Configuration configuration = manager.getConfiguration();
+            T model = (T) configuration.getNodeInfoClass().newInstance();
+            model.setLinkedTypeCode(configuration.getLinkedTypeCode(linkedEntity.getClass()));
+            model.setLinkedId(manager.getPrimaryKeyValue(linkedEntity));
+            return model;
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public <T extends NodeInfo> Node<T> create(Object linkedEntity) {
+        T nodeInfo = this.<T> createNodeInfo(linkedEntity);
+        return manager.createRoot(nodeInfo);
+    }
+
+    @Override
+    public <T extends NodeInfo> Node<T> create(Node<T> parent, Object linkedEntity) {
+        T nodeInfo = this.<T> createNodeInfo(linkedEntity);
+        return parent.addChild(nodeInfo);
+    }
+
+    @Override
+    public <T extends NodeInfo> Node<T> create(Integer parentId, Object linkedEntity) {
+        @SuppressWarnings("unchecked")
+        Class<T> clazz = (Class<T>) manager.getConfiguration().getNodeInfoClass();
+        T nodeInfo = manager.getEntityManager().find(clazz, parentId);
+        if (nodeInfo == null) {
+            throw new IllegalArgumentException("There is no node with id " + parentId);
+        }
+        return create(manager.getNode(nodeInfo), linkedEntity);
+    }
+
+    protected JpaNestedIntervalManager getManager() {
+        return manager;
+    }
+}
@@ -0,0 +1,955 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+import org.code_factory.jpa.nestedset.dialect.Dialect;
+import org.code_factory.jpa.nestedset.events.EventBuilder;
+import org.code_factory.jpa.nestedset.events.EventNode;
+
+/**
+ * A {@link NestedSetManager} that reads and writes the tree columns with plain
+ * JDBC instead of an EntityManager. The table and column names are taken from
+ * the mapping of the configured class, whose instances are read and inserted
+ * with all their basic columns: no persistence context is involved and the
+ * structural changes are executed as prepared statements.
+ * {@link #addChildren(Node, List)} inserts many children with one batch.
+ * <p>
+ * Statements run on the connection bound with {@link #setConnection(Connection)}
+ * when the caller manages the transaction; otherwise each operation borrows a
+ * connection from the data source and commits on its own. Like the
+ * {@link JpaNestedSetManager}, an instance must be used by one thread only.
+ * <p>
+ * A generated id must come from an identity column, as the key is read back
+ * from the insert. Relationships are not mapped, root versions need an
+ * EntityManager and are not supported. The linked entities are loaded through
+ * the {@link LinkedObjectLoader} set on the manager.
+ *
+ * @author gabbol
+ */
+public class JdbcNestedSetManager extends AbstractLeftRightManager {
+
+    /**
+     * INTERNAL: A unit of work executed on the connection of the manager.
+     */
+    interface Work<R> {
+        R execute(Connection connection) throws SQLException;
+    }
+
+    private final DataSource dataSource;
+    private Connection connection;
+    /** The connection of the operation in progress, if any. */
+    private Connection activeConnection;
+    private LinkedObjectLoader linkedObjectLoader;
+
+    private final String tableName;
+    private final String idColumn;
+    private final String leftColumn;
+    private final String rightColumn;
+    private final String levelColumn;
+    private final String rootColumn;
+    private final String linkedTypeCodeColumn;
+    private final String linkedIdColumn;
+    private final JdbcRowMapper mapper;
+    /** Selects all the mapped columns. */
+    private final String selectSql;
+    /** Selects the tree columns read by snapshots. */
+    private final String snapshotSql;
+
+    public JdbcNestedSetManager(Configuration configuration, DataSource dataSource) {
+        super(configuration, new NodeIdentityMap());
+        if (configuration.isRootVersioned()) {
+            throw new IllegalArgumentException("Root versions are not supported without an EntityManager: " + configuration);
+        }
+        if (configuration.hasLongPositions()) {
+            throw new IllegalArgumentException("Long left and right columns are not supported by JDBC rows: " + configuration);
+        }
+        if (configuration.getEncoding() != Configuration.NESTED_SETS) {
+            throw new IllegalArgumentException("Nested intervals are not supported by JDBC rows: " + configuration);
+        }
+        if (configuration.hasParentColumn() || configuration.hasPathColumn() || configuration.hasClosureTable()
+                || configuration.hasSubtreeAggregates()) {
+            throw new IllegalArgumentException("Parent, path and subtree aggregate columns and closure tables are not supported by JDBC rows: "
+                    + configuration);
+        }
+        this.dataSource = dataSource;
+        this.tableName = configuration.getTableName();
+        this.idColumn = configuration.getColumnName(configuration.getIdFieldName() != null ? configuration.getIdFieldName() : "id");
+        this.leftColumn = configuration.getColumnName(configuration.getLeftFieldName());
+        this.rightColumn = configuration.getColumnName(configuration.getRightFieldName());
+        this.levelColumn = configuration.getColumnName(configuration.getLevelFieldName());
+        this.rootColumn = configuration.hasManyRoots() ? configuration.getColumnName(configuration.getRootIdFieldName()) : null;
+        this.linkedTypeCodeColumn = configuration.getColumnName(configuration.getLinkedTypeCodeFieldName());
+        this.linkedIdColumn = configuration.getColumnName(configuration.getLinkedIdFieldName());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ").append(idColumn).append(", ").append(leftColumn).append(", ").append(rightColumn)
+                .append(", ").append(levelColumn).append(", ").append(linkedTypeCodeColumn).append(", ")
+                .append(linkedIdColumn);
+        if (rootColumn != null) {
+            sb.append(", ").append(rootColumn);
+        }
+        sb.append(" from ").append(tableName);
+        this.snapshotSql = sb.toString();
+        this.mapper = new JdbcRowMapper(configuration);
+        this.selectSql = "select " + this.mapper.getColumnList() + " from " + tableName;
+    }
+
+    /**
+     * Gets the connection bound to this manager.
+     *
+     * @return the connection, or null if each operation uses its own
+     *         connection from the data source.
+     */
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Binds a connection whose transaction is managed by the caller. The
+     * managed nodes are cleared, as they may not be visible in the new
+     * transaction.
+     *
+     * @param connection
+     *            the connection, or null to use the data source again
+     */
+    public void setConnection(Connection connection) {
+        clear();
+        this.connection = connection;
+    }
+
+    /**
+     * INTERNAL: Executes the work on the active connection. Without one, a
+     * connection is borrowed from the data source for the duration of the
+     * work and the changes are committed when it completes.
+     *
+     * @throws PersistenceException
+     *             if a statement fails
+     */
+    <R> R execute(Work<R> work) {
+        if (this.activeConnection != null) {
+            return run(work, this.activeConnection);
+        }
+        if (this.connection != null) {
+            this.activeConnection = this.connection;
+            try {
+                return run(work, this.connection);
+            } finally {
+                this.activeConnection = null;
+            }
+        }
+        Connection c;
+        try {
+            c = this.dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+        this.activeConnection = c;
+        boolean committed = false;
+        try {
+            c.setAutoCommit(false);
+            R result = work.execute(c);
+            c.commit();
+            committed = true;
+            return result;
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        } finally {
+            this.activeConnection = null;
+            close(c, committed);
+        }
+    }
+
+    private <R> R run(Work<R> work, Connection c) {
+        try {
+            return work.execute(c);
+        } catch (SQLException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    private static void close(Connection c, boolean committed) {
+        try {
+            if (!committed) {
+                c.rollback();
+            }
+        } catch (SQLException e) {
+            // the original failure is more useful
+        } finally {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                // nothing
+            }
+        }
+    }
+
+    /**
+     * INTERNAL: Executes an update with the given parameters.
+     *
+     * @return the number of updated rows
+     */
+    int update(Connection c, String sql, Object... parameters) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(sql);
+        try {
+            bind(ps, parameters);
+            return ps.executeUpdate();
+        } finally {
+            ps.close();
+        }
+    }
+
+    private static void bind(PreparedStatement ps, Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            ps.setObject(i + 1, parameters[i]);
+        }
+    }
+
+    /**
+     * INTERNAL: Selects the rows matching the given condition and returns their
+     * nodes.
+     *
+     * @param where
+     *            the condition, or null for all rows
+     * @param orderBy
+     *            the order by clause, or null
+     * @param maxRows
+     *            the maximum number of rows, 0 for no limit
+     */
+    <T extends NodeInfo> List<Node<T>> select(Connection c, String where, String orderBy, int maxRows,
+            Object... parameters) throws SQLException {
+        StringBuilder sb = new StringBuilder(this.selectSql);
+        if (where != null) {
+            sb.append(" where ").append(where);
+        }
+        if (orderBy != null) {
+            sb.append(" order by ").append(orderBy);
+        }
+        List<Node<T>> nodes = new ArrayList<Node<T>>();
+        PreparedStatement ps = c.prepareStatement(sb.toString());
+        try {
+            if (maxRows > 0) {
+                ps.setMaxRows(maxRows);
+            }
+            bind(ps, parameters);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                @SuppressWarnings("unchecked")
+                T row = (T) this.mapper.read(rs);
+                nodes.add(loadNode(row));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return nodes;
+    }
+
+    /**
+     * INTERNAL: Selects the nodes of one tree matching the given condition.
+     */
+    <T extends NodeInfo> List<Node<T>> selectInTree(final int rootId, final String where, final String orderBy,
+            final int maxRows, final Object... parameters) {
+        return execute(new Work<List<Node<T>>>() {
+            @Override
+            public List<Node<T>> execute(Connection c) throws SQLException {
+                if (rootColumn == null) {
+                    return select(c, where, orderBy, maxRows, parameters);
+                }
+                Object[] withRoot = new Object[parameters.length + 1];
+                System.arraycopy(parameters, 0, withRoot, 0, parameters.length);
+                withRoot[parameters.length] = rootId;
+                return select(c, where + " and " + rootColumn + " = ?", orderBy, maxRows, withRoot);
+            }
+        });
+    }
+
+    /**
+     * INTERNAL: Returns the condition restricting the linked type code to the
+     * types accepted by the given filter. The codes are ints, so they are
+     * inlined.
+     */
+    String linkedTypeCondition(TypeFilter<?> filter) {
+        int[] codes = filter.getLinkedTypeCodes(getConfiguration());
+        if (codes.length == 0) {
+            return "1 = 0";
+        } else if (codes.length == 1) {
+            return linkedTypeCodeColumn + " = " + codes[0];
+        }
+        StringBuilder sb = new StringBuilder(linkedTypeCodeColumn).append(" in (");
+        for (int i = 0; i < codes.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(codes[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * INTERNAL: Counts the nodes of one tree matching the given condition.
+     */
+    int countInTree(final int rootId, final String where, final Object... parameters) {
+        return execute(new Work<Integer>() {
+            @Override
+            public Integer execute(Connection c) throws SQLException {
+                String sql = "select count(*) from " + tableName + " where " + where;
+                if (rootColumn == null) {
+                    return count(c, sql, parameters);
+                }
+                Object[] withRoot = new Object[parameters.length + 1];
+                System.arraycopy(parameters, 0, withRoot, 0, parameters.length);
+                withRoot[parameters.length] = rootId;
+                return count(c, sql + " and " + rootColumn + " = ?", withRoot);
+            }
+        });
+    }
+
+    /**
+     * INTERNAL: Inserts the given row with all its mapped columns. A row
+     * without id gets the key generated by the database.
+     */
+    void insert(Connection c, NodeInfo row) throws SQLException {
+        boolean generated = this.mapper.hasGeneratedId(row);
+        String sql = this.mapper.getInsertSql(tableName, row);
+        PreparedStatement ps = generated ? c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : c
+                .prepareStatement(sql);
+        try {
+            bind(ps, this.mapper.getInsertParameters(row));
+            ps.executeUpdate();
+            if (generated) {
+                ResultSet keys = ps.getGeneratedKeys();
+                if (keys.next()) {
+                    this.mapper.setId(row, keys.getInt(1));
+                }
+                keys.close();
+            }
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * INTERNAL: Inserts the given rows of one tree, which occupy consecutive
+     * positions, as one batch per statement. Drivers do not agree on the keys
+     * returned by a batch, so the generated ids are read back with one query
+     * on the positions of the rows.
+     */
+    void insertBatch(Connection c, List<? extends NodeInfo> rows, int rootId) throws SQLException {
+        List<NodeInfo> generated = new ArrayList<NodeInfo>();
+        String sql = null;
+        PreparedStatement ps = null;
+        try {
+            for (NodeInfo row : rows) {
+                String rowSql = this.mapper.getInsertSql(tableName, row);
+                if (!rowSql.equals(sql)) {
+                    if (ps != null) {
+                        ps.executeBatch();
+                        ps.close();
+                    }
+                    sql = rowSql;
+                    ps = c.prepareStatement(sql);
+                }
+                bind(ps, this.mapper.getInsertParameters(row));
+                ps.addBatch();
+                if (this.mapper.hasGeneratedId(row)) {
+                    generated.add(row);
+                }
+            }
+            if (ps != null) {
+                ps.executeBatch();
+            }
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+        }
+        if (generated.isEmpty()) {
+            return;
+        }
+
+        int first = generated.get(0).getLeftValue();
+        int last = generated.get(generated.size() - 1).getLeftValue();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ").append(idColumn).append(", ").append(leftColumn).append(" from ").append(tableName)
+                .append(" where ").append(leftColumn).append(" >= ? and ").append(leftColumn).append(" <= ?");
+        if (rootColumn != null) {
+            sb.append(" and ").append(rootColumn).append(" = ?");
+        }
+        Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        ps = c.prepareStatement(sb.toString());
+        try {
+            if (rootColumn != null) {
+                bind(ps, first, last, rootId);
+            } else {
+                bind(ps, first, last);
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                ids.put(rs.getInt(2), rs.getInt(1));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        for (NodeInfo row : generated) {
+            Integer id = ids.get(row.getLeftValue());
+            if (id == null) {
+                throw new SQLException("The inserted row at " + row.getLeftValue() + " was not found.");
+            }
+            this.mapper.setId(row, id);
+        }
+    }
+
+    /**
+     * INTERNAL: Adds 'delta' to all left and right values that are >= 'first'
+     * and <= 'last' in the database and in the managed nodes. If 'last' is 0
+     * there is no upper bound.
+     */
+    void shiftRLValues(Connection c, int first, int last, int delta, int rootId) throws SQLException {
+        Configuration config = getConfiguration();
+        Dialect dialect = getDialect();
+        if (dialect != null) {
+            update(c, dialect.getShiftSql(config, last > 0), dialect.getShiftParameters(config, first, last, delta, rootId));
+        } else {
+            shiftColumn(c, leftColumn, first, last, delta, rootId);
+            shiftColumn(c, rightColumn, first, last, delta, rootId);
+        }
+        updateLeftValues(first, last, delta, rootId);
+        updateRightValues(first, last, delta, rootId);
+    }
+
+    private void shiftColumn(Connection c, String column, int first, int last, int delta, int rootId)
+            throws SQLException {
+        List<Object> parameters = new ArrayList<Object>();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(tableName).append(" set ").append(column).append(" = ").append(column)
+                .append(" + ? where ").append(column).append(" >= ?");
+        parameters.add(delta);
+        parameters.add(first);
+        if (last > 0) {
+            sb.append(" and ").append(column).append(" <= ?");
+            parameters.add(last);
+        }
+        if (rootColumn != null) {
+            sb.append(" and ").append(rootColumn).append(" = ?");
+            parameters.add(rootId);
+        }
+        update(c, sb.toString(), parameters.toArray());
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Selects the deepest node enclosing the range of the given nodes with a
+     * single query.
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> lowestCommonAncestor(Collection<Node<T>> nodes) {
+        long[] range = enclosingRange(nodes);
+        if (range == null) {
+            return null;
+        }
+        List<Node<T>> result = selectInTree((int) range[2], leftColumn + " <= ? and " + rightColumn + " >= ?",
+                leftColumn + " desc", 1, Positions.toInt(range[0]), Positions.toInt(range[1]));
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Rollup rollup(Node<T> subtreeRoot, Class<?> linkedTypeClass, String attribute,
+            int function) {
+        final String sql = Rollup.sql(this, linkedTypeClass, attribute, function);
+        final Object[] parameters = Rollup.parameters(this, subtreeRoot, linkedTypeClass);
+        return execute(new Work<Rollup>() {
+            @Override
+            public Rollup execute(Connection c) throws SQLException {
+                List<Object[]> rows = new ArrayList<Object[]>();
+                PreparedStatement ps = c.prepareStatement(sql);
+                try {
+                    bind(ps, parameters);
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        rows.add(new Object[] { rs.getObject(1), rs.getObject(2) });
+                    }
+                    rs.close();
+                } finally {
+                    ps.close();
+                }
+                return Rollup.of(rows);
+            }
+        });
+    }
+
+    String getLeftColumn() {
+        return leftColumn;
+    }
+
+    String getRightColumn() {
+        return rightColumn;
+    }
+
+    String getLevelColumn() {
+        return levelColumn;
+    }
+
+    String getLinkedTypeCodeColumn() {
+        return linkedTypeCodeColumn;
+    }
+
+    /**
+     * @return the root column, or null if there is only one tree
+     */
+    String getRootColumn() {
+        return rootColumn;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    <T extends NodeInfo> Node<T> createNode(T nodeInfo) {
+        return new JdbcNode<T>(nodeInfo, this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Dialect detectDialect() {
+        return execute(new Work<Dialect>() {
+            @Override
+            public Dialect execute(Connection c) throws SQLException {
+                return Dialect.forUrl(c.getMetaData().getURL());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> createRoot(T root) {
+        checkNodeInfo(root);
+        final T row = root;
+        Node<T> node;
+        beginForestWrite();
+        try {
+            execute(new Work<Void>() {
+                @Override
+                public Void execute(Connection c) throws SQLException {
+                    int maximumRight = 0;
+                    if (rootColumn != null) {
+                        row.setRootValue(count(c, "select count(*) from " + tableName + " where " + leftColumn + " = 1") + 1);
+                    } else {
+                        maximumRight = count(c, "select max(" + rightColumn + ") from " + tableName);
+                    }
+                    row.setLeftValue(maximumRight + 1);
+                    row.setRightValue(maximumRight + 2);
+                    row.setLevel(0);
+                    insert(c, row);
+                    return null;
+                }
+            });
+            node = loadNode(root);
+        } finally {
+            endForestWrite();
+        }
+        EventBuilder eb = createEventBuilder();
+        eb.add(node, EventNode.ADD);
+        eb.fireEvent();
+        return node;
+    }
+
+    /**
+     * Adds the given rows as the last children of a node, in order. The
+     * positions are shifted once and the rows are inserted as one batch.
+     *
+     * @param parent
+     *            the node receiving the children
+     * @param children
+     *            the rows to add, instances of the configured class
+     * @return the nodes of the added rows
+     */
+    public <T extends NodeInfo> List<Node<T>> addChildren(final Node<T> parent, final List<T> children) {
+        for (T child : children) {
+            checkNodeInfo(child);
+            if (child == parent.unwrap()) {
+                throw new IllegalArgumentException("Cannot add node as child of itself.");
+            }
+        }
+        if (children.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int rootId = parent.getRootValue();
+        List<Node<T>> added = new ArrayList<Node<T>>(children.size());
+        beginWrite(rootId);
+        try {
+            execute(new Work<Void>() {
+                @Override
+                public Void execute(Connection c) throws SQLException {
+                    int left = parent.getRightValue();
+                    int level = parent.getLevel() + 1;
+                    shiftRLValues(c, left, 0, 2 * children.size(), rootId);
+                    for (T child : children) {
+                        child.setLevel(level);
+                        child.setLeftValue(left);
+                        child.setRightValue(left + 1);
+                        child.setRootValue(rootId);
+                        left += 2;
+                    }
+                    insertBatch(c, children, rootId);
+                    return null;
+                }
+            });
+            for (T child : children) {
+                added.add(loadNode(child));
+            }
+            if (parent instanceof ManagedNode<?>) {
+                ((ManagedNode<?>) parent).invalidate();
+            }
+        } finally {
+            endWrite(rootId);
+        }
+        EventBuilder eb = createEventBuilder();
+        for (Node<T> node : added) {
+            eb.add(node, EventNode.ADD);
+        }
+        eb.fireEvent();
+        return added;
+    }
+
+    /**
+     * INTERNAL: Checks that the given row is an instance of the configured
+     * class, as the rows are read back as such.
+     */
+    void checkNodeInfo(NodeInfo row) {
+        Class<?> nodeInfoClass = getConfiguration().getNodeInfoClass();
+        if (!nodeInfoClass.isInstance(row)) {
+            throw new IllegalArgumentException("This JdbcNestedSetManager only manages instances of "
+                    + nodeInfoClass.getName());
+        }
+    }
+
+    private static int count(Connection c, String sql, Object... parameters) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(sql);
+        try {
+            bind(ps, parameters);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            int result = rs.getInt(1);
+            rs.close();
+            return result;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> getRoots() {
+        return execute(new Work<List<Node<T>>>() {
+            @Override
+            public List<Node<T>> execute(Connection c) throws SQLException {
+                return select(c, leftColumn + " = 1", rootColumn, 0);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> getNodes() {
+        return execute(new Work<List<Node<T>>>() {
+            @Override
+            public List<Node<T>> execute(Connection c) throws SQLException {
+                return select(c, null, null, 0);
+            }
+        });
+    }
+
+    /**
+     * Gets the node stored with the given primary key.
+     *
+     * @param id
+     * @return the node, or null if there is no such row
+     */
+    public <T extends NodeInfo> Node<T> getNode(final int id) {
+        List<Node<T>> nodes = execute(new Work<List<Node<T>>>() {
+            @Override
+            public List<Node<T>> execute(Connection c) throws SQLException {
+                return select(c, idColumn + " = ?", null, 1, id);
+            }
+        });
+        return nodes.isEmpty() ? null : nodes.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteAll() {
+        beginForestWrite();
+        try {
+            execute(new Work<Void>() {
+                @Override
+                public Void execute(Connection c) throws SQLException {
+                    update(c, "delete from " + tableName);
+                    return null;
+                }
+            });
+            clear();
+        } finally {
+            endForestWrite();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T extends NodeInfo> List<Node<T>> find(final int refType, final Object refId,
+            final Collection<Node<T>> excludedNodes) {
+        return execute(new Work<List<Node<T>>>() {
+            @Override
+            public List<Node<T>> execute(Connection c) throws SQLException {
+                StringBuilder where = new StringBuilder();
+                where.append(linkedTypeCodeColumn).append(" = ? and ").append(linkedIdColumn).append(" = ?");
+                if (excludedNodes != null && !excludedNodes.isEmpty()) {
+                    where.append(" and ").append(idColumn).append(" not in (");
+                    String separator = "";
+                    for (Node<?> n : excludedNodes) {
+                        where.append(separator).append(n.getId());
+                        separator = ", ";
+                    }
+                    where.append(")");
+                }
+                return select(c, where.toString(), leftColumn, 0, refType, String.valueOf(refId));
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValidTree(final int rootValue) {
+        return execute(new Work<Boolean>() {
+            @Override
+            public Boolean execute(Connection c) throws SQLException {
+                return checkTree(c, rootValue);
+            }
+        });
+    }
+
+    private boolean checkTree(Connection c, int rootValue) throws SQLException {
+        Object[] parameters = rootColumn != null ? new Object[] { rootValue } : new Object[0];
+        String rootFilter = rootColumn != null ? " where " + rootColumn + " = ?" : "";
+
+        PreparedStatement ps = c.prepareStatement("select min(" + leftColumn + "), max(" + rightColumn
+                + "), count(*) from " + tableName + rootFilter);
+        int left;
+        int right;
+        try {
+            bind(ps, parameters);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            left = rs.getInt(1);
+            right = rs.getInt(2);
+            long count = rs.getLong(3);
+            rs.close();
+            if (count == 0) {
+                return true;
+            }
+            if (left != 1 || right - left + 1 != 2 * count) {
+                return false;
+            }
+        } finally {
+            ps.close();
+        }
+
+        // every node has a left value below its right value and the level given by its ancestors
+        StringBuilder sb = new StringBuilder();
+        sb.append("select count(*) from ").append(tableName).append(" c where (c.").append(leftColumn)
+                .append(" >= c.").append(rightColumn).append(" or c.").append(levelColumn)
+                .append(" <> (select count(*) from ").append(tableName).append(" a where a.").append(leftColumn)
+                .append(" < c.").append(leftColumn).append(" and a.").append(rightColumn).append(" > c.")
+                .append(rightColumn);
+        if (rootColumn != null) {
+            sb.append(" and a.").append(rootColumn).append(" = c.").append(rootColumn);
+        }
+        sb.append("))");
+        if (rootColumn != null) {
+            sb.append(" and c.").append(rootColumn).append(" = ?");
+        }
+        if (count(c, sb.toString(), parameters) != 0) {
+            return false;
+        }
+
+        // every position between the bounds is used exactly once
+        Dialect dialect = getDialect();
+        if (dialect != null) {
+            return count(c, dialect.getPositionGapsSql(getConfiguration(), left, right, rootValue)) == 0;
+        }
+        List<Object[]> rows = new ArrayList<Object[]>();
+        ps = c.prepareStatement("select " + leftColumn + ", " + rightColumn + " from " + tableName + rootFilter);
+        try {
+            bind(ps, parameters);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                rows.add(new Object[] { rs.getInt(1), rs.getInt(2) });
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return usesEachPositionOnce(left, right, rows);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Map<Integer, TreeSnapshot> loadSnapshots(final Integer rootValue) {
+        return execute(new Work<Map<Integer, TreeSnapshot>>() {
+            @Override
+            public Map<Integer, TreeSnapshot> execute(Connection c) throws SQLException {
+                StringBuilder sb = new StringBuilder(snapshotSql);
+                if (rootColumn != null && rootValue != null) {
+                    sb.append(" where ").append(rootColumn).append(" = ?");
+                }
+                sb.append(" order by ");
+                if (rootColumn != null) {
+                    sb.append(rootColumn).append(", ");
+                }
+                sb.append(leftColumn);
+
+                List<Object[]> rows = new ArrayList<Object[]>();
+                PreparedStatement ps = c.prepareStatement(sb.toString());
+                try {
+                    if (rootColumn != null && rootValue != null) {
+                        ps.setInt(1, rootValue);
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    int columns = rootColumn != null ? 7 : 6;
+                    while (rs.next()) {
+                        Object[] values = new Object[columns];
+                        for (int i = 0; i < columns; i++) {
+                            values[i] = i == 5 ? rs.getString(i + 1) : (Object) rs.getInt(i + 1);
+                        }
+                        rows.add(values);
+                    }
+                    rs.close();
+                } finally {
+                    ps.close();
+                }
+                return groupSnapshots(rows);
+            }
+        });
+    }
+
+    /**
+     * Not supported: the nodes are not entities.
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    @Deprecated
+    public EntityManager getEntityManager() {
+        throw new UnsupportedOperationException("A JdbcNestedSetManager has no EntityManager.");
+    }
+
+    /**
+     * Not supported: the nodes are not entities.
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    @Deprecated
+    public void setEntityManager(EntityManager entityManager) {
+        throw new UnsupportedOperationException("A JdbcNestedSetManager has no EntityManager.");
+    }
+
+    /**
+     * Gets the loader of the linked entities.
+     *
+     * @return the loader, or null if none has been set
+     */
+    public LinkedObjectLoader getLinkedObjectLoader() {
+        return this.linkedObjectLoader;
+    }
+
+    /**
+     * Sets the loader used by {@link #lookupLinkedObject(Node)}, as the
+     * manager cannot load entities itself.
+     *
+     * @param linkedObjectLoader the loader
+     */
+    public void setLinkedObjectLoader(LinkedObjectLoader linkedObjectLoader) {
+        this.linkedObjectLoader = linkedObjectLoader;
+    }
+
+    /**
+     * Loads the linked entity with the {@link LinkedObjectLoader} of this
+     * manager.
+     *
+     * @throws IllegalStateException
+     *             if no loader has been set.
+     */
+    @Override
+    public <T extends NodeInfo, E> E lookupLinkedObject(Node<T> node) {
+        if (this.linkedObjectLoader == null) {
+            throw new IllegalStateException("No LinkedObjectLoader is set to load the linked entities.");
+        }
+        Object objectId = convertPrimaryKey(node.getLinkedId(), node.getLinkedTypeClass());
+        @SuppressWarnings("unchecked")
+        E refObject = (E) this.linkedObjectLoader.load(node.getLinkedTypeClass(), objectId);
+        return refObject;
+    }
+
+    /**
+     * Not supported: each structural change is written at once with a few
+     * statements, so there is no in-memory copy of the tree to batch the
+     * changes on.
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public <T extends NodeInfo> TreeEditSession<T> openEditSession(Node<T> node) {
+        throw new UnsupportedOperationException("Edit sessions need a JpaNestedSetManager.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeBuilder createNodeBuilder() {
+        return new JDBCNodeBuilder(this);
+    }
+}
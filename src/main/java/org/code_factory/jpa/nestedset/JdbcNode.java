@@ -0,0 +1,783 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.code_factory.jpa.nestedset.events.EventBuilder;
+import org.code_factory.jpa.nestedset.events.EventNode;
+
+/**
+ * Implements {@link Node} for the {@link JdbcNestedSetManager}: the same
+ * operations as a {@link JpaNode}, executed as prepared statements on the
+ * table of the configuration.
+ *
+ * @param <T extends NodeInfo> The wrapped row type.
+ * @author gabbol
+ */
+class JdbcNode<T extends NodeInfo> implements ManagedNode<T> {
+    private static final int PREV_SIBLING = 1;
+    private static final int FIRST_CHILD = 2;
+    private static final int NEXT_SIBLING = 3;
+    private static final int LAST_CHILD = 4;
+
+    /** The wrapped NodeInfo implementor. */
+    private final T node;
+
+    /** The JdbcNestedSetManager that manages this node. */
+    private final JdbcNestedSetManager nsm;
+
+    /*
+     * "Caches" of the tree state reachable from this node, cleared whenever the
+     * node is rendered invalid due to tree modifications.
+     */
+    private List<Node<T>> children;
+    private Node<T> parent;
+    private List<Node<T>> ancestors;
+    private List<Node<T>> descendants;
+    private int descendantsDepth;
+    private Map<Long, ChildrenPage<T>> childPages;
+    /** Whether the node has been evicted from the identity map. */
+    private volatile boolean detached;
+
+    JdbcNode(T node, JdbcNestedSetManager nsm) {
+        this.node = node;
+        this.nsm = nsm;
+    }
+
+    @Override
+    public int getId() {
+        return this.node.getId();
+    }
+
+    @Override
+    public int getLeftValue() {
+        return this.node.getLeftValue();
+    }
+
+    @Override
+    public int getRightValue() {
+        return this.node.getRightValue();
+    }
+
+    @Override
+    public int getLevel() {
+        return this.node.getLevel();
+    }
+
+    @Override
+    public int getRootValue() {
+        return this.node.getRootValue();
+    }
+
+    @Override
+    public void setRootValue(int value) {
+        this.node.setRootValue(value);
+    }
+
+    @Override
+    public void setLeftValue(int value) {
+        this.node.setLeftValue(value);
+    }
+
+    @Override
+    public void setRightValue(int value) {
+        this.node.setRightValue(value);
+    }
+
+    @Override
+    public void setLevel(int level) {
+        this.node.setLevel(level);
+    }
+
+    @Override
+    public long getLongLeftValue() {
+        return this.node.getLeftValue();
+    }
+
+    @Override
+    public long getLongRightValue() {
+        return this.node.getRightValue();
+    }
+
+    @Override
+    public void setLongLeftValue(long value) {
+        this.node.setLeftValue(Positions.toInt(value));
+    }
+
+    @Override
+    public void setLongRightValue(long value) {
+        this.node.setRightValue(Positions.toInt(value));
+    }
+
+    @Override
+    public int getLinkedTypeCode() {
+        return this.node.getLinkedTypeCode();
+    }
+
+    @Override
+    public String getLinkedId() {
+        return this.node.getLinkedId();
+    }
+
+    @Override
+    public void setLinkedTypeCode(int value) {
+        this.node.setLinkedTypeCode(value);
+    }
+
+    @Override
+    public void setLinkedId(String value) {
+        this.node.setLinkedId(value);
+    }
+
+    @Override
+    public String toString() {
+        return "[Left: " + getLeftValue() + ", Right: " + getRightValue() + ", Level: " + getLevel()
+                + ", NodeInfo: " + node.toString() + "]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T unwrap() {
+        return this.node;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasChildren() {
+        return (getRightValue() - getLeftValue()) > 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasParent() {
+        return !isRoot();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid() {
+        return getRightValue() > getLeftValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRoot() {
+        return getLeftValue() == 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDescendantOf(Node<T> subj) {
+        return getLeftValue() > subj.getLeftValue() && getRightValue() < subj.getRightValue()
+                && getRootValue() == subj.getRootValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getChildren() {
+        if (this.children == null) {
+            this.children = Collections.unmodifiableList(getDescendants(1));
+        }
+        return this.children;
+    }
+
+    /**
+     * Filtered in memory if the children are cached, otherwise by the query.
+     */
+    @Override
+    public List<Node<T>> getChildren(TypeFilter<?> filter) {
+        if (filter == null) {
+            return getChildren();
+        }
+        if (this.children != null) {
+            return NodeLists.filter(this.children, filter);
+        }
+        return nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " > ? and " + nsm.getRightColumn() + " < ? and "
+                + nsm.getLevelColumn() + " = ? and " + nsm.linkedTypeCondition(filter), nsm.getLeftColumn(), 0,
+                getLeftValue(), getRightValue(), getLevel() + 1);
+    }
+
+    /**
+     * Filtered in memory if the descendants are cached, otherwise by the
+     * query.
+     */
+    @Override
+    public List<Node<T>> getDescendants(int depth, TypeFilter<?> filter) {
+        if (filter == null) {
+            return getDescendants(depth);
+        }
+        if (this.descendants != null
+                && (depth == 0 && this.descendantsDepth == 0 || depth != 0 && depth <= this.descendantsDepth)) {
+            return NodeLists.filter(getDescendants(depth), filter);
+        }
+        String where = nsm.getLeftColumn() + " > ? and " + nsm.getRightColumn() + " < ? and "
+                + nsm.linkedTypeCondition(filter);
+        if (depth > 0) {
+            return nsm.selectInTree(getRootValue(), where + " and " + nsm.getLevelColumn() + " <= ?",
+                    nsm.getLeftColumn(), 0, getLeftValue(), getRightValue(), getLevel() + depth);
+        }
+        return nsm.selectInTree(getRootValue(), where, nsm.getLeftColumn(), 0, getLeftValue(), getRightValue());
+    }
+
+    /**
+     * Filtered in memory if the ancestors are cached, otherwise by the query.
+     */
+    @Override
+    public List<Node<T>> getAncestors(TypeFilter<?> filter) {
+        if (filter == null) {
+            return getAncestors();
+        }
+        if (this.ancestors != null) {
+            return NodeLists.filter(this.ancestors, filter);
+        }
+        return nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " < ? and " + nsm.getRightColumn() + " > ? and "
+                + nsm.linkedTypeCondition(filter), nsm.getLeftColumn(), 0, getLeftValue(), getRightValue());
+    }
+
+    /**
+     * Cut out of the cached children if any, otherwise loaded with one extra
+     * row telling whether there are more.
+     */
+    @Override
+    public ChildrenPage<T> getChildren(long afterLeft, int limit) {
+        ChildrenPage.checkLimit(limit);
+        if (this.children != null || !hasChildren()) {
+            return ChildrenPage.of(this, this.children != null ? this.children : Collections.<Node<T>> emptyList(),
+                    afterLeft, limit);
+        }
+        if (this.childPages == null) {
+            this.childPages = new HashMap<Long, ChildrenPage<T>>();
+        }
+        ChildrenPage<T> page = this.childPages.get(afterLeft);
+        if (page == null || page.getLimit() != limit) {
+            String where = nsm.getLeftColumn() + " > ? and " + nsm.getRightColumn() + " < ? and "
+                    + nsm.getLevelColumn() + " = ?";
+            int totalCount = this.childPages.isEmpty() ? nsm.countInTree(getRootValue(), where, getLeftValue(),
+                    getRightValue(), getLevel() + 1) : this.childPages.values().iterator().next().getTotalCount();
+            List<Node<T>> loaded = nsm.selectInTree(getRootValue(), where, nsm.getLeftColumn(), limit + 1,
+                    Positions.toInt(Math.max(afterLeft, getLeftValue())), getRightValue(), getLevel() + 1);
+            page = ChildrenPage.ofLoaded(this, loaded, afterLeft, limit, totalCount);
+            this.childPages.put(afterLeft, page);
+        }
+        return page;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> getParent() {
+        if (isRoot()) {
+            return null;
+        }
+        if (this.parent == null) {
+            // the closest ancestor is the first one, no need to load the others
+            List<Node<T>> result = nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " < ? and "
+                    + nsm.getRightColumn() + " > ?", nsm.getRightColumn(), 1, getLeftValue(), getRightValue());
+            this.parent = result.get(0);
+        }
+        return this.parent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getDescendants() {
+        return getDescendants(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getDescendants(int depth) {
+        if (this.descendants != null
+                && (depth == 0 && this.descendantsDepth == 0 || depth != 0 && depth <= this.descendantsDepth)) {
+            return this.descendants;
+        }
+        String where = nsm.getLeftColumn() + " > ? and " + nsm.getRightColumn() + " < ?";
+        List<Node<T>> result;
+        if (depth > 0) {
+            result = nsm.selectInTree(getRootValue(), where + " and " + nsm.getLevelColumn() + " <= ?",
+                    nsm.getLeftColumn(), 0, getLeftValue(), getRightValue(), getLevel() + depth);
+        } else {
+            result = nsm.selectInTree(getRootValue(), where, nsm.getLeftColumn(), 0, getLeftValue(), getRightValue());
+        }
+        this.descendants = result;
+        this.descendantsDepth = depth;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getAncestors() {
+        if (this.ancestors == null) {
+            this.ancestors = nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " < ? and "
+                    + nsm.getRightColumn() + " > ?", nsm.getLeftColumn(), 0, getLeftValue(), getRightValue());
+        }
+        return this.ancestors;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> getFirstChild() {
+        if (this.children != null) {
+            return this.children.get(0);
+        }
+        List<Node<T>> result = nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " = ?", null, 1,
+                getLeftValue() + 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> getLastChild() {
+        if (this.children != null) {
+            return this.children.get(this.children.size() - 1);
+        }
+        List<Node<T>> result = nsm.selectInTree(getRootValue(), nsm.getRightColumn() + " = ?", null, 1,
+                getRightValue() - 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getLeaves() {
+        if (!hasChildren()) {
+            return new ArrayList<Node<T>>();
+        }
+        return loadLeaves(getLeftValue(), null, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<Node<T>> iterateLeaves(final TypeFilter<?> filter, int pageSize) {
+        return new KeysetIterator<T>(getLeftValue(), pageSize) {
+            @Override
+            protected List<Node<T>> loadPage(long afterLeft, int maxResults) {
+                return loadLeaves(afterLeft, filter, maxResults);
+            }
+        };
+    }
+
+    /**
+     * Loads the leaves of this subtree after the given left value, with the
+     * leaf test right = left + 1 in the query.
+     */
+    private List<Node<T>> loadLeaves(long afterLeft, TypeFilter<?> filter, int maxResults) {
+        String where = nsm.getLeftColumn() + " > ? and " + nsm.getRightColumn() + " < ? and " + nsm.getRightColumn()
+                + " = " + nsm.getLeftColumn() + " + 1";
+        if (filter == null) {
+            return nsm.selectInTree(getRootValue(), where, nsm.getLeftColumn(), maxResults, Positions.toInt(afterLeft),
+                    getRightValue());
+        }
+        return nsm.selectInTree(getRootValue(), where + " and " + nsm.linkedTypeCondition(filter),
+                nsm.getLeftColumn(), maxResults, Positions.toInt(afterLeft), getRightValue());
+    }
+
+    /**
+     * Cached ancestors are cut down in memory, otherwise the query is bounded
+     * by level.
+     */
+    @Override
+    public List<Node<T>> getAncestors(int depth) {
+        if (depth <= 0 || depth >= getLevel() || this.ancestors != null) {
+            return NodeLists.nearest(getAncestors(), depth);
+        }
+        return nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " < ? and " + nsm.getRightColumn() + " > ? and "
+                + nsm.getLevelColumn() + " >= ?", nsm.getLeftColumn(), 0, getLeftValue(), getRightValue(), getLevel()
+                - depth);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> getChildAt(int n) {
+        return n < 0 || !hasChildren() ? null : NodeLists.get(getChildren(), n);
+    }
+
+    /**
+     * The next sibling is the row whose left value follows the right value of
+     * this node.
+     */
+    @Override
+    public Node<T> getNextSibling() {
+        if (isRoot()) {
+            return null;
+        }
+        if (this.parent instanceof JdbcNode && ((JdbcNode<T>) this.parent).children != null) {
+            return NodeLists.neighbour(this.parent.getChildren(), this, 1);
+        }
+        List<Node<T>> result = nsm.selectInTree(getRootValue(), nsm.getLeftColumn() + " = ?", null, 1,
+                getRightValue() + 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * The previous sibling is the row whose right value precedes the left
+     * value of this node.
+     */
+    @Override
+    public Node<T> getPrevSibling() {
+        if (isRoot()) {
+            return null;
+        }
+        if (this.parent instanceof JdbcNode && ((JdbcNode<T>) this.parent).children != null) {
+            return NodeLists.neighbour(this.parent.getChildren(), this, -1);
+        }
+        List<Node<T>> result = nsm.selectInTree(getRootValue(), nsm.getRightColumn() + " = ?", null, 1,
+                getLeftValue() - 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getSiblings() {
+        if (isRoot()) {
+            return Collections.emptyList();
+        }
+        return NodeLists.without(getParent().getChildren(), this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> addChild(T child) {
+        if (child == this.node) {
+            throw new IllegalArgumentException("Cannot add node as child of itself.");
+        }
+        nsm.checkNodeInfo(child);
+        final T row = child;
+        final int newRoot = getRootValue();
+        Node<T> added;
+        nsm.checkAttached(this);
+        nsm.beginWrite(newRoot);
+        try {
+            nsm.execute(new JdbcNestedSetManager.Work<Void>() {
+                @Override
+                public Void execute(Connection c) throws SQLException {
+                    int newLeft = getRightValue();
+                    nsm.shiftRLValues(c, newLeft, 0, 2, newRoot);
+                    row.setLevel(getLevel() + 1);
+                    row.setLeftValue(newLeft);
+                    row.setRightValue(newLeft + 1);
+                    row.setRootValue(newRoot);
+                    nsm.insert(c, row);
+                    return null;
+                }
+            });
+            added = nsm.loadNode(child);
+        } finally {
+            nsm.endWrite(newRoot);
+        }
+        EventBuilder eb = nsm.createEventBuilder();
+        eb.add(added, EventNode.ADD);
+        eb.fireEvent();
+        return added;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete() {
+        nsm.checkAttached(this);
+        final int oldRoot = getRootValue();
+        EventBuilder eb = nsm.createEventBuilder();
+        nsm.beginWrite(oldRoot);
+        try {
+            eb.add(this, EventNode.DELETE);
+            nsm.execute(new JdbcNestedSetManager.Work<Void>() {
+                @Override
+                public Void execute(Connection c) throws SQLException {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("delete from ").append(nsm.getTableName()).append(" where ")
+                            .append(nsm.getLeftColumn()).append(" >= ? and ").append(nsm.getRightColumn())
+                            .append(" <= ?");
+                    if (nsm.getRootColumn() != null) {
+                        sb.append(" and ").append(nsm.getRootColumn()).append(" = ?");
+                        nsm.update(c, sb.toString(), getLeftValue(), getRightValue(), oldRoot);
+                    } else {
+                        nsm.update(c, sb.toString(), getLeftValue(), getRightValue());
+                    }
+                    // Close gap in tree
+                    nsm.shiftRLValues(c, getRightValue() + 1, 0, getLeftValue() - getRightValue() - 1, oldRoot);
+                    return null;
+                }
+            });
+            nsm.removeNodes(getLeftValue(), getRightValue(), oldRoot);
+        } finally {
+            nsm.endWrite(oldRoot);
+        }
+        eb.fireEvent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsPrevSiblingOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as previous sibling of itself");
+        }
+        move(dest, dest.getLeftValue(), dest.getLevel(), PREV_SIBLING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsNextSiblingOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as next sibling of itself");
+        }
+        move(dest, dest.getRightValue() + 1, dest.getLevel(), NEXT_SIBLING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsFirstChildOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as first child of itself");
+        }
+        move(dest, dest.getLeftValue() + 1, dest.getLevel() + 1, FIRST_CHILD);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsLastChildOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as last child of itself");
+        }
+        move(dest, dest.getRightValue(), dest.getLevel() + 1, LAST_CHILD);
+    }
+
+    /**
+     * Moves the subtree of this node to the given left value and level. A
+     * sibling of a root becomes the root of a new tree; the other moves
+     * between trees make room in the destination tree.
+     */
+    private void move(final Node<T> dest, final int destLeft, final int destLevel, final int moveType) {
+        nsm.checkAttached(this);
+        nsm.checkAttached(dest);
+        final boolean siblingOfRoot = dest.isRoot() && (moveType == PREV_SIBLING || moveType == NEXT_SIBLING);
+        final boolean betweenTrees = nsm.getRootColumn() != null
+                && (siblingOfRoot || dest.getRootValue() != getRootValue());
+        int rootValue = getRootValue();
+        EventBuilder eb = nsm.createEventBuilder();
+        if (betweenTrees) {
+            nsm.beginForestWrite();
+        } else {
+            nsm.beginWrite(rootValue);
+        }
+        try {
+            eb.add(this, EventNode.DELETE_MOVE);
+            nsm.execute(new JdbcNestedSetManager.Work<Void>() {
+                @Override
+                public Void execute(Connection c) throws SQLException {
+                    if (betweenTrees) {
+                        moveBetweenTrees(c, dest, siblingOfRoot ? 1 : destLeft, destLevel, moveType, siblingOfRoot);
+                    } else {
+                        moveWithinTree(c, destLeft, destLevel);
+                    }
+                    return null;
+                }
+            });
+            eb.add(this, EventNode.ADD_MOVE);
+        } finally {
+            if (betweenTrees) {
+                nsm.endForestWrite();
+            } else {
+                nsm.endWrite(rootValue);
+            }
+        }
+        eb.fireEvent();
+    }
+
+    /**
+     * Moves this node and its descendants to location 'destLeft' and updates
+     * the rest of the tree.
+     */
+    private void moveWithinTree(Connection c, int destLeft, int destLevel) throws SQLException {
+        int levelDiff = destLevel - getLevel();
+        setLevel(destLevel);
+        int left = getLeftValue();
+        int right = getRightValue();
+        int rootId = getRootValue();
+        int treeSize = right - left + 1;
+
+        // Make room in the new branch
+        nsm.shiftRLValues(c, destLeft, 0, treeSize, rootId);
+        if (left >= destLeft) { // src was shifted too?
+            left += treeSize;
+            right += treeSize;
+        }
+
+        // update level for descendants
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(nsm.getTableName()).append(" set ").append(nsm.getLevelColumn()).append(" = ")
+                .append(nsm.getLevelColumn()).append(" + ? where ").append(nsm.getLeftColumn()).append(" >= ? and ")
+                .append(nsm.getRightColumn()).append(" <= ?");
+        if (nsm.getRootColumn() != null) {
+            sb.append(" and ").append(nsm.getRootColumn()).append(" = ?");
+            nsm.update(c, sb.toString(), levelDiff, left, right, rootId);
+        } else {
+            nsm.update(c, sb.toString(), levelDiff, left, right);
+        }
+        nsm.updateLevels(left, right, levelDiff, rootId);
+
+        // now there's enough room next to target to move the subtree
+        nsm.shiftRLValues(c, left, right, destLeft - left, rootId);
+        // correct values after source (close gap in old tree)
+        nsm.shiftRLValues(c, right + 1, 0, -treeSize, rootId);
+    }
+
+    /**
+     * Moves this node and its descendants to another tree, or makes it a new
+     * tree when it becomes a sibling of a root.
+     */
+    private void moveBetweenTrees(Connection c, Node<T> dest, int newLeftValue, int destLevel, int moveType,
+            boolean newTree) throws SQLException {
+        String table = nsm.getTableName();
+        String rootColumn = nsm.getRootColumn();
+        int delta = getLeftValue() - getRightValue() - 1;
+        int rootValue = getRootValue();
+        int offsetNode = newLeftValue - getLeftValue();
+        int offsetLevel = destLevel - getLevel();
+        int newRootValue = dest.getRootValue();
+
+        if (newTree) {
+            newRootValue = moveType == NEXT_SIBLING ? dest.getRootValue() + 1 : dest.getRootValue();
+            if (rootValue >= newRootValue) {
+                rootValue++;
+            }
+            nsm.update(c, "update " + table + " set " + rootColumn + " = " + rootColumn + " + 1 where "
+                    + rootColumn + " >= ?", newRootValue);
+        } else {
+            // Prepare target tree for insertion, make room
+            nsm.shiftRLValues(c, newLeftValue, 0, -delta, newRootValue);
+        }
+
+        // extract the subtree
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(table).append(" set ").append(nsm.getLeftColumn()).append(" = ")
+                .append(nsm.getLeftColumn()).append(" + ?, ").append(nsm.getRightColumn()).append(" = ")
+                .append(nsm.getRightColumn()).append(" + ?, ").append(nsm.getLevelColumn()).append(" = ")
+                .append(nsm.getLevelColumn()).append(" + ?, ").append(rootColumn).append(" = ? where ")
+                .append(nsm.getLeftColumn()).append(" >= ? and ").append(nsm.getRightColumn()).append(" <= ? and ")
+                .append(rootColumn).append(" = ?");
+        nsm.update(c, sb.toString(), offsetNode, offsetNode, offsetLevel, newRootValue, getLeftValue(),
+                getRightValue(), rootValue);
+
+        // close the gap in the source tree
+        nsm.shiftRLValues(c, getRightValue() + 1, 0, delta, rootValue);
+
+        /* the root values of the managed nodes may have changed */
+        nsm.clear();
+        invalidate();
+        setLevel(getLevel() + offsetLevel);
+        setLeftValue(getLeftValue() + offsetNode);
+        setRightValue(getRightValue() + offsetNode);
+        setRootValue(newRootValue);
+    }
+
+    @Override
+    public void invalidate() {
+        this.children = null;
+        this.parent = null;
+        this.ancestors = null;
+        this.descendants = null;
+        this.childPages = null;
+    }
+
+    @Override
+    public void detach() {
+        this.detached = true;
+    }
+
+    @Override
+    public boolean isDetached() {
+        return this.detached;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Class<?> getLinkedTypeClass() {
+        return nsm.getConfiguration().getLinkedTypeClass(getLinkedTypeCode());
+    }
+
+    /**
+     * Loads the linked entity with the {@link LinkedObjectLoader} of the
+     * manager.
+     *
+     * @throws IllegalStateException
+     *             if the manager has no loader.
+     */
+    @Override
+    public <E> E lookupLinkedObject() {
+        return this.nsm.<T, E> lookupLinkedObject(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void accept(NodeVisitor<T> visitor) {
+        if (visitor.inNode(this)) {
+            for (Node<T> child : getChildren()) {
+                child.accept(visitor);
+            }
+        }
+        visitor.outNode(this);
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Transient;
+
+/**
+ * INTERNAL: Maps the rows of the table of a {@link JdbcNestedSetManager} to
+ * instances of the configured NodeInfo class. Every non-transient field of a
+ * basic type, declared by the class or its superclasses, is mapped to the
+ * column given by the {@link Configuration}; fields of other types, such as
+ * relationships, are left alone.
+ *
+ * @author gabbol
+ */
+final class JdbcRowMapper {
+    private final Class<?> nodeInfoClass;
+    private final Field[] fields;
+    private final String[] columns;
+    /** Whether each field is written on insert. */
+    private final boolean[] insertable;
+    private final int idIndex;
+    private final boolean generatedId;
+
+    JdbcRowMapper(Configuration configuration) {
+        this.nodeInfoClass = configuration.getNodeInfoClass();
+        List<Field> mapped = new ArrayList<Field>();
+        List<String> names = new ArrayList<String>();
+        for (Class<?> clazz = this.nodeInfoClass; clazz != null && clazz != Object.class; clazz = clazz
+                .getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+                        || field.getAnnotation(Transient.class) != null || !isBasic(field.getType())
+                        || names.contains(field.getName())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                mapped.add(field);
+                names.add(field.getName());
+            }
+        }
+        this.fields = mapped.toArray(new Field[mapped.size()]);
+        this.columns = new String[this.fields.length];
+        this.insertable = new boolean[this.fields.length];
+        int id = -1;
+        boolean generated = false;
+        for (int i = 0; i < this.fields.length; i++) {
+            Field field = this.fields[i];
+            this.columns[i] = configuration.getColumnName(field.getName());
+            Column column = field.getAnnotation(Column.class);
+            this.insertable[i] = column == null || column.insertable();
+            if (field.getName().equals(configuration.getIdFieldName())) {
+                id = i;
+                generated = field.getAnnotation(GeneratedValue.class) != null;
+            }
+        }
+        if (id < 0) {
+            throw new IllegalArgumentException("There is no id field in " + this.nodeInfoClass);
+        }
+        this.idIndex = id;
+        this.generatedId = generated;
+    }
+
+    private static boolean isBasic(Class<?> type) {
+        return type.isPrimitive() || Number.class.isAssignableFrom(type) || type == String.class
+                || type == Boolean.class || type == Character.class || Date.class.isAssignableFrom(type)
+                || type == BigDecimal.class || type == BigInteger.class || type == byte[].class || type.isEnum();
+    }
+
+    /**
+     * Returns the mapped columns, separated by commas, in the order read by
+     * {@link #read(ResultSet)}.
+     */
+    String getColumnList() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.columns.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(this.columns[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the insert statement of the given row: the id column is left
+     * to the database when it is generated and the row has no id yet.
+     */
+    String getInsertSql(String tableName, NodeInfo row) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("insert into ").append(tableName).append(" (");
+        int count = 0;
+        for (int i = 0; i < this.columns.length; i++) {
+            if (isInserted(i, row)) {
+                sb.append(count++ == 0 ? "" : ", ").append(this.columns[i]);
+            }
+        }
+        sb.append(") values (");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Returns the values of the columns of the insert statement of the given
+     * row.
+     */
+    Object[] getInsertParameters(NodeInfo row) {
+        List<Object> values = new ArrayList<Object>(this.fields.length);
+        try {
+            for (int i = 0; i < this.fields.length; i++) {
+                if (isInserted(i, row)) {
+                    Object value = this.fields[i].get(row);
+                    if (value instanceof Enum<?>) {
+                        Enumerated enumerated = this.fields[i].getAnnotation(Enumerated.class);
+                        value = enumerated != null && enumerated.value() == EnumType.STRING ? ((Enum<?>) value)
+                                .name() : ((Enum<?>) value).ordinal();
+                    }
+                    values.add(value);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return values.toArray();
+    }
+
+    private boolean isInserted(int index, NodeInfo row) {
+        if (index == this.idIndex) {
+            return !hasGeneratedId(row);
+        }
+        return this.insertable[index];
+    }
+
+    /**
+     * Checks whether the id of the given row is to be generated by the
+     * database on insert.
+     */
+    boolean hasGeneratedId(NodeInfo row) {
+        return this.generatedId && row.getId() == 0;
+    }
+
+    /**
+     * Sets the id generated by the database for the given row.
+     */
+    void setId(NodeInfo row, int id) {
+        try {
+            this.fields[this.idIndex].set(row, convert(id, this.fields[this.idIndex].getType()));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates an instance of the NodeInfo class from the current row of the
+     * given result set, which holds the columns of {@link #getColumnList()}.
+     */
+    NodeInfo read(ResultSet rs) throws SQLException {
+        NodeInfo row;
+        try {
+            row = (NodeInfo) this.nodeInfoClass.newInstance();
+            for (int i = 0; i < this.fields.length; i++) {
+                Class<?> type = this.fields[i].getType();
+                Object value = type == byte[].class ? rs.getBytes(i + 1) : rs.getObject(i + 1);
+                if (value != null || !type.isPrimitive()) {
+                    this.fields[i].set(row, convert(value, type));
+                }
+            }
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return row;
+    }
+
+    /**
+     * Converts a value read by JDBC to the type of a field.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            } else if (type == long.class || type == Long.class) {
+                return number.longValue();
+            } else if (type == short.class || type == Short.class) {
+                return number.shortValue();
+            } else if (type == byte.class || type == Byte.class) {
+                return number.byteValue();
+            } else if (type == double.class || type == Double.class) {
+                return number.doubleValue();
+            } else if (type == float.class || type == Float.class) {
+                return number.floatValue();
+            } else if (type == boolean.class || type == Boolean.class) {
+                return number.intValue() != 0;
+            } else if (type == BigDecimal.class) {
+                return new BigDecimal(number.toString());
+            } else if (type == BigInteger.class) {
+                return new BigInteger(number.toString());
+            }
+        }
+        if (type == boolean.class && value instanceof Boolean) {
+            return value;
+        }
+        if ((type == char.class || type == Character.class) && value instanceof String) {
+            return ((String) value).length() > 0 ? ((String) value).charAt(0) : '\0';
+        }
+        if (type.isEnum()) {
+            return value instanceof Number ? type.getEnumConstants()[((Number) value).intValue()] : Enum.valueOf(
+                    (Class<Enum>) type, value.toString());
+        }
+        if (Date.class.isAssignableFrom(type) && value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        throw new IllegalArgumentException("Cannot convert " + value.getClass().getName() + " to " + type.getName());
+    }
+}
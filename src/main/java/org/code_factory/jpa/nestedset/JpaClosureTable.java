@@ -0,0 +1,225 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.List;
+
+/**
+ * INTERNAL: Maintains the closure table of a {@link JpaNestedSetManager}, as
+ * named by {@link Configuration#getClosureTableName()}. The table holds one
+ * row (ancestor_id, descendant_id, depth) for each node and each of its
+ * ancestors, and one row of depth 0 for the node itself. It is not mapped, so
+ * all statements are set-based native SQL. The nodes of a subtree are selected
+ * by their left/right values in the node table, which must therefore not have
+ * been changed yet when a subtree is moved or deleted.
+ *
+ * @author gabbol
+ */
+final class JpaClosureTable {
+    static final String ANCESTOR_COLUMN = "ancestor_id";
+    static final String DESCENDANT_COLUMN = "descendant_id";
+    static final String DEPTH_COLUMN = "depth";
+
+    private final JpaNestedSetManager nsm;
+    private final String table;
+    private final String nodeTable;
+    private final String idColumn;
+    private final String leftColumn;
+    private final String rightColumn;
+    private final String levelColumn;
+    private final String rootColumn;
+
+    JpaClosureTable(JpaNestedSetManager nsm) {
+        Configuration config = nsm.getConfiguration();
+        this.nsm = nsm;
+        this.table = config.getClosureTableName();
+        this.nodeTable = config.getTableName();
+        this.idColumn = config.getColumnName(config.getIdFieldName());
+        this.leftColumn = config.getColumnName(config.getLeftFieldName());
+        this.rightColumn = config.getColumnName(config.getRightFieldName());
+        this.levelColumn = config.getColumnName(config.getLevelFieldName());
+        this.rootColumn = config.getRootIdFieldName() != null ? config.getColumnName(config.getRootIdFieldName()) : null;
+    }
+
+    /**
+     * Adds the rows of a new leaf: its own row and one row for each ancestor
+     * of the given parent, which is null for a root.
+     */
+    void insert(int id, Integer parentId) {
+        nsm.executeNativeUpdate("insert into " + this.table + columns() + " values (?, ?, 0)", id, id);
+        if (parentId != null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("insert into ").append(this.table).append(columns())
+                    .append(" select ").append(ANCESTOR_COLUMN).append(", ?, ").append(DEPTH_COLUMN).append(" + 1")
+                    .append(" from ").append(this.table).append(" where ").append(DESCENDANT_COLUMN).append(" = ?");
+            nsm.executeNativeUpdate(sb.toString(), id, parentId);
+        }
+    }
+
+    /**
+     * Removes the rows of the nodes in the given range.
+     */
+    void deleteSubtree(long left, long right, int rootValue) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(this.table)
+                .append(" where ").append(DESCENDANT_COLUMN).append(" in (").append(subtreeSql()).append(")");
+        nsm.executeNativeUpdate(sb.toString(), subtreeParameters(left, right, rootValue));
+    }
+
+    /**
+     * Removes the rows of the nodes with the given ids.
+     */
+    void deleteNodes(List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(this.table).append(" where ").append(DESCENDANT_COLUMN).append(" in (");
+        for (int i = 0; i < ids.size(); i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(")");
+        nsm.executeNativeUpdate(sb.toString(), ids.toArray());
+    }
+
+    /**
+     * Moves the subtree in the given range, whose top node has the given id,
+     * below the given parent, which is null for a root: the links from the
+     * old ancestors are removed, then the new ancestors are crossed with the
+     * subtree.
+     */
+    void move(long left, long right, int rootValue, int id, Integer parentId) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(this.table)
+                .append(" where ").append(DESCENDANT_COLUMN).append(" in (").append(subtreeSql()).append(")")
+                .append(" and ").append(ANCESTOR_COLUMN).append(" not in (").append(subtreeSql()).append(")");
+        Object[] subtree = subtreeParameters(left, right, rootValue);
+        Object[] parameters = new Object[subtree.length * 2];
+        System.arraycopy(subtree, 0, parameters, 0, subtree.length);
+        System.arraycopy(subtree, 0, parameters, subtree.length, subtree.length);
+        nsm.executeNativeUpdate(sb.toString(), parameters);
+        if (parentId != null) {
+            sb = new StringBuilder();
+            sb.append("insert into ").append(this.table).append(columns())
+                    .append(" select a.").append(ANCESTOR_COLUMN).append(", d.").append(DESCENDANT_COLUMN)
+                    .append(", a.").append(DEPTH_COLUMN).append(" + d.").append(DEPTH_COLUMN).append(" + 1")
+                    .append(" from ").append(this.table).append(" a, ").append(this.table).append(" d")
+                    .append(" where a.").append(DESCENDANT_COLUMN).append(" = ? and d.").append(ANCESTOR_COLUMN)
+                    .append(" = ?");
+            nsm.executeNativeUpdate(sb.toString(), parentId, id);
+        }
+    }
+
+    /**
+     * Recomputes the rows of the tree in the given range from the left/right
+     * values.
+     */
+    void rebuild(long left, long right, int rootValue) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(this.table)
+                .append(" where ").append(DESCENDANT_COLUMN).append(" in (").append(subtreeSql()).append(")");
+        nsm.executeNativeUpdate(sb.toString(), subtreeParameters(left, right, rootValue));
+
+        sb = new StringBuilder(fromPositionsSql());
+        sb.append(" and a.").append(this.leftColumn).append(" >= ? and a.").append(this.rightColumn).append(" <= ?");
+        if (this.rootColumn != null) {
+            sb.append(" and a.").append(this.rootColumn).append(" = ?");
+        }
+        nsm.executeNativeUpdate(sb.toString(), subtreeParameters(left, right, rootValue));
+    }
+
+    /**
+     * Recomputes all rows from the left/right values.
+     */
+    void rebuildAll() {
+        clear();
+        nsm.executeNativeUpdate(fromPositionsSql());
+    }
+
+    void clear() {
+        nsm.executeNativeUpdate("delete from " + this.table);
+    }
+
+    /**
+     * Inserts a row for each pair of nested nodes, as given by the left/right
+     * values. Conditions on the outer node "a" may be appended.
+     */
+    private String fromPositionsSql() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("insert into ").append(this.table).append(columns())
+                .append(" select a.").append(this.idColumn).append(", d.").append(this.idColumn)
+                .append(", d.").append(this.levelColumn).append(" - a.").append(this.levelColumn)
+                .append(" from ").append(this.nodeTable).append(" a, ").append(this.nodeTable).append(" d")
+                .append(" where d.").append(this.leftColumn).append(" >= a.").append(this.leftColumn)
+                .append(" and d.").append(this.rightColumn).append(" <= a.").append(this.rightColumn);
+        if (this.rootColumn != null) {
+            sb.append(" and d.").append(this.rootColumn).append(" = a.").append(this.rootColumn);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a query for the descendants of the node given as first
+     * parameter, in preorder, deeper than the depth given as second parameter
+     * and up to the depth given as third parameter if bounded.
+     */
+    String getDescendantsSql(boolean bounded) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(selectNodes(DESCENDANT_COLUMN))
+                .append(" where c.").append(ANCESTOR_COLUMN).append(" = ? and c.").append(DEPTH_COLUMN).append(" > ?");
+        if (bounded) {
+            sb.append(" and c.").append(DEPTH_COLUMN).append(" <= ?");
+        }
+        sb.append(" order by n.").append(this.leftColumn);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a query for the ancestors of the node given as first parameter,
+     * from the root down, up to the depth given as second parameter.
+     */
+    String getAncestorsSql() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(selectNodes(ANCESTOR_COLUMN))
+                .append(" where c.").append(DESCENDANT_COLUMN).append(" = ? and c.").append(DEPTH_COLUMN)
+                .append(" > 0 and c.").append(DEPTH_COLUMN).append(" <= ?")
+                .append(" order by n.").append(this.leftColumn);
+        return sb.toString();
+    }
+
+    private String selectNodes(String joinColumn) {
+        return "select n.* from " + this.nodeTable + " n join " + this.table + " c on c." + joinColumn + " = n."
+                + this.idColumn;
+    }
+
+    private static String columns() {
+        return " (" + ANCESTOR_COLUMN + ", " + DESCENDANT_COLUMN + ", " + DEPTH_COLUMN + ")";
+    }
+
+    /**
+     * Selects the ids of the nodes in a range of the node table.
+     */
+    private String subtreeSql() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select ").append(this.idColumn).append(" from ").append(this.nodeTable)
+                .append(" where ").append(this.leftColumn).append(" >= ? and ").append(this.rightColumn).append(" <= ?");
+        if (this.rootColumn != null) {
+            sb.append(" and ").append(this.rootColumn).append(" = ?");
+        }
+        return sb.toString();
+    }
+
+    private Object[] subtreeParameters(long left, long right, int rootValue) {
+        if (this.rootColumn != null) {
+            return new Object[] { nsm.position(left), nsm.position(right), rootValue };
+        }
+        return new Object[] { nsm.position(left), nsm.position(right) };
+    }
+}
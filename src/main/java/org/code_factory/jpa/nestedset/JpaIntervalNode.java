@@ -0,0 +1,626 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.code_factory.jpa.nestedset.events.EventBuilder;
+import org.code_factory.jpa.nestedset.events.EventNode;
+
+/**
+ * Implements {@link Node} for the {@link JpaNestedIntervalManager}. The
+ * position of the node is the nested interval of the wrapped
+ * {@link IntervalNodeInfo}, and its root value is derived from it. Its left and
+ * right values are those of the same tree numbered as a nested set.
+ *
+ * @param <T extends NodeInfo> The wrapped entity type.
+ * @author gabbol
+ */
+class JpaIntervalNode<T extends NodeInfo> implements ManagedNode<T> {
+    private static final int PREV_SIBLING = 1;
+    private static final int FIRST_CHILD = 2;
+    private static final int NEXT_SIBLING = 3;
+    private static final int LAST_CHILD = 4;
+
+    /** The wrapped NodeInfo implementor. */
+    private final T node;
+
+    /** The JpaNestedIntervalManager that manages this node. */
+    private final JpaNestedIntervalManager nsm;
+
+    /*
+     * "Caches" of the tree state reachable from this node, cleared whenever the
+     * node is rendered invalid due to tree modifications.
+     */
+    private List<Node<T>> children;
+    private Node<T> parent;
+    private List<Node<T>> ancestors;
+    private List<Node<T>> descendants;
+    private int descendantsDepth;
+    /** Whether the node has been evicted from the identity map. */
+    private volatile boolean detached;
+
+    JpaIntervalNode(T node, JpaNestedIntervalManager nsm) {
+        this.node = node;
+        this.nsm = nsm;
+    }
+
+    private Interval getInterval() {
+        return Interval.of((IntervalNodeInfo) this.node);
+    }
+
+    @Override
+    public int getId() {
+        return this.node.getId();
+    }
+
+    /**
+     * Returns the left value of the node in the nested set numbering of its
+     * tree, read from the intervals of the stored nodes: the values order and
+     * nest the nodes like their intervals, but change with the positions of
+     * other nodes.
+     */
+    @Override
+    public int getLeftValue() {
+        return Positions.toInt(getLongLeftValue());
+    }
+
+    /**
+     * Returns the right value of the node in the nested set numbering of its
+     * tree.
+     *
+     * @see #getLeftValue()
+     */
+    @Override
+    public int getRightValue() {
+        return Positions.toInt(getLongRightValue());
+    }
+
+    /**
+     * @see #getLeftValue()
+     */
+    @Override
+    public long getLongLeftValue() {
+        SnapshotNode numbered = nsm.numbering(this);
+        return numbered == null ? 0 : numbered.getLongLeftValue();
+    }
+
+    /**
+     * @see #getLeftValue()
+     */
+    @Override
+    public long getLongRightValue() {
+        SnapshotNode numbered = nsm.numbering(this);
+        return numbered == null ? 0 : numbered.getLongRightValue();
+    }
+
+    /**
+     * The left and right values are derived from the interval, which is only
+     * changed by the structural operations: the value is ignored.
+     */
+    @Override
+    public void setLeftValue(int value) {
+    }
+
+    /**
+     * @see #setLeftValue(int)
+     */
+    @Override
+    public void setRightValue(int value) {
+    }
+
+    /**
+     * @see #setLeftValue(int)
+     */
+    @Override
+    public void setLongLeftValue(long value) {
+    }
+
+    /**
+     * @see #setLeftValue(int)
+     */
+    @Override
+    public void setLongRightValue(long value) {
+    }
+
+    @Override
+    public int getLevel() {
+        return this.node.getLevel();
+    }
+
+    @Override
+    public void setLevel(int level) {
+        this.node.setLevel(level);
+    }
+
+    @Override
+    public int getRootValue() {
+        return getInterval().getRootValue();
+    }
+
+    @Override
+    public void setRootValue(int value) {
+        this.node.setRootValue(value);
+    }
+
+    @Override
+    public int getLinkedTypeCode() {
+        return this.node.getLinkedTypeCode();
+    }
+
+    @Override
+    public String getLinkedId() {
+        return this.node.getLinkedId();
+    }
+
+    @Override
+    public void setLinkedTypeCode(int value) {
+        this.node.setLinkedTypeCode(value);
+    }
+
+    @Override
+    public void setLinkedId(String value) {
+        this.node.setLinkedId(value);
+    }
+
+    @Override
+    public String toString() {
+        return "[Interval: " + getInterval() + ", Level: " + getLevel() + ", NodeInfo: " + node.toString() + "]";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T unwrap() {
+        return this.node;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasChildren() {
+        if (this.children != null) {
+            return !this.children.isEmpty();
+        }
+        return nsm.getLastChild(getInterval(), getLevel() + 1) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasParent() {
+        return !isRoot();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid() {
+        return getInterval().isValid();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRoot() {
+        return getLevel() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDescendantOf(Node<T> subj) {
+        return JpaNestedIntervalManager.intervalOf(subj).contains(getInterval());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getChildren() {
+        if (this.children == null) {
+            this.children = Collections.unmodifiableList(getDescendants(1));
+        }
+        return this.children;
+    }
+
+    /**
+     * Filters the children in memory.
+     */
+    @Override
+    public List<Node<T>> getChildren(TypeFilter<?> filter) {
+        return filter == null ? getChildren() : NodeLists.filter(getChildren(), filter);
+    }
+
+    /**
+     * Filters the descendants in memory.
+     */
+    @Override
+    public List<Node<T>> getDescendants(int depth, TypeFilter<?> filter) {
+        return filter == null ? getDescendants(depth) : NodeLists.filter(getDescendants(depth), filter);
+    }
+
+    /**
+     * Filters the ancestors in memory.
+     */
+    @Override
+    public List<Node<T>> getAncestors(TypeFilter<?> filter) {
+        return filter == null ? getAncestors() : NodeLists.filter(getAncestors(), filter);
+    }
+
+    /**
+     * Cut out of the children, which are loaded at once, by their slot under
+     * this node: the first page follows slot 0.
+     */
+    @Override
+    public ChildrenPage<T> getChildren(long afterLeft, int limit) {
+        List<Node<T>> children = getChildren();
+        Interval interval = getInterval();
+        long[] slots = new long[children.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = JpaNestedIntervalManager.intervalOf(children.get(i)).slotIn(interval);
+        }
+        return ChildrenPage.of(this, children, slots, afterLeft, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> getParent() {
+        if (isRoot()) {
+            return null;
+        }
+        if (this.parent == null) {
+            if (this.ancestors != null) {
+                this.parent = this.ancestors.get(this.ancestors.size() - 1);
+            } else {
+                this.parent = nsm.<T> getAncestors(getInterval(), getLevel() - 1).get(0);
+            }
+        }
+        return this.parent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getDescendants() {
+        return getDescendants(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getDescendants(int depth) {
+        if (this.descendants != null
+                && (depth == 0 && this.descendantsDepth == 0 || depth != 0 && depth <= this.descendantsDepth)) {
+            return this.descendants;
+        }
+        List<Node<T>> result = nsm.getDescendants(getInterval(), depth > 0 ? getLevel() + depth : 0);
+        this.descendants = result;
+        this.descendantsDepth = depth;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getAncestors() {
+        if (this.ancestors == null) {
+            this.ancestors = nsm.getAncestors(getInterval(), -1);
+        }
+        return this.ancestors;
+    }
+
+    /**
+     * Derived from the descendants, as nested intervals have no leaf test.
+     */
+    @Override
+    public List<Node<T>> getLeaves() {
+        return NodeLists.leaves(getDescendants(), null);
+    }
+
+    /**
+     * Iterates over the leaves derived from the descendants, which are loaded
+     * at once whatever the page size.
+     */
+    @Override
+    public Iterator<Node<T>> iterateLeaves(TypeFilter<?> filter, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+        }
+        return Collections.unmodifiableList(NodeLists.leaves(getDescendants(), filter)).iterator();
+    }
+
+    /**
+     * Cached ancestors are cut down in memory.
+     */
+    @Override
+    public List<Node<T>> getAncestors(int depth) {
+        return NodeLists.nearest(getAncestors(), depth);
+    }
+
+    /**
+     * Answered from the children, as the slots may have gaps.
+     */
+    @Override
+    public Node<T> getChildAt(int n) {
+        return NodeLists.get(getChildren(), n);
+    }
+
+    /**
+     * Answered from the children of the parent, as the slots may have gaps.
+     */
+    @Override
+    public Node<T> getNextSibling() {
+        return isRoot() ? null : NodeLists.neighbour(getParent().getChildren(), this, 1);
+    }
+
+    /**
+     * Answered from the children of the parent, as the slots may have gaps.
+     */
+    @Override
+    public Node<T> getPrevSibling() {
+        return isRoot() ? null : NodeLists.neighbour(getParent().getChildren(), this, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Node<T>> getSiblings() {
+        if (isRoot()) {
+            return Collections.emptyList();
+        }
+        return NodeLists.without(getParent().getChildren(), this);
+    }
+
+    /**
+     * Returns the child in the first slot of this node, which is free when
+     * the first child has been deleted or moved away.
+     */
+    @Override
+    public Node<T> getFirstChild() {
+        if (this.children != null) {
+            return this.children.isEmpty() ? null : this.children.get(0);
+        }
+        Node<T> first = nsm.getFirstChild(getInterval(), getLevel() + 1);
+        if (first == null && hasChildren()) {
+            first = getChildren().get(0);
+        }
+        return first;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Node<T> getLastChild() {
+        if (this.children != null) {
+            return this.children.isEmpty() ? null : this.children.get(this.children.size() - 1);
+        }
+        return nsm.getLastChild(getInterval(), getLevel() + 1);
+    }
+
+    /**
+     * Adds the child in the first free slot after the last child. No other
+     * row is written.
+     */
+    @Override
+    public Node<T> addChild(T child) {
+        if (child == this.node) {
+            throw new IllegalArgumentException("Cannot add node as child of itself.");
+        }
+        nsm.checkAttached(this);
+        int rootValue = getRootValue();
+        Node<T> added;
+        nsm.beginWrite(rootValue);
+        try {
+            nsm.nextChild(getInterval(), getLevel() + 1).applyTo((IntervalNodeInfo) child);
+            child.setLevel(getLevel() + 1);
+            nsm.getEntityManager().persist(child);
+            added = nsm.loadNode(child);
+            nsm.invalidateNodes(rootValue);
+        } finally {
+            nsm.endWrite(rootValue);
+        }
+        EventBuilder eb = nsm.createEventBuilder();
+        eb.add(added, EventNode.ADD);
+        eb.fireEvent();
+        return added;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete() {
+        nsm.checkAttached(this);
+        int rootValue = getRootValue();
+        EventBuilder eb = nsm.createEventBuilder();
+        nsm.beginWrite(rootValue);
+        try {
+            eb.add(this, EventNode.DELETE);
+            nsm.delete(getInterval());
+            nsm.invalidateNodes(rootValue);
+        } finally {
+            nsm.endWrite(rootValue);
+        }
+        eb.fireEvent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsPrevSiblingOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as previous sibling of itself");
+        }
+        move(dest, PREV_SIBLING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsNextSiblingOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as next sibling of itself");
+        }
+        move(dest, NEXT_SIBLING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsFirstChildOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as first child of itself");
+        }
+        move(dest, FIRST_CHILD);
+    }
+
+    /**
+     * Maps the subtree onto the first free slot after the last child of the
+     * destination. Only the rows of the moved nodes are written.
+     */
+    @Override
+    public void moveAsLastChildOf(Node<T> dest) {
+        if (dest == this) {
+            throw new IllegalArgumentException("Cannot move node as last child of itself");
+        }
+        move(dest, LAST_CHILD);
+    }
+
+    /**
+     * Moves the subtree of this node to the given place. The moves other than
+     * as last child first shift the following siblings at the destination by
+     * one slot.
+     */
+    private void move(Node<T> dest, int moveType) {
+        nsm.checkAttached(this);
+        nsm.checkAttached(dest);
+        Interval destInterval = JpaNestedIntervalManager.intervalOf(dest);
+        if (getInterval().contains(destInterval)) {
+            throw new IllegalArgumentException("Cannot move node below itself");
+        }
+        boolean asChild = moveType == FIRST_CHILD || moveType == LAST_CHILD;
+        Interval parentInterval;
+        if (asChild) {
+            parentInterval = destInterval;
+        } else if (dest.isRoot()) {
+            parentInterval = Interval.FOREST;
+        } else {
+            parentInterval = JpaNestedIntervalManager.intervalOf(dest.getParent());
+        }
+        int level = asChild ? dest.getLevel() + 1 : dest.getLevel();
+        boolean betweenTrees = parentInterval == Interval.FOREST || dest.getRootValue() != getRootValue();
+        int rootValue = getRootValue();
+        EventBuilder eb = nsm.createEventBuilder();
+        if (betweenTrees) {
+            nsm.beginForestWrite();
+        } else {
+            nsm.beginWrite(rootValue);
+        }
+        try {
+            eb.add(this, EventNode.DELETE_MOVE);
+            Interval slot;
+            switch (moveType) {
+            case LAST_CHILD:
+                slot = nsm.nextChild(parentInterval, level);
+                break;
+            case FIRST_CHILD:
+                slot = parentInterval.firstChild();
+                nsm.shiftChildren(parentInterval, level, slot);
+                break;
+            case PREV_SIBLING:
+                slot = destInterval;
+                nsm.shiftChildren(parentInterval, level, slot);
+                break;
+            case NEXT_SIBLING:
+                slot = destInterval.nextSibling(parentInterval);
+                nsm.shiftChildren(parentInterval, level, slot);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown move operation: " + moveType);
+            }
+            nsm.relocate(getInterval(), slot, level - getLevel());
+            nsm.invalidateAllNodes();
+            eb.add(this, EventNode.ADD_MOVE);
+        } finally {
+            if (betweenTrees) {
+                nsm.endForestWrite();
+            } else {
+                nsm.endWrite(rootValue);
+            }
+        }
+        eb.fireEvent();
+    }
+
+    @Override
+    public void invalidate() {
+        this.children = null;
+        this.parent = null;
+        this.ancestors = null;
+        this.descendants = null;
+    }
+
+    @Override
+    public void detach() {
+        this.detached = true;
+    }
+
+    @Override
+    public boolean isDetached() {
+        return this.detached;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Class<?> getLinkedTypeClass() {
+        return nsm.getConfiguration().getLinkedTypeClass(getLinkedTypeCode());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E> E lookupLinkedObject() {
+        return this.nsm.<T, E> lookupLinkedObject(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void accept(NodeVisitor<T> visitor) {
+        if (visitor.inNode(this)) {
+            for (Node<T> child : getChildren()) {
+                child.accept(visitor);
+            }
+        }
+        visitor.outNode(this);
+    }
+}
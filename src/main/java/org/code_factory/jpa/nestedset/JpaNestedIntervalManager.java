@@ -0,0 +1,747 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.code_factory.jpa.nestedset.annotations.IntervalColumn;
+import org.code_factory.jpa.nestedset.dialect.Dialect;
+import org.code_factory.jpa.nestedset.events.EventBuilder;
+import org.code_factory.jpa.nestedset.events.EventNode;
+
+/**
+ * Implements {@link NestedSetManager} for entities stored as nested
+ * intervals, see {@link Interval}.
+ * <p>
+ * A new node takes the next free child slot of its parent, and a subtree
+ * moved as the last child of a node is mapped onto its new slot: both only
+ * write the rows of the added or moved nodes. Moving a subtree in front of
+ * other nodes also shifts the following siblings by one slot, together with
+ * their descendants. The gaps left by deleted and moved nodes are not reused.
+ * <p>
+ * The ancestor and descendant queries compare the bounds of the intervals,
+ * cross-multiplied to stay in integer arithmetic. The bounds grow about like
+ * the Fibonacci numbers with the depth, so these products fit in 64 bits for
+ * trees a few dozen levels deep; deeper operations throw an
+ * ArithmeticException. Root versions, parent and path columns, closure
+ * tables and edit sessions are not supported.
+ *
+ * @author gabbol
+ */
+public class JpaNestedIntervalManager extends AbstractNestedSetManager implements EntityNestedSetManager {
+
+    private static final Comparator<Node<?>> PREORDER = new Comparator<Node<?>>() {
+        @Override
+        public int compare(Node<?> o1, Node<?> o2) {
+            return Interval.PREORDER.compare(intervalOf(o1), intervalOf(o2));
+        }
+    };
+
+    /** The number of keys of the linked entities read by one query. */
+    private static final int LOOKUP_BATCH_SIZE = 500;
+
+    private EntityManager em;
+    private final String leftNumerator;
+    private final String leftDenominator;
+    private final String rightNumerator;
+    private final String rightDenominator;
+    /** The nested set numbering of the trees read since their last write, by root value. */
+    private final Map<Integer, TreeSnapshot> numberings = new HashMap<Integer, TreeSnapshot>();
+
+    public JpaNestedIntervalManager(Configuration configuration, EntityManager em) {
+        super(configuration, new NodeIdentityMap());
+        if (configuration.getEncoding() != Configuration.NESTED_INTERVALS) {
+            throw new IllegalArgumentException("There are no interval columns in " + configuration);
+        }
+        if (configuration.isRootVersioned()) {
+            throw new IllegalArgumentException("Root versions are not supported by nested intervals: " + configuration);
+        }
+        if (configuration.hasParentColumn() || configuration.hasPathColumn() || configuration.hasClosureTable()
+                || configuration.hasSubtreeAggregates()) {
+            throw new IllegalArgumentException(
+                    "Parent, path and subtree aggregate columns and closure tables are not supported by nested intervals: " + configuration);
+        }
+        this.em = em;
+        this.leftNumerator = "n." + configuration.getIntervalFieldName(IntervalColumn.LEFT_NUMERATOR);
+        this.leftDenominator = "n." + configuration.getIntervalFieldName(IntervalColumn.LEFT_DENOMINATOR);
+        this.rightNumerator = "n." + configuration.getIntervalFieldName(IntervalColumn.RIGHT_NUMERATOR);
+        this.rightDenominator = "n." + configuration.getIntervalFieldName(IntervalColumn.RIGHT_DENOMINATOR);
+    }
+
+    static Interval intervalOf(Node<?> node) {
+        return Interval.of((IntervalNodeInfo) node.unwrap());
+    }
+
+    /**
+     * INTERNAL: Returns the given node in the nested set numbering of its
+     * tree, which gives the interval nodes the left and right values of a
+     * nested set with the same preorder. The numbering is read with one
+     * projection of the tree and kept until the tree is written.
+     *
+     * @return the numbered node, or null if the node is not stored in a tree
+     */
+    SnapshotNode numbering(Node<?> node) {
+        int rootValue = node.getRootValue();
+        if (rootValue == 0) {
+            return null;
+        }
+        TreeSnapshot tree = this.numberings.get(rootValue);
+        if (tree == null || tree.getNode(node.getId()) == null) {
+            tree = loadSnapshots(rootValue).get(rootValue);
+            if (tree == null) {
+                return null;
+            }
+            this.numberings.put(rootValue, tree);
+        }
+        return tree.getNode(node.getId());
+    }
+
+    /**
+     * INTERNAL: Drops the numbering of the written tree.
+     */
+    @Override
+    void endWrite(int rootId) {
+        this.numberings.remove(rootId);
+        super.endWrite(rootId);
+    }
+
+    /**
+     * INTERNAL: Drops the numbering of all trees.
+     */
+    @Override
+    void endForestWrite() {
+        this.numberings.clear();
+        super.endForestWrite();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        this.numberings.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EntityManager getEntityManager() {
+        return this.em;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setEntityManager(EntityManager entityManager) {
+        clear();
+        this.em = entityManager;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteAll() {
+        beginForestWrite();
+        try {
+            getEntityManager().createQuery("DELETE FROM " + getConfiguration().getEntityName() + " c").executeUpdate();
+            clear();
+        } finally {
+            endForestWrite();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> getRoots() {
+        return nodes(select(childrenOf(Interval.FOREST, 1), this.leftNumerator, 0, childParameters(Interval.FOREST, 0)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> createRoot(T root) {
+        Node<T> node;
+        beginForestWrite();
+        try {
+            nextChild(Interval.FOREST, 0).applyTo((IntervalNodeInfo) root);
+            root.setLevel(0);
+            getEntityManager().persist(root);
+            node = loadNode(root);
+        } finally {
+            endForestWrite();
+        }
+        EventBuilder eb = createEventBuilder();
+        eb.add(node, EventNode.ADD);
+        eb.fireEvent();
+        return node;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> getNodes() {
+        return nodes(select(null, null, 0));
+    }
+
+    @Override
+    <T extends NodeInfo> Node<T> createNode(T nodeInfo) {
+        return new JpaIntervalNode<T>(nodeInfo, this);
+    }
+
+    @Override
+    void clearPosition(Node<?> node) {
+        new Interval(0, 0, 0, 0).applyTo((IntervalNodeInfo) node.unwrap());
+        node.setLevel(0);
+    }
+
+    @Override
+    void nodeRemoved(Node<?> node) {
+        getEntityManager().detach(node.unwrap());
+    }
+
+    @Override
+    Dialect detectDialect() {
+        return Dialect.detect(getEntityManager().getEntityManagerFactory().getProperties());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T extends NodeInfo> List<Node<T>> find(int refType, Object refId, Collection<Node<T>> excludedNodes) {
+        Configuration config = getConfiguration();
+        List<Node<T>> nodes = nodes(select("n." + config.getLinkedTypeCodeFieldName() + " = ?1 and n."
+                + config.getLinkedIdFieldName() + " = ?2", null, 0, refType, refId));
+        if (excludedNodes != null) {
+            nodes.removeAll(excludedNodes);
+        }
+        Collections.sort(nodes, PREORDER);
+        return nodes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo, E> E lookupLinkedObject(Node<T> node) {
+        Object objectId = convertPrimaryKey(node.getLinkedId(), node.getLinkedTypeClass());
+        @SuppressWarnings("unchecked")
+        E refObject = (E) getEntityManager().find(node.getLinkedTypeClass(), objectId);
+        return refObject;
+    }
+
+    /**
+     * Not supported: nested intervals do not shift other nodes, so there is
+     * nothing to batch.
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public <T extends NodeInfo> TreeEditSession<T> openEditSession(Node<T> node) {
+        throw new UnsupportedOperationException("Edit sessions are not supported by nested intervals.");
+    }
+
+    /**
+     * Computed in memory, as the subtree of a node is not a range of a single
+     * column: the values of the linked entities are read in batches of keys,
+     * then a single pass over the subtree in preorder adds the totals of each
+     * node to its parent.
+     */
+    @Override
+    public <T extends NodeInfo> Rollup rollup(Node<T> subtreeRoot, Class<?> linkedTypeClass, String attribute,
+            int function) {
+        if (function < Rollup.COUNT || function > Rollup.MAX) {
+            throw new IllegalArgumentException("Unknown aggregate function: " + function);
+        }
+        if (attribute == null && function != Rollup.COUNT) {
+            throw new IllegalArgumentException("Only COUNT needs no attribute");
+        }
+        List<Node<T>> nodes = new ArrayList<Node<T>>();
+        nodes.add(subtreeRoot);
+        nodes.addAll(subtreeRoot.getDescendants());
+        int code = getConfiguration().getLinkedTypeCode(linkedTypeClass);
+        Map<Object, Object> linkedValues = linkedValues(nodes, code, linkedTypeClass, attribute);
+
+        int size = nodes.size();
+        Interval[] intervals = new Interval[size];
+        boolean[] linked = new boolean[size];
+        int[] counts = new int[size];
+        double[] totals = new double[size];
+        for (int i = 0; i < size; i++) {
+            Node<T> node = nodes.get(i);
+            intervals[i] = intervalOf(node);
+            if (node.getLinkedTypeCode() == code && node.getLinkedId() != null) {
+                Object key = convertPrimaryKey(node.getLinkedId(), linkedTypeClass);
+                if (linkedValues.containsKey(key)) {
+                    linked[i] = true;
+                    Object value = linkedValues.get(key);
+                    if (value != null) {
+                        counts[i] = 1;
+                        totals[i] = attribute != null ? ((Number) value).doubleValue() : 0;
+                    }
+                }
+            }
+        }
+        // the open ancestors of the current node; a node is added to its
+        // parent once the pass leaves its subtree
+        int[] open = new int[size];
+        int top = -1;
+        for (int i = 0; i <= size; i++) {
+            while (top >= 0 && (i == size || !intervals[open[top]].contains(intervals[i]))) {
+                int closed = open[top--];
+                if (top >= 0) {
+                    int parent = open[top];
+                    linked[parent] |= linked[closed];
+                    if (counts[closed] > 0) {
+                        totals[parent] = counts[parent] == 0 ? totals[closed] : combine(function, totals[parent],
+                                totals[closed]);
+                        counts[parent] += counts[closed];
+                    }
+                }
+            }
+            if (i < size) {
+                open[++top] = i;
+            }
+        }
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < size; i++) {
+            if (linked[i]) {
+                Object value = function == Rollup.COUNT ? Integer.valueOf(counts[i])
+                        : (counts[i] > 0 ? Double.valueOf(totals[i]) : null);
+                rows.add(new Object[] { nodes.get(i).getId(), value });
+            }
+        }
+        return Rollup.of(rows);
+    }
+
+    private static double combine(int function, double a, double b) {
+        switch (function) {
+        case Rollup.MIN:
+            return Math.min(a, b);
+        case Rollup.MAX:
+            return Math.max(a, b);
+        default:
+            return a + b;
+        }
+    }
+
+    /**
+     * Reads the attribute of the entities linked to the given nodes, by
+     * primary key; without an attribute the keys are mapped to
+     * <code>Boolean.TRUE</code>.
+     */
+    private Map<Object, Object> linkedValues(List<? extends Node<?>> nodes, int code, Class<?> linkedTypeClass,
+            String attribute) {
+        List<Object> keys = new ArrayList<Object>();
+        for (Node<?> node : nodes) {
+            if (node.getLinkedTypeCode() == code && node.getLinkedId() != null) {
+                keys.add(convertPrimaryKey(node.getLinkedId(), linkedTypeClass));
+            }
+        }
+        String key = "l." + findPrimaryKeyField(linkedTypeClass).getName();
+        String jpql = "select " + key + (attribute != null ? ", l." + attribute : "") + " from "
+                + Configuration.entityNameOf(linkedTypeClass) + " l where " + key + " in :keys";
+        Map<Object, Object> values = new HashMap<Object, Object>();
+        for (int from = 0; from < keys.size(); from += LOOKUP_BATCH_SIZE) {
+            Query query = getEntityManager().createQuery(jpql);
+            query.setParameter("keys", keys.subList(from, Math.min(keys.size(), from + LOOKUP_BATCH_SIZE)));
+            for (Object row : query.getResultList()) {
+                if (attribute != null) {
+                    values.put(((Object[]) row)[0], ((Object[]) row)[1]);
+                } else {
+                    values.put(row, Boolean.TRUE);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeBuilder createNodeBuilder() {
+        return new JPAIntervalNodeBuilder(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValidTree(int rootValue) {
+        beginRead(rootValue);
+        try {
+            List<IntervalNodeInfo> tree = select(inTree(), null, 0, (long) rootValue, (long) rootValue + 1);
+            List<Interval> intervals = new ArrayList<Interval>(tree.size());
+            Map<Interval, Integer> levels = new HashMap<Interval, Integer>();
+            for (IntervalNodeInfo info : tree) {
+                Interval interval = Interval.of(info);
+                if (!interval.isValid() || levels.put(interval, info.getLevel()) != null) {
+                    return false;
+                }
+                intervals.add(interval);
+            }
+            Collections.sort(intervals, Interval.PREORDER);
+            List<Interval> stack = new ArrayList<Interval>();
+            for (Interval interval : intervals) {
+                while (!stack.isEmpty() && !stack.get(stack.size() - 1).contains(interval)) {
+                    stack.remove(stack.size() - 1);
+                }
+                if (stack.isEmpty() != (interval == intervals.get(0))) {
+                    return false;
+                }
+                Interval parent = stack.isEmpty() ? Interval.FOREST : stack.get(stack.size() - 1);
+                if (!interval.isChildOf(parent) || levels.get(interval) != stack.size()) {
+                    return false;
+                }
+                stack.add(interval);
+            }
+            return true;
+        } finally {
+            endRead(rootValue);
+        }
+    }
+
+    /**
+     * INTERNAL: Loads the committed state of the given tree, or of all trees if
+     * rootValue is null. The snapshots number the nodes in preorder as a
+     * nested set would.
+     *
+     * @return the snapshots by root value
+     */
+    @Override
+    Map<Integer, TreeSnapshot> loadSnapshots(Integer rootValue) {
+        Configuration config = getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n.id, ").append(this.leftNumerator).append(", ").append(this.leftDenominator)
+                .append(", ").append(this.rightNumerator).append(", ").append(this.rightDenominator)
+                .append(", n.").append(config.getLevelFieldName())
+                .append(", n.").append(config.getLinkedTypeCodeFieldName())
+                .append(", n.").append(config.getLinkedIdFieldName())
+                .append(" from ").append(config.getEntityName()).append(" n");
+        if (rootValue != null) {
+            sb.append(" where ").append(inTree());
+        }
+        Query q = getEntityManager().createQuery(sb.toString());
+        if (rootValue != null) {
+            q.setParameter(1, rootValue.longValue());
+            q.setParameter(2, rootValue.longValue() + 1);
+        }
+
+        final Map<Object[], Interval> intervals = new HashMap<Object[], Interval>();
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Object row : q.getResultList()) {
+            Object[] values = (Object[]) row;
+            intervals.put(values, new Interval(((Number) values[1]).longValue(), ((Number) values[2]).longValue(),
+                    ((Number) values[3]).longValue(), ((Number) values[4]).longValue()));
+            rows.add(values);
+        }
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] o1, Object[] o2) {
+                return Interval.PREORDER.compare(intervals.get(o1), intervals.get(o2));
+            }
+        });
+
+        Map<Integer, TreeSnapshot> result = new HashMap<Integer, TreeSnapshot>();
+        List<Object[]> treeRows = new ArrayList<Object[]>();
+        List<Object[]> open = new ArrayList<Object[]>();
+        List<Interval> openIntervals = new ArrayList<Interval>();
+        int currentRoot = 0;
+        long position = 0;
+        for (Object[] values : rows) {
+            Interval interval = intervals.get(values);
+            int root = interval.getRootValue();
+            if (root != currentRoot && !treeRows.isEmpty()) {
+                closeAll(open, position);
+                result.put(currentRoot, new TreeSnapshot(config, currentRoot, treeRows));
+                treeRows = new ArrayList<Object[]>();
+                openIntervals.clear();
+                position = 0;
+            }
+            currentRoot = root;
+            while (!openIntervals.isEmpty() && !openIntervals.get(openIntervals.size() - 1).contains(interval)) {
+                openIntervals.remove(openIntervals.size() - 1);
+                open.remove(open.size() - 1)[2] = ++position;
+            }
+            Object[] snapshotRow = new Object[] { values[0], ++position, null, values[5], values[6], values[7] };
+            treeRows.add(snapshotRow);
+            open.add(snapshotRow);
+            openIntervals.add(interval);
+        }
+        if (!treeRows.isEmpty()) {
+            closeAll(open, position);
+            result.put(currentRoot, new TreeSnapshot(config, currentRoot, treeRows));
+        }
+        return result;
+    }
+
+    /**
+     * Sets the right values of the given snapshot rows, innermost first.
+     */
+    private static void closeAll(List<Object[]> open, long position) {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            open.get(i)[2] = ++position;
+        }
+        open.clear();
+    }
+
+    /**
+     * INTERNAL: Selects the entities matching the given JPQL condition on the
+     * alias n, with positional parameters.
+     *
+     * @param where
+     *            the condition, or null for all entities
+     * @param orderBy
+     *            the order by clause, or null
+     * @param maxResults
+     *            the maximum number of entities, or 0 for all
+     */
+    @SuppressWarnings("unchecked")
+    <E> List<E> select(String where, String orderBy, int maxResults, Object... parameters) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n from ").append(getConfiguration().getEntityName()).append(" n");
+        if (where != null) {
+            sb.append(" where ").append(where);
+        }
+        if (orderBy != null) {
+            sb.append(" order by ").append(orderBy);
+        }
+        Query q = getEntityManager().createQuery(sb.toString());
+        for (int i = 0; i < parameters.length; i++) {
+            q.setParameter(i + 1, parameters[i]);
+        }
+        if (maxResults > 0) {
+            q.setMaxResults(maxResults);
+        }
+        return q.getResultList();
+    }
+
+    /**
+     * INTERNAL: Returns the nodes of the given entities.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends NodeInfo> List<Node<T>> nodes(List<?> entities) {
+        List<Node<T>> result = new ArrayList<Node<T>>(entities.size());
+        for (Object entity : entities) {
+            result.add(loadNode((T) entity));
+        }
+        return result;
+    }
+
+    /**
+     * INTERNAL: Returns the descendants of the given interval down to the
+     * given level, 0 for all levels, in preorder.
+     */
+    <T extends NodeInfo> List<Node<T>> getDescendants(Interval interval, int maxLevel) {
+        String where = below(1, "<");
+        List<Node<T>> result;
+        if (maxLevel > 0) {
+            result = nodes(select(where + " and n." + getConfiguration().getLevelFieldName() + " <= ?5", null, 0,
+                    interval.leftNumerator, interval.leftDenominator, interval.rightNumerator,
+                    interval.rightDenominator, maxLevel));
+        } else {
+            result = nodes(select(where, null, 0, interval.leftNumerator, interval.leftDenominator,
+                    interval.rightNumerator, interval.rightDenominator));
+        }
+        Collections.sort(result, PREORDER);
+        return result;
+    }
+
+    /**
+     * INTERNAL: Returns the ancestors of the given interval ordered by level,
+     * or only the one at the given level if it is not negative.
+     */
+    <T extends NodeInfo> List<Node<T>> getAncestors(Interval interval, int level) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.leftNumerator).append(" * ?2 <= ?1 * ").append(this.leftDenominator).append(" and ")
+                .append(this.rightNumerator).append(" * ?4 > ?3 * ").append(this.rightDenominator);
+        String levelField = "n." + getConfiguration().getLevelFieldName();
+        if (level >= 0) {
+            return nodes(select(sb.append(" and ").append(levelField).append(" = ?5").toString(), null, 1,
+                    interval.leftNumerator, interval.leftDenominator, interval.rightNumerator,
+                    interval.rightDenominator, level));
+        }
+        return nodes(select(sb.toString(), levelField, 0, interval.leftNumerator, interval.leftDenominator,
+                interval.rightNumerator, interval.rightDenominator));
+    }
+
+    /**
+     * INTERNAL: Returns the child of the given interval in its first slot, or
+     * null if the slot is free.
+     */
+    <T extends NodeInfo> Node<T> getFirstChild(Interval parent, int childLevel) {
+        List<Node<T>> result = nodes(select(this.leftNumerator + " = ?1 and " + this.leftDenominator + " = ?2 and n."
+                + getConfiguration().getLevelFieldName() + " = ?3", null, 1, parent.leftNumerator,
+                parent.leftDenominator, childLevel));
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * INTERNAL: Returns the child of the given interval in its last used slot,
+     * or null if there are no children. The later slots have the greater
+     * denominators.
+     */
+    <T extends NodeInfo> Node<T> getLastChild(Interval parent, int childLevel) {
+        List<Node<T>> result = nodes(select(childrenOf(parent, 1), this.rightDenominator + " desc, "
+                + this.leftNumerator + " desc", 1, childParameters(parent, childLevel)));
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * INTERNAL: Returns the first free child slot of the given interval after
+     * its last child.
+     */
+    Interval nextChild(Interval parent, int childLevel) {
+        Node<?> last = getLastChild(parent, childLevel);
+        return last == null ? parent.firstChild() : intervalOf(last).nextSibling(parent);
+    }
+
+    /**
+     * INTERNAL: Shifts the children of the given interval starting at the
+     * given slot by one slot, together with their descendants, starting with
+     * the last child so that the next slot is always free.
+     */
+    void shiftChildren(Interval parent, int childLevel, Interval from) {
+        Object[] parameters = childParameters(parent, childLevel);
+        int next = parameters.length + 1;
+        Object[] all = new Object[parameters.length + 2];
+        System.arraycopy(parameters, 0, all, 0, parameters.length);
+        all[next - 1] = from.leftNumerator;
+        all[next] = from.leftDenominator;
+        List<IntervalNodeInfo> siblings = select(childrenOf(parent, 1) + " and " + this.leftNumerator + " * ?"
+                + (next + 1) + " >= ?" + next + " * " + this.leftDenominator, null, 0, all);
+        List<Interval> slots = new ArrayList<Interval>(siblings.size());
+        for (IntervalNodeInfo sibling : siblings) {
+            slots.add(Interval.of(sibling));
+        }
+        Collections.sort(slots, Collections.reverseOrder(Interval.PREORDER));
+        for (Interval slot : slots) {
+            relocate(slot, slot.nextSibling(parent), 0);
+        }
+    }
+
+    /**
+     * INTERNAL: Maps the given interval and its descendants onto the given
+     * free slot and changes their levels by the given delta. Only the rows of
+     * the moved nodes are written.
+     */
+    void relocate(Interval from, Interval to, int levelDelta) {
+        long[] mapping = from.mappingTo(to);
+        List<IntervalNodeInfo> subtree = select(below(1, "<="), null, 0, from.leftNumerator, from.leftDenominator,
+                from.rightNumerator, from.rightDenominator);
+        for (IntervalNodeInfo info : subtree) {
+            Interval.of(info).transform(mapping).applyTo(info);
+            info.setLevel(info.getLevel() + levelDelta);
+        }
+        getEntityManager().flush();
+    }
+
+    /**
+     * INTERNAL: Deletes the given interval and its descendants and removes
+     * their nodes from the manager.
+     */
+    void delete(Interval interval) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(getConfiguration().getEntityName()).append(" n where ")
+                .append(below(1, "<="));
+        Query q = getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, interval.leftNumerator);
+        q.setParameter(2, interval.leftDenominator);
+        q.setParameter(3, interval.rightNumerator);
+        q.setParameter(4, interval.rightDenominator);
+        q.executeUpdate();
+
+        List<Node<?>> removed = new ArrayList<Node<?>>();
+        for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+            Node<?> node = it.next();
+            Interval other = intervalOf(node);
+            if (other.equals(interval) || interval.contains(other)) {
+                removed.add(node);
+            }
+        }
+        for (Node<?> node : removed) {
+            removeNode(node.unwrap().getClass(), node.getId());
+        }
+    }
+
+    /**
+     * INTERNAL: Clears the local caches of all nodes known to the manager.
+     */
+    void invalidateAllNodes() {
+        for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+            ((ManagedNode<?>) it.next()).invalidate();
+        }
+    }
+
+    /**
+     * The intervals of the alias n below the interval given as the parameters
+     * starting at firstParameter, compared with the given operator on the
+     * right bound: "&lt;" for the descendants, "&lt;=" to include the interval
+     * itself.
+     */
+    private String below(int firstParameter, String rightOperator) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.leftNumerator).append(" * ?").append(firstParameter + 1).append(" >= ?")
+                .append(firstParameter).append(" * ").append(this.leftDenominator).append(" and ")
+                .append(this.rightNumerator).append(" * ?").append(firstParameter + 3).append(" ")
+                .append(rightOperator).append(" ?").append(firstParameter + 2).append(" * ")
+                .append(this.rightDenominator);
+        return sb.toString();
+    }
+
+    /**
+     * The children of the given interval, with the parameters returned by
+     * {@link #childParameters(Interval, int)} starting at firstParameter.
+     */
+    private String childrenOf(Interval parent, int firstParameter) {
+        String level = "n." + getConfiguration().getLevelFieldName() + " = ?";
+        if (parent == Interval.FOREST) {
+            return level + firstParameter;
+        }
+        return below(firstParameter, "<") + " and " + level + (firstParameter + 4);
+    }
+
+    private static Object[] childParameters(Interval parent, int childLevel) {
+        if (parent == Interval.FOREST) {
+            return new Object[] { childLevel };
+        }
+        return new Object[] { parent.leftNumerator, parent.leftDenominator, parent.rightNumerator,
+                parent.rightDenominator, childLevel };
+    }
+
+    /**
+     * The nodes of the tree whose root value is given as the parameters 1 and
+     * 2, as a long and the next one.
+     */
+    private String inTree() {
+        return this.leftNumerator + " >= ?1 * " + this.leftDenominator + " and " + this.leftNumerator + " < ?2 * "
+                + this.leftDenominator;
+    }
+}
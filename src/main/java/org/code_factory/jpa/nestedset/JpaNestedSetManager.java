@@ -9,28 +9,29 @@
 
 package org.code_factory.jpa.nestedset;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 
 import javax.persistence.EntityManager;
-import javax.persistence.Id;
 import javax.persistence.Query;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.code_factory.jpa.nestedset.dialect.Dialect;
 import org.code_factory.jpa.nestedset.events.EventBuilder;
 import org.code_factory.jpa.nestedset.events.EventNode;
-import org.code_factory.jpa.nestedset.events.NestedSetListenerProvider;
 
 /**
  * 
@@ -40,19 +41,40 @@ import org.code_factory.jpa.nestedset.events.NestedSetListenerProvider;
  * @author Roman Borschel <roman@code-factory.org>
  * @author gabbol
  */
-public class JpaNestedSetManager implements NestedSetManager {
+public class JpaNestedSetManager extends AbstractLeftRightManager implements EntityNestedSetManager {
+    /** The number of ids per query when positions are read again. */
+    private static final int RESTORE_BATCH_SIZE = 500;
+    /** The number of nodes read by one page of the fan-out scan. */
+    private static final int FAN_OUT_PAGE_SIZE = 1000;
 
     private EntityManager em;
-    private final Map<Key, Node<?>> nodes;
-    private Configuration configuration;
-    protected static final int DEPTH_INFINITE = 0;
-    protected static final int DEPTH_ONE = 1;
-    private NestedSetListenerProvider listenerProvider;
+    /** The version of each tree as last read or written by this manager. */
+    private final Map<Integer, Integer> rootVersions;
+    /** The closure table kept in sync, or null. */
+    private final JpaClosureTable closureTable;
+    /** The subtree aggregate columns kept in sync, or null. */
+    private final JpaSubtreeAggregates subtreeAggregates;
+    /** The cache of the nodes of each linked entity, or null. */
+    private volatile FindCache findCache;
 
     public JpaNestedSetManager(Configuration configuration, EntityManager em) {
+        this(configuration, em, new NodeIdentityMap(), new HashMap<Integer, Integer>());
+    }
+
+    /**
+     * INTERNAL: Creates a manager backed by the given identity map and version
+     * map, allowing subclasses to provide thread-safe implementations.
+     */
+    JpaNestedSetManager(Configuration configuration, EntityManager em, Map<Key, Node<?>> nodes,
+            Map<Integer, Integer> rootVersions) {
+        super(configuration, nodes);
+        if (configuration.getEncoding() != Configuration.NESTED_SETS) {
+            throw new IllegalArgumentException("Use a JpaNestedIntervalManager for the nested intervals of " + configuration);
+        }
         this.em = em;
-        this.configuration = configuration;
-        this.nodes = new HashMap<Key, Node<?>>();
+        this.rootVersions = rootVersions;
+        this.closureTable = configuration.hasClosureTable() ? new JpaClosureTable(this) : null;
+        this.subtreeAggregates = configuration.hasSubtreeAggregates() ? new JpaSubtreeAggregates(this) : null;
     }
 
     
@@ -62,17 +84,16 @@ public class JpaNestedSetManager implements NestedSetManager {
     @Override
     public void deleteAll() {
         EntityManager em = getEntityManager();
-        em.createQuery("DELETE FROM " + configuration.getEntityName() + " c").executeUpdate();
-        clear();
-    }
-
-    /**
-     * Returns the configuration
-     *
-     * @return a configuration
-     */
-    protected Configuration getConfiguration() {
-        return configuration;
+        beginForestWrite();
+        try {
+            em.createQuery("DELETE FROM " + getConfiguration().getEntityName() + " c").executeUpdate();
+            if (this.closureTable != null) {
+                this.closureTable.clear();
+            }
+            clear();
+        } finally {
+            endForestWrite();
+        }
     }
 
     /**
@@ -88,51 +109,93 @@ public class JpaNestedSetManager implements NestedSetManager {
      */
     @Override
     public void clear() {
-        this.nodes.clear();
+        super.clear();
+        this.rootVersions.clear();
+    }
+
+    /**
+     * Drops the known version of the tree with its nodes, as its rows may
+     * have been rolled back.
+     */
+    @Override
+    int evictTree(int rootId) {
+        int evicted = super.evictTree(rootId);
+        this.rootVersions.remove(rootId);
+        return evicted;
+    }
+
+    /**
+     * INTERNAL: Drops the cached nodes of the trees changed by a move between
+     * trees, instead of clearing the manager: the known versions of all the
+     * trees are kept, so that the nodes held for the other trees are still
+     * checked. When the move has made a new tree, the trees from its root
+     * value on have been renumbered, and their nodes and versions follow.
+     *
+     * @param sourceRoot
+     *            the root value of the source tree before the move
+     * @param destRoot
+     *            the root value of the destination tree after the move
+     * @param newTree
+     *            whether the destination is a new tree
+     */
+    void treesMoved(int sourceRoot, int destRoot, boolean newTree) {
+        Set<Integer> roots = new HashSet<Integer>();
+        roots.add(sourceRoot);
+        if (newTree) {
+            for (Iterator<Node<?>> it = getCachedNodes(); it.hasNext();) {
+                int rootValue = it.next().getRootValue();
+                if (rootValue >= destRoot) {
+                    roots.add(rootValue);
+                }
+            }
+            List<Integer> renumbered = new ArrayList<Integer>();
+            for (Integer rootValue : this.rootVersions.keySet()) {
+                if (rootValue >= destRoot) {
+                    renumbered.add(rootValue);
+                }
+            }
+            // from the last tree down, so that no version is overwritten
+            Collections.sort(renumbered, Collections.reverseOrder());
+            for (Integer rootValue : renumbered) {
+                this.rootVersions.put(rootValue + 1, this.rootVersions.remove(rootValue));
+            }
+        } else {
+            roots.add(destRoot);
+        }
+        for (int rootValue : roots) {
+            super.evictTree(rootValue);
+        }
     }
 
     /**
-     * Establishes all parent/child/ancestor/descendant relationships of all the
-     * nodes in the given list. As a result, invocations on the corresponding
+     * INTERNAL: Establishes all parent/child/ancestor/descendant relationships
+     * of all the nodes in the given list, which holds a subtree in preorder
+     * starting with its root. As a result, invocations on the corresponding
      * methods on these node instances will not trigger any database queries.
+     * The relatives are views over one {@link PreorderTree} sharing the list.
      * 
-     * @param <T>
      * @param treeList
+     *            the nodes of the subtree ordered by left value
      * @param maxLevel
-     * @return void
+     *            the deepest level loaded, 0 if the whole subtree is loaded
      */
-    private <T extends NodeInfo> void buildTree(List<Node<T>> treeList, int maxLevel) {
-        Node<T> rootNode = treeList.get(0);
-
-        Stack<JpaNode<T>> stack = new Stack<JpaNode<T>>();
-        int level = rootNode.getLevel();
-
-        for (Node<T> n : treeList) {
-            JpaNode<T> node = (JpaNode<T>) n;
-
-            if (node.getLevel() < level) {
-                stack.pop();
-            }
-            level = node.getLevel();
-
-            if (node != rootNode) {
-                JpaNode<T> parent = stack.peek();
-                // set parent
-                node.internalSetParent(parent);
-                // add child to parent
-                parent.internalAddChild(node);
-                // set ancestors
-                node.internalSetAncestors(new ArrayList<Node<T>>(stack));
-                // add descendant to all ancestors
-                for (JpaNode<T> anc : stack) {
-                    anc.internalAddDescendant(node);
+    <T extends NodeInfo> void buildTree(List<Node<T>> treeList, int maxLevel) {
+        JpaNode<T> rootNode = (JpaNode<T>) treeList.get(0);
+        PreorderTree<T> tree = new PreorderTree<T>(treeList,
+                rootNode.isRoot() ? Collections.<Node<T>> emptyList() : rootNode.internalGetAncestors());
+        for (int i = 0; i < tree.size(); i++) {
+            JpaNode<T> node = (JpaNode<T>) tree.get(i);
+            if (i > 0) {
+                node.internalSetParent(tree.getParent(i));
+                List<Node<T>> ancestors = tree.getAncestors(i);
+                if (ancestors != null) {
+                    node.internalSetAncestors(ancestors);
                 }
             }
-
-            if (node.hasChildren() && (maxLevel == 0 || maxLevel > level)) {
-                stack.push(node);
+            if (maxLevel == 0 || node.getLevel() < maxLevel) {
+                node.internalSetChildren(tree.getChildren(i));
+                node.internalSetDescendants(tree.getDescendants(i), maxLevel == 0 ? 0 : maxLevel - node.getLevel());
             }
-
         }
     }
 
@@ -147,7 +210,7 @@ public class JpaNestedSetManager implements NestedSetManager {
         Class<T> nodeInfoClass = (Class<T>) getConfiguration().getNodeInfoClass();
         CriteriaQuery<T> cq = cb.createQuery(nodeInfoClass);
         Root<T> queryRoot = cq.from(nodeInfoClass);
-        cq.where(cb.equal(queryRoot.get(config.getLeftFieldName()).as(Number.class), 1));
+        cq.where(cb.equal(queryRoot.get(config.getLeftFieldName()), 1));
         cq.orderBy(cb.asc(queryRoot.get(config.getRootIdFieldName())));
         List<Node<T>> nodes = new ArrayList<Node<T>>();
         Query query = em.createQuery(cq);
@@ -156,7 +219,7 @@ public class JpaNestedSetManager implements NestedSetManager {
         //query.setHint(QueryHints.CACHE_USAGE, CacheUsage.ConformResultsInUnitOfWork);
         List<T> result = query.getResultList();
         for (T n : result) {
-            nodes.add(getNode(n));
+            nodes.add(loadNode(n));
         }
         return nodes;
     }
@@ -167,18 +230,29 @@ public class JpaNestedSetManager implements NestedSetManager {
     @Override
     public <T extends NodeInfo> Node<T> createRoot(T root) {
         Configuration config = getConfiguration();
-        root.setRootValue(getRoots().size() + 1);
-        int maximumRight;
-        if (config.hasManyRoots()) {
-            maximumRight = 0;
-        } else {
-            maximumRight = getMaximumRight(root.getClass());
+        Node<T> node;
+        beginForestWrite();
+        try {
+            root.setRootValue(getRoots().size() + 1);
+            long maximumRight;
+            if (config.hasManyRoots()) {
+                maximumRight = 0;
+            } else {
+                maximumRight = getMaximumRight(root.getClass());
+            }
+            Positions.setLeft(root, maximumRight + 1);
+            Positions.setRight(root, maximumRight + 2);
+            root.setLevel(0);
+            setParentId(root, null);
+            if (this.subtreeAggregates != null) {
+                this.subtreeAggregates.setValues(root, this.subtreeAggregates.getOwnValues(root));
+            }
+            getEntityManager().persist(root);
+            nodeInserted(root, null);
+            node = loadNode(root);
+        } finally {
+            endForestWrite();
         }
-        root.setLeftValue(maximumRight + 1);
-        root.setRightValue(maximumRight + 2);
-        root.setLevel(0);
-        em.persist(root);
-        Node<T> node = getNode(root);
         EventBuilder eb = createEventBuilder();
         eb.add(node, EventNode.ADD);
         eb.fireEvent();
@@ -190,26 +264,217 @@ public class JpaNestedSetManager implements NestedSetManager {
      */
     @Override
     public <T extends NodeInfo> Node<T> getNode(T nodeInfo) {
-        Key key = new Key(nodeInfo.getClass(), nodeInfo.getId());
-        if (this.nodes.containsKey(key)) {
-            @SuppressWarnings("unchecked")
-            Node<T> n = (Node<T>) this.nodes.get(key);
-            return n;
+        return knowRootVersion(super.getNode(nodeInfo));
+    }
+
+    @Override
+    <T extends NodeInfo> Node<T> loadNode(T nodeInfo) {
+        return knowRootVersion(super.loadNode(nodeInfo));
+    }
+
+    /**
+     * INTERNAL: Records the version of the tree of a node on the first lookup
+     * of the tree. The version is read in the same statement as the positions
+     * of the node, under the read lock of the tree: if the node holds other
+     * positions, its entity was stale, and it takes the positions that match
+     * the recorded version.
+     */
+    <T extends NodeInfo> Node<T> knowRootVersion(Node<T> node) {
+        Configuration config = getConfiguration();
+        int rootId = node.getRootValue();
+        if (!config.isRootVersioned() || this.rootVersions.containsKey(rootId)) {
+            return node;
+        }
+        String left = config.getLeftFieldName();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select r.").append(config.getRootVersionFieldName())
+                .append(", n.").append(left).append(", n.").append(config.getRightFieldName())
+                .append(", n.").append(config.getLevelFieldName());
+        if (config.getRootIdFieldName() != null) {
+            sb.append(", n.").append(config.getRootIdFieldName());
         }
-        Node<T> node = new JpaNode<T>(nodeInfo, this);
-        if (!node.isValid()) {
-            throw new IllegalArgumentException("The given NodeInfo instance has no position " + "in a tree and is thus not yet a node.");
+        sb.append(" from ").append(config.getEntityName()).append(" n, ")
+                .append(config.getEntityName()).append(" r")
+                .append(" where n.").append(config.getIdFieldName())
+                .append(" = ?1 and r.").append(left).append(" = 1");
+        if (config.getRootIdFieldName() != null) {
+            sb.append(" and r.").append(config.getRootIdFieldName()).append(" = n.")
+                    .append(config.getRootIdFieldName());
+        }
+        beginRead(rootId);
+        try {
+            List<?> rows = getEntityManager().createQuery(sb.toString()).setParameter(1, node.getId())
+                    .getResultList();
+            if (rows.isEmpty()) {
+                // not written yet, the version of the tree is read on its own
+                this.rootVersions.put(rootId, readRootVersion(rootId));
+                return node;
+            }
+            Object[] row = (Object[]) rows.get(0);
+            long leftValue = ((Number) row[1]).longValue();
+            long rightValue = ((Number) row[2]).longValue();
+            int actualRoot = row.length > 4 ? ((Number) row[4]).intValue() : rootId;
+            if (leftValue != node.getLongLeftValue() || rightValue != node.getLongRightValue()
+                    || actualRoot != rootId) {
+                node.setLongLeftValue(leftValue);
+                node.setLongRightValue(rightValue);
+                node.setLevel(((Number) row[3]).intValue());
+                node.setRootValue(actualRoot);
+                ((ManagedNode<?>) node).invalidate();
+            }
+            this.rootVersions.put(actualRoot, row[0] == null ? 0 : ((Number) row[0]).intValue());
+        } finally {
+            endRead(rootId);
         }
-        this.nodes.put(key, node);
         return node;
     }
+
+    @Override
+    <T extends NodeInfo> Node<T> createNode(T nodeInfo) {
+        return new JpaNode<T>(nodeInfo, this);
+    }
+
+    @Override
+    void nodeRemoved(Node<?> node) {
+        getEntityManager().detach(node.unwrap());
+    }
+
+    @Override
+    Dialect detectDialect() {
+        return Dialect.detect(getEntityManager().getEntityManagerFactory().getProperties());
+    }
+
+    /**
+     * INTERNAL: Reads the positions of the given nodes again after a rollback,
+     * so that the threads still holding them do not work with positions that
+     * were never committed. The nodes that no longer exist lose their
+     * position.
+     */
+    void restorePositions(Collection<Node<?>> nodes) {
+        Configuration config = getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n.").append(config.getIdFieldName())
+                .append(", n.").append(config.getLeftFieldName())
+                .append(", n.").append(config.getRightFieldName())
+                .append(", n.").append(config.getLevelFieldName());
+        if (config.getRootIdFieldName() != null) {
+            sb.append(", n.").append(config.getRootIdFieldName());
+        }
+        sb.append(" from ").append(config.getEntityName()).append(" n")
+                .append(" where n.").append(config.getIdFieldName()).append(" in ?1");
+        Map<Integer, Node<?>> byId = new HashMap<Integer, Node<?>>();
+        for (Node<?> node : nodes) {
+            byId.put(node.getId(), node);
+        }
+        List<Integer> ids = new ArrayList<Integer>(byId.keySet());
+        for (int from = 0; from < ids.size(); from += RESTORE_BATCH_SIZE) {
+            Query q = getEntityManager().createQuery(sb.toString());
+            q.setParameter(1, ids.subList(from, Math.min(from + RESTORE_BATCH_SIZE, ids.size())));
+            for (Object row : q.getResultList()) {
+                Object[] values = (Object[]) row;
+                Node<?> node = byId.remove(((Number) values[0]).intValue());
+                node.setLongLeftValue(((Number) values[1]).longValue());
+                node.setLongRightValue(((Number) values[2]).longValue());
+                node.setLevel(((Number) values[3]).intValue());
+                if (values.length > 4) {
+                    node.setRootValue(((Number) values[4]).intValue());
+                }
+            }
+        }
+        for (Node<?> node : byId.values()) {
+            clearPosition(node);
+        }
+    }
+
+    /**
+     * INTERNAL: Reads the version stored on the root node of the given tree.
+     *
+     * @param rootId
+     * @return the current version of the tree
+     */
+    int readRootVersion(int rootId) {
+        Configuration config = getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n.").append(config.getRootVersionFieldName())
+                .append(" from ").append(config.getEntityName()).append(" n")
+                .append(" where n.").append(config.getLeftFieldName()).append(" = 1");
+        if (config.getRootIdFieldName() != null) {
+            sb.append(" and n.").append(config.getRootIdFieldName()).append(" = ?1");
+        }
+        Query q = getEntityManager().createQuery(sb.toString());
+        if (config.getRootIdFieldName() != null) {
+            q.setParameter(1, rootId);
+        }
+        List<?> result = q.getResultList();
+        if (result.isEmpty() || result.get(0) == null) {
+            return 0;
+        }
+        return ((Number) result.get(0)).intValue();
+    }
+
+    /**
+     * INTERNAL: Checks that the given trees are still at the version known by
+     * this manager and increments their version. Must be invoked by every
+     * structural operation before it modifies the trees. The roots are
+     * processed in ascending order so that concurrent writers acquire the row
+     * locks of the root nodes in the same order.
+     *
+     * @param rootIds
+     *            The root/tree IDs of the trees about to be modified.
+     * @throws RootVersionConflictException
+     *             if a tree has been modified by another writer; the
+     *             following operations on that tree fail as well until the
+     *             manager is cleared.
+     */
+    void incrementRootVersions(int... rootIds) {
+        Configuration config = getConfiguration();
+        if (!config.isRootVersioned()) {
+            return;
+        }
+        int[] sorted = rootIds.clone();
+        Arrays.sort(sorted);
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n")
+                .append(" set n.").append(config.getRootVersionFieldName()).append(" = n.")
+                .append(config.getRootVersionFieldName()).append(" + 1")
+                .append(" where n.").append(config.getLeftFieldName()).append(" = 1")
+                .append(" and n.").append(config.getRootVersionFieldName()).append(" = ?1");
+        if (config.getRootIdFieldName() != null) {
+            sb.append(" and n.").append(config.getRootIdFieldName()).append(" = ?2");
+        }
+        int previous = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            int rootId = sorted[i];
+            if (i > 0 && rootId == previous) {
+                continue;
+            }
+            previous = rootId;
+            Integer expected = this.rootVersions.get(rootId);
+            if (expected == null) {
+                expected = readRootVersion(rootId);
+            }
+            Query q = getEntityManager().createQuery(sb.toString());
+            q.setParameter(1, expected);
+            if (config.getRootIdFieldName() != null) {
+                q.setParameter(2, rootId);
+            }
+            if (q.executeUpdate() == 0) {
+                // the stale version is kept with the stale nodes: the tree
+                // cannot be modified again until the manager is cleared
+                this.rootVersions.put(rootId, expected);
+                throw new RootVersionConflictException(rootId, expected);
+            }
+            this.rootVersions.put(rootId, expected + 1);
+        }
+    }
     
     /**
      * INTERNAL 
      */
 
-    int getMaximumRight(Class<? extends NodeInfo> clazz) {
+    long getMaximumRight(Class<? extends NodeInfo> clazz) {
         Configuration config = getConfiguration();
+        EntityManager em = getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<? extends NodeInfo> cq = cb.createQuery(clazz);
         Root<? extends NodeInfo> queryRoot = cq.from(clazz);
@@ -218,321 +483,749 @@ public class JpaNestedSetManager implements NestedSetManager {
         if (highestRows.isEmpty()) {
             return 0;
         } else {
-            return highestRows.get(0).getRightValue();
+            return Positions.getRight(highestRows.get(0));
         }
     }
 
     /**
-     * INTERNAL: Applies the root ID criteria to the given CriteriaQuery.
-     * 
-     * @param cq
-     * @param rootId
+     * INTERNAL: Sets the parent id of a node not yet persisted, if there is a
+     * parent column.
      */
-    void applyRootId(Class<?> clazz, CriteriaQuery<?> cq, int rootId) {
+    void setParentId(NodeInfo info, Integer parentId) {
+        if (getConfiguration().hasParentColumn()) {
+            ((ParentNodeInfo) info).setParentId(parentId);
+        }
+    }
+
+    /**
+     * INTERNAL: Writes the parent id of a persisted node, if there is a parent
+     * column.
+     */
+    void updateParentId(NodeInfo info, Integer parentId) {
         Configuration config = getConfiguration();
-        if (config.getRootIdFieldName() != null) {
-            Root<?> root = cq.getRoots().iterator().next();
-            CriteriaBuilder cb = em.getCriteriaBuilder();
-            Predicate p = cq.getRestriction();
-            cq.where(cb.and(p, cb.equal(root.get(config.getRootIdFieldName()), rootId)));
+        if (!config.hasParentColumn()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n")
+                .append(" set n.").append(config.getParentFieldName()).append(parentId == null ? " = NULL" : " = ?2")
+                .append(" where n.").append(config.getIdFieldName()).append(" = ?1");
+        Query q = getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, info.getId());
+        if (parentId != null) {
+            q.setParameter(2, parentId);
         }
+        q.executeUpdate();
+        ((ParentNodeInfo) info).setParentId(parentId);
     }
 
     /**
-     * INTERNAL: Updates the left values of all nodes currently known to the
-     * manager.
-     * 
-     * @param minLeft
-     *            The lower bound (inclusive) of the left values to update.
-     * @param maxLeft
-     *            The upper bound (inclusive) of the left values to update.
-     * @param delta
-     *            The delta to apply on the left values within the range.
-     */
-    void updateLeftValues(int minLeft, int maxLeft, int delta, int rootId) {
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getLeftValue() >= minLeft && (maxLeft == 0 || node.getLeftValue() <= maxLeft)) {
-                    node.setLeftValue(node.getLeftValue() + delta);
-                    ((JpaNode<?>) node).invalidate();
-                }
-            }
+     * Selects the deepest node enclosing the range of the given nodes with a
+     * single query.
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> lowestCommonAncestor(Collection<Node<T>> nodes) {
+        long[] range = enclosingRange(nodes);
+        if (range == null) {
+            return null;
+        }
+        Configuration config = getConfiguration();
+        int rootValue = (int) range[2];
+        beginRead(rootValue);
+        try {
+            @SuppressWarnings("unchecked")
+            Class<T> nodeInfoClass = (Class<T>) config.getNodeInfoClass();
+            CriteriaBuilder cb = getEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> cq = cb.createQuery(nodeInfoClass);
+            Root<T> queryRoot = cq.from(nodeInfoClass);
+            cq.where(cb.le(queryRoot.<Number> get(config.getLeftFieldName()), position(range[0])),
+                    cb.ge(queryRoot.<Number> get(config.getRightFieldName()), position(range[1])));
+            cq.orderBy(cb.desc(queryRoot.get(config.getLeftFieldName())));
+            applyRootId(nodeInfoClass, cq, rootValue);
+            List<T> result = getEntityManager().createQuery(cq).setMaxResults(1).getResultList();
+            return result.isEmpty() ? null : loadNode(result.get(0));
+        } finally {
+            endRead(rootValue);
         }
     }
 
     /**
-     * INTERNAL: Updates the right values of all nodes currently known to the
-     * manager.
-     * 
-     * @param minRight
-     *            The lower bound (inclusive) of the right values to update.
-     * @param maxRight
-     *            The upper bound (inclusive) of the right values to update.
-     * @param delta
-     *            The delta to apply on the right values within the range.
-     */
-    void updateRightValues(int minRight, int maxRight, int delta, int rootId) {
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getRightValue() >= minRight && (maxRight == 0 || node.getRightValue() <= maxRight)) {
-                    node.setRightValue(node.getRightValue() + delta);
-                    ((JpaNode<?>) node).invalidate();
-                }
-            }
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Rollup rollup(Node<T> subtreeRoot, Class<?> linkedTypeClass, String attribute,
+            int function) {
+        String sql = Rollup.sql(this, linkedTypeClass, attribute, function);
+        int rootValue = subtreeRoot.getRootValue();
+        beginRead(rootValue);
+        try {
+            return Rollup.of(executeNativeRows(sql, 0, Rollup.parameters(this, subtreeRoot, linkedTypeClass)));
+        } finally {
+            endRead(rootValue);
         }
     }
 
     /**
-     * INTERNAL: Updates the level values of all nodes currently known to the
-     * manager.
-     * 
-     * @param left
-     *            The lower bound left value.
-     * @param right
-     *            The upper bound right value.
-     * @param delta
-     *            The delta to apply on the level values of the nodes within the
-     *            range.
-     */
-    void updateLevels(int left, int right, int delta, int rootId) {
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getLeftValue() > left && node.getRightValue() < right) {
-                    node.setLevel(node.getLevel() + delta);
-                    ((JpaNode<?>) node).invalidate();
+     * Computes the shape of a tree with a few GROUP BY statements, without
+     * loading its nodes. Without a parent column the fan-outs are counted in
+     * one pass over the left values and levels, in preorder: the rows are
+     * read in pages, which costs one statement per thousand nodes, and only
+     * one count per level is held in memory. Without a root column all trees
+     * share the same left/right space, so the statistics cover all of them.
+     *
+     * @param rootValue
+     * @param largest
+     *            the number of largest subtrees to find
+     * @return the statistics, empty if there is no such tree
+     */
+    public TreeStatistics getStatistics(int rootValue, int largest) {
+        Configuration config = getConfiguration();
+        String table = config.getTableName();
+        String id = config.getColumnName(config.getIdFieldName());
+        String left = config.getColumnName(config.getLeftFieldName());
+        String right = config.getColumnName(config.getRightFieldName());
+        String level = config.getColumnName(config.getLevelFieldName());
+        String root = config.hasManyRoots() ? config.getColumnName(config.getRootIdFieldName()) : null;
+        Object[] parameters = root != null ? new Object[] { rootValue } : new Object[0];
+        String where = root != null ? " where " + root + " = ?" : "";
+        beginRead(rootValue);
+        try {
+            List<Object[]> rows = executeNativeRows("select " + level + ", count(*) from " + table + where
+                    + " group by " + level + " order by " + level, 0, parameters);
+            long[] levelCounts = new long[rows.isEmpty() ? 0 : ((Number) rows.get(rows.size() - 1)[0]).intValue() + 1];
+            for (Object[] row : rows) {
+                levelCounts[((Number) row[0]).intValue()] = ((Number) row[1]).longValue();
+            }
+
+            // a subtree of n nodes spans right - left = 2n - 1
+            String span = right + " - " + left;
+            long[] sizeHistogram = new long[0];
+            long leafCount = 0;
+            for (Object[] row : executeNativeRows("select " + span + ", count(*) from " + table + where
+                    + " group by " + span, 0, parameters)) {
+                long size = (((Number) row[0]).longValue() + 1) / 2;
+                long count = ((Number) row[1]).longValue();
+                sizeHistogram = TreeStatistics.addToHistogram(sizeHistogram, size, count);
+                if (size == 1) {
+                    leafCount = count;
+                }
+            }
+
+            int[] fanOuts;
+            long[] fanOutCounts;
+            if (config.hasParentColumn()) {
+                String parent = config.getColumnName(config.getParentFieldName());
+                rows = executeNativeRows("select c, count(*) from (select count(*) c from " + table + " where "
+                        + parent + " is not null" + (root != null ? " and " + root + " = ?" : "") + " group by "
+                        + parent + ") x group by c order by c", 0, parameters);
+                fanOuts = new int[rows.size()];
+                fanOutCounts = new long[rows.size()];
+                TreeStatistics.readFanOuts(rows, fanOuts, fanOutCounts);
+            } else {
+                // one pass in preorder, paged by left value: the parent of a
+                // node is the open node on the level above it, and the
+                // fan-out of a node is known once a node on its level or
+                // above is read, so only one count per level is kept
+                long[] nodesByFanOut = new long[0];
+                int[] openCounts = new int[levelCounts.length];
+                int depth = 0;
+                Object lastLeft = position(0);
+                do {
+                    Object[] pageParameters = root != null ? new Object[] { rootValue, lastLeft }
+                            : new Object[] { lastLeft };
+                    rows = executeNativeRows("select " + left + ", " + level + " from " + table + " where "
+                            + (root != null ? root + " = ? and " : "") + left + " > ? order by " + left,
+                            FAN_OUT_PAGE_SIZE, pageParameters);
+                    for (Object[] row : rows) {
+                        int nodeLevel = ((Number) row[1]).intValue();
+                        while (depth > nodeLevel) {
+                            nodesByFanOut = countFanOut(nodesByFanOut, openCounts[--depth]);
+                        }
+                        if (nodeLevel > 0) {
+                            openCounts[nodeLevel - 1]++;
+                        }
+                        openCounts[nodeLevel] = 0;
+                        depth = nodeLevel + 1;
+                        lastLeft = row[0];
+                    }
+                } while (rows.size() == FAN_OUT_PAGE_SIZE);
+                while (depth > 0) {
+                    nodesByFanOut = countFanOut(nodesByFanOut, openCounts[--depth]);
+                }
+                int distinct = 0;
+                for (long count : nodesByFanOut) {
+                    if (count > 0) {
+                        distinct++;
+                    }
+                }
+                fanOuts = new int[distinct];
+                fanOutCounts = new long[distinct];
+                for (int fanOut = 1, i = 0; fanOut < nodesByFanOut.length; fanOut++) {
+                    if (nodesByFanOut[fanOut] > 0) {
+                        fanOuts[i] = fanOut;
+                        fanOutCounts[i++] = nodesByFanOut[fanOut];
+                    }
                 }
             }
-        }
-    }
 
-    void removeNodes(int left, int right, int rootId) {
-        Set<Key> removed = new HashSet<Key>();
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getLeftValue() >= left && node.getRightValue() <= right) {
-                    removed.add(new Key(node.unwrap().getClass(), node.getId()));
+            int[] largestIds = new int[0];
+            long[] largestSizes = new long[0];
+            if (largest > 0) {
+                rows = executeNativeRows("select " + id + ", " + span + " from " + table + " where " + level + " > 0"
+                        + (root != null ? " and " + root + " = ?" : "") + " order by " + span + " desc", largest,
+                        parameters);
+                largestIds = new int[rows.size()];
+                largestSizes = new long[rows.size()];
+                for (int i = 0; i < largestIds.length; i++) {
+                    largestIds[i] = ((Number) rows.get(i)[0]).intValue();
+                    largestSizes[i] = (((Number) rows.get(i)[1]).longValue() + 1) / 2;
                 }
             }
+            return new TreeStatistics(rootValue, levelCounts, leafCount, fanOuts, fanOutCounts, sizeHistogram,
+                    largestIds, largestSizes);
+        } finally {
+            endRead(rootValue);
         }
-        for (Key k : removed) {
-            Node<?> n = this.nodes.remove(k);
-            n.setLeftValue(0);
-            n.setRightValue(0);
-            n.setLevel(0);
-            n.setRootValue(0);
-            this.em.detach(n.unwrap());
+    }
+
+    /**
+     * Counts an inner node with the given fan-out in a histogram indexed by
+     * fan-out, grown as needed. Leaves are not counted.
+     */
+    private static long[] countFanOut(long[] nodesByFanOut, int fanOut) {
+        if (fanOut == 0) {
+            return nodesByFanOut;
         }
+        long[] result = fanOut < nodesByFanOut.length ? nodesByFanOut : Arrays.copyOf(nodesByFanOut, fanOut + 1);
+        result[fanOut]++;
+        return result;
     }
 
-    
-    
-    protected <T extends NodeInfo> void retrieveAncestors(int entityType, Object entityId, int deep, Set<Node<T>> history) {
-        List<Node<T>> elements = find(entityType, entityId, history);
+    /**
+     * INTERNAL: Returns the materialized path of a node, or null if there is no
+     * path column.
+     */
+    String getPath(NodeInfo info) {
+        return getConfiguration().hasPathColumn() ? ((PathNodeInfo) info).getPath() : null;
+    }
 
-        if (elements.size() == 0 && history.size() == 0) {
-            throw new IllegalArgumentException("The given NodeInfo instance has no position in a tree and is thus not yet a node.");
+    /**
+     * INTERNAL: Writes the path and the closure rows of a node just persisted
+     * below the given parent, null for a root. Both need the id of the node,
+     * so generated ids that are only known on insert are flushed first.
+     */
+    void nodeInserted(NodeInfo info, NodeInfo parent) {
+        FindCache cache = this.findCache;
+        if (cache != null) {
+            cache.invalidate(new LinkedKey(info.getLinkedTypeCode(), info.getLinkedId()));
         }
+        boolean hasPath = getConfiguration().hasPathColumn();
+        if (!hasPath && this.closureTable == null) {
+            return;
+        }
+        if (info.getId() == 0) {
+            getEntityManager().flush();
+        }
+        if (hasPath) {
+            updatePath(info, childPath(parent == null ? "/" : getPath(parent), info.getId()));
+        }
+        if (this.closureTable != null) {
+            this.closureTable.insert(info.getId(), parent == null ? null : Integer.valueOf(parent.getId()));
+        }
+    }
 
-        if (deep == DEPTH_ONE) {
-            for (Node<T> e : elements) {
-                Node<T> p = e.getParent();
-                if (p != null) {
-                    history.add(p);
-                }
-            }
-        } else {
-            for (Node<T> e : elements) {
-                List<Node<T>> ancestors = e.getAncestors();
-                for (Iterator<Node<T>> it = ancestors.iterator(); it.hasNext();) {
-                    Node<T> a = it.next();
-                    if (history.contains(a)) {
-                        it.remove();
-                    } else {
-                        history.add(a);
-                    }
-                }
-
-                for (Node<T> a : ancestors) {
-                    T info = a.unwrap();
-                    retrieveAncestors(info.getLinkedTypeCode(), info.getLinkedId(), deep, history);
-                }
+    /**
+     * INTERNAL: Returns the closure table kept in sync, or null if there is
+     * none.
+     */
+    JpaClosureTable getClosureTable() {
+        return this.closureTable;
+    }
 
-            }
+    /**
+     * Fills the closure table from the left/right values of all trees, for
+     * instance after it has been created next to existing trees.
+     *
+     * @throws IllegalStateException if there is no closure table
+     */
+    public void rebuildClosureTable() {
+        if (this.closureTable == null) {
+            throw new IllegalStateException("There is no closure table for " + getConfiguration());
+        }
+        beginForestWrite();
+        try {
+            this.closureTable.rebuildAll();
+        } finally {
+            endForestWrite();
         }
     }
 
-    protected <T extends NodeInfo> void retrieveDescendants(int entityType, Object entityId, int deep, Set<Node<T>> history) {
-        List<Node<T>> elements = find(entityType, entityId, history);
+    /**
+     * INTERNAL: Returns the subtree aggregate columns kept in sync, or null if
+     * there are none.
+     */
+    JpaSubtreeAggregates getSubtreeAggregates() {
+        return this.subtreeAggregates;
+    }
 
-        if (elements.size() == 0 && history.size() == 0) {
-            throw new IllegalArgumentException("The given NodeInfo instance has no position in a tree and is thus not yet a node.");
+    /**
+     * Recomputes the subtree aggregate columns of all trees, for instance
+     * after the summed fields have changed.
+     *
+     * @return the number of nodes whose aggregates have changed
+     * @throws IllegalStateException if there are no subtree aggregate columns
+     */
+    public int rebuildSubtreeAggregates() {
+        if (this.subtreeAggregates == null) {
+            throw new IllegalStateException("There are no subtree aggregate columns for " + getConfiguration());
+        }
+        beginForestWrite();
+        try {
+            return this.subtreeAggregates.rebuildAll();
+        } finally {
+            endForestWrite();
         }
+    }
 
-        if (deep == DEPTH_ONE) {
-            for (Node<T> e : elements) {
-                history.addAll(e.getChildren());
-            }
-        } else {
-            for (Node<T> e : elements) {
-                List<Node<T>> descendants = e.getDescendants(deep);
-                for (Iterator<Node<T>> it = descendants.iterator(); it.hasNext();) {
-                    Node<T> a = it.next();
-                    if (history.contains(a)) {
-                        it.remove();
-                    } else {
-                        history.add(a);
-                    }
-                }
-                for (Node<T> a : descendants) {
-                    T info = a.unwrap();
-                    retrieveDescendants(info.getLinkedTypeCode(), info.getId(), deep, history);
+    /**
+     * INTERNAL: Writes the path of a single node. The bulk update covers rows
+     * already inserted, the setter the rows still to be inserted.
+     */
+    void updatePath(NodeInfo info, String path) {
+        Configuration config = getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n")
+                .append(" set n.").append(config.getPathFieldName()).append(" = ?2")
+                .append(" where n.").append(config.getIdFieldName()).append(" = ?1");
+        Query q = getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, info.getId());
+        q.setParameter(2, path);
+        q.executeUpdate();
+        ((PathNodeInfo) info).setPath(path);
+    }
+
+    /**
+     * INTERNAL: Replaces the prefix oldPath by newPath in the paths of the node
+     * having oldPath and of all its descendants, with a single statement, and
+     * in the nodes of this manager. Does nothing if there is no path column.
+     */
+    void movePaths(String oldPath, String newPath) {
+        Configuration config = getConfiguration();
+        if (!config.hasPathColumn() || oldPath.equals(newPath)) {
+            return;
+        }
+        String field = "n." + config.getPathFieldName();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n")
+                .append(" set ").append(field).append(" = CONCAT(?1, SUBSTRING(").append(field).append(", ?2))")
+                .append(" where ").append(field).append(" LIKE ?3");
+        Query q = getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, newPath);
+        q.setParameter(2, oldPath.length() + 1);
+        q.setParameter(3, oldPath + "%");
+        q.executeUpdate();
+        Iterator<Node<?>> it = getCachedNodes();
+        while (it.hasNext()) {
+            NodeInfo info = it.next().unwrap();
+            if (info instanceof PathNodeInfo) {
+                String path = ((PathNodeInfo) info).getPath();
+                if (path != null && path.startsWith(oldPath)) {
+                    ((PathNodeInfo) info).setPath(newPath + path.substring(oldPath.length()));
                 }
             }
         }
     }
 
-    
     /**
-     * {@inheritDoc}
+     * INTERNAL: Returns the path of the child with the given id below the
+     * given path, "/" being the path above the roots.
      */
-    @Override
-    public <T extends NodeInfo> List<Node<T>> find(Class<?> refTypeClass, Object refId) {
-        Configuration config = getConfiguration();
-        return find(config.getLinkedTypeCode(refTypeClass), refId, new HashSet<Node<T>>());
+    static String childPath(String parentPath, int id) {
+        return parentPath + id + "/";
     }
 
-    protected <T extends NodeInfo> List<Node<T>> find(int refType, Object refId, Collection<Node<T>> excludedNodes) {
+    /**
+     * INTERNAL: Returns the path of the parent of the node with the given
+     * path, "/" for a root.
+     */
+    static String parentPath(String path) {
+        return path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+    }
+
+    /**
+     * INTERNAL: Returns the ids in the given path, from the root down to the
+     * node itself.
+     */
+    static List<Integer> pathIds(String path) {
+        List<Integer> ids = new ArrayList<Integer>();
+        int start = 1;
+        int end;
+        while ((end = path.indexOf('/', start)) > 0) {
+            ids.add(Integer.valueOf(path.substring(start, end)));
+            start = end + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * INTERNAL: Applies the root ID criteria to the given CriteriaQuery.
+     * 
+     * @param cq
+     * @param rootId
+     */
+    void applyRootId(Class<?> clazz, CriteriaQuery<?> cq, int rootId) {
         Configuration config = getConfiguration();
-        EntityManager em = this.getEntityManager();
-        CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<?> cq = cb.createQuery(config.getNodeInfoClass());
-        Root<?> queryRoot = cq.from(config.getNodeInfoClass());
-        List<Predicate> predicates = new ArrayList<Predicate>();
-        predicates.add(cb.equal(queryRoot.get(config.getLinkedTypeCodeFieldName()), refType));
-        predicates.add(cb.equal(queryRoot.get(config.getLinkedIdFieldName()), refId));
-        if (excludedNodes != null) {
-            for (Node<?> n : excludedNodes) {
-                predicates.add(cb.notEqual(queryRoot.get("id"), n.unwrap().getId()));
-            }
+        if (config.getRootIdFieldName() != null) {
+            Root<?> root = cq.getRoots().iterator().next();
+            CriteriaBuilder cb = getEntityManager().getCriteriaBuilder();
+            Predicate p = cq.getRestriction();
+            cq.where(cb.and(p, cb.equal(root.get(config.getRootIdFieldName()), rootId)));
         }
-        cq = cq.where(predicates.toArray(new Predicate[predicates.size()]));
-        cq = cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
-        List<Node<T>> nodes = new ArrayList<Node<T>>();
-        for (Object n : em.createQuery(cq).getResultList()) {
-            Node<T> node = (Node<T>) getNode((T) n);
-            if (!node.isRoot()) {
-                node.getAncestors();  //fix 1156
-            }
-            nodes.add(node);
+    }
+
+    /**
+     * INTERNAL: Returns the predicate restricting the linked type code to the
+     * types accepted by the given filter: an equality for a single type, an
+     * IN-list for several and a false predicate for none.
+     */
+    Predicate linkedTypePredicate(CriteriaBuilder cb, Root<?> queryRoot, TypeFilter<?> filter) {
+        int[] codes = filter.getLinkedTypeCodes(getConfiguration());
+        Path<Object> code = queryRoot.get(getConfiguration().getLinkedTypeCodeFieldName());
+        if (codes.length == 0) {
+            return cb.disjunction();
+        } else if (codes.length == 1) {
+            return cb.equal(code, codes[0]);
         }
-        return nodes;
+        List<Integer> values = new ArrayList<Integer>(codes.length);
+        for (int c : codes) {
+            values.add(c);
+        }
+        return code.in(values);
     }
 
     /**
-     * {@inheritDoc}
+     * INTERNAL: Executes a native update statement with JDBC-style parameters
+     * and evicts the nodes from the second-level cache, which native
+     * statements bypass.
+     *
+     * @return the number of updated rows
      */
-    @Override
-    public <T extends NodeInfo> Collection<Node<T>> getAncestors(Class<?> refTypeClass, Object refId) {
-        Set<Node<T>> result = new HashSet<Node<T>>();
-        retrieveAncestors(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_INFINITE, result);
-        return result;
+    int executeNativeUpdate(String sql, Object... parameters) {
+        Query q = getEntityManager().createNativeQuery(numberParameters(sql));
+        for (int i = 0; i < parameters.length; i++) {
+            q.setParameter(i + 1, parameters[i]);
+        }
+        int count = q.executeUpdate();
+        getEntityManager().getEntityManagerFactory().getCache().evict(getConfiguration().getNodeInfoClass());
+        return count;
     }
 
     /**
-     * {@inheritDoc}
+     * INTERNAL: Executes a native query with JDBC-style parameters returning
+     * entities of the given type.
      */
-    @Override
-    public <T extends NodeInfo> Collection<Node<T>> getChildren(Class<?> refTypeClass, Object refId) {
-        Set<Node<T>> result = new HashSet<Node<T>>();
-        retrieveDescendants(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_ONE, result);
-        return result;
+    @SuppressWarnings("unchecked")
+    <T> List<T> executeNativeQuery(Class<T> type, String sql, Object... parameters) {
+        Query q = getEntityManager().createNativeQuery(numberParameters(sql), type);
+        for (int i = 0; i < parameters.length; i++) {
+            q.setParameter(i + 1, parameters[i]);
+        }
+        return q.getResultList();
     }
 
     /**
-     * {@inheritDoc}
+     * INTERNAL: Executes a native query with JDBC-style parameters returning
+     * rows of several columns.
+     *
+     * @param maxResults
+     *            the maximum number of rows, 0 for no limit
      */
-    @Override
-    public <T extends NodeInfo> Collection<Node<T>> getDescendants(Class<?> refTypeClass, Object refId) {
-        Set<Node<T>> result = new HashSet<Node<T>>();
-        retrieveDescendants(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_INFINITE, result);
-        return result;
+    @SuppressWarnings("unchecked")
+    List<Object[]> executeNativeRows(String sql, int maxResults, Object... parameters) {
+        Query q = getEntityManager().createNativeQuery(numberParameters(sql));
+        for (int i = 0; i < parameters.length; i++) {
+            q.setParameter(i + 1, parameters[i]);
+        }
+        if (maxResults > 0) {
+            q.setMaxResults(maxResults);
+        }
+        return q.getResultList();
+    }
+
+    /**
+     * INTERNAL: Executes a native count query with JDBC-style parameters.
+     */
+    long executeNativeCount(String sql, Object... parameters) {
+        Query q = getEntityManager().createNativeQuery(numberParameters(sql));
+        for (int i = 0; i < parameters.length; i++) {
+            q.setParameter(i + 1, parameters[i]);
+        }
+        return ((Number) q.getSingleResult()).longValue();
+    }
+
+    /**
+     * Rewrites the JDBC-style parameters as the positional parameters of JPA.
+     */
+    private static String numberParameters(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length() + 16);
+        int index = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            sb.append(c);
+            if (c == '?') {
+                sb.append(++index);
+            }
+        }
+        return sb.toString();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public <T extends NodeInfo> Collection<Node<T>> getParents(Class<?> refTypeClass, Object refId) {
-        Set<Node<T>> result = new HashSet<Node<T>>();
-        retrieveAncestors(getConfiguration().getLinkedTypeCode(refTypeClass), refId, DEPTH_ONE, result);
-        return result;
+    public boolean isValidTree(int rootValue) {
+        beginRead(rootValue);
+        try {
+            return checkTree(rootValue);
+        } finally {
+            endRead(rootValue);
+        }
+    }
+
+    private boolean checkTree(int rootValue) {
+        Configuration config = getConfiguration();
+        String rootIdFieldName = config.getRootIdFieldName();
+        String leftFieldName = config.getLeftFieldName();
+        String rightFieldName = config.getRightFieldName();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select min(n.").append(leftFieldName).append("), max(n.").append(rightFieldName)
+                .append("), count(n) from ").append(config.getEntityName()).append(" n");
+        if (rootIdFieldName != null) {
+            sb.append(" where n.").append(rootIdFieldName).append(" = ?1");
+        }
+        Query q = getEntityManager().createQuery(sb.toString());
+        if (rootIdFieldName != null) {
+            q.setParameter(1, rootValue);
+        }
+        Object[] bounds = (Object[]) q.getSingleResult();
+        long count = ((Number) bounds[2]).longValue();
+        if (count == 0) {
+            return true;
+        }
+        long left = ((Number) bounds[0]).longValue();
+        long right = ((Number) bounds[1]).longValue();
+        if (left != 1 || right - left + 1 != 2 * count) {
+            return false;
+        }
+
+        // every node has a left value below its right value and the level given by its ancestors
+        sb = new StringBuilder();
+        sb.append("select count(c) from ").append(config.getEntityName()).append(" c")
+                .append(" where (c.").append(leftFieldName).append(" >= c.").append(rightFieldName)
+                .append(" or c.").append(config.getLevelFieldName()).append(" <> (select count(a) from ")
+                .append(config.getEntityName()).append(" a where a.").append(leftFieldName).append(" < c.")
+                .append(leftFieldName).append(" and a.").append(rightFieldName).append(" > c.")
+                .append(rightFieldName);
+        if (rootIdFieldName != null) {
+            sb.append(" and a.").append(rootIdFieldName).append(" = c.").append(rootIdFieldName);
+        }
+        sb.append("))");
+        if (rootIdFieldName != null) {
+            sb.append(" and c.").append(rootIdFieldName).append(" = ?1");
+        }
+        q = getEntityManager().createQuery(sb.toString());
+        if (rootIdFieldName != null) {
+            q.setParameter(1, rootValue);
+        }
+        if (((Number) q.getSingleResult()).longValue() != 0) {
+            return false;
+        }
+
+        // every position between the bounds is used exactly once
+        Dialect dialect = getDialect();
+        if (dialect != null) {
+            return executeNativeCount(dialect.getPositionGapsSql(config, left, right, rootValue)) == 0;
+        }
+        sb = new StringBuilder();
+        sb.append("select n.").append(leftFieldName).append(", n.").append(rightFieldName)
+                .append(" from ").append(config.getEntityName()).append(" n");
+        if (rootIdFieldName != null) {
+            sb.append(" where n.").append(rootIdFieldName).append(" = ?1");
+        }
+        q = getEntityManager().createQuery(sb.toString());
+        if (rootIdFieldName != null) {
+            q.setParameter(1, rootValue);
+        }
+        return usesEachPositionOnce(left, right, q.getResultList());
     }
 
-    
     /**
      * {@inheritDoc}
      */
     @Override
-    public <T extends NodeInfo> List<T> unwrap(Collection<Node<T>> list) {
-        List<T> result = new ArrayList<T>();
-        for (Node<T> node : list) {
-            result.add(node.unwrap());
+    protected <T extends NodeInfo> List<Node<T>> find(int refType, Object refId, Collection<Node<T>> excludedNodes) {
+        FindCache cache = this.findCache;
+        if (cache == null) {
+            return queryLinked(refType, refId, excludedNodes);
         }
-        return result;
+        LinkedKey key = new LinkedKey(refType, String.valueOf(refId));
+        int[][] entry = cache.get(key);
+        List<Node<T>> nodes = entry == null ? null : this.<T> loadCached(entry[0]);
+        if (nodes != null) {
+            cache.recordHit();
+        } else {
+            cache.recordMiss();
+            nodes = queryLinked(refType, refId, null);
+            int[] ids = new int[nodes.size()];
+            int[] rootValues = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = nodes.get(i).getId();
+                rootValues[i] = nodes.get(i).getRootValue();
+            }
+            cache.put(key, ids, rootValues);
+        }
+        if (excludedNodes != null) {
+            nodes.removeAll(excludedNodes);
+        }
+        return nodes;
     }
 
+    /**
+     * Returns the nodes with the given ids ordered by left value, or null if
+     * one of them no longer exists. Their ancestors are loaded when needed.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends NodeInfo> List<Node<T>> loadCached(int[] ids) {
+        Class<?> nodeInfoClass = getConfiguration().getNodeInfoClass();
+        List<Node<T>> nodes = new ArrayList<Node<T>>(ids.length);
+        for (int id : ids) {
+            Node<T> node = (Node<T>) getCachedNode(nodeInfoClass, id);
+            if (node == null) {
+                T info = (T) getEntityManager().find(nodeInfoClass, id);
+                if (info == null) {
+                    return null;
+                }
+                node = loadNode(info);
+            }
+            nodes.add(node);
+        }
+        Collections.sort(nodes, new Comparator<Node<T>>() {
+            @Override
+            public int compare(Node<T> o1, Node<T> o2) {
+                return o1.getLongLeftValue() < o2.getLongLeftValue() ? -1
+                        : (o1.getLongLeftValue() == o2.getLongLeftValue() ? 0 : 1);
+            }
+        });
+        return nodes;
+    }
 
-    protected EventBuilder createEventBuilder() {
-        return new EventBuilder(getConfiguration().getId(), this.getListenerProvider());
+    /**
+     * Enables the cache of the nodes of each linked entity, which serves
+     * {@link #find(Class, Object)} and the lookups by linked entity without a
+     * query. The cache is registered with the current listener provider.
+     *
+     * @param maxEntries
+     *            the maximum number of cached entities, 0 to disable the cache
+     * @param maxWeight
+     *            the maximum number of cached node ids, 0 for no limit
+     */
+    public void setFindCache(int maxEntries, int maxWeight) {
+        FindCache previous = this.findCache;
+        if (previous != null && getListenerProvider() != null) {
+            getListenerProvider().removeListener(previous);
+        }
+        if (maxEntries == 0) {
+            this.findCache = null;
+            return;
+        }
+        FindCache cache = new FindCache(getConfiguration(), maxEntries, maxWeight);
+        if (getListenerProvider() != null) {
+            getListenerProvider().addListener(cache);
+        }
+        this.findCache = cache;
     }
 
-    public NestedSetListenerProvider getListenerProvider() {
-        return listenerProvider;
+    /**
+     * @return the cache of the nodes of each linked entity, or null if it is
+     *         disabled
+     */
+    public FindCache getFindCache() {
+        return this.findCache;
     }
 
-    public void setListenerProvider(NestedSetListenerProvider listenerProvider) {
-        this.listenerProvider = listenerProvider;
+    /**
+     * Drops the cached nodes of the linked entities in the modified tree.
+     */
+    @Override
+    void treeWritten(int rootId) {
+        super.treeWritten(rootId);
+        FindCache cache = this.findCache;
+        if (cache != null) {
+            cache.invalidateRoot(rootId);
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * Drops all the cached nodes of the linked entities.
      */
     @Override
-    public <T extends NodeInfo> List<Node<T>> getNodes() {
-        List<Node<T>> result = new ArrayList<Node<T>>();
+    void forestWritten() {
+        super.forestWritten();
+        FindCache cache = this.findCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Queries the nodes with the given linked entity, except the excluded
+     * ones, ordered by left value.
+     */
+    private <T extends NodeInfo> List<Node<T>> queryLinked(int refType, Object refId, Collection<Node<T>> excludedNodes) {
         Configuration config = getConfiguration();
+        EntityManager em = this.getEntityManager();
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<?> cq = cb.createQuery(config.getNodeInfoClass());
         Root<?> queryRoot = cq.from(config.getNodeInfoClass());
-        for (Object n : getEntityManager().createQuery(cq).getResultList()) {
-            result.add((Node<T>) getNode((NodeInfo) n));
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        predicates.add(cb.equal(queryRoot.get(config.getLinkedTypeCodeFieldName()), refType));
+        predicates.add(cb.equal(queryRoot.get(config.getLinkedIdFieldName()), refId));
+        if (excludedNodes != null) {
+            for (Node<?> n : excludedNodes) {
+                predicates.add(cb.notEqual(queryRoot.get("id"), n.unwrap().getId()));
+            }
         }
-        return result;
-    }
-    
-    
-    Iterator<Node<?>> getCachedNodes() {
-    	return nodes.values().iterator();
+        cq = cq.where(predicates.toArray(new Predicate[predicates.size()]));
+        cq = cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
+        List<Node<T>> nodes = new ArrayList<Node<T>>();
+        for (Object n : em.createQuery(cq).getResultList()) {
+            Node<T> node = (Node<T>) loadNode((T) n);
+            if (!node.isRoot()) {
+                node.getAncestors();  //fix 1156
+            }
+            nodes.add(node);
+        }
+        return nodes;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public <T extends NodeInfo, E>  List<E> lookupLinkedObjects(Collection<Node<T>>  list, TypeFilter<E> filter){
-        HashMap<String, Node<? extends NodeInfo>> refId2node = new HashMap<String, Node<? extends NodeInfo>>();
-        for (Node<? extends NodeInfo> node: list){
-            if (filter.accept(node)) {
-                refId2node.put(node.getLinkedId(), node);
-            }
-        }
-        List<E> result = new ArrayList<E>(refId2node.size());
-        for (Node<? extends NodeInfo> node : refId2node.values()){
-            result.add((E)node.lookupLinkedObject());
+    public <T extends NodeInfo> List<Node<T>> getNodes() {
+        List<Node<T>> result = new ArrayList<Node<T>>();
+        Configuration config = getConfiguration();
+        CriteriaBuilder cb = getEntityManager().getCriteriaBuilder();
+        CriteriaQuery<?> cq = cb.createQuery(config.getNodeInfoClass());
+        Root<?> queryRoot = cq.from(config.getNodeInfoClass());
+        for (Object n : getEntityManager().createQuery(cq).getResultList()) {
+            result.add((Node<T>) loadNode((NodeInfo) n));
         }
         return result;
     }
     
+    
     /**
      * {@inheritDoc}
      */
@@ -562,66 +1255,47 @@ public class JpaNestedSetManager implements NestedSetManager {
     }
     
     /**
-     * Returns to the field that is the primary key, otherwise null
-     * 
-     * @param entityClass Entity Class 
-     * @return Field Primary key field
+     * {@inheritDoc}
      */
-    public Field findPrimaryKeyField(Class<?> entityClass)  {
-        for (Field field : entityClass.getDeclaredFields()) {
-            if (field.getAnnotation(Id.class) != null) {
-                return field;
-            }
-        }
-        Class<?> parent = entityClass.getSuperclass();
-        if (parent != null) {
-            return findPrimaryKeyField(parent);
-        }
-        return null;
+    @Override
+    public <T extends NodeInfo> TreeEditSession<T> openEditSession(Node<T> node) {
+        return new JpaTreeEditSession<T>(this, node);
     }
 
     /**
-     * Convert the primary key serialized into the correct type
-     * @param primaryKeyValue primary key serialized
-     * @param entityClass the entity class that contains the primary key
-     * @return returns the primary key value converted
+     * INTERNAL: Loads the committed state of the given tree, or of all trees if
+     * rootValue is null, with a single projection query.
+     *
+     * @return the snapshots by root value
      */
-    public Object convertPrimaryKey(String primaryKeyValue, Class<?> entityClass) {
-        Field primaryKeyField = findPrimaryKeyField(entityClass);
-        Class<?> typeId = primaryKeyField.getType(); 
-        
-        if (typeId == String.class) {
-            return primaryKeyValue;
+    @Override
+    Map<Integer, TreeSnapshot> loadSnapshots(Integer rootValue) {
+        Configuration config = getConfiguration();
+        boolean manyRoots = config.hasManyRoots();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n.id, n.").append(config.getLeftFieldName())
+                .append(", n.").append(config.getRightFieldName())
+                .append(", n.").append(config.getLevelFieldName())
+                .append(", n.").append(config.getLinkedTypeCodeFieldName())
+                .append(", n.").append(config.getLinkedIdFieldName());
+        if (manyRoots) {
+            sb.append(", n.").append(config.getRootIdFieldName());
         }
-        if (typeId == int.class || typeId == Integer.class) {
-            return Integer.parseInt(primaryKeyValue);
+        sb.append(" from ").append(config.getEntityName()).append(" n");
+        if (manyRoots && rootValue != null) {
+            sb.append(" where n.").append(config.getRootIdFieldName()).append(" = ?1");
         }
-        if (typeId == long.class || typeId == Long.class){
-            return Long.parseLong(primaryKeyValue);
+        sb.append(" order by ");
+        if (manyRoots) {
+            sb.append("n.").append(config.getRootIdFieldName()).append(", ");
         }
-        throw new IllegalArgumentException("The type of the id entity is not supported");
-    }
-
-    /**
-     * Gets primary key of the entity object
-     * @param entity object
-     * @return primary key of the entity object
-     */
-    public String getPrimaryKeyValue(Object entity) {
-        Field field = findPrimaryKeyField(entity.getClass());
-        if (field != null) {
-            try {
-                field.setAccessible(true);
-                Object value = field.get(entity);
-                if (value != null) {
-                    return value.toString();
-                }
-            } catch (IllegalArgumentException e) {
-                //nothing
-            } catch (IllegalAccessException e) {
-                //nothing
-            }
+        sb.append("n.").append(config.getLeftFieldName());
+        Query q = getEntityManager().createQuery(sb.toString());
+        if (manyRoots && rootValue != null) {
+            q.setParameter(1, rootValue);
         }
-        return null;
+
+        return groupSnapshots(q.getResultList());
     }
+
 }
@@ -11,15 +11,21 @@ package org.code_factory.jpa.nestedset;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.code_factory.jpa.nestedset.dialect.Dialect;
 import org.code_factory.jpa.nestedset.events.EventBuilder;
 import org.code_factory.jpa.nestedset.events.EventNode;
 
@@ -33,7 +39,7 @@ import org.code_factory.jpa.nestedset.events.EventNode;
  * @author gabbol
  */
 
-class JpaNode<T extends NodeInfo> implements Node<T> {
+class JpaNode<T extends NodeInfo> implements ManagedNode<T> {
 	private static final int PREV_SIBLING = 1;
 	private static final int FIRST_CHILD = 2;
 	private static final int NEXT_SIBLING = 3;
@@ -43,21 +49,62 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	private T node;
 	/** The type of the wrapped instance. */
 	private final Class<T> type;
-	private CriteriaQuery<T> baseQuery;
-	private Root<T> queryRoot;
 
 	/** The JpaNestedSetManager that manages this node. */
 	private final JpaNestedSetManager nsm;
 
 	/*
 	 * "Caches" of the tree state reachable from this node. These are cleared
-	 * whenever the node is rendered invalid due to tree modifications.
+	 * whenever the node is rendered invalid due to tree modifications. They are
+	 * volatile so that a node cached by a thread-safe manager can be read by
+	 * several threads.
 	 */
-	private List<Node<T>> children;
-	private Node<T> parent;
-	private List<Node<T>> ancestors;
-	private List<Node<T>> descendants;
-	private int descendantDepth = 0;
+	private volatile List<Node<T>> children;
+	private volatile Node<T> parent;
+	private volatile List<Node<T>> ancestors;
+	private volatile Descendants<T> descendants;
+	/** The pages of children loaded so far, by the left value they follow. */
+	private volatile Map<Long, ChildrenPage<T>> childPages;
+	/** The number of children, or -1 if not known. */
+	private volatile int numberOfChildren = -1;
+	/** Whether the node has been evicted from the identity map. */
+	private volatile boolean detached;
+
+	/**
+	 * The cached descendants of a node together with the depth they were
+	 * loaded with, published as a single reference.
+	 */
+	private static final class Descendants<T extends NodeInfo> {
+		final List<Node<T>> nodes;
+		final int depth;
+
+		Descendants(List<Node<T>> nodes, int depth) {
+			this.nodes = nodes;
+			this.depth = depth;
+		}
+
+		/**
+		 * Returns true if all the descendants up to the given depth are
+		 * cached, 0 meaning all of them.
+		 */
+		boolean covers(int depth) {
+			return this.depth == 0 || depth != 0 && depth <= this.depth;
+		}
+
+		/**
+		 * Returns the cached descendants between the given levels, in
+		 * preorder, sharing the node instances.
+		 */
+		List<Node<T>> between(int minLevel, int maxLevel) {
+			List<Node<T>> result = new ArrayList<Node<T>>();
+			for (Node<T> n : this.nodes) {
+				if (n.getLevel() >= minLevel && n.getLevel() <= maxLevel) {
+					result.add(n);
+				}
+			}
+			return result;
+		}
+	}
 
 	@SuppressWarnings("unchecked")
 	public JpaNode(T node, JpaNestedSetManager nsm) {
@@ -111,10 +158,30 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		this.node.setLevel(level);
 	}
 
+	@Override
+	public long getLongLeftValue() {
+		return Positions.getLeft(this.node);
+	}
+
+	@Override
+	public long getLongRightValue() {
+		return Positions.getRight(this.node);
+	}
+
+	@Override
+	public void setLongLeftValue(long value) {
+		Positions.setLeft(this.node, value);
+	}
+
+	@Override
+	public void setLongRightValue(long value) {
+		Positions.setRight(this.node, value);
+	}
+
 	@Override
 	public String toString() {
-		return "[Left: " + node.getLeftValue() + ", Right: "
-				+ node.getRightValue() + ", Level: " + node.getLevel()
+		return "[Left: " + getLongLeftValue() + ", Right: "
+				+ getLongRightValue() + ", Level: " + node.getLevel()
 				+ ", NodeInfo: " + node.toString() + "]";
 	}
 
@@ -123,7 +190,7 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public boolean hasChildren() {
-		return (getRightValue() - getLeftValue()) > 1;
+		return (getLongRightValue() - getLongLeftValue()) > 1;
 	}
 
 	/**
@@ -143,22 +210,7 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	}
 
 	private boolean isValidNode(NodeInfo node) {
-		return node != null && node.getRightValue() > node.getLeftValue();
-	}
-
-	/*
-	 * public void setBaseQuery(CriteriaQuery<T> cq) { // The first root must be
-	 * of the wrapped node type. this.queryRoot = (Root<T>)
-	 * cq.getRoots().iterator().next(); this.baseQuery = cq; }
-	 */
-
-	/* public */private CriteriaQuery<T> getBaseQuery() {
-		if (this.baseQuery == null) {
-			this.baseQuery = nsm.getEntityManager().getCriteriaBuilder()
-					.createQuery(type);
-			this.queryRoot = this.baseQuery.from(type);
-		}
-		return this.baseQuery;
+		return node != null && Positions.getRight(node) > Positions.getLeft(node);
 	}
 
 	/**
@@ -167,7 +219,38 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 * @return The number of children of this node.
 	 */
 	public int getNumberOfChildren() {
-		return getChildren().size();
+		List<Node<T>> cachedChildren = this.children;
+		if (cachedChildren != null) {
+			return cachedChildren.size();
+		}
+		if (!hasChildren()) {
+			return 0;
+		}
+		int count = this.numberOfChildren;
+		if (count >= 0) {
+			return count;
+		}
+
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+			CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+			Root<T> queryRoot = cq.from(type);
+			cq.select(cb.count(queryRoot));
+			cq.where(cb.gt(queryRoot.<Number> get(nsm.getConfiguration().getLeftFieldName()),
+					nsm.position(getLongLeftValue())), cb.lt(
+					queryRoot.<Number> get(nsm.getConfiguration().getRightFieldName()),
+					nsm.position(getLongRightValue())), cb.equal(
+					queryRoot.get(nsm.getConfiguration().getLevelFieldName()),
+					getLevel() + 1));
+			nsm.applyRootId(this.type, cq, rootValue);
+			count = nsm.getEntityManager().createQuery(cq).getSingleResult().intValue();
+		} finally {
+			nsm.endRead(rootValue);
+		}
+		this.numberOfChildren = count;
+		return count;
 	}
 
 	/**
@@ -177,7 +260,7 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 * @return The number of descendants of this node.
 	 */
 	public int getNumberOfDescendants() {
-		return (this.getRightValue() - this.getLeftValue() - 1) / 2;
+		return (int) ((this.getLongRightValue() - this.getLongLeftValue() - 1) / 2);
 	}
 
 	/**
@@ -196,7 +279,7 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public boolean isRoot() {
-		return getLeftValue() == 1;
+		return getLongLeftValue() == 1;
 	}
 
 	/**
@@ -206,10 +289,200 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public List<Node<T>> getChildren() {
-		if (children == null) {
-			children = Collections.unmodifiableList(getDescendants(1));
+		List<Node<T>> cachedChildren = cachedChildren();
+		if (cachedChildren == null) {
+			if (nsm.getConfiguration().hasParentColumn()) {
+				int rootValue = getRootValue();
+				nsm.beginRead(rootValue);
+				try {
+					cachedChildren = Collections.unmodifiableList(loadChildren());
+				} finally {
+					nsm.endRead(rootValue);
+				}
+			} else {
+				cachedChildren = Collections.unmodifiableList(getDescendants(1));
+			}
+			this.children = cachedChildren;
+		}
+		return cachedChildren;
+	}
+
+	/**
+	 * Cut out of the cached children if any, otherwise loaded with one extra
+	 * row telling whether there are more, by the parent column or by the
+	 * level of the children and the range of this node.
+	 */
+	@Override
+	public ChildrenPage<T> getChildren(long afterLeft, int limit) {
+		ChildrenPage.checkLimit(limit);
+		List<Node<T>> cachedChildren = cachedChildren();
+		if (cachedChildren != null || !hasChildren()) {
+			return ChildrenPage.of(this, cachedChildren != null ? cachedChildren : Collections.<Node<T>> emptyList(),
+					afterLeft, limit);
+		}
+		Map<Long, ChildrenPage<T>> pages = this.childPages;
+		ChildrenPage<T> page = pages != null ? pages.get(afterLeft) : null;
+		if (page != null && page.getLimit() == limit) {
+			return page;
+		}
+
+		int totalCount = getNumberOfChildren();
+		int rootValue = getRootValue();
+		List<Node<T>> loaded = new ArrayList<Node<T>>();
+		nsm.beginRead(rootValue);
+		try {
+			Configuration config = nsm.getConfiguration();
+			CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+			CriteriaQuery<T> cq = cb.createQuery(type);
+			Root<T> queryRoot = cq.from(type);
+			Predicate after = cb.gt(queryRoot.<Number> get(config.getLeftFieldName()),
+					nsm.position(Math.max(afterLeft, getLongLeftValue())));
+			if (config.hasParentColumn()) {
+				cq.where(cb.equal(queryRoot.get(config.getParentFieldName()), getId()), after);
+			} else {
+				cq.where(after, cb.lt(queryRoot.<Number> get(config.getRightFieldName()),
+						nsm.position(getLongRightValue())),
+						cb.equal(queryRoot.get(config.getLevelFieldName()), getLevel() + 1));
+				nsm.applyRootId(this.type, cq, rootValue);
+			}
+			cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
+			for (T n : nsm.getEntityManager().createQuery(cq).setMaxResults(limit + 1).getResultList()) {
+				loaded.add(nsm.loadNode(n));
+			}
+		} finally {
+			nsm.endRead(rootValue);
+		}
+		page = ChildrenPage.ofLoaded(this, loaded, afterLeft, limit, totalCount);
+
+		// copied on write, as the pages may be read by other threads
+		Map<Long, ChildrenPage<T>> newPages = pages != null ? new HashMap<Long, ChildrenPage<T>>(pages)
+				: new HashMap<Long, ChildrenPage<T>>();
+		newPages.put(afterLeft, page);
+		this.childPages = newPages;
+		return page;
+	}
+
+	/**
+	 * Filtered in memory if the children are cached, otherwise by the query.
+	 */
+	@Override
+	public List<Node<T>> getChildren(TypeFilter<?> filter) {
+		if (filter == null) {
+			return getChildren();
+		}
+		List<Node<T>> cachedChildren = cachedChildren();
+		if (cachedChildren != null) {
+			return NodeLists.filter(cachedChildren, filter);
+		}
+		if (!hasChildren()) {
+			return new ArrayList<Node<T>>();
+		}
+		return loadFiltered(filter, false, getLevel() + 1, getLevel() + 1);
+	}
+
+	/**
+	 * Filtered in memory if the descendants are cached, otherwise by the
+	 * query.
+	 */
+	@Override
+	public List<Node<T>> getDescendants(int depth, TypeFilter<?> filter) {
+		if (filter == null) {
+			return getDescendants(depth);
+		}
+		Descendants<T> cached = this.descendants;
+		if (cached != null && cached.covers(depth)) {
+			return NodeLists.filter(getDescendants(depth), filter);
+		}
+		if (!hasChildren()) {
+			return new ArrayList<Node<T>>();
+		}
+		return loadFiltered(filter, false, getLevel() + 1, depth > 0 ? getLevel() + depth : 0);
+	}
+
+	/**
+	 * Filtered in memory if the ancestors are cached, otherwise by the query.
+	 */
+	@Override
+	public List<Node<T>> getAncestors(TypeFilter<?> filter) {
+		if (filter == null) {
+			return getAncestors();
+		}
+		List<Node<T>> cachedAncestors = this.ancestors;
+		if (cachedAncestors != null) {
+			return NodeLists.filter(cachedAncestors, filter);
+		}
+		if (isRoot()) {
+			return new ArrayList<Node<T>>();
+		}
+		return loadFiltered(filter, true, 0, 0);
+	}
+
+	/**
+	 * Loads the ancestors, or the descendants between the given levels, that
+	 * the filter accepts, in tree order. A maximum level of 0 means no bound.
+	 */
+	private List<Node<T>> loadFiltered(TypeFilter<?> filter, boolean ancestors, int minLevel, int maxLevel) {
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			Configuration config = nsm.getConfiguration();
+			CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+			CriteriaQuery<T> cq = cb.createQuery(type);
+			Root<T> queryRoot = cq.from(type);
+			Path<Number> left = queryRoot.<Number> get(config.getLeftFieldName());
+			Path<Number> right = queryRoot.<Number> get(config.getRightFieldName());
+			Path<Integer> level = queryRoot.<Integer> get(config.getLevelFieldName());
+			Predicate wherePredicate = ancestors
+					? cb.and(cb.lt(left, nsm.position(getLongLeftValue())), cb.gt(right, nsm.position(getLongRightValue())))
+					: cb.and(cb.gt(left, nsm.position(getLongLeftValue())), cb.lt(right, nsm.position(getLongRightValue())));
+			wherePredicate = cb.and(wherePredicate, nsm.linkedTypePredicate(cb, queryRoot, filter));
+			if (minLevel > 0) {
+				wherePredicate = cb.and(wherePredicate, cb.ge(level, minLevel));
+			}
+			if (maxLevel > 0) {
+				wherePredicate = cb.and(wherePredicate, cb.le(level, maxLevel));
+			}
+			cq.where(wherePredicate);
+			cq.orderBy(cb.asc(left));
+			nsm.applyRootId(this.type, cq, rootValue);
+			return wrap(nsm.getEntityManager().createQuery(cq).getResultList());
+		} finally {
+			nsm.endRead(rootValue);
 		}
-		return children;
+	}
+
+	/**
+	 * Returns the cached children, derived from the cached descendants if
+	 * needed, or null if they are not known.
+	 */
+	private List<Node<T>> cachedChildren() {
+		List<Node<T>> cachedChildren = this.children;
+		if (cachedChildren == null) {
+			Descendants<T> cached = this.descendants;
+			if (cached != null && cached.covers(1)) {
+				int level = getLevel() + 1;
+				cachedChildren = Collections.unmodifiableList(cached.depth == 1 ? cached.nodes : cached.between(level, level));
+				this.children = cachedChildren;
+			}
+		}
+		return cachedChildren;
+	}
+
+	/**
+	 * Loads the children by the parent column.
+	 */
+	private List<Node<T>> loadChildren() {
+		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+		CriteriaQuery<T> cq = cb.createQuery(type);
+		Root<T> queryRoot = cq.from(type);
+		cq.where(cb.equal(queryRoot.get(nsm.getConfiguration().getParentFieldName()), getId()));
+		cq.orderBy(cb.asc(queryRoot.get(nsm.getConfiguration().getLeftFieldName())));
+
+		List<Node<T>> nodes = new ArrayList<Node<T>>();
+		for (T n : nsm.getEntityManager().createQuery(cq).getResultList()) {
+			nodes.add(nsm.loadNode(n));
+		}
+		return nodes;
 	}
 
 	/**
@@ -220,25 +493,53 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		if (isRoot()) {
 			return null;
 		}
-		if (this.parent != null) {
-			return this.parent;
+		Node<T> cachedParent = this.parent;
+		if (cachedParent != null) {
+			return cachedParent;
 		}
 
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			this.parent = loadParent();
+		} finally {
+			nsm.endRead(rootValue);
+		}
+		return this.parent;
+	}
+
+	private Node<T> loadParent() {
+		if (nsm.getConfiguration().hasParentColumn()) {
+			Integer parentId = ((ParentNodeInfo) this.node).getParentId();
+			if (parentId != null) {
+				return nsm.loadNode(nsm.getEntityManager().find(type, parentId));
+			}
+		}
+		String path = nsm.getPath(this.node);
+		if (path != null) {
+			List<Integer> ids = JpaNestedSetManager.pathIds(path);
+			return nsm.loadNode(nsm.getEntityManager().find(type, ids.get(ids.size() - 2)));
+		}
+		JpaClosureTable closureTable = nsm.getClosureTable();
+		if (closureTable != null) {
+			return nsm.loadNode(nsm.executeNativeQuery(type, closureTable.getAncestorsSql(), getId(), 1).get(0));
+		}
 		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-		CriteriaQuery<T> cq = getBaseQuery();
-		cq.where(cb.lt(queryRoot.get(nsm.getConfiguration().getLeftFieldName())
-				.as(Number.class), getLeftValue()), cb.gt(
-				queryRoot.get(nsm.getConfiguration().getRightFieldName()).as(
-						Number.class), getRightValue()));
+		CriteriaQuery<T> cq = cb.createQuery(type);
+		Root<T> queryRoot = cq.from(type);
+		cq.where(cb.lt(queryRoot.<Number> get(nsm.getConfiguration().getLeftFieldName()),
+				nsm.position(getLongLeftValue())), cb.gt(
+				queryRoot.<Number> get(nsm.getConfiguration().getRightFieldName()),
+				nsm.position(getLongRightValue())));
 		cq.orderBy(cb.asc(queryRoot.get(nsm.getConfiguration()
 				.getRightFieldName())));
 		nsm.applyRootId(this.type, cq, getRootValue());
 
-		List<T> result = nsm.getEntityManager().createQuery(cq).getResultList();
-
-		this.parent = nsm.getNode(result.get(0));
+		// the closest ancestor is the first one, no need to load the others
+		List<T> result = nsm.getEntityManager().createQuery(cq)
+				.setMaxResults(1).getResultList();
 
-		return this.parent;
+		return nsm.loadNode(result.get(0));
 	}
 
 	/**
@@ -250,30 +551,101 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Shallower depths are derived from the cached descendants, and only the
+	 * levels below them are loaded for deeper ones.
 	 */
 	@Override
 	public List<Node<T>> getDescendants(int depth) {
-		if (this.descendants != null
-				&& (depth == 0 && this.descendantDepth == 0 || depth <= this.descendantDepth)) {
-			return this.descendants;
+		Descendants<T> cached = this.descendants;
+		if (cached != null && cached.covers(depth)) {
+			return depth == cached.depth ? cached.nodes : cached.between(0, getLevel() + depth);
 		}
 
-		// TODO: Fill this.children here also?
+		int rootValue = getRootValue();
+		List<Node<T>> loaded;
+		nsm.beginRead(rootValue);
+		try {
+			if (cached == null) {
+				loaded = loadDescendants(0, depth);
+			} else {
+				loaded = merge(cached.nodes, loadDescendants(cached.depth, depth));
+			}
+		} finally {
+			nsm.endRead(rootValue);
+		}
+		// share one preorder list with the relatives of all the loaded nodes
+		List<Node<T>> subtree = new ArrayList<Node<T>>(loaded.size() + 1);
+		subtree.add(this);
+		subtree.addAll(loaded);
+		this.descendants = null;
+		nsm.buildTree(subtree, depth > 0 ? getLevel() + depth : 0);
+		return Collections.unmodifiableList(subtree.subList(1, subtree.size()));
+	}
+
+	/**
+	 * Merges two lists of nodes in preorder.
+	 */
+	private static <T extends NodeInfo> List<Node<T>> merge(List<Node<T>> first, List<Node<T>> second) {
+		List<Node<T>> merged = new ArrayList<Node<T>>(first.size() + second.size());
+		int i = 0;
+		int j = 0;
+		while (i < first.size() && j < second.size()) {
+			if (first.get(i).getLongLeftValue() < second.get(j).getLongLeftValue()) {
+				merged.add(first.get(i++));
+			} else {
+				merged.add(second.get(j++));
+			}
+		}
+		merged.addAll(first.subList(i, first.size()));
+		merged.addAll(second.subList(j, second.size()));
+		return merged;
+	}
+
+	/**
+	 * Loads the descendants deeper than fromDepth and up to depth, 0 meaning
+	 * no bound.
+	 */
+	private List<Node<T>> loadDescendants(int fromDepth, int depth) {
+		JpaClosureTable closureTable = nsm.getClosureTable();
+		if (closureTable != null) {
+			List<T> result = depth > 0
+					? nsm.executeNativeQuery(type, closureTable.getDescendantsSql(true), getId(), fromDepth, depth)
+					: nsm.executeNativeQuery(type, closureTable.getDescendantsSql(false), getId(), fromDepth);
+			return wrap(result);
+		}
 		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-		CriteriaQuery<T> cq = getBaseQuery();
-		Predicate wherePredicate = cb.and(cb.gt(
-				queryRoot.get(nsm.getConfiguration().getLeftFieldName()).as(
-						Number.class), getLeftValue()), cb.lt(
-				queryRoot.get(nsm.getConfiguration().getRightFieldName()).as(
-						Number.class), getRightValue()));
+		CriteriaQuery<T> cq = cb.createQuery(type);
+		Root<T> queryRoot = cq.from(type);
+		Predicate wherePredicate;
+		String path = nsm.getPath(this.node);
+		if (path != null) {
+			// a prefix match can use an index on the path column
+			wherePredicate = cb.and(cb.like(
+					queryRoot.<String> get(nsm.getConfiguration().getPathFieldName()),
+					path + "%"), cb.notEqual(
+					queryRoot.get(nsm.getConfiguration().getIdFieldName()),
+					getId()));
+		} else {
+			wherePredicate = cb.and(cb.gt(
+					queryRoot.<Number> get(nsm.getConfiguration().getLeftFieldName()),
+					nsm.position(getLongLeftValue())), cb.lt(
+					queryRoot.<Number> get(nsm.getConfiguration().getRightFieldName()),
+					nsm.position(getLongRightValue())));
+		}
 
+		if (fromDepth > 0) {
+			wherePredicate = cb.and(
+					wherePredicate,
+					cb.gt(queryRoot.<Integer> get(
+							nsm.getConfiguration().getLevelFieldName()),
+							getLevel() + fromDepth));
+		}
 		if (depth > 0) {
 			wherePredicate = cb.and(
 					wherePredicate,
-					cb.le(queryRoot.get(
-							nsm.getConfiguration().getLevelFieldName()).as(
-							Number.class), getLevel() + depth));
+					cb.le(queryRoot.<Integer> get(
+							nsm.getConfiguration().getLevelFieldName()),
+							getLevel() + depth));
 		}
 		cq.where(wherePredicate);
 		cq.orderBy(cb.asc(queryRoot.get(nsm.getConfiguration()
@@ -283,18 +655,18 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 
 		List<Node<T>> nodes = new ArrayList<Node<T>>();
 		for (T n : nsm.getEntityManager().createQuery(cq).getResultList()) {
-			nodes.add(nsm.getNode(n));
+			nodes.add(nsm.loadNode(n));
 		}
 
-		this.descendants = nodes;
-		this.descendantDepth = depth;
-
-		/*
-		 * if (this.descendants.size() > 0) {
-		 * this.nsm.buildTree(this.descendants, depth); }
-		 */
+		return nodes;
+	}
 
-		return this.descendants;
+	private List<Node<T>> wrap(List<T> infos) {
+		List<Node<T>> nodes = new ArrayList<Node<T>>(infos.size());
+		for (T n : infos) {
+			nodes.add(nsm.loadNode(n));
+		}
+		return nodes;
 	}
 
 	/**
@@ -306,18 +678,27 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 			throw new IllegalArgumentException(
 					"Cannot add node as child of itself.");
 		}
-		int newLeft = getRightValue();
-		int newRight = getRightValue() + 1;
-		int newRoot = getRootValue();
-		shiftRLValues(newLeft, 0, 2, newRoot);
-		child.setLevel(getLevel() + 1);
-		child.setLeftValue(newLeft);
-		child.setRightValue(newRight);
-		child.setRootValue(newRoot);
-		// nsm.getEntityManager().refresh(this.node); // the current node is
-		// changed in the shift method via sql code. It needs to be refreshed.
-		nsm.getEntityManager().persist(child);
-		Node<T> node = this.nsm.getNode(child);
+		Node<T> node;
+		int newRoot = nsm.beginWrite(this);
+		try {
+			nsm.incrementRootVersions(newRoot);
+			long newLeft = getLongRightValue();
+			long newRight = getLongRightValue() + 1;
+			addAggregates(child);
+			shiftRLValues(newLeft, 0, 2, newRoot);
+			child.setLevel(getLevel() + 1);
+			Positions.setLeft(child, newLeft);
+			Positions.setRight(child, newRight);
+			child.setRootValue(newRoot);
+			nsm.setParentId(child, getId());
+			// nsm.getEntityManager().refresh(this.node); // the current node is
+			// changed in the shift method via sql code. It needs to be refreshed.
+			nsm.getEntityManager().persist(child);
+			nsm.nodeInserted(child, this.node);
+			node = this.nsm.loadNode(child);
+		} finally {
+			nsm.endWrite(newRoot);
+		}
 		EventBuilder eb = nsm.createEventBuilder();
 		eb.add(node, EventNode.ADD);
 		eb.fireEvent();
@@ -421,13 +802,24 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public void delete() {
-
-		// TODO: Remove deleted nodes that are in-memory from
-		// JpaNestedSetManager.
 		EventBuilder eb = nsm.createEventBuilder();
-		eb.add(this, EventNode.DELETE);
+		int oldRoot = nsm.beginWrite(this);
+		try {
+			nsm.incrementRootVersions(oldRoot);
+			eb.add(this, EventNode.DELETE);
+			removeAggregates();
+			deleteSubtree(oldRoot);
+		} finally {
+			nsm.endWrite(oldRoot);
+		}
+		eb.fireEvent();
+	}
 
-		int oldRoot = getRootValue();
+	private void deleteSubtree(int oldRoot) {
+		JpaClosureTable closureTable = nsm.getClosureTable();
+		if (closureTable != null) {
+			closureTable.deleteSubtree(getLongLeftValue(), getLongRightValue(), oldRoot);
+		}
 		Configuration cfg = nsm.getConfiguration();
 		String rootIdFieldName = cfg.getRootIdFieldName();
 		String leftFieldName = cfg.getLeftFieldName();
@@ -444,25 +836,26 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		}
 
 		Query q = nsm.getEntityManager().createQuery(sb.toString());
-		q.setParameter(1, getLeftValue());
-		q.setParameter(2, getRightValue());
+		q.setParameter(1, nsm.position(getLongLeftValue()));
+		q.setParameter(2, nsm.position(getLongRightValue()));
 		if (rootIdFieldName != null) {
 			q.setParameter(3, oldRoot);
 		}
 		q.executeUpdate();
 
+		// Remove the deleted nodes while the map still holds their positions
+		nsm.removeNodes(getLongLeftValue(), getLongRightValue(), oldRoot);
+
 		// Close gap in tree
-		int first = getRightValue() + 1;
-		int delta = getLeftValue() - getRightValue() - 1;
+		long first = getLongRightValue() + 1;
+		long delta = getLongLeftValue() - getLongRightValue() - 1;
 		shiftRLValues(first, 0, delta, oldRoot);
-		nsm.removeNodes(getLeftValue(), getRightValue(), oldRoot);
-		eb.fireEvent();
 	}
 
 	private void makeRoot(int type, Node<T> dest) {
 
-		int delta = getLeftValue() - getRightValue() - 1;
-		int first = getRightValue() + 1;
+		long delta = getLongLeftValue() - getLongRightValue() - 1;
+		long first = getLongRightValue() + 1;
 		int shiftRLTree = 0;
 		int rootValue = 0;
 		int newRootValue = 0;
@@ -525,9 +918,9 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 				.append(" and n.").append(rootIdFieldName).append("= ?3");
 
 		q = nsm.getEntityManager().createQuery(sb.toString());
-		q.setParameter(1, getLeftValue());
-		q.setParameter(2, getRightValue());
-		q.setParameter(4, -(getLeftValue() - 1));
+		q.setParameter(1, nsm.position(getLongLeftValue()));
+		q.setParameter(2, nsm.position(getLongRightValue()));
+		q.setParameter(4, nsm.position(-(getLongLeftValue() - 1)));
 		q.setParameter(3, rootValue);
 		q.setParameter(5, newRootValue);
 		q.setParameter(6, -getLevel());
@@ -537,7 +930,7 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 
 		nsm.getEntityManager().flush();
 		nsm.getEntityManager().clear();
-		nsm.clear();
+		nsm.treesMoved(getRootValue(), newRootValue, true);
 
 	}
 
@@ -556,8 +949,18 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 * @param rootId
 	 *            The root/tree ID of the nodes to shift.
 	 */
-	private void shiftRLValues(int first, int last, int delta, int rootId) {
+	private void shiftRLValues(long first, long last, long delta, int rootId) {
 		Configuration cfg = nsm.getConfiguration();
+		Dialect dialect = nsm.getDialect();
+		if (dialect != null) {
+			// one native statement updates both columns
+			nsm.executeNativeUpdate(dialect.getShiftSql(cfg, last > 0),
+					dialect.getShiftParameters(cfg, first, last, delta, rootId));
+			this.nsm.updateLeftValues(first, last, delta, rootId);
+			this.nsm.updateRightValues(first, last, delta, rootId);
+			return;
+		}
+
 		String rootIdFieldName = cfg.getRootIdFieldName();
 		String leftFieldName = cfg.getLeftFieldName();
 		String rightFieldName = cfg.getRightFieldName();
@@ -579,10 +982,10 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		}
 
 		Query qLeft = nsm.getEntityManager().createQuery(sbLeft.toString());
-		qLeft.setParameter(1, delta);
-		qLeft.setParameter(2, first);
+		qLeft.setParameter(1, nsm.position(delta));
+		qLeft.setParameter(2, nsm.position(first));
 		if (last > 0) {
-			qLeft.setParameter(3, last);
+			qLeft.setParameter(3, nsm.position(last));
 		}
 		if (rootIdFieldName != null) {
 			qLeft.setParameter(4, rootId);
@@ -606,10 +1009,10 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		}
 
 		Query qRight = nsm.getEntityManager().createQuery(sbRight.toString());
-		qRight.setParameter(1, delta);
-		qRight.setParameter(2, first);
+		qRight.setParameter(1, nsm.position(delta));
+		qRight.setParameter(2, nsm.position(first));
 		if (last > 0) {
-			qRight.setParameter(3, last);
+			qRight.setParameter(3, nsm.position(last));
 		}
 		if (rootIdFieldName != null) {
 			qRight.setParameter(4, rootId); // NO SONAR
@@ -632,28 +1035,98 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 * @return TRUE if the node is a leaf, FALSE otherwise.
 	 */
 	public boolean isLeaf() {
-		return (getRightValue() - getLeftValue()) == 1;
+		return (getLongRightValue() - getLongLeftValue()) == 1;
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Filtered in memory when all descendants are cached, otherwise the leaf
+	 * test right = left + 1 is part of the query.
 	 */
 	@Override
-	public Node<T> getFirstChild() {
-		if (this.children != null) {
-			return this.children.get(0);
+	public List<Node<T>> getLeaves() {
+		Descendants<T> cached = this.descendants;
+		if (cached != null && cached.depth == 0) {
+			List<Node<T>> leaves = new ArrayList<Node<T>>();
+			for (Node<T> n : cached.nodes) {
+				if (!n.hasChildren()) {
+					leaves.add(n);
+				}
+			}
+			return leaves;
+		}
+		if (!hasChildren()) {
+			return new ArrayList<Node<T>>();
 		}
 
-		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-		CriteriaQuery<T> cq = getBaseQuery();
-		cq.where(cb.equal(
-				queryRoot.get(nsm.getConfiguration().getLeftFieldName()),
-				getLeftValue() + 1));
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			return loadLeaves(getLongLeftValue(), null, 0);
+		} finally {
+			nsm.endRead(rootValue);
+		}
+	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<Node<T>> iterateLeaves(final TypeFilter<?> filter, int pageSize) {
+		return new KeysetIterator<T>(getLongLeftValue(), pageSize) {
+			@Override
+			protected List<Node<T>> loadPage(long afterLeft, int maxResults) {
+				int rootValue = getRootValue();
+				nsm.beginRead(rootValue);
+				try {
+					return loadLeaves(afterLeft, filter, maxResults);
+				} finally {
+					nsm.endRead(rootValue);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Loads the leaves of this subtree after the given left value, in tree
+	 * order, at most maxResults of them if positive.
+	 */
+	private List<Node<T>> loadLeaves(long afterLeft, TypeFilter<?> filter, int maxResults) {
+		Configuration config = nsm.getConfiguration();
+		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+		CriteriaQuery<T> cq = cb.createQuery(type);
+		Root<T> queryRoot = cq.from(type);
+		Path<Number> left = queryRoot.<Number> get(config.getLeftFieldName());
+		Path<Number> right = queryRoot.<Number> get(config.getRightFieldName());
+		Predicate wherePredicate = cb.and(cb.gt(left, nsm.position(afterLeft)),
+				cb.lt(right, nsm.position(getLongRightValue())),
+				cb.equal(right, cb.sum(left, nsm.position(1))));
+		if (filter != null) {
+			wherePredicate = cb.and(wherePredicate, nsm.linkedTypePredicate(cb, queryRoot, filter));
+		}
+		cq.where(wherePredicate);
+		cq.orderBy(cb.asc(left));
 		nsm.applyRootId(this.type, cq, getRootValue());
 
-		return nsm.getNode(nsm.getEntityManager().createQuery(cq)
-				.getSingleResult());
+		TypedQuery<T> q = nsm.getEntityManager().createQuery(cq);
+		if (maxResults > 0) {
+			q.setMaxResults(maxResults);
+		}
+		return wrap(q.getResultList());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Node<T> getFirstChild() {
+		if (!hasChildren()) {
+			return null;
+		}
+		List<Node<T>> cachedChildren = cachedChildren();
+		if (cachedChildren != null) {
+			return cachedChildren.get(0);
+		}
+		return findAt(nsm.getConfiguration().getLeftFieldName(), getLongLeftValue() + 1);
 	}
 
 	/**
@@ -661,20 +1134,124 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public Node<T> getLastChild() {
-		if (this.children != null) {
-			return this.children.get(this.children.size() - 1);
+		if (!hasChildren()) {
+			return null;
 		}
+		List<Node<T>> cachedChildren = cachedChildren();
+		if (cachedChildren != null) {
+			return cachedChildren.get(cachedChildren.size() - 1);
+		}
+		return findAt(nsm.getConfiguration().getRightFieldName(), getLongRightValue() - 1);
+	}
 
-		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-		CriteriaQuery<T> cq = getBaseQuery();
-		cq.where(cb.equal(
-				queryRoot.get(nsm.getConfiguration().getRightFieldName()),
-				getRightValue() - 1));
+	/**
+	 * Answered from the cached children if any, otherwise by a query skipping
+	 * the first n children.
+	 */
+	@Override
+	public Node<T> getChildAt(int n) {
+		if (n < 0 || !hasChildren()) {
+			return null;
+		}
+		List<Node<T>> cachedChildren = cachedChildren();
+		if (cachedChildren != null) {
+			return NodeLists.get(cachedChildren, n);
+		}
 
-		nsm.applyRootId(this.type, cq, getRootValue());
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+			CriteriaQuery<T> cq = cb.createQuery(type);
+			Root<T> queryRoot = cq.from(type);
+			cq.where(cb.gt(queryRoot.<Number> get(nsm.getConfiguration().getLeftFieldName()),
+					nsm.position(getLongLeftValue())), cb.lt(
+					queryRoot.<Number> get(nsm.getConfiguration().getRightFieldName()),
+					nsm.position(getLongRightValue())), cb.equal(
+					queryRoot.get(nsm.getConfiguration().getLevelFieldName()),
+					getLevel() + 1));
+			cq.orderBy(cb.asc(queryRoot.get(nsm.getConfiguration().getLeftFieldName())));
+			nsm.applyRootId(this.type, cq, rootValue);
+
+			List<T> result = nsm.getEntityManager().createQuery(cq)
+					.setFirstResult(n).setMaxResults(1).getResultList();
+			return result.isEmpty() ? null : nsm.loadNode(result.get(0));
+		} finally {
+			nsm.endRead(rootValue);
+		}
+	}
+
+	/**
+	 * The next sibling is the row whose left value follows the right value of
+	 * this node.
+	 */
+	@Override
+	public Node<T> getNextSibling() {
+		if (isRoot()) {
+			return null;
+		}
+		List<Node<T>> siblings = cachedSiblings();
+		if (siblings != null) {
+			return NodeLists.neighbour(siblings, this, 1);
+		}
+		return findAt(nsm.getConfiguration().getLeftFieldName(), getLongRightValue() + 1);
+	}
+
+	/**
+	 * The previous sibling is the row whose right value precedes the left
+	 * value of this node.
+	 */
+	@Override
+	public Node<T> getPrevSibling() {
+		if (isRoot()) {
+			return null;
+		}
+		List<Node<T>> siblings = cachedSiblings();
+		if (siblings != null) {
+			return NodeLists.neighbour(siblings, this, -1);
+		}
+		return findAt(nsm.getConfiguration().getRightFieldName(), getLongLeftValue() - 1);
+	}
 
-		return nsm.getNode(nsm.getEntityManager().createQuery(cq)
-				.getSingleResult());
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Node<T>> getSiblings() {
+		if (isRoot()) {
+			return Collections.emptyList();
+		}
+		return NodeLists.without(getParent().getChildren(), this);
+	}
+
+	/**
+	 * Returns the cached children of the cached parent, or null.
+	 */
+	private List<Node<T>> cachedSiblings() {
+		Node<T> cachedParent = this.parent;
+		return cachedParent instanceof JpaNode ? ((JpaNode<T>) cachedParent).cachedChildren() : null;
+	}
+
+	/**
+	 * Returns the node of this tree having the given left or right value, or
+	 * null if there is none.
+	 */
+	private Node<T> findAt(String positionFieldName, long position) {
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+			CriteriaQuery<T> cq = cb.createQuery(type);
+			Root<T> queryRoot = cq.from(type);
+			cq.where(cb.equal(queryRoot.get(positionFieldName), nsm.position(position)));
+
+			nsm.applyRootId(this.type, cq, rootValue);
+
+			List<T> result = nsm.getEntityManager().createQuery(cq).setMaxResults(1).getResultList();
+			return result.isEmpty() ? null : nsm.loadNode(result.get(0));
+		} finally {
+			nsm.endRead(rootValue);
+		}
 	}
 
 	/**
@@ -682,17 +1259,76 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public List<Node<T>> getAncestors() {
-		if (this.ancestors != null) {
-			return this.ancestors;
+		List<Node<T>> cachedAncestors = this.ancestors;
+		if (cachedAncestors != null) {
+			return cachedAncestors;
+		}
+
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			cachedAncestors = loadAncestors(getLevel());
+		} finally {
+			nsm.endRead(rootValue);
 		}
+		this.ancestors = cachedAncestors;
+		return cachedAncestors;
+	}
+
+	/**
+	 * Cached ancestors are cut down in memory, otherwise the query is bounded
+	 * by level.
+	 */
+	@Override
+	public List<Node<T>> getAncestors(int depth) {
+		List<Node<T>> cachedAncestors = this.ancestors;
+		if (depth <= 0 || depth >= getLevel() || cachedAncestors != null) {
+			return NodeLists.nearest(getAncestors(), depth);
+		}
+
+		int rootValue = getRootValue();
+		nsm.beginRead(rootValue);
+		try {
+			return loadAncestors(depth);
+		} finally {
+			nsm.endRead(rootValue);
+		}
+	}
 
+	/**
+	 * Loads the ancestors up to the given depth, ordered from the root down.
+	 */
+	private List<Node<T>> loadAncestors(int depth) {
+		int minLevel = getLevel() - depth;
+		JpaClosureTable closureTable = nsm.getClosureTable();
+		if (closureTable != null) {
+			return wrap(nsm.executeNativeQuery(type, closureTable.getAncestorsSql(), getId(), depth));
+		}
 		CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-		CriteriaQuery<T> cq = getBaseQuery();
-		Predicate wherePredicate = cb.and(cb.lt(
-				queryRoot.get(nsm.getConfiguration().getLeftFieldName()).as(
-						Number.class), getLeftValue()), cb.gt(
-				queryRoot.get(nsm.getConfiguration().getRightFieldName()).as(
-						Number.class), getRightValue()));
+		CriteriaQuery<T> cq = cb.createQuery(type);
+		Root<T> queryRoot = cq.from(type);
+		Predicate wherePredicate;
+		String path = nsm.getPath(this.node);
+		if (path != null) {
+			// the path names the ancestors, no range query is needed
+			List<Integer> ids = JpaNestedSetManager.pathIds(path);
+			ids = ids.subList(minLevel, ids.size() - 1);
+			if (ids.isEmpty()) {
+				return new ArrayList<Node<T>>();
+			}
+			wherePredicate = queryRoot.get(nsm.getConfiguration().getIdFieldName()).in(ids);
+		} else {
+			wherePredicate = cb.and(cb.lt(
+					queryRoot.<Number> get(nsm.getConfiguration().getLeftFieldName()),
+					nsm.position(getLongLeftValue())), cb.gt(
+					queryRoot.<Number> get(nsm.getConfiguration().getRightFieldName()),
+					nsm.position(getLongRightValue())));
+			if (minLevel > 0) {
+				wherePredicate = cb.and(wherePredicate, cb.ge(
+						queryRoot.<Integer> get(nsm.getConfiguration().getLevelFieldName()),
+						minLevel));
+			}
+		}
 
 		cq.where(wherePredicate);
 		cq.orderBy(cb.asc(queryRoot.get(nsm.getConfiguration()
@@ -703,12 +1339,10 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		List<Node<T>> nodes = new ArrayList<Node<T>>();
 
 		for (T n : nsm.getEntityManager().createQuery(cq).getResultList()) {
-			nodes.add(nsm.getNode(n));
+			nodes.add(nsm.loadNode(n));
 		}
 
-		this.ancestors = nodes;
-
-		return this.ancestors;
+		return nodes;
 	}
 
 	/**
@@ -716,8 +1350,8 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 */
 	@Override
 	public boolean isDescendantOf(Node<T> subj) {
-		return ((getLeftValue() > subj.getLeftValue())
-				&& (getRightValue() < subj.getRightValue()) && (getRootValue() == subj
+		return ((getLongLeftValue() > subj.getLongLeftValue())
+				&& (getLongRightValue() < subj.getLongRightValue()) && (getRootValue() == subj
 					.getRootValue()));
 	}
 
@@ -740,19 +1374,31 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 			throw new IllegalArgumentException(
 					"Cannot move node as previous sibling of itself");
 		}
+		boolean betweenTrees = beginMove(dest, dest.isRoot());
+		int rootValue = getRootValue();
 		EventBuilder eb = nsm.createEventBuilder();
-		eb.add(this, EventNode.DELETE_MOVE);
-
-		if (dest.isRoot() || dest.getRootValue() != getRootValue()) {
-			moveBetweenTrees2(dest, dest.getLeftValue(),  dest.getLevel() - getLevel(),  1);
-		} else {
-			// Move within the tree
-			int oldLevel = getLevel();
-			setLevel(dest.getLevel());
-			updateNode(dest.getLeftValue(), getLevel() - oldLevel);
+		try {
+			Integer parentId = newSiblingParentId(dest);
+			String parentPath = newSiblingParentPath(dest);
+			nsm.incrementRootVersions(rootValue, dest.getRootValue());
+			eb.add(this, EventNode.DELETE_MOVE);
+			nsm.updateParentId(this.node, parentId);
+			movePath(parentPath);
+			moveClosure(parentId);
+			moveAggregates(dest, true);
+			if (betweenTrees) {
+				moveBetweenTrees2(dest, dest.getLongLeftValue(),  dest.getLevel() - getLevel(),  1);
+			} else {
+				// Move within the tree
+				int oldLevel = getLevel();
+				setLevel(dest.getLevel());
+				updateNode(dest.getLongLeftValue(), getLevel() - oldLevel);
 
+			}
+			eb.add(this, EventNode.ADD_MOVE);
+		} finally {
+			endMove(betweenTrees, rootValue);
 		}
-		eb.add(this, EventNode.ADD_MOVE);
 		eb.fireEvent();
 	}
 
@@ -763,11 +1409,11 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 * @param int destLeft destination left value
 	 * @param levelDiff
 	 */
-	private void updateNode(int destLeft, int levelDiff) {
-		int left = getLeftValue();
-		int right = getRightValue();
+	private void updateNode(long destLeft, int levelDiff) {
+		long left = getLongLeftValue();
+		long right = getLongRightValue();
 		int rootId = getRootValue();
-		int treeSize = right - left + 1;
+		long treeSize = right - left + 1;
 
 		// Make room in the new branch
 		shiftRLValues(destLeft, 0, treeSize, rootId);
@@ -798,8 +1444,8 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 
 		Query q = nsm.getEntityManager().createQuery(updateQuery.toString());
 		q.setParameter(1, levelDiff);
-		q.setParameter(2, left);
-		q.setParameter(3, right);
+		q.setParameter(2, nsm.position(left));
+		q.setParameter(3, nsm.position(right));
 		if (rootIdFieldName != null) {
 			q.setParameter(4, rootId);
 		}
@@ -822,17 +1468,30 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 			throw new IllegalArgumentException(
 					"Cannot move node as next sibling of itself");
 		}
+		boolean betweenTrees = beginMove(dest, false);
+		int rootValue = getRootValue();
 		EventBuilder eb = nsm.createEventBuilder();
-		eb.add(this, EventNode.DELETE_MOVE);
-		if (dest.getRootValue() != getRootValue()) {
-			moveBetweenTrees2(dest,  dest.isRoot() ? 1 : dest.getRightValue() + 1,  dest.getLevel() - getLevel(), NEXT_SIBLING);
-		} else {
-			// Move within tree
-			int oldLevel = getLevel();
-			setLevel(dest.getLevel());
-			updateNode(dest.getRightValue() + 1, getLevel() - oldLevel);
+		try {
+			Integer parentId = newSiblingParentId(dest);
+			String parentPath = newSiblingParentPath(dest);
+			nsm.incrementRootVersions(rootValue, dest.getRootValue());
+			eb.add(this, EventNode.DELETE_MOVE);
+			nsm.updateParentId(this.node, parentId);
+			movePath(parentPath);
+			moveClosure(parentId);
+			moveAggregates(dest, true);
+			if (betweenTrees) {
+				moveBetweenTrees2(dest,  dest.isRoot() ? 1 : dest.getLongRightValue() + 1,  dest.getLevel() - getLevel(), NEXT_SIBLING);
+			} else {
+				// Move within tree
+				int oldLevel = getLevel();
+				setLevel(dest.getLevel());
+				updateNode(dest.getLongRightValue() + 1, getLevel() - oldLevel);
+			}
+			eb.add(this, EventNode.ADD_MOVE);
+		} finally {
+			endMove(betweenTrees, rootValue);
 		}
-		eb.add(this, EventNode.ADD_MOVE);
 		eb.fireEvent();
 	}
 
@@ -844,21 +1503,32 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		if (dest == this.node) {
 			throw new IllegalArgumentException( "Cannot move node as first child of itself");
 		}
+		boolean betweenTrees = beginMove(dest, false);
+		int rootValue = getRootValue();
 		EventBuilder eb = nsm.createEventBuilder();
-		eb.add(this, EventNode.DELETE_MOVE);
-
-		if (dest.getRootValue() != getRootValue()) {
-			moveBetweenTrees2(dest, dest.getLeftValue() + 1,  dest.getLevel() - getLevel() + 1, JpaNode.FIRST_CHILD);
-		} else {
-			// Move within tree
-			int oldLevel = getLevel();
-			setLevel(dest.getLevel() + 1);
-			updateNode(dest.getLeftValue() + 1, getLevel() - oldLevel);
-			EntityManager em = nsm.getEntityManager();
-			em.flush();
-			em.clear();
-		}
-		eb.add(this, EventNode.ADD_MOVE);
+		try {
+			String parentPath = nsm.getPath(dest.unwrap());
+			nsm.incrementRootVersions(rootValue, dest.getRootValue());
+			eb.add(this, EventNode.DELETE_MOVE);
+			nsm.updateParentId(this.node, dest.getId());
+			movePath(parentPath);
+			moveClosure(dest.getId());
+			moveAggregates(dest, false);
+			if (betweenTrees) {
+				moveBetweenTrees2(dest, dest.getLongLeftValue() + 1,  dest.getLevel() - getLevel() + 1, JpaNode.FIRST_CHILD);
+			} else {
+				// Move within tree
+				int oldLevel = getLevel();
+				setLevel(dest.getLevel() + 1);
+				updateNode(dest.getLongLeftValue() + 1, getLevel() - oldLevel);
+				EntityManager em = nsm.getEntityManager();
+				em.flush();
+				em.clear();
+			}
+			eb.add(this, EventNode.ADD_MOVE);
+		} finally {
+			endMove(betweenTrees, rootValue);
+		}
 		eb.fireEvent();
 	}
 
@@ -871,20 +1541,158 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 			throw new IllegalArgumentException(
 					"Cannot move node as first child of itself");
 		}
+		boolean betweenTrees = beginMove(dest, false);
+		int rootValue = getRootValue();
 		EventBuilder eb = nsm.createEventBuilder();
-		eb.add(this, EventNode.DELETE_MOVE);
-		if (dest.getRootValue() != getRootValue()) {
-			moveBetweenTrees2(dest, dest.getRightValue(),  dest.getLevel() - getLevel() + 1, LAST_CHILD);
-		} else {
-			// Move within tree
-			int oldLevel = getLevel();
-			setLevel(dest.getLevel() + 1);
-			updateNode(dest.getRightValue(), getLevel() - oldLevel);
+		try {
+			String parentPath = nsm.getPath(dest.unwrap());
+			nsm.incrementRootVersions(rootValue, dest.getRootValue());
+			eb.add(this, EventNode.DELETE_MOVE);
+			nsm.updateParentId(this.node, dest.getId());
+			movePath(parentPath);
+			moveClosure(dest.getId());
+			moveAggregates(dest, false);
+			if (betweenTrees) {
+				moveBetweenTrees2(dest, dest.getLongRightValue(),  dest.getLevel() - getLevel() + 1, LAST_CHILD);
+			} else {
+				// Move within tree
+				int oldLevel = getLevel();
+				setLevel(dest.getLevel() + 1);
+				updateNode(dest.getLongRightValue(), getLevel() - oldLevel);
+			}
+			eb.add(this, EventNode.ADD_MOVE);
+		} finally {
+			endMove(betweenTrees, rootValue);
 		}
-		eb.add(this, EventNode.ADD_MOVE);
 		eb.fireEvent();
 	}
 
+	/**
+	 * Returns the id of the parent a node moved next to the given one gets,
+	 * if there is a parent column or a closure table.
+	 */
+	private Integer newSiblingParentId(Node<T> dest) {
+		if (!nsm.getConfiguration().hasParentColumn() && nsm.getClosureTable() == null || dest.isRoot()) {
+			return null;
+		}
+		return dest.getParent().getId();
+	}
+
+	/**
+	 * Returns the path of the parent a node moved next to the given one gets,
+	 * if there is a path column.
+	 */
+	private String newSiblingParentPath(Node<T> dest) {
+		String destPath = nsm.getPath(dest.unwrap());
+		return destPath == null ? null : JpaNestedSetManager.parentPath(destPath);
+	}
+
+	/**
+	 * Rewrites the paths of the subtree of this node for a move below the
+	 * given parent path, if there is a path column.
+	 */
+	private void movePath(String parentPath) {
+		if (parentPath != null) {
+			nsm.movePaths(nsm.getPath(this.node), JpaNestedSetManager.childPath(parentPath, getId()));
+		}
+	}
+
+	/**
+	 * Moves the closure rows of the subtree of this node below the given
+	 * parent, if there is a closure table. Must run before the left/right
+	 * values change.
+	 */
+	private void moveClosure(Integer parentId) {
+		JpaClosureTable closureTable = nsm.getClosureTable();
+		if (closureTable != null) {
+			closureTable.move(getLongLeftValue(), getLongRightValue(), getRootValue(), getId(), parentId);
+		}
+	}
+
+	/**
+	 * Sets the subtree aggregates of a new child of this node and adds them to
+	 * this node and its ancestors. Must run before the left/right values
+	 * change.
+	 */
+	private void addAggregates(T child) {
+		JpaSubtreeAggregates aggregates = nsm.getSubtreeAggregates();
+		if (aggregates != null) {
+			Number[] values = aggregates.getOwnValues(child);
+			aggregates.setValues(child, values);
+			aggregates.addToChain(getLongLeftValue(), getLongRightValue(), getRootValue(), 0, 0, values, 1);
+		}
+	}
+
+	/**
+	 * Subtracts the subtree aggregates of this node from its ancestors before
+	 * it is deleted.
+	 */
+	private void removeAggregates() {
+		JpaSubtreeAggregates aggregates = nsm.getSubtreeAggregates();
+		if (aggregates != null) {
+			aggregates.addToChain(getLongLeftValue() - 1, getLongRightValue() + 1, getRootValue(), 0, 0,
+					aggregates.getValues(this.node), -1);
+		}
+	}
+
+	/**
+	 * Moves the subtree aggregates of this node from its ancestors to the new
+	 * parent and its ancestors, the ancestors they share being left as they
+	 * are. Must run before the left/right values change.
+	 * 
+	 * @param dest
+	 *            the new parent, or the new sibling if sibling is true
+	 */
+	private void moveAggregates(Node<T> dest, boolean sibling) {
+		JpaSubtreeAggregates aggregates = nsm.getSubtreeAggregates();
+		if (aggregates == null) {
+			return;
+		}
+		Node<T> parent = sibling ? (dest.isRoot() ? null : dest.getParent()) : dest;
+		Number[] values = aggregates.getValues(this.node);
+		long left = getLongLeftValue();
+		long right = getLongRightValue();
+		boolean sameTree = parent != null && parent.getRootValue() == getRootValue();
+		aggregates.addToChain(left - 1, right + 1, getRootValue(), sameTree ? parent.getLongLeftValue() : 0,
+				sameTree ? parent.getLongRightValue() : 0, values, -1);
+		if (parent != null) {
+			aggregates.addToChain(parent.getLongLeftValue(), parent.getLongRightValue(), parent.getRootValue(),
+					sameTree ? left - 1 : 0, sameTree ? right + 1 : 0, values, 1);
+		}
+	}
+
+	/**
+	 * Acquires the locks needed by a move: moves within a tree only lock that
+	 * tree, while moves between trees may renumber the roots and lock the
+	 * whole forest. The trees of the nodes are compared once the tree is
+	 * locked.
+	 * 
+	 * @param betweenTrees
+	 *            true to lock the whole forest in any case
+	 * @return whether the forest has been locked
+	 */
+	private boolean beginMove(Node<T> dest, boolean betweenTrees) {
+		nsm.checkAttached(this);
+		nsm.checkAttached(dest);
+		if (!betweenTrees) {
+			int rootValue = nsm.beginWrite(this);
+			if (dest.getRootValue() == rootValue) {
+				return false;
+			}
+			nsm.cancelWrite(rootValue);
+		}
+		nsm.beginForestWrite();
+		return true;
+	}
+
+	private void endMove(boolean betweenTrees, int rootValue) {
+		if (betweenTrees) {
+			nsm.endForestWrite();
+		} else {
+			nsm.endWrite(rootValue);
+		}
+	}
+
 	/**
 	 * Accomplishes moving of nodes between different trees. Used by the move*
 	 * methods if the root values of the two nodes are different.
@@ -981,7 +1789,7 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	 * 
 	 * @param newRootId
 	 */
-	private void moveBetweenTrees2(final Node<T> dest, final int newLeftValue, final int offsetLevel, final int moveType) {
+	private void moveBetweenTrees2(final Node<T> dest, final long newLeftValue, final int offsetLevel, final int moveType) {
 		EntityManager em = nsm.getEntityManager();
 		
 		Configuration cfg = nsm.getConfiguration();
@@ -991,13 +1799,15 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		String levelFieldName = cfg.getLevelFieldName();
 		String entityName = cfg.getEntityName();
 	
-		final int delta = getLeftValue() - getRightValue() - 1; 
+		final long delta = getLongLeftValue() - getLongRightValue() - 1; 
 
-		int rootValue = getRootValue();
-		int offsetNode = newLeftValue - getLeftValue();
+		int oldRootValue = getRootValue();
+		int rootValue = oldRootValue;
+		long offsetNode = newLeftValue - getLongLeftValue();
 		int newRootValue = dest.getRootValue();
+		boolean newTree = dest.isRoot();
 		
-		if (dest.isRoot()) {
+		if (newTree) {
 			if (rootValue > dest.getRootValue()) {
 				rootValue++;
 			}
@@ -1031,9 +1841,9 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 				.append(" and n.").append(rootIdFieldName).append("= ?3");
 
 		Query q = nsm.getEntityManager().createQuery(sb.toString());
-		q.setParameter(1, getLeftValue());
-		q.setParameter(2, getRightValue());
-		q.setParameter(4, offsetNode); // offset tree
+		q.setParameter(1, nsm.position(getLongLeftValue()));
+		q.setParameter(2, nsm.position(getLongRightValue()));
+		q.setParameter(4, nsm.position(offsetNode)); // offset tree
 		q.setParameter(3, rootValue);
 		q.setParameter(5, newRootValue);
 		q.setParameter(6, offsetLevel);
@@ -1041,17 +1851,17 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 		em.flush();
 		em.clear();
 		
-		shiftRLValues(getRightValue() + 1, 0, delta, rootValue); // fix source tree
+		shiftRLValues(getLongRightValue() + 1, 0, delta, rootValue); // fix source tree
 		
 		em.flush();
 		em.clear();
-		/* clear internal cache */
-		nsm.clear();
+		/* drop the cached nodes of the changed trees */
+		nsm.treesMoved(oldRootValue, newRootValue, newTree);
 		/* update current node */
 		invalidate();
 		this.setLevel(getLevel()+offsetLevel);
-		this.setLeftValue(getLeftValue()+offsetNode);
-		this.setRightValue(getRightValue()+offsetNode);
+		this.setLongLeftValue(getLongLeftValue()+offsetNode);
+		this.setLongRightValue(getLongRightValue()+offsetNode);
 		this.setRootValue(newRootValue);
 		//this.node = (T) em.find(cfg.getNodeInfoClass(), this.unwrap().getId());
 	}
@@ -1062,37 +1872,56 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 	// of a tree reachable directly from this node.
 	//
 
-	void invalidate() {
+	@Override
+	public void invalidate() {
 		// Clear all local caches of other nodes, so that they're re-evaluated.
 		this.children = null;
 		this.parent = null;
 		this.ancestors = null;
 		this.descendants = null;
-		this.descendantDepth = 0;
+		this.childPages = null;
+		this.numberOfChildren = -1;
 	}
 
-	void internalAddChild(Node<T> child) {
-		if (this.children == null) {
-			this.children = new ArrayList<Node<T>>();
-		}
-		this.children.add(child);
+	@Override
+	public void detach() {
+		this.detached = true;
+	}
+
+	@Override
+	public boolean isDetached() {
+		return this.detached;
+	}
+
+	void internalSetChildren(List<Node<T>> children) {
+		this.children = children;
 	}
 
 	void internalSetParent(Node<T> parent) {
 		this.parent = parent;
 	}
 
-	void internalAddDescendant(Node<T> descendant) {
-		if (this.descendants == null) {
-			this.descendants = new ArrayList<Node<T>>();
+	/**
+	 * Keeps the cached descendants if they cover more levels.
+	 */
+	void internalSetDescendants(List<Node<T>> descendants, int depth) {
+		Descendants<T> cached = this.descendants;
+		if (cached == null || !cached.covers(depth)) {
+			this.descendants = new Descendants<T>(descendants, depth);
 		}
-		this.descendants.add(descendant);
 	}
 
 	void internalSetAncestors(List<Node<T>> ancestors) {
 		this.ancestors = ancestors;
 	}
 
+	/**
+	 * Returns the cached ancestors, or null if they are not known.
+	 */
+	List<Node<T>> internalGetAncestors() {
+		return this.ancestors;
+	}
+
 	@Override
 	public int getLinkedTypeCode() {
 		return node.getLinkedTypeCode();
@@ -0,0 +1,307 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+/**
+ * INTERNAL: Maintains the subtree aggregate columns of a
+ * {@link JpaNestedSetManager}, as marked by
+ * {@link org.code_factory.jpa.nestedset.annotations.SubtreeCount} and
+ * {@link org.code_factory.jpa.nestedset.annotations.SubtreeSum}. A structural
+ * operation never recomputes an aggregate: it applies the aggregates of the
+ * added, deleted or moved subtree as a delta to each chain of ancestors that
+ * gains or loses the subtree. A chain is selected by the left/right values of
+ * its lowest node, which must therefore not have been changed yet.
+ *
+ * @author gabbol
+ */
+final class JpaSubtreeAggregates {
+    private final JpaNestedSetManager nsm;
+    /** The aggregate fields. */
+    private final Field[] fields;
+    /** The field summed by each aggregate field, null for the count. */
+    private final Field[] summedFields;
+
+    JpaSubtreeAggregates(JpaNestedSetManager nsm) {
+        Configuration config = nsm.getConfiguration();
+        Class<?> nodeInfoClass = config.getNodeInfoClass();
+        Map<String, String> sums = config.getSubtreeSumFieldNames();
+        List<Field> fields = new ArrayList<Field>();
+        List<Field> summedFields = new ArrayList<Field>();
+        if (config.getSubtreeCountFieldName() != null) {
+            fields.add(numericField(nodeInfoClass, config.getSubtreeCountFieldName()));
+            summedFields.add(null);
+        }
+        for (Map.Entry<String, String> sum : sums.entrySet()) {
+            fields.add(numericField(nodeInfoClass, sum.getKey()));
+            summedFields.add(numericField(nodeInfoClass, sum.getValue()));
+        }
+        this.nsm = nsm;
+        this.fields = fields.toArray(new Field[fields.size()]);
+        this.summedFields = summedFields.toArray(new Field[summedFields.size()]);
+    }
+
+    /**
+     * Returns the aggregates of a single node: a count of one and its own
+     * values of the summed fields.
+     */
+    Number[] getOwnValues(NodeInfo info) {
+        Number[] values = new Number[this.fields.length];
+        for (int i = 0; i < values.length; i++) {
+            Number own = this.summedFields[i] == null ? Integer.valueOf(1) : (Number) get(this.summedFields[i], info);
+            values[i] = add(this.fields[i].getType(), null, own, 1);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the aggregates of the subtree of a node, as stored in the node.
+     */
+    Number[] getValues(NodeInfo info) {
+        Number[] values = new Number[this.fields.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (Number) get(this.fields[i], info);
+        }
+        return values;
+    }
+
+    /**
+     * Sets the aggregates of a node without writing them, as for a node to
+     * be persisted.
+     */
+    void setValues(NodeInfo info, Number[] values) {
+        for (int i = 0; i < values.length; i++) {
+            set(this.fields[i], info, values[i]);
+        }
+    }
+
+    /**
+     * Returns the sums of the given aggregates.
+     */
+    Number[] add(Number[] values, Number[] other) {
+        Number[] sums = new Number[values.length];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = add(this.fields[i].getType(), values[i], other[i], 1);
+        }
+        return sums;
+    }
+
+    /**
+     * Writes the aggregates of a single node. The bulk update covers rows
+     * already inserted, the setters the rows still to be inserted.
+     */
+    void update(NodeInfo info, Number[] values) {
+        Configuration config = nsm.getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n set ");
+        for (int i = 0; i < this.fields.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append("n.").append(this.fields[i].getName()).append(" = ?").append(i + 2);
+        }
+        sb.append(" where n.").append(config.getIdFieldName()).append(" = ?1");
+        Query q = nsm.getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, info.getId());
+        for (int i = 0; i < values.length; i++) {
+            q.setParameter(i + 2, values[i]);
+        }
+        q.executeUpdate();
+        setValues(info, values);
+    }
+
+    /**
+     * Adds the given aggregates, or subtracts them if sign is -1, to the
+     * nodes of a tree having left &lt;= left and right &gt;= right, that is
+     * to a node and its ancestors, with a single statement, and to the nodes
+     * of the manager. The nodes also having left &lt;= exceptLeft and right
+     * &gt;= exceptRight are skipped, which leaves out the ancestors shared
+     * with another chain; exceptLeft is 0 to skip none.
+     */
+    void addToChain(long left, long right, int rootValue, long exceptLeft, long exceptRight, Number[] values,
+            int sign) {
+        Configuration config = nsm.getConfiguration();
+        String leftField = "n." + config.getLeftFieldName();
+        String rightField = "n." + config.getRightFieldName();
+        int n = this.fields.length;
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n set ");
+        for (int i = 0; i < n; i++) {
+            String field = "n." + this.fields[i].getName();
+            sb.append(i == 0 ? "" : ", ").append(field).append(" = ").append(field).append(" + ?").append(i + 1);
+        }
+        sb.append(" where ").append(leftField).append(" <= ?").append(n + 1)
+                .append(" and ").append(rightField).append(" >= ?").append(n + 2);
+        if (config.hasManyRoots()) {
+            sb.append(" and n.").append(config.getRootIdFieldName()).append(" = ?").append(n + 3);
+        }
+        if (exceptLeft > 0) {
+            sb.append(" and (").append(leftField).append(" > ?").append(n + 4)
+                    .append(" or ").append(rightField).append(" < ?").append(n + 5).append(")");
+        }
+        Query q = nsm.getEntityManager().createQuery(sb.toString());
+        Number[] deltas = new Number[n];
+        for (int i = 0; i < n; i++) {
+            deltas[i] = add(this.fields[i].getType(), null, values[i], sign);
+            q.setParameter(i + 1, deltas[i]);
+        }
+        q.setParameter(n + 1, nsm.position(left));
+        q.setParameter(n + 2, nsm.position(right));
+        if (config.hasManyRoots()) {
+            q.setParameter(n + 3, rootValue);
+        }
+        if (exceptLeft > 0) {
+            q.setParameter(n + 4, nsm.position(exceptLeft));
+            q.setParameter(n + 5, nsm.position(exceptRight));
+        }
+        q.executeUpdate();
+
+        Iterator<Node<?>> it = nsm.getCachedNodes();
+        while (it.hasNext()) {
+            NodeInfo info = it.next().unwrap();
+            long infoLeft = Positions.getLeft(info);
+            long infoRight = Positions.getRight(info);
+            if (infoLeft <= left && infoRight >= right && (!config.hasManyRoots() || info.getRootValue() == rootValue)
+                    && !(exceptLeft > 0 && infoLeft <= exceptLeft && infoRight >= exceptRight)) {
+                setValues(info, add(getValues(info), deltas));
+            }
+        }
+    }
+
+    /**
+     * Recomputes the aggregates of all trees from the summed fields, writing
+     * only the nodes whose aggregates differ.
+     *
+     * @return the number of written nodes
+     */
+    int rebuildAll() {
+        Configuration config = nsm.getConfiguration();
+        @SuppressWarnings("unchecked")
+        Class<NodeInfo> nodeInfoClass = (Class<NodeInfo>) config.getNodeInfoClass();
+        CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+        CriteriaQuery<NodeInfo> cq = cb.createQuery(nodeInfoClass);
+        Root<NodeInfo> queryRoot = cq.from(nodeInfoClass);
+        if (config.hasManyRoots()) {
+            cq.orderBy(cb.asc(queryRoot.get(config.getRootIdFieldName())),
+                    cb.asc(queryRoot.get(config.getLeftFieldName())));
+        } else {
+            cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
+        }
+
+        // the open nodes and the aggregates of their subtrees read so far
+        Stack<NodeInfo> open = new Stack<NodeInfo>();
+        Stack<Number[]> sums = new Stack<Number[]>();
+        int written = 0;
+        for (NodeInfo info : nsm.getEntityManager().createQuery(cq).getResultList()) {
+            while (!open.isEmpty() && (Positions.getRight(open.peek()) < Positions.getLeft(info)
+                    || config.hasManyRoots() && open.peek().getRootValue() != info.getRootValue())) {
+                written += close(open, sums);
+            }
+            open.push(info);
+            sums.push(getOwnValues(info));
+        }
+        while (!open.isEmpty()) {
+            written += close(open, sums);
+        }
+        return written;
+    }
+
+    private int close(Stack<NodeInfo> open, Stack<Number[]> sums) {
+        NodeInfo info = open.pop();
+        Number[] values = sums.pop();
+        if (!sums.isEmpty()) {
+            sums.push(add(sums.pop(), values));
+        }
+        if (sameValues(values, getValues(info))) {
+            return 0;
+        }
+        update(info, values);
+        return 1;
+    }
+
+    /**
+     * Tells whether the given aggregates are equal, whatever their scale.
+     */
+    boolean sameValues(Number[] values, Number[] other) {
+        for (int i = 0; i < values.length; i++) {
+            if (other[i] == null || add(this.fields[i].getType(), values[i], other[i], -1).doubleValue() != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a + sign * b in the given numeric type, null values counting as
+     * zero.
+     */
+    private static Number add(Class<?> type, Number a, Number b, int sign) {
+        if (type == BigDecimal.class) {
+            BigDecimal x = a == null ? BigDecimal.ZERO : new BigDecimal(a.toString());
+            BigDecimal y = b == null ? BigDecimal.ZERO : new BigDecimal(b.toString());
+            return sign > 0 ? x.add(y) : x.subtract(y);
+        }
+        Number x = a == null ? Integer.valueOf(0) : a;
+        Number y = b == null ? Integer.valueOf(0) : b;
+        if (type == int.class || type == Integer.class) {
+            return Integer.valueOf(x.intValue() + sign * y.intValue());
+        } else if (type == long.class || type == Long.class) {
+            return Long.valueOf(x.longValue() + sign * y.longValue());
+        } else if (type == float.class || type == Float.class) {
+            return Float.valueOf(x.floatValue() + sign * y.floatValue());
+        }
+        return Double.valueOf(x.doubleValue() + sign * y.doubleValue());
+    }
+
+    private static Field numericField(Class<?> clazz, String fieldName) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(fieldName);
+                Class<?> type = field.getType();
+                if (type != int.class && type != Integer.class && type != long.class && type != Long.class
+                        && type != float.class && type != Float.class && type != double.class
+                        && type != Double.class && type != BigDecimal.class) {
+                    throw new IllegalArgumentException("The subtree aggregate field " + fieldName + " of " + clazz
+                            + " is not numeric");
+                }
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // look in the superclass
+            }
+        }
+        throw new IllegalArgumentException("There is no field " + fieldName + " in " + clazz);
+    }
+
+    private static Object get(Field field, NodeInfo info) {
+        try {
+            return field.get(info);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static void set(Field field, NodeInfo info, Number value) {
+        try {
+            field.set(info, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
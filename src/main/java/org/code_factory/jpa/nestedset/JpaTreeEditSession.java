@@ -0,0 +1,618 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.code_factory.jpa.nestedset.events.EventBuilder;
+import org.code_factory.jpa.nestedset.events.EventNode;
+
+/**
+ * Implements {@link TreeEditSession}<br/>
+ * The tree is loaded once when the session is opened and kept as a tree of
+ * ordered children lists. On commit the tree is renumbered in preorder and the
+ * changed rows are written with a JDBC batch on the connection of the
+ * EntityManager, or with one JPQL update per row if the persistence provider
+ * does not expose it.
+ *
+ * @param <T extends NodeInfo> The wrapped entity type.
+ * @author gabbol
+ */
+@NotThreadSafe
+class JpaTreeEditSession<T extends NodeInfo> implements TreeEditSession<T> {
+    private static final int PREV_SIBLING = 1;
+    private static final int FIRST_CHILD = 2;
+    private static final int NEXT_SIBLING = 3;
+    private static final int LAST_CHILD = 4;
+
+    /**
+     * A node of the in-memory copy of the tree, with its position when the
+     * session was opened and after the renumbering.
+     */
+    private static final class EditNode<T extends NodeInfo> {
+        final T info;
+        final boolean inserted;
+        final long oldLeft;
+        final long oldRight;
+        final int oldLevel;
+        EditNode<T> parent;
+        final List<EditNode<T>> children = new ArrayList<EditNode<T>>();
+        long newLeft;
+        long newRight;
+        int newLevel;
+
+        EditNode(T info, boolean inserted) {
+            this.info = info;
+            this.inserted = inserted;
+            this.oldLeft = Positions.getLeft(info);
+            this.oldRight = Positions.getRight(info);
+            this.oldLevel = info.getLevel();
+        }
+    }
+
+    private final JpaNestedSetManager nsm;
+    private final Class<T> type;
+    private final int rootValue;
+    private final EditNode<T> root;
+    private final Map<T, EditNode<T>> editNodes = new IdentityHashMap<T, EditNode<T>>();
+    private final Map<Integer, EditNode<T>> editNodesById = new HashMap<Integer, EditNode<T>>();
+    private final List<EditNode<T>> inserted = new ArrayList<EditNode<T>>();
+    private final List<EditNode<T>> deleted = new ArrayList<EditNode<T>>();
+    private final Set<EditNode<T>> moved = new LinkedHashSet<EditNode<T>>();
+    private final EventBuilder eventBuilder;
+    private boolean open = true;
+
+    @SuppressWarnings("unchecked")
+    JpaTreeEditSession(JpaNestedSetManager nsm, Node<T> node) {
+        this.nsm = nsm;
+        this.type = (Class<T>) node.unwrap().getClass();
+        this.rootValue = node.getRootValue();
+        this.eventBuilder = nsm.createEventBuilder();
+        List<Node<T>> ancestors = node.getAncestors();
+        Node<T> rootNode = ancestors.isEmpty() ? node : ancestors.get(0);
+
+        nsm.beginRead(this.rootValue);
+        try {
+            this.root = load(rootNode);
+        } finally {
+            nsm.endRead(this.rootValue);
+        }
+    }
+
+    /**
+     * Loads the tree as it is stored. The bulk updates of the other operations
+     * bypass the persistence context, so the entities it already manages may
+     * hold older positions than their rows: the positions are read on their
+     * own as well, and the stale entities are refreshed before they are
+     * copied.
+     */
+    private EditNode<T> load(Node<T> rootNode) {
+        Configuration config = nsm.getConfiguration();
+        EntityManager em = nsm.getEntityManager();
+        em.flush();
+        nsm.knowRootVersion(rootNode);
+        StringBuilder sb = new StringBuilder();
+        sb.append("select n.").append(config.getLeftFieldName()).append(", n.").append(config.getRightFieldName())
+                .append(" from ").append(config.getEntityName()).append(" n")
+                .append(" where n.").append(config.getIdFieldName()).append(" = ?1");
+        Object[] range = (Object[]) em.createQuery(sb.toString()).setParameter(1, rootNode.getId())
+                .getSingleResult();
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Object[]> pq = cb.createQuery(Object[].class);
+        Root<T> positionRoot = pq.from(type);
+        pq.multiselect(positionRoot.get(config.getIdFieldName()), positionRoot.get(config.getLeftFieldName()),
+                positionRoot.get(config.getRightFieldName()), positionRoot.get(config.getLevelFieldName()));
+        pq.where(cb.ge(positionRoot.<Number> get(config.getLeftFieldName()), (Number) range[0]),
+                cb.le(positionRoot.<Number> get(config.getRightFieldName()), (Number) range[1]));
+        nsm.applyRootId(type, pq, this.rootValue);
+        Map<Integer, Object[]> positions = new HashMap<Integer, Object[]>();
+        for (Object[] row : em.createQuery(pq).getResultList()) {
+            positions.put(((Number) row[0]).intValue(), row);
+        }
+
+        CriteriaQuery<T> cq = cb.createQuery(type);
+        Root<T> queryRoot = cq.from(type);
+        cq.where(cb.ge(queryRoot.<Number> get(config.getLeftFieldName()), (Number) range[0]),
+                cb.le(queryRoot.<Number> get(config.getRightFieldName()), (Number) range[1]));
+        cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
+        nsm.applyRootId(type, cq, this.rootValue);
+
+        EditNode<T> first = null;
+        Stack<EditNode<T>> stack = new Stack<EditNode<T>>();
+        for (T info : em.createQuery(cq).getResultList()) {
+            Object[] row = positions.get(info.getId());
+            if (((Number) row[1]).longValue() != Positions.getLeft(info)
+                    || ((Number) row[2]).longValue() != Positions.getRight(info)
+                    || ((Number) row[3]).intValue() != info.getLevel()) {
+                em.refresh(info);
+            }
+            EditNode<T> editNode = new EditNode<T>(info, false);
+            while (!stack.isEmpty() && stack.peek().oldRight < editNode.oldLeft) {
+                stack.pop();
+            }
+            if (stack.isEmpty()) {
+                first = editNode;
+            } else {
+                editNode.parent = stack.peek();
+                editNode.parent.children.add(editNode);
+            }
+            stack.push(editNode);
+            this.editNodes.put(info, editNode);
+            this.editNodesById.put(info.getId(), editNode);
+        }
+        return first;
+    }
+
+    private EditNode<T> lookup(T info) {
+        EditNode<T> editNode = this.editNodes.get(info);
+        if (editNode == null && info != null) {
+            editNode = this.editNodesById.get(info.getId());
+        }
+        if (editNode == null) {
+            throw new IllegalArgumentException("The node " + info + " is not part of the edited tree.");
+        }
+        return editNode;
+    }
+
+    private void checkOpen() {
+        if (!this.open) {
+            throw new IllegalStateException("The edit session has already been closed.");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addChild(T parent, T child) {
+        checkOpen();
+        EditNode<T> parentNode = lookup(parent);
+        if (this.editNodes.containsKey(child)) {
+            throw new IllegalArgumentException("The node " + child + " is already part of the tree.");
+        }
+        EditNode<T> editNode = new EditNode<T>(child, true);
+        editNode.parent = parentNode;
+        parentNode.children.add(editNode);
+        this.editNodes.put(child, editNode);
+        this.inserted.add(editNode);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsFirstChildOf(T node, T dest) {
+        move(node, dest, FIRST_CHILD);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsLastChildOf(T node, T dest) {
+        move(node, dest, LAST_CHILD);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsPrevSiblingOf(T node, T dest) {
+        move(node, dest, PREV_SIBLING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAsNextSiblingOf(T node, T dest) {
+        move(node, dest, NEXT_SIBLING);
+    }
+
+    private void move(T node, T dest, int moveType) {
+        checkOpen();
+        EditNode<T> editNode = lookup(node);
+        EditNode<T> destNode = lookup(dest);
+        for (EditNode<T> n = destNode; n != null; n = n.parent) {
+            if (n == editNode) {
+                throw new IllegalArgumentException("Cannot move node into its own subtree");
+            }
+        }
+        EditNode<T> newParent = (moveType == FIRST_CHILD || moveType == LAST_CHILD) ? destNode : destNode.parent;
+        if (newParent == null) {
+            throw new IllegalArgumentException("Cannot move node next to the root of the edited tree");
+        }
+
+        this.eventBuilder.add(createEvent(editNode, EventNode.DELETE_MOVE));
+        editNode.parent.children.remove(editNode);
+        int index;
+        switch (moveType) {
+        case FIRST_CHILD:
+            index = 0;
+            break;
+        case LAST_CHILD:
+            index = newParent.children.size();
+            break;
+        case PREV_SIBLING:
+            index = newParent.children.indexOf(destNode);
+            break;
+        case NEXT_SIBLING:
+            index = newParent.children.indexOf(destNode) + 1;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown move operation: " + moveType);
+        }
+        newParent.children.add(index, editNode);
+        editNode.parent = newParent;
+        if (!editNode.inserted) {
+            this.moved.add(editNode);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(T node) {
+        checkOpen();
+        EditNode<T> editNode = lookup(node);
+        if (editNode.parent == null) {
+            throw new IllegalArgumentException("Cannot delete the root of the edited tree");
+        }
+        this.eventBuilder.add(createEvent(editNode, EventNode.DELETE));
+        editNode.parent.children.remove(editNode);
+        forget(editNode);
+    }
+
+    private void forget(EditNode<T> editNode) {
+        this.editNodes.remove(editNode.info);
+        this.moved.remove(editNode);
+        if (editNode.inserted) {
+            this.inserted.remove(editNode);
+        } else {
+            this.editNodesById.remove(editNode.info.getId());
+            this.deleted.add(editNode);
+        }
+        for (EditNode<T> child : editNode.children) {
+            forget(child);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() {
+        checkOpen();
+        this.open = false;
+        EntityManager em = nsm.getEntityManager();
+        nsm.beginWrite(this.rootValue);
+        try {
+            nsm.incrementRootVersions(this.rootValue);
+            List<EditNode<T>> changed = new ArrayList<EditNode<T>>();
+            long delta = renumber(this.root, this.root.oldLeft, this.root.oldLevel, changed) - this.root.oldRight;
+
+            removeDeleted();
+            if (delta != 0 && !nsm.getConfiguration().hasManyRoots()) {
+                shiftFollowingTrees(this.root.oldRight + 1, delta);
+            }
+            for (EditNode<T> editNode : this.inserted) {
+                T info = editNode.info;
+                Positions.setLeft(info, editNode.newLeft);
+                Positions.setRight(info, editNode.newRight);
+                info.setLevel(editNode.newLevel);
+                info.setRootValue(this.rootValue);
+                em.persist(info);
+            }
+            em.flush();
+            writePositions(changed);
+            writeParents();
+            writePaths();
+            writeClosure();
+            writeAggregates();
+
+            for (EditNode<T> editNode : changed) {
+                Positions.setLeft(editNode.info, editNode.newLeft);
+                Positions.setRight(editNode.info, editNode.newRight);
+                editNode.info.setLevel(editNode.newLevel);
+                Node<?> cached = nsm.getCachedNode(this.type, editNode.info.getId());
+                if (cached != null && cached.unwrap() != editNode.info) {
+                    cached.setLongLeftValue(editNode.newLeft);
+                    cached.setLongRightValue(editNode.newRight);
+                    cached.setLevel(editNode.newLevel);
+                }
+            }
+            nsm.invalidateNodes(this.rootValue);
+        } finally {
+            nsm.endWrite(this.rootValue);
+        }
+
+        for (EditNode<T> editNode : this.inserted) {
+            this.eventBuilder.add(createEvent(editNode, EventNode.ADD));
+        }
+        for (EditNode<T> editNode : this.moved) {
+            this.eventBuilder.add(createEvent(editNode, EventNode.ADD_MOVE));
+        }
+        this.eventBuilder.fireEvent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rollback() {
+        checkOpen();
+        this.open = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Assigns the new left, right and level values in preorder and collects
+     * the persisted nodes whose values have changed.
+     *
+     * @return the new right value of the given node
+     */
+    private long renumber(EditNode<T> editNode, long left, int level, List<EditNode<T>> changed) {
+        long right = left + 1;
+        for (EditNode<T> child : editNode.children) {
+            right = renumber(child, right, level + 1, changed) + 1;
+        }
+        editNode.newLeft = left;
+        editNode.newRight = right;
+        editNode.newLevel = level;
+        if (!editNode.inserted
+                && (left != editNode.oldLeft || right != editNode.oldRight || level != editNode.oldLevel)) {
+            changed.add(editNode);
+        }
+        return right;
+    }
+
+    private void removeDeleted() {
+        if (this.deleted.isEmpty()) {
+            return;
+        }
+        Configuration config = nsm.getConfiguration();
+        List<Integer> ids = new ArrayList<Integer>(this.deleted.size());
+        for (EditNode<T> editNode : this.deleted) {
+            ids.add(editNode.info.getId());
+        }
+        if (nsm.getClosureTable() != null) {
+            nsm.getClosureTable().deleteNodes(ids);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ").append(config.getEntityName()).append(" n")
+                .append(" where n.").append(config.getIdFieldName()).append(" in ?1");
+        Query q = nsm.getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, ids);
+        q.executeUpdate();
+        for (EditNode<T> editNode : this.deleted) {
+            nsm.removeNode(this.type, editNode.info.getId());
+            if (nsm.getEntityManager().contains(editNode.info)) {
+                nsm.getEntityManager().detach(editNode.info);
+            }
+        }
+    }
+
+    /**
+     * Without a root column the trees share the same left/right space, so the
+     * trees following the edited one are shifted when its size changes.
+     */
+    private void shiftFollowingTrees(long first, long delta) {
+        Configuration config = nsm.getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n")
+                .append(" set n.").append(config.getLeftFieldName()).append(" = n.")
+                .append(config.getLeftFieldName()).append(" + ?1")
+                .append(", n.").append(config.getRightFieldName()).append(" = n.")
+                .append(config.getRightFieldName()).append(" + ?1")
+                .append(" where n.").append(config.getLeftFieldName()).append(" >= ?2");
+        Query q = nsm.getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, nsm.position(delta));
+        q.setParameter(2, nsm.position(first));
+        q.executeUpdate();
+        nsm.updateLeftValues(first, 0, delta, this.rootValue);
+        nsm.updateRightValues(first, 0, delta, this.rootValue);
+    }
+
+    /**
+     * Points the parent column of the inserted and moved nodes to their new
+     * parents, once the inserted nodes have their ids.
+     */
+    private void writeParents() {
+        if (!nsm.getConfiguration().hasParentColumn()) {
+            return;
+        }
+        for (EditNode<T> editNode : this.inserted) {
+            nsm.updateParentId(editNode.info, editNode.parent.info.getId());
+        }
+        for (EditNode<T> editNode : this.moved) {
+            nsm.updateParentId(editNode.info, editNode.parent.info.getId());
+        }
+    }
+
+    /**
+     * Writes the paths of the inserted nodes and rewrites the paths of the
+     * subtrees whose path has changed, once the inserted nodes have their ids.
+     */
+    private void writePaths() {
+        if (!nsm.getConfiguration().hasPathColumn()) {
+            return;
+        }
+        String rootPath = nsm.getPath(this.root.info);
+        for (EditNode<T> child : this.root.children) {
+            writePaths(child, rootPath);
+        }
+    }
+
+    private void writePaths(EditNode<T> editNode, String parentPath) {
+        String path = JpaNestedSetManager.childPath(parentPath, editNode.info.getId());
+        String oldPath = nsm.getPath(editNode.info);
+        if (editNode.inserted) {
+            nsm.updatePath(editNode.info, path);
+        } else if (!path.equals(oldPath)) {
+            nsm.movePaths(oldPath, path);
+            // the nodes of the session that the manager does not know
+            for (EditNode<T> other : this.editNodes.values()) {
+                String otherPath = nsm.getPath(other.info);
+                if (!other.inserted && otherPath != null && otherPath.startsWith(oldPath)) {
+                    ((PathNodeInfo) other.info).setPath(path + otherPath.substring(oldPath.length()));
+                }
+            }
+        }
+        for (EditNode<T> child : editNode.children) {
+            writePaths(child, path);
+        }
+    }
+
+    /**
+     * Recomputes the closure rows of the tree from the new left/right values
+     * if nodes were inserted or moved.
+     */
+    private void writeClosure() {
+        JpaClosureTable closureTable = nsm.getClosureTable();
+        if (closureTable != null && (!this.inserted.isEmpty() || !this.moved.isEmpty())) {
+            closureTable.rebuild(this.root.newLeft, this.root.newRight, this.rootValue);
+        }
+    }
+
+    /**
+     * Recomputes the subtree aggregates of the tree in memory if nodes were
+     * inserted, deleted or moved, and writes those that have changed.
+     */
+    private void writeAggregates() {
+        JpaSubtreeAggregates aggregates = nsm.getSubtreeAggregates();
+        if (aggregates != null && (!this.inserted.isEmpty() || !this.deleted.isEmpty() || !this.moved.isEmpty())) {
+            writeAggregates(this.root, aggregates);
+        }
+    }
+
+    private Number[] writeAggregates(EditNode<T> editNode, JpaSubtreeAggregates aggregates) {
+        Number[] values = aggregates.getOwnValues(editNode.info);
+        for (EditNode<T> child : editNode.children) {
+            values = aggregates.add(values, writeAggregates(child, aggregates));
+        }
+        if (!aggregates.sameValues(values, aggregates.getValues(editNode.info))) {
+            aggregates.update(editNode.info, values);
+        }
+        return values;
+    }
+
+    private void writePositions(List<EditNode<T>> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        Connection connection = null;
+        try {
+            connection = nsm.getEntityManager().unwrap(Connection.class);
+        } catch (PersistenceException e) {
+            // the provider does not expose its connection
+        } catch (IllegalArgumentException e) {
+            // the provider does not expose its connection
+        }
+        if (connection != null) {
+            writePositions(connection, changed);
+            return;
+        }
+
+        Configuration config = nsm.getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getEntityName()).append(" n")
+                .append(" set n.").append(config.getLeftFieldName()).append(" = ?1")
+                .append(", n.").append(config.getRightFieldName()).append(" = ?2")
+                .append(", n.").append(config.getLevelFieldName()).append(" = ?3")
+                .append(" where n.").append(config.getIdFieldName()).append(" = ?4");
+        for (EditNode<T> editNode : changed) {
+            Query q = nsm.getEntityManager().createQuery(sb.toString());
+            q.setParameter(1, nsm.position(editNode.newLeft));
+            q.setParameter(2, nsm.position(editNode.newRight));
+            q.setParameter(3, editNode.newLevel);
+            q.setParameter(4, editNode.info.getId());
+            q.executeUpdate();
+        }
+    }
+
+    private void writePositions(Connection connection, List<EditNode<T>> changed) {
+        Configuration config = nsm.getConfiguration();
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getTableName())
+                .append(" set ").append(config.getColumnName(config.getLeftFieldName())).append(" = ?")
+                .append(", ").append(config.getColumnName(config.getRightFieldName())).append(" = ?")
+                .append(", ").append(config.getColumnName(config.getLevelFieldName())).append(" = ?")
+                .append(" where ").append(config.getColumnName(config.getIdFieldName())).append(" = ?");
+        try {
+            PreparedStatement ps = connection.prepareStatement(sb.toString());
+            try {
+                for (EditNode<T> editNode : changed) {
+                    ps.setObject(1, nsm.position(editNode.newLeft));
+                    ps.setObject(2, nsm.position(editNode.newRight));
+                    ps.setInt(3, editNode.newLevel);
+                    ps.setInt(4, editNode.info.getId());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Cannot write the positions of the edited tree", e);
+        }
+    }
+
+    private EventNode createEvent(EditNode<T> editNode, int operation) {
+        EventNode eventNode = createEventSubtree(editNode, operation);
+        for (EditNode<T> p = editNode.parent; p != null; p = p.parent) {
+            EventNode parentEventNode = newEventNode(p, EventNode.CHANGE);
+            parentEventNode.addChildren(eventNode);
+            eventNode = parentEventNode;
+        }
+        return eventNode;
+    }
+
+    private EventNode createEventSubtree(EditNode<T> editNode, int operation) {
+        EventNode eventNode = newEventNode(editNode, operation);
+        for (EditNode<T> child : editNode.children) {
+            eventNode.addChildren(createEventSubtree(child, operation));
+        }
+        return eventNode;
+    }
+
+    private EventNode newEventNode(EditNode<T> editNode, int operation) {
+        T info = editNode.info;
+        return new EventNode(operation, info.getId(),
+                nsm.getConfiguration().getLinkedTypeClass(info.getLinkedTypeCode()), info.getLinkedId());
+    }
+}
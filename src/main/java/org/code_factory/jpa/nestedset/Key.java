@@ -22,6 +22,14 @@ class Key {
         this.id = id;
     }
 
+    Class<?> getNodeClass() {
+        return clazz;
+    }
+
+    int getId() {
+        return id;
+    }
+
     @Override public int hashCode() {
         int hash = 7;
         hash = 23 * hash + (this.clazz != null ? this.clazz.hashCode() : 0);
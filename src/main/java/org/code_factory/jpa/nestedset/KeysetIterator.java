@@ -0,0 +1,79 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * INTERNAL: Iterates over nodes in tree order, loading them in pages. Each
+ * page starts after the left value of the last node returned, so pages stay
+ * consistent without an offset that the database would have to skip.
+ *
+ * @param <T extends NodeInfo> The wrapped entity type.
+ * @author gabbol
+ */
+abstract class KeysetIterator<T extends NodeInfo> implements Iterator<Node<T>> {
+    private final int pageSize;
+    private long lastLeft;
+    private List<Node<T>> page;
+    private int index;
+    private boolean exhausted;
+
+    /**
+     * @param firstLeft
+     *            the left value after which the first page starts
+     * @param pageSize
+     *            the maximum number of nodes of a page
+     */
+    KeysetIterator(long firstLeft, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+        }
+        this.lastLeft = firstLeft;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Loads the next nodes in tree order whose left value is greater than the
+     * given one.
+     */
+    protected abstract List<Node<T>> loadPage(long afterLeft, int maxResults);
+
+    @Override
+    public boolean hasNext() {
+        if (this.page != null && this.index < this.page.size()) {
+            return true;
+        }
+        if (this.exhausted) {
+            return false;
+        }
+        this.page = loadPage(this.lastLeft, this.pageSize);
+        this.index = 0;
+        this.exhausted = this.page.size() < this.pageSize;
+        return !this.page.isEmpty();
+    }
+
+    @Override
+    public Node<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Node<T> node = this.page.get(this.index++);
+        this.lastLeft = node.getLongLeftValue();
+        return node;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Use Node.delete() to remove nodes.");
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.code_factory.jpa.nestedset.events.EventNode;
+import org.code_factory.jpa.nestedset.events.EventNodeVisitor;
+import org.code_factory.jpa.nestedset.events.NestedSetEvent;
+import org.code_factory.jpa.nestedset.events.NestedSetListener;
+
+/**
+ * Caches the transitive closure of the reachability between linked entities:
+ * an entity reaches the entities linked below any of its occurrences, and
+ * everything these reach in turn. It answers the same question as
+ * {@link NestedSetManager#getDescendants(Class, Object)} for hierarchies in
+ * which an entity appears under many parents, with hash lookups instead of a
+ * walk over every occurrence.
+ * <p>
+ * The closure of all the entities is built from one scan of the forest. The
+ * cache listens to the {@link NestedSetEvent}s of its manager and drops the
+ * closures of the entities on the changed paths and of the entities reaching
+ * them; the next lookup of a dropped or unknown entity scans the forest again
+ * and recomputes only the dropped closures. The changes must thus be
+ * committed before the next lookup.
+ *
+ * @see NestedSetManager#getLinkedClosureCache()
+ * @author gabbol
+ */
+public final class LinkedClosureCache implements NestedSetListener {
+    private static final int[] NO_INDEXES = new int[0];
+
+    private final AbstractNestedSetManager nsm;
+    /** The index of each known linked entity. */
+    private Map<LinkedKey, Integer> indexes = new HashMap<LinkedKey, Integer>();
+    private LinkedKey[] keys = new LinkedKey[0];
+    /** The sorted indexes reached by each entity, null once dropped. */
+    private int[][] closures = new int[0][];
+    private boolean complete;
+    private int builds;
+
+    LinkedClosureCache(AbstractNestedSetManager nsm) {
+        this.nsm = nsm;
+    }
+
+    /**
+     * Checks whether an entity reaches another one, that is whether the second
+     * one is linked below an occurrence of the first one or of an entity it
+     * reaches.
+     *
+     * @param linkedTypeClass the class of the first entity
+     * @param linkedId the id of the first entity
+     * @param reachedTypeClass the class of the second entity
+     * @param reachedId the id of the second entity
+     * @return true if the first entity reaches the second one
+     */
+    public synchronized boolean reaches(Class<?> linkedTypeClass, Object linkedId, Class<?> reachedTypeClass,
+            Object reachedId) {
+        int[] closure = closure(linkedTypeClass, linkedId);
+        Integer reached = this.indexes.get(key(reachedTypeClass, reachedId));
+        return reached != null && Arrays.binarySearch(closure, reached) >= 0;
+    }
+
+    /**
+     * Gets the ids of the entities of a type reached by an entity.
+     *
+     * @param linkedTypeClass the class of the entity
+     * @param linkedId the id of the entity
+     * @param reachedTypeClass the class of the reached entities
+     * @return the ids of the reached entities
+     */
+    public synchronized List<String> getReachedIds(Class<?> linkedTypeClass, Object linkedId,
+            Class<?> reachedTypeClass) {
+        int[] closure = closure(linkedTypeClass, linkedId);
+        int code = this.nsm.getConfiguration().getLinkedTypeCode(reachedTypeClass);
+        List<String> result = new ArrayList<String>();
+        for (int i : closure) {
+            if (this.keys[i].getTypeCode() == code) {
+                result.add(this.keys[i].getLinkedId());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of times the closure has been built
+     */
+    public synchronized int getBuildCount() {
+        return this.builds;
+    }
+
+    /**
+     * Drops the whole closure.
+     */
+    public synchronized void clear() {
+        this.complete = false;
+        this.indexes = new HashMap<LinkedKey, Integer>();
+        this.keys = new LinkedKey[0];
+        this.closures = new int[0][];
+    }
+
+    /**
+     * Drops the closures of the entities on the paths of the event and of the
+     * entities reaching them.
+     */
+    @Override
+    public synchronized void nestedSetChanged(NestedSetEvent e) {
+        if (!this.nsm.getConfiguration().getId().equals(e.getId())) {
+            return;
+        }
+        final Set<Integer> changed = new HashSet<Integer>();
+        final boolean[] unknownType = new boolean[1];
+        EventNodeVisitor visitor = new EventNodeVisitor() {
+            @Override
+            public boolean inNode(EventNode node) {
+                if (node.getLinkedTypeClass() == null) {
+                    unknownType[0] = true;
+                    return false;
+                }
+                Integer index = indexes.get(key(node.getLinkedTypeClass(), node.getLinkedId()));
+                if (index != null) {
+                    changed.add(index);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean outNode(EventNode node) {
+                return true;
+            }
+        };
+        for (EventNode root : e.getRoots()) {
+            root.accept(visitor);
+        }
+        if (unknownType[0]) {
+            clear();
+            return;
+        }
+        this.complete = false;
+        for (int i = 0; i < this.closures.length; i++) {
+            if (this.closures[i] != null && (changed.contains(i) || reachesAny(this.closures[i], changed))) {
+                this.closures[i] = null;
+            }
+        }
+    }
+
+    private static boolean reachesAny(int[] closure, Set<Integer> indexes) {
+        if (closure.length < indexes.size()) {
+            for (int i : closure) {
+                if (indexes.contains(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int i : indexes) {
+            if (Arrays.binarySearch(closure, i) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private LinkedKey key(Class<?> linkedTypeClass, Object linkedId) {
+        return new LinkedKey(this.nsm.getConfiguration().getLinkedTypeCode(linkedTypeClass),
+                String.valueOf(linkedId));
+    }
+
+    /**
+     * Returns the closure of the given entity, rebuilding the closure if it
+     * has been dropped or the entity is unknown since the last change.
+     */
+    private int[] closure(Class<?> linkedTypeClass, Object linkedId) {
+        LinkedKey key = key(linkedTypeClass, linkedId);
+        Integer index = this.indexes.get(key);
+        if (index == null || this.closures[index] == null) {
+            if (this.complete) {
+                return NO_INDEXES;
+            }
+            build();
+            index = this.indexes.get(key);
+            if (index == null) {
+                return NO_INDEXES;
+            }
+        }
+        return this.closures[index];
+    }
+
+    /**
+     * Builds the closure from the snapshots of all the trees: every entity
+     * has an edge to the entities linked to the children of its occurrences,
+     * and its closure is what it reaches along these edges. The known
+     * entities keep their indexes, and only their dropped closures are
+     * computed again.
+     */
+    private void build() {
+        Map<LinkedKey, Integer> newIndexes = new HashMap<LinkedKey, Integer>(this.indexes);
+        List<LinkedKey> newKeys = new ArrayList<LinkedKey>(Arrays.asList(this.keys));
+        List<Set<Integer>> edges = new ArrayList<Set<Integer>>();
+        for (int i = 0; i < this.keys.length; i++) {
+            edges.add(new HashSet<Integer>());
+        }
+        for (TreeSnapshot snapshot : this.nsm.loadSnapshots(null).values()) {
+            int[] nodeIndexes = new int[snapshot.ids.length];
+            for (int i = 0; i < nodeIndexes.length; i++) {
+                LinkedKey key = new LinkedKey(snapshot.linkedTypeCodes[i], snapshot.linkedIds[i]);
+                Integer index = newIndexes.get(key);
+                if (index == null) {
+                    index = newKeys.size();
+                    newIndexes.put(key, index);
+                    newKeys.add(key);
+                    edges.add(new HashSet<Integer>());
+                }
+                nodeIndexes[i] = index;
+                int parent = snapshot.parents[i];
+                if (parent >= 0) {
+                    edges.get(nodeIndexes[parent]).add(index);
+                }
+            }
+        }
+
+        int size = newKeys.size();
+        int[][] newClosures = Arrays.copyOf(this.closures, size);
+        // the last closure that reached each entity, plus one, so that the
+        // marks need no reset between closures
+        int[] seen = new int[size];
+        int[] stack = new int[size];
+        int[] reached = new int[size];
+        for (int from = 0; from < size; from++) {
+            if (newClosures[from] != null) {
+                continue;
+            }
+            int mark = from + 1;
+            int top = 0;
+            int count = 0;
+            for (int to : edges.get(from)) {
+                seen[to] = mark;
+                stack[top++] = to;
+            }
+            while (top > 0) {
+                int current = stack[--top];
+                reached[count++] = current;
+                for (int to : edges.get(current)) {
+                    if (seen[to] != mark) {
+                        seen[to] = mark;
+                        stack[top++] = to;
+                    }
+                }
+            }
+            int[] closure = Arrays.copyOf(reached, count);
+            Arrays.sort(closure);
+            newClosures[from] = closure;
+        }
+
+        this.indexes = newIndexes;
+        this.keys = newKeys.toArray(new LinkedKey[size]);
+        this.closures = newClosures;
+        this.complete = true;
+        this.builds++;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * Identifies a linked entity by its type code and its serialized ID.
+ *
+ * @author gabbol
+ */
+final class LinkedKey {
+    private final int typeCode;
+    private final String linkedId;
+
+    public LinkedKey(int typeCode, String linkedId) {
+        this.typeCode = typeCode;
+        this.linkedId = linkedId;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public String getLinkedId() {
+        return linkedId;
+    }
+
+    @Override public int hashCode() {
+        int hash = 7;
+        hash = 23 * hash + this.typeCode;
+        hash = 23 * hash + (this.linkedId != null ? this.linkedId.hashCode() : 0);
+        return hash;
+    }
+
+    @Override public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof LinkedKey)) {
+            return false;
+        }
+
+        LinkedKey otherKey = (LinkedKey) other;
+
+        return this.typeCode == otherKey.typeCode
+                && (this.linkedId == null ? otherKey.linkedId == null : this.linkedId.equals(otherKey.linkedId));
+    }
+
+    @Override public String toString() {
+        return "[Type: " + this.typeCode + ", Id: " + this.linkedId + "]";
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * Loads the entities linked to the nodes of a {@link JdbcNestedSetManager},
+ * which has no EntityManager of its own: for instance a DAO, or an
+ * EntityManager of the application.
+ *
+ * @author gabbol
+ */
+public interface LinkedObjectLoader {
+
+    /**
+     * Loads a linked entity.
+     *
+     * @param linkedTypeClass the class of the linked entity
+     * @param primaryKey the primary key, converted to the type of the key of
+     *            the class
+     * @return the entity, or null if there is none
+     */
+    Object load(Class<?> linkedTypeClass, Object primaryKey);
+}
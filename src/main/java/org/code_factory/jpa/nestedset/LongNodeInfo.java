@@ -0,0 +1,30 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * A NodeInfo implementor whose left and right columns are <code>long</code>,
+ * for trees too large or too sparsely numbered for <code>int</code> positions.
+ * <p>
+ * The manager only uses the long accessors for such entities. The
+ * <code>int</code> accessors of {@link NodeInfo} remain for source
+ * compatibility and may throw an ArithmeticException when the value does not
+ * fit.
+ *
+ * @author gabbol
+ */
+public interface LongNodeInfo extends NodeInfo {
+
+    long getLongLeftValue();
+    long getLongRightValue();
+
+    void setLongLeftValue(long value);
+    void setLongRightValue(long value);
+}
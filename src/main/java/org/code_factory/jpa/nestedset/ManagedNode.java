@@ -0,0 +1,38 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * INTERNAL: A node kept in the identity map of an
+ * {@link AbstractNestedSetManager}, whose local caches are cleared when the
+ * tree changes.
+ *
+ * @author gabbol
+ */
+interface ManagedNode<T extends NodeInfo> extends Node<T> {
+
+    /**
+     * Clears the cached parent, children, ancestors and descendants.
+     */
+    void invalidate();
+
+    /**
+     * Marks the node as dropped from the identity map by the limit on the
+     * number of cached nodes. Its position is no longer kept up to date, so
+     * it can no longer be modified.
+     */
+    void detach();
+
+    /**
+     * @return whether the node has been dropped from the identity map by the
+     *         limit on the number of cached nodes
+     */
+    boolean isDetached();
+}
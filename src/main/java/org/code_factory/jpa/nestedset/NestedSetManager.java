@@ -45,14 +45,26 @@ public interface NestedSetManager {
      * Gets the EntityManager used by this NestedSetManager.
      *
      * @return The EntityManager.
+     * @throws UnsupportedOperationException
+     *             if the nodes are not entities, as with a
+     *             {@link JdbcNestedSetManager}.
+     * @deprecated use an {@link EntityNestedSetManager}, which always has an
+     *             EntityManager.
      */
+    @Deprecated
     EntityManager getEntityManager();
     
     /**
      * Sets the EntityManager used by this NestedSetManager.
      *
      * @param The EntityManager.
+     * @throws UnsupportedOperationException
+     *             if the nodes are not entities, as with a
+     *             {@link JdbcNestedSetManager}.
+     * @deprecated use an {@link EntityNestedSetManager}, which always has an
+     *             EntityManager.
      */
+    @Deprecated
     void setEntityManager(EntityManager entityManager);
 
     /**
@@ -159,7 +171,7 @@ public interface NestedSetManager {
      * 
      */
     <T extends NodeInfo, E> E lookupLinkedObject(Node<T> node);
-    
+
     /**
      * Returns a node builder to create a Nested Set 
      * 
@@ -167,4 +179,125 @@ public interface NestedSetManager {
      * 
      */
     NodeBuilder createNodeBuilder();
+
+    /**
+     * Checks the consistency of a tree: the left and right values must use
+     * every position from 1 to twice the number of nodes exactly once, and
+     * the level of each node must be the number of its ancestors. Without a
+     * root column all the nodes are checked.
+     *
+     * @param rootValue the root value of the tree
+     * @return true if the tree is consistent
+     */
+    boolean isValidTree(int rootValue);
+
+    /**
+     * Gets the deepest node having both given nodes in its subtree. A node is
+     * part of its own subtree, so the common ancestor of a node and one of its
+     * descendants is the node itself.
+     *
+     * @param a
+     * @param b
+     * @return the lowest common ancestor, or null if the nodes are in
+     *         different trees
+     */
+    <T extends NodeInfo> Node<T> lowestCommonAncestor(Node<T> a, Node<T> b);
+
+    /**
+     * Gets the deepest node having all the given nodes in its subtree.
+     *
+     * @param nodes at least one node
+     * @return the lowest common ancestor, or null if the nodes are in
+     *         different trees
+     */
+    <T extends NodeInfo> Node<T> lowestCommonAncestor(Collection<Node<T>> nodes);
+
+    /**
+     * Gets the path from a node up to the lowest common ancestor and down to
+     * another node.
+     *
+     * @param a
+     * @param b
+     * @return the nodes on the path, from a to b included, or an empty list if
+     *         the nodes are in different trees
+     */
+    <T extends NodeInfo> List<Node<T>> pathBetween(Node<T> a, Node<T> b);
+
+    /**
+     * Aggregates an attribute of the entities linked to the subtree of every
+     * node below (and including) the given node. The nested set managers use
+     * a single statement joining each node to the nodes it contains and to
+     * their linked entities; the nested interval manager reads the linked
+     * values and adds them up in memory.
+     *
+     * @param subtreeRoot
+     * @param linkedTypeClass
+     *            the linked entity class, one of the configured linked types
+     * @param attribute
+     *            the aggregated field of the linked entity class, null to
+     *            count the linked entities
+     * @param function
+     *            one of {@link Rollup#COUNT}, {@link Rollup#SUM},
+     *            {@link Rollup#MIN} and {@link Rollup#MAX}
+     * @return the values by node id, missing the nodes without linked
+     *         entities in their subtree
+     */
+    <T extends NodeInfo> Rollup rollup(Node<T> subtreeRoot, Class<?> linkedTypeClass, String attribute, int function);
+
+    /**
+     * Opens a session that batches structural changes to the tree of the
+     * given node and writes them at once on commit.
+     *
+     * @param <T>
+     * @param node any node of the tree to edit
+     * @return the edit session
+     * @throws UnsupportedOperationException
+     *             if the manager does not batch structural changes: nested
+     *             intervals never shift other nodes, and the JDBC engine
+     *             writes each change at once.
+     */
+    <T extends NodeInfo> TreeEditSession<T> openEditSession(Node<T> node);
+
+    /**
+     * Gets the published snapshot of a tree. The snapshot is an immutable copy
+     * of the tree which can be read by any number of threads without locking;
+     * it is loaded on first access and replaced by {@link #publishSnapshots()}.
+     * Without a root column all the nodes belong to one snapshot.
+     *
+     * @param rootValue the root value of the tree
+     * @return the current snapshot of the tree
+     */
+    TreeSnapshot getSnapshot(int rootValue);
+
+    /**
+     * Searches the published snapshots for the nodes which have the property
+     * linkedTypeClass and linkedId
+     *
+     * @param linkedTypeClass Class type of the entity linked
+     * @param linkedId the ID of the entity linked
+     * @return the matching snapshot nodes, ordered by root and left value
+     */
+    List<SnapshotNode> findInSnapshots(Class<?> linkedTypeClass, Object linkedId);
+
+    /**
+     * Rebuilds the snapshots of the trees modified through this manager since
+     * the last publication and atomically replaces them. Must be called after
+     * the transaction that modified the trees has been committed; until then
+     * readers keep seeing the previous consistent state. A
+     * {@link ConcurrentJpaNestedSetManager} only counts a tree as modified
+     * once the transaction has ended, so that any thread may publish.
+     * Concurrent publications run one after the other, so a snapshot is never
+     * replaced by an older one.
+     */
+    void publishSnapshots();
+
+    /**
+     * Gets the cache of the transitive reachability between linked entities.
+     * The cache is created on first access and registered with the listener
+     * provider of this manager, if any, to drop the closures changed through
+     * this manager.
+     *
+     * @return the linked closure cache
+     */
+    LinkedClosureCache getLinkedClosureCache();
 }
@@ -9,15 +9,17 @@
 
 package org.code_factory.jpa.nestedset;
 
+import java.util.Iterator;
 import java.util.List;
 
 /**
- * A node in a nested set tree.
+ * A node in a nested set tree. The long accessors of the positions work
+ * whether the columns of the wrapped entity are int or long.
  *
  * @param <T extends NodeInfo> The wrapped entity type.
  * @author Roman Borschel <roman@code-factory.org>
  */
-public interface Node<T extends NodeInfo> extends NodeInfo {
+public interface Node<T extends NodeInfo> extends LongNodeInfo {
     /**
      * Moves this node in the tree, positioning it as the last child of
      * the given node.
@@ -51,6 +53,30 @@ public interface Node<T extends NodeInfo> extends NodeInfo {
      * @return The children of the node.
      */
     List<Node<T>> getChildren();
+    /**
+     * Gets the children of the node accepted by the given filter. The filter
+     * is applied by the query, or to the cached children if any.
+     *
+     * @param filter
+     *            the filter, or null for all children
+     * @return The accepted children of the node.
+     */
+    List<Node<T>> getChildren(TypeFilter<?> filter);
+    /**
+     * Gets a page of the children of the node, for nodes with too many
+     * children to load at once. The pages are cached independently, and are
+     * cut out of the children when all of them are cached.
+     *
+     * @param afterLeft
+     *            the left value the children must follow: the left value of
+     *            this node, or 0, for the first page, then
+     *            {@link ChildrenPage#getNextAfterLeft()}. Nested intervals
+     *            have no left values and start with 0.
+     * @param limit
+     *            the maximum number of children of the page
+     * @return the page
+     */
+    ChildrenPage<T> getChildren(long afterLeft, int limit);
     /**
      * Gets descendants of this node, up to a certain depth.
      *
@@ -64,13 +90,54 @@ public interface Node<T extends NodeInfo> extends NodeInfo {
      * @return The descendants of this node.
      */
     List<Node<T>> getDescendants();
+    /**
+     * Gets the descendants of this node accepted by the given filter, up to a
+     * certain depth.
+     *
+     * @param depth
+     *            the depth, 0 for all descendants
+     * @param filter
+     *            the filter, or null for all descendants
+     * @return The accepted descendants of the node.
+     */
+    List<Node<T>> getDescendants(int depth, TypeFilter<?> filter);
     /**
      * Gets all ancestors of this node.
      *
-     * @param int depth The depth "upstairs".
      * @return The ancestors of the node.
      */
     List<Node<T>> getAncestors();
+    /**
+     * Gets the nearest ancestors of this node, up to a certain depth.
+     *
+     * @param depth The depth "upstairs", 0 for all ancestors.
+     * @return The ancestors of the node, ordered from the root down.
+     */
+    List<Node<T>> getAncestors(int depth);
+    /**
+     * Gets the ancestors of this node accepted by the given filter, ordered
+     * from the root down.
+     *
+     * @param filter
+     *            the filter, or null for all ancestors
+     * @return The accepted ancestors of the node.
+     */
+    List<Node<T>> getAncestors(TypeFilter<?> filter);
+    /**
+     * Gets the leaves below this node.
+     *
+     * @return The descendants without children, in tree order.
+     */
+    List<Node<T>> getLeaves();
+    /**
+     * Streams the leaves below this node in tree order, loading them in pages
+     * of the given size, each page starting after the last node returned.
+     *
+     * @param filter Restricts the leaves to a linked type, or NULL for all.
+     * @param pageSize The number of leaves loaded at once.
+     * @return An iterator over the leaves, which does not support removal.
+     */
+    Iterator<Node<T>> iterateLeaves(TypeFilter<?> filter, int pageSize);
     /**
      * Adds a node as the last child of this node.
      *
@@ -96,6 +163,31 @@ public interface Node<T extends NodeInfo> extends NodeInfo {
      * @return The last child node.
      */
     Node<T> getLastChild();
+    /**
+     * Gets the n-th child of this node, counting from 0.
+     *
+     * @param n
+     * @return The child, or NULL if there are not as many children.
+     */
+    Node<T> getChildAt(int n);
+    /**
+     * Gets the next sibling of this node. Roots have no siblings.
+     *
+     * @return The next sibling, or NULL if this node is the last child.
+     */
+    Node<T> getNextSibling();
+    /**
+     * Gets the previous sibling of this node. Roots have no siblings.
+     *
+     * @return The previous sibling, or NULL if this node is the first child.
+     */
+    Node<T> getPrevSibling();
+    /**
+     * Gets the other children of the parent of this node.
+     *
+     * @return The siblings in tree order, empty for a root.
+     */
+    List<Node<T>> getSiblings();
     /**
      * Unwraps the node, returning the wrapped object.
      *
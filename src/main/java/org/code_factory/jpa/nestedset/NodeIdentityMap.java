@@ -0,0 +1,333 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * INTERNAL: The identity map of a single-threaded manager. The nodes of each
+ * NodeInfo class are held in an open-addressing table keyed by the primitive
+ * id, so that {@link #get(Class, int)} allocates nothing; a manager normally
+ * serves one class, whose table is checked first. Removed entries leave a
+ * marker until the next rehash, so that the iterators stay valid when they
+ * remove entries.
+ *
+ * @author gabbol
+ */
+final class NodeIdentityMap extends AbstractMap<Key, Node<?>> {
+    private static final Object REMOVED = new Object();
+
+    /** The table of the first class, checked before the others. */
+    private Table first;
+    private final List<Table> tables = new ArrayList<Table>(1);
+    private int size;
+
+    /**
+     * Returns the node of the given class and id, or null.
+     */
+    Node<?> get(Class<?> clazz, int id) {
+        Table table = table(clazz);
+        return table == null ? null : table.get(id);
+    }
+
+    /**
+     * Removes the node of the given class and id.
+     *
+     * @return the removed node, or null
+     */
+    Node<?> remove(Class<?> clazz, int id) {
+        Table table = table(clazz);
+        Node<?> removed = table == null ? null : table.remove(id);
+        if (removed != null) {
+            this.size--;
+        }
+        return removed;
+    }
+
+    private Table table(Class<?> clazz) {
+        Table table = this.first;
+        if (table != null && table.clazz == clazz) {
+            return table;
+        }
+        for (int i = 1; i < this.tables.size(); i++) {
+            if (this.tables.get(i).clazz == clazz) {
+                return this.tables.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Node<?> get(Object key) {
+        if (!(key instanceof Key)) {
+            return null;
+        }
+        return get(((Key) key).getNodeClass(), ((Key) key).getId());
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Node<?> put(Key key, Node<?> node) {
+        if (node == null) {
+            throw new IllegalArgumentException("No node given");
+        }
+        Table table = table(key.getNodeClass());
+        if (table == null) {
+            table = new Table(key.getNodeClass());
+            this.tables.add(table);
+            if (this.first == null) {
+                this.first = table;
+            }
+        }
+        Node<?> previous = table.put(key.getId(), node);
+        if (previous == null) {
+            this.size++;
+        }
+        return previous;
+    }
+
+    @Override
+    public Node<?> remove(Object key) {
+        if (!(key instanceof Key)) {
+            return null;
+        }
+        return remove(((Key) key).getNodeClass(), ((Key) key).getId());
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void clear() {
+        for (Table table : this.tables) {
+            table.clear();
+        }
+        this.size = 0;
+    }
+
+    /**
+     * Iterates the nodes without creating keys.
+     */
+    @Override
+    public Collection<Node<?>> values() {
+        return new AbstractCollection<Node<?>>() {
+            @Override
+            public Iterator<Node<?>> iterator() {
+                return new Slots<Node<?>>() {
+                    @Override
+                    Node<?> value(Table table, int slot) {
+                        return (Node<?>) table.slots[slot];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return NodeIdentityMap.this.size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<Key, Node<?>>> entrySet() {
+        return new AbstractSet<Map.Entry<Key, Node<?>>>() {
+            @Override
+            public Iterator<Map.Entry<Key, Node<?>>> iterator() {
+                return new Slots<Map.Entry<Key, Node<?>>>() {
+                    @Override
+                    Map.Entry<Key, Node<?>> value(Table table, int slot) {
+                        return new SimpleImmutableEntry<Key, Node<?>>(new Key(table.clazz, table.ids[slot]),
+                                (Node<?>) table.slots[slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return NodeIdentityMap.this.size;
+            }
+        };
+    }
+
+    /**
+     * Iterates the occupied slots of all the tables.
+     */
+    private abstract class Slots<E> implements Iterator<E> {
+        private int tableIndex;
+        private int slot = -1;
+        private Table current;
+        private int currentSlot = -1;
+
+        abstract E value(Table table, int slot);
+
+        @Override
+        public boolean hasNext() {
+            while (this.tableIndex < tables.size()) {
+                Object[] slots = tables.get(this.tableIndex).slots;
+                while (++this.slot < slots.length) {
+                    if (slots[this.slot] != null && slots[this.slot] != REMOVED) {
+                        this.slot--;
+                        return true;
+                    }
+                }
+                this.tableIndex++;
+                this.slot = -1;
+            }
+            return false;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.current = tables.get(this.tableIndex);
+            this.currentSlot = ++this.slot;
+            return value(this.current, this.currentSlot);
+        }
+
+        @Override
+        public void remove() {
+            if (this.current == null) {
+                throw new IllegalStateException();
+            }
+            this.current.removeAt(this.currentSlot);
+            size--;
+            this.current = null;
+        }
+    }
+
+    /**
+     * The nodes of one class by id, with linear probing.
+     */
+    private static final class Table {
+        final Class<?> clazz;
+        int[] ids = new int[16];
+        /** The nodes, null for a free slot or REMOVED. */
+        Object[] slots = new Object[16];
+        int size;
+        /** The number of slots holding a node or REMOVED. */
+        int used;
+
+        Table(Class<?> clazz) {
+            this.clazz = clazz;
+        }
+
+        private static int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        Node<?> get(int id) {
+            int mask = this.slots.length - 1;
+            for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+                Object slot = this.slots[i];
+                if (slot == null) {
+                    return null;
+                }
+                if (slot != REMOVED && this.ids[i] == id) {
+                    return (Node<?>) slot;
+                }
+            }
+        }
+
+        Node<?> put(int id, Node<?> node) {
+            int mask = this.slots.length - 1;
+            int free = -1;
+            int i = hash(id) & mask;
+            for (;; i = (i + 1) & mask) {
+                Object slot = this.slots[i];
+                if (slot == null) {
+                    break;
+                }
+                if (slot == REMOVED) {
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if (this.ids[i] == id) {
+                    this.slots[i] = node;
+                    return (Node<?>) slot;
+                }
+            }
+            if (free >= 0) {
+                i = free;
+            } else {
+                this.used++;
+            }
+            this.ids[i] = id;
+            this.slots[i] = node;
+            this.size++;
+            if (this.used * 2 > this.slots.length) {
+                rehash(this.size * 4 > this.slots.length ? this.slots.length * 2 : this.slots.length);
+            }
+            return null;
+        }
+
+        Node<?> remove(int id) {
+            int mask = this.slots.length - 1;
+            for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+                Object slot = this.slots[i];
+                if (slot == null) {
+                    return null;
+                }
+                if (slot != REMOVED && this.ids[i] == id) {
+                    removeAt(i);
+                    return (Node<?>) slot;
+                }
+            }
+        }
+
+        void removeAt(int i) {
+            this.slots[i] = REMOVED;
+            this.size--;
+        }
+
+        void clear() {
+            Arrays.fill(this.slots, null);
+            this.size = 0;
+            this.used = 0;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldIds = this.ids;
+            Object[] oldSlots = this.slots;
+            this.ids = new int[capacity];
+            this.slots = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldSlots.length; j++) {
+                if (oldSlots[j] != null && oldSlots[j] != REMOVED) {
+                    int i = hash(oldIds[j]) & mask;
+                    while (this.slots[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    this.ids[i] = oldIds[j];
+                    this.slots[i] = oldSlots[j];
+                }
+            }
+            this.used = this.size;
+        }
+    }
+}
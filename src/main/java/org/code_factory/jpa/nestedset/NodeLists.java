@@ -0,0 +1,108 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * INTERNAL: Answers the positional navigation of a node from lists of nodes
+ * already in memory, such as the cached children of its parent. Nodes are
+ * matched by id, so that different instances of the same row are equal.
+ *
+ * @author gabbol
+ */
+final class NodeLists {
+
+    private NodeLists() {
+    }
+
+    /**
+     * Returns the node at the given offset from the given node in the list,
+     * or null if there is none.
+     */
+    static <T extends NodeInfo> Node<T> neighbour(List<Node<T>> nodes, Node<T> node, int offset) {
+        int index = indexOf(nodes, node);
+        if (index < 0) {
+            return null;
+        }
+        return get(nodes, index + offset);
+    }
+
+    /**
+     * Returns the node at the given index, or null if the index is out of the
+     * list.
+     */
+    static <T extends NodeInfo> Node<T> get(List<Node<T>> nodes, int index) {
+        return index >= 0 && index < nodes.size() ? nodes.get(index) : null;
+    }
+
+    /**
+     * Returns a new list without the given node.
+     */
+    static <T extends NodeInfo> List<Node<T>> without(List<Node<T>> nodes, Node<T> node) {
+        List<Node<T>> result = new ArrayList<Node<T>>(nodes.size());
+        for (Node<T> n : nodes) {
+            if (n.getId() != node.getId()) {
+                result.add(n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the nearest ancestors out of the given ones, ordered from the
+     * root down, 0 meaning all of them.
+     */
+    static <T extends NodeInfo> List<Node<T>> nearest(List<Node<T>> ancestors, int depth) {
+        if (depth <= 0 || depth >= ancestors.size()) {
+            return ancestors;
+        }
+        return ancestors.subList(ancestors.size() - depth, ancestors.size());
+    }
+
+    /**
+     * Returns the leaves out of a complete subtree in preorder: the nodes not
+     * followed by a deeper node, restricted to the given filter if not null.
+     */
+    static <T extends NodeInfo> List<Node<T>> leaves(List<Node<T>> preorder, TypeFilter<?> filter) {
+        List<Node<T>> result = new ArrayList<Node<T>>();
+        for (int i = 0; i < preorder.size(); i++) {
+            Node<T> n = preorder.get(i);
+            boolean leaf = i + 1 == preorder.size() || preorder.get(i + 1).getLevel() <= n.getLevel();
+            if (leaf && (filter == null || filter.accept(n))) {
+                result.add(n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new list of the nodes accepted by the given filter.
+     */
+    static <T extends NodeInfo> List<Node<T>> filter(List<Node<T>> nodes, TypeFilter<?> filter) {
+        List<Node<T>> result = new ArrayList<Node<T>>();
+        for (Node<T> n : nodes) {
+            if (filter.accept(n)) {
+                result.add(n);
+            }
+        }
+        return result;
+    }
+
+    private static <T extends NodeInfo> int indexOf(List<Node<T>> nodes, Node<T> node) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).getId() == node.getId()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * A NodeInfo implementor that also stores the id of its parent, in the column
+ * marked with {@link org.code_factory.jpa.nestedset.annotations.ParentColumn}.
+ *
+ * @author gabbol
+ */
+public interface ParentNodeInfo extends NodeInfo {
+
+    /**
+     * @return the id of the parent node, or null for a root
+     */
+    Integer getParentId();
+
+    void setParentId(Integer parentId);
+}
@@ -0,0 +1,27 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * A NodeInfo implementor that also stores its materialized path, in the
+ * column marked with {@link org.code_factory.jpa.nestedset.annotations.PathColumn}.
+ *
+ * @author gabbol
+ */
+public interface PathNodeInfo extends NodeInfo {
+
+    /**
+     * @return the ids of the ancestors and of the node, as in
+     *         <code>/1/17/243/</code>
+     */
+    String getPath();
+
+    void setPath(String path);
+}
@@ -0,0 +1,58 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * INTERNAL: Reads and writes the left and right values of a NodeInfo as
+ * <code>long</code>, whether its columns are <code>int</code> or
+ * <code>long</code>.
+ *
+ * @author gabbol
+ */
+final class Positions {
+
+    private Positions() {
+    }
+
+    static long getLeft(NodeInfo info) {
+        return info instanceof LongNodeInfo ? ((LongNodeInfo) info).getLongLeftValue() : info.getLeftValue();
+    }
+
+    static long getRight(NodeInfo info) {
+        return info instanceof LongNodeInfo ? ((LongNodeInfo) info).getLongRightValue() : info.getRightValue();
+    }
+
+    static void setLeft(NodeInfo info, long value) {
+        if (info instanceof LongNodeInfo) {
+            ((LongNodeInfo) info).setLongLeftValue(value);
+        } else {
+            info.setLeftValue(toInt(value));
+        }
+    }
+
+    static void setRight(NodeInfo info, long value) {
+        if (info instanceof LongNodeInfo) {
+            ((LongNodeInfo) info).setLongRightValue(value);
+        } else {
+            info.setRightValue(toInt(value));
+        }
+    }
+
+    /**
+     * @throws ArithmeticException
+     *             if the position does not fit in an int column
+     */
+    static int toInt(long value) {
+        if ((int) value != value) {
+            throw new ArithmeticException("The position " + value + " does not fit in an int column.");
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * INTERNAL: A loaded subtree held as one list of nodes in preorder, with the
+ * parent, the depth and the last descendant of each node by index. The children,
+ * descendants and ancestors of its nodes are read-only views over the shared
+ * list, so that the memory is linear in the size of the subtree rather than
+ * in its size times its depth.
+ *
+ * @author gabbol
+ */
+final class PreorderTree<T extends NodeInfo> {
+    private final List<Node<T>> nodes;
+    /** The index of the parent of each node, -1 for the first one. */
+    private final int[] parents;
+    /** The depth of each node below the root of the subtree. */
+    private final int[] depths;
+    /** The index of the last descendant of each node (the node itself for a leaf). */
+    private final int[] ends;
+    /** The indexes of the children of all the nodes, grouped by parent. */
+    private final int[] childIndexes;
+    /** The start of the children of each node in childIndexes, plus the end. */
+    private final int[] childOffsets;
+    private final List<Node<T>> firstAncestors;
+
+    /**
+     * @param preorder
+     *            the nodes of a subtree ordered by left value, starting with
+     *            the root of the subtree
+     * @param firstAncestors
+     *            the ancestors of the root of the subtree, or null if they are
+     *            not known
+     */
+    PreorderTree(List<Node<T>> preorder, List<Node<T>> firstAncestors) {
+        this.nodes = Collections.unmodifiableList(preorder);
+        this.firstAncestors = firstAncestors;
+        int size = preorder.size();
+        this.parents = new int[size];
+        this.depths = new int[size];
+        this.ends = new int[size];
+        this.childOffsets = new int[size + 1];
+
+        int[] stack = new int[16];
+        int top = -1;
+        for (int i = 0; i < size; i++) {
+            long left = preorder.get(i).getLongLeftValue();
+            // close the subtrees ending before this node
+            while (top >= 0 && preorder.get(stack[top]).getLongRightValue() < left) {
+                this.ends[stack[top--]] = i - 1;
+            }
+            this.parents[i] = top >= 0 ? stack[top] : -1;
+            this.depths[i] = top + 1;
+            if (top >= 0) {
+                this.childOffsets[stack[top] + 1]++;
+            }
+            if (++top == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top] = i;
+        }
+        while (top >= 0) {
+            this.ends[stack[top--]] = size - 1;
+        }
+
+        for (int i = 0; i < size; i++) {
+            this.childOffsets[i + 1] += this.childOffsets[i];
+        }
+        this.childIndexes = new int[Math.max(size - 1, 0)];
+        int[] next = Arrays.copyOf(this.childOffsets, size);
+        for (int i = 1; i < size; i++) {
+            this.childIndexes[next[this.parents[i]]++] = i;
+        }
+    }
+
+    int size() {
+        return this.nodes.size();
+    }
+
+    Node<T> get(int index) {
+        return this.nodes.get(index);
+    }
+
+    /**
+     * Returns the parent of the node at the given index, null for the root of
+     * the subtree.
+     */
+    Node<T> getParent(int index) {
+        return index == 0 ? null : this.nodes.get(this.parents[index]);
+    }
+
+    List<Node<T>> getChildren(int index) {
+        return new Children(this.childOffsets[index], this.childOffsets[index + 1]);
+    }
+
+    List<Node<T>> getDescendants(int index) {
+        return this.nodes.subList(index + 1, this.ends[index] + 1);
+    }
+
+    /**
+     * Returns the ancestors of the node at the given index ordered from the
+     * root down, or null if those of the root of the subtree are not known.
+     */
+    List<Node<T>> getAncestors(int index) {
+        if (this.firstAncestors == null) {
+            return null;
+        }
+        return new Ancestors(index);
+    }
+
+    private final class Children extends AbstractList<Node<T>> implements RandomAccess {
+        private final int from;
+        private final int to;
+
+        Children(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Node<T> get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return nodes.get(childIndexes[this.from + index]);
+        }
+
+        @Override
+        public int size() {
+            return this.to - this.from;
+        }
+    }
+
+    /**
+     * The ancestors of a node, whose indexes are read from the parents on the
+     * first access.
+     */
+    private final class Ancestors extends AbstractList<Node<T>> implements RandomAccess {
+        private final int index;
+        private volatile int[] path;
+
+        Ancestors(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Node<T> get(int k) {
+            if (k < 0 || k >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + k + ", Size: " + size());
+            }
+            if (k < firstAncestors.size()) {
+                return firstAncestors.get(k);
+            }
+            int[] indexes = this.path;
+            if (indexes == null) {
+                indexes = new int[depths[this.index]];
+                for (int i = this.index, d = indexes.length - 1; d >= 0; d--) {
+                    i = parents[i];
+                    indexes[d] = i;
+                }
+                this.path = indexes;
+            }
+            return nodes.get(indexes[k - firstAncestors.size()]);
+        }
+
+        @Override
+        public int size() {
+            return firstAncestors.size() + depths[this.index];
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+
+import org.code_factory.jpa.nestedset.dialect.Dialect;
+
+/**
+ * The result of {@link NestedSetManager#rollup(Node, Class, String, int)}:
+ * one aggregate value for each node whose subtree holds linked entities. The
+ * node ids are kept in a sorted int array, so lookups do not box.
+ *
+ * @author gabbol
+ */
+public final class Rollup {
+    /** Counts the linked entities, or the non-null values of the attribute. */
+    public static final int COUNT = 0;
+    public static final int SUM = 1;
+    public static final int MIN = 2;
+    public static final int MAX = 3;
+
+    private final int[] nodeIds;
+    private final double[] values;
+
+    private Rollup(int[] nodeIds, double[] values) {
+        this.nodeIds = nodeIds;
+        this.values = values;
+    }
+
+    /**
+     * @return the number of nodes having a value
+     */
+    public int size() {
+        return this.nodeIds.length;
+    }
+
+    public boolean contains(int nodeId) {
+        return Arrays.binarySearch(this.nodeIds, nodeId) >= 0;
+    }
+
+    /**
+     * @param nodeId
+     * @param defaultValue
+     *            the value of the nodes without linked entities in their
+     *            subtree
+     * @return the value of the node with the given id
+     */
+    public double get(int nodeId, double defaultValue) {
+        int index = Arrays.binarySearch(this.nodeIds, nodeId);
+        return index >= 0 ? this.values[index] : defaultValue;
+    }
+
+    /**
+     * @return the id of the node at the given index, in increasing id order
+     */
+    public int getNodeId(int index) {
+        return this.nodeIds[index];
+    }
+
+    /**
+     * @return the value of the node at the given index
+     */
+    public double getValue(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * INTERNAL: Builds the statement aggregating the linked entities over the
+     * subtree of every node of a range: each node "a" is joined to the nodes
+     * "d" it contains and to their linked entities "l". The parameters are
+     * given by {@link #parameters(AbstractNestedSetManager, Node, Class)}.
+     */
+    static String sql(AbstractNestedSetManager nsm, Class<?> linkedTypeClass, String attribute, int function) {
+        Configuration config = nsm.getConfiguration();
+        String id = config.getColumnName(config.getIdFieldName() != null ? config.getIdFieldName() : "id");
+        String left = config.getColumnName(config.getLeftFieldName());
+        String right = config.getColumnName(config.getRightFieldName());
+        String root = config.hasManyRoots() ? config.getColumnName(config.getRootIdFieldName()) : null;
+        Field keyField = nsm.findPrimaryKeyField(linkedTypeClass);
+        String linkedKey = "l." + Configuration.columnNameOf(linkedTypeClass, keyField.getName());
+        // only the linked ids of this type are converted, the others may not be numbers
+        String linkedId = castToKey(nsm.getDialect(), "case when d."
+                + config.getColumnName(config.getLinkedTypeCodeFieldName()) + " = "
+                + config.getLinkedTypeCode(linkedTypeClass) + " then d."
+                + config.getColumnName(config.getLinkedIdFieldName()) + " end", keyField.getType());
+        String value = attribute != null ? "l." + Configuration.columnNameOf(linkedTypeClass, attribute) : "*";
+        if (value.equals("*") && function != COUNT) {
+            throw new IllegalArgumentException("Only COUNT needs no attribute");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select a.").append(id).append(", ").append(function(function)).append("(").append(value).append(")")
+                .append(" from ").append(config.getTableName()).append(" a")
+                .append(" join ").append(config.getTableName()).append(" d on d.").append(left).append(" >= a.")
+                .append(left).append(" and d.").append(right).append(" <= a.").append(right);
+        if (root != null) {
+            sb.append(" and d.").append(root).append(" = a.").append(root);
+        }
+        sb.append(" join ").append(Configuration.tableNameOf(linkedTypeClass)).append(" l on ").append(linkedKey)
+                .append(" = ").append(linkedId)
+                .append(" where a.").append(left).append(" >= ? and a.").append(right).append(" <= ?");
+        if (root != null) {
+            sb.append(" and a.").append(root).append(" = ?");
+        }
+        sb.append(" and d.").append(config.getColumnName(config.getLinkedTypeCodeFieldName())).append(" = ?")
+                .append(" group by a.").append(id);
+        return sb.toString();
+    }
+
+    /**
+     * Converts the linked id column, which holds strings, to the type of the
+     * primary key of the linked entities: the key is then compared as it is,
+     * and its index can be used.
+     */
+    private static String castToKey(Dialect dialect, String expression, Class<?> keyType) {
+        String sqlType;
+        if (keyType == String.class) {
+            return expression;
+        } else if (keyType == int.class || keyType == Integer.class) {
+            sqlType = "integer";
+        } else if (keyType == long.class || keyType == Long.class) {
+            sqlType = "bigint";
+        } else {
+            throw new IllegalArgumentException("The type of the id entity is not supported");
+        }
+        return dialect != null ? dialect.getCastSql(expression, sqlType) : "cast(" + expression + " as " + sqlType
+                + ")";
+    }
+
+    /**
+     * INTERNAL: Returns the parameters of the statement built by
+     * {@link #sql(AbstractNestedSetManager, Class, String, int)}.
+     */
+    static Object[] parameters(AbstractNestedSetManager nsm, Node<?> subtreeRoot, Class<?> linkedTypeClass) {
+        Configuration config = nsm.getConfiguration();
+        Object left = nsm.position(subtreeRoot.getLongLeftValue());
+        Object right = nsm.position(subtreeRoot.getLongRightValue());
+        int code = config.getLinkedTypeCode(linkedTypeClass);
+        if (config.hasManyRoots()) {
+            return new Object[] { left, right, subtreeRoot.getRootValue(), code };
+        }
+        return new Object[] { left, right, code };
+    }
+
+    /**
+     * INTERNAL: Reads the rows (node id, value) of the statement, skipping the
+     * null values of MIN and MAX.
+     */
+    static Rollup of(List<Object[]> rows) {
+        int[] ids = new int[rows.size()];
+        double[] values = new double[rows.size()];
+        int size = 0;
+        for (Object[] row : rows) {
+            if (row[1] != null) {
+                ids[size] = ((Number) row[0]).intValue();
+                values[size] = ((Number) row[1]).doubleValue();
+                size++;
+            }
+        }
+        // sort both arrays by id: each id is packed with its index, so a
+        // primitive sort orders them together
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        int[] sortedIds = new int[size];
+        double[] sortedValues = new double[size];
+        for (int i = 0; i < size; i++) {
+            int index = (int) order[i];
+            sortedIds[i] = ids[index];
+            sortedValues[i] = values[index];
+        }
+        return new Rollup(sortedIds, sortedValues);
+    }
+
+    private static String function(int function) {
+        switch (function) {
+        case COUNT:
+            return "count";
+        case SUM:
+            return "sum";
+        case MIN:
+            return "min";
+        case MAX:
+            return "max";
+        default:
+            throw new IllegalArgumentException("Unknown aggregate function: " + function);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import javax.persistence.OptimisticLockException;
+
+/**
+ * Thrown when a structural operation finds that the tree it modifies has been
+ * changed by another writer since its nodes were read.
+ * The transaction should be rolled back, the {@link NestedSetManager} cleared and
+ * the operation retried.
+ *
+ * @author gabbol
+ */
+public class RootVersionConflictException extends OptimisticLockException {
+    private static final long serialVersionUID = 4610394474916180813L;
+
+    private final int rootValue;
+    private final int expectedVersion;
+
+    public RootVersionConflictException(int rootValue, int expectedVersion) {
+        super("The tree with root " + rootValue + " is no longer at version " + expectedVersion
+                + ": it has been modified concurrently");
+        this.rootValue = rootValue;
+        this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * @return the root value of the tree in conflict
+     */
+    public int getRootValue() {
+        return rootValue;
+    }
+
+    /**
+     * @return the version the operation expected to find
+     */
+    public int getExpectedVersion() {
+        return expectedVersion;
+    }
+}
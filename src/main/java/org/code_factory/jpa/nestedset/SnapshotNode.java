@@ -0,0 +1,204 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A read-only node of a {@link TreeSnapshot}. All navigation methods are
+ * answered from the snapshot, without database access or locking. Unlike a
+ * {@link NodeInfo}, it has no setters.
+ *
+ * @author gabbol
+ */
+@Immutable
+public final class SnapshotNode {
+    private final TreeSnapshot snapshot;
+    private final int index;
+
+    SnapshotNode(TreeSnapshot snapshot, int index) {
+        this.snapshot = snapshot;
+        this.index = index;
+    }
+
+    /**
+     * @return the snapshot the node belongs to
+     */
+    public TreeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the id of the node
+     */
+    public int getId() {
+        return snapshot.ids[index];
+    }
+
+    /**
+     * @return the left value of the node
+     */
+    public int getLeftValue() {
+        return Positions.toInt(snapshot.lefts[index]);
+    }
+
+    /**
+     * @return the right value of the node
+     */
+    public int getRightValue() {
+        return Positions.toInt(snapshot.rights[index]);
+    }
+
+    /**
+     * @return the left value of the node, for long positions
+     */
+    public long getLongLeftValue() {
+        return snapshot.lefts[index];
+    }
+
+    /**
+     * @return the right value of the node, for long positions
+     */
+    public long getLongRightValue() {
+        return snapshot.rights[index];
+    }
+
+    /**
+     * @return the level of the node
+     */
+    public int getLevel() {
+        return snapshot.levels[index];
+    }
+
+    /**
+     * @return the root value of the tree of the node
+     */
+    public int getRootValue() {
+        return snapshot.getRootValue();
+    }
+
+    /**
+     * @return the code of the type of the linked entity
+     */
+    public int getLinkedTypeCode() {
+        return snapshot.linkedTypeCodes[index];
+    }
+
+    /**
+     * @return the id of the linked entity
+     */
+    public String getLinkedId() {
+        return snapshot.linkedIds[index];
+    }
+
+    /**
+     * Returns returns the class of the linked entity
+     * @return linked entity Class
+     */
+    public Class<?> getLinkedTypeClass() {
+        return snapshot.getConfiguration().getLinkedTypeClass(getLinkedTypeCode());
+    }
+
+    /**
+     * Gets the parent node of this node.
+     *
+     * @return The parent node or NULL if this is a root node.
+     */
+    public SnapshotNode getParent() {
+        int parent = snapshot.parents[index];
+        return parent < 0 ? null : snapshot.node(parent);
+    }
+
+    /**
+     * Gets the children of the node, in order.
+     *
+     * @return The children of the node.
+     */
+    public List<SnapshotNode> getChildren() {
+        List<SnapshotNode> children = new ArrayList<SnapshotNode>();
+        int end = snapshot.ends[index];
+        for (int child = index + 1; child <= end; child = snapshot.ends[child] + 1) {
+            children.add(snapshot.node(child));
+        }
+        return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Gets the descendants of this node, in preorder.
+     *
+     * @return The descendants of this node.
+     */
+    public List<SnapshotNode> getDescendants() {
+        return snapshot.range(index + 1, snapshot.ends[index] + 1);
+    }
+
+    /**
+     * Gets descendants of this node, up to a certain depth.
+     *
+     * @param depth
+     * @return The descendants of the node, up to the specified depth.
+     */
+    public List<SnapshotNode> getDescendants(int depth) {
+        if (depth == 0) {
+            return getDescendants();
+        }
+        int maxLevel = getLevel() + depth;
+        List<SnapshotNode> descendants = new ArrayList<SnapshotNode>();
+        int end = snapshot.ends[index];
+        for (int i = index + 1; i <= end; i++) {
+            if (snapshot.levels[i] <= maxLevel) {
+                descendants.add(snapshot.node(i));
+            } else {
+                // skip the deeper part of the subtree
+                i = snapshot.ends[i];
+            }
+        }
+        return Collections.unmodifiableList(descendants);
+    }
+
+    /**
+     * Gets all ancestors of this node, starting from the root.
+     *
+     * @return The ancestors of the node.
+     */
+    public List<SnapshotNode> getAncestors() {
+        List<SnapshotNode> ancestors = new ArrayList<SnapshotNode>(getLevel());
+        for (int i = snapshot.parents[index]; i >= 0; i = snapshot.parents[i]) {
+            ancestors.add(snapshot.node(i));
+        }
+        Collections.reverse(ancestors);
+        return Collections.unmodifiableList(ancestors);
+    }
+
+    public boolean isRoot() {
+        return snapshot.parents[index] < 0;
+    }
+
+    public boolean hasChildren() {
+        return snapshot.ends[index] > index;
+    }
+
+    /**
+     * Determines if this node is a descendant of the given node.
+     */
+    public boolean isDescendantOf(SnapshotNode other) {
+        return other.snapshot == snapshot && index > other.index && index <= snapshot.ends[other.index];
+    }
+
+    @Override
+    public String toString() {
+        return "[Left: " + getLongLeftValue() + ", Right: " + getLongRightValue() + ", Level: " + getLevel()
+                + ", Id: " + getId() + "]";
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+/**
+ * A batch of structural changes to a single tree. The operations are applied
+ * to an in-memory copy of the tree; nothing is written until {@link #commit()},
+ * which renumbers the tree once and updates only the rows whose position has
+ * actually changed. The intermediate states never reach the database and a
+ * single merged event is fired.
+ * <p>
+ * A session is obtained from {@link JpaNestedSetManager#openEditSession(Node)} and
+ * must be used by one thread only.
+ <p>
+ * The tree is read once, when the session is opened. If the tree is versioned,
+ * the commit fails when the tree has been modified since then. Without a
+ * version the session is last-writer-wins: the commit writes the positions
+ * computed from the tree as it was read, over any change made in between.
+ *
+ * @param <T extends NodeInfo> The wrapped entity type.
+ * @author gabbol
+ */
+public interface TreeEditSession<T extends NodeInfo> {
+
+    /**
+     * Adds a new node as the last child of the given node.
+     *
+     * @param parent a node of the edited tree
+     * @param child the new node, not yet persisted
+     */
+    void addChild(T parent, T child);
+
+    /**
+     * Moves the node as the first child of the given node.
+     *
+     * @param node the node to move
+     * @param dest the destination node
+     */
+    void moveAsFirstChildOf(T node, T dest);
+
+    /**
+     * Moves the node as the last child of the given node.
+     *
+     * @param node the node to move
+     * @param dest the destination node
+     */
+    void moveAsLastChildOf(T node, T dest);
+
+    /**
+     * Moves the node as the previous sibling of the given node.
+     *
+     * @param node the node to move
+     * @param dest the destination node, which cannot be the root
+     */
+    void moveAsPrevSiblingOf(T node, T dest);
+
+    /**
+     * Moves the node as the next sibling of the given node.
+     *
+     * @param node the node to move
+     * @param dest the destination node, which cannot be the root
+     */
+    void moveAsNextSiblingOf(T node, T dest);
+
+    /**
+     * Deletes the node and its descendants.
+     *
+     * @param node the node to delete, which cannot be the root
+     */
+    void delete(T node);
+
+    /**
+     * Writes the changes and fires one event with all of them. The session is
+     * closed afterwards.
+     *
+     * @throws RootVersionConflictException
+     *             if the tree is versioned and has been modified since the
+     *             session was opened.
+     */
+    void commit();
+
+    /**
+     * Discards the changes and closes the session.
+     */
+    void rollback();
+
+    /**
+     * @return true until the session is committed or rolled back
+     */
+    boolean isOpen();
+}
@@ -0,0 +1,224 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * An immutable copy of a tree, as it was committed when the snapshot was
+ * built. The nodes are kept in preorder (ordered by left value), so that the
+ * descendants of a node are the contiguous range following it.
+ * <p>
+ * Snapshots are published by a {@link NestedSetManager} and can be read by any
+ * number of threads without locking.
+ *
+ * @see NestedSetManager#getSnapshot(int)
+ * @author gabbol
+ */
+@Immutable
+public final class TreeSnapshot {
+    private static final int[] NO_INDEXES = new int[0];
+
+    private final Configuration configuration;
+    private final int rootValue;
+    final int[] ids;
+    final long[] lefts;
+    final long[] rights;
+    final int[] levels;
+    final int[] linkedTypeCodes;
+    final String[] linkedIds;
+    /** The index of the parent of each node, -1 for the top-level nodes. */
+    final int[] parents;
+    /** The index of the last descendant of each node (the node itself for a leaf). */
+    final int[] ends;
+    private final SnapshotNode[] nodes;
+    private final List<SnapshotNode> roots;
+    private final Map<Integer, Integer> indexById;
+    private final Map<LinkedKey, int[]> indexesByLinkedKey;
+
+    /**
+     * INTERNAL: Builds a snapshot from rows holding, in this order, the id,
+     * left, right, level, linked type code and linked id of the nodes of a
+     * tree, ordered by left value.
+     */
+    TreeSnapshot(Configuration configuration, int rootValue, List<Object[]> rows) {
+        this.configuration = configuration;
+        this.rootValue = rootValue;
+        int size = rows.size();
+        this.ids = new int[size];
+        this.lefts = new long[size];
+        this.rights = new long[size];
+        this.levels = new int[size];
+        this.linkedTypeCodes = new int[size];
+        this.linkedIds = new String[size];
+        this.parents = new int[size];
+        this.ends = new int[size];
+        this.nodes = new SnapshotNode[size];
+        this.indexById = new HashMap<Integer, Integer>(size * 2);
+        Map<LinkedKey, List<Integer>> occurrences = new HashMap<LinkedKey, List<Integer>>();
+        List<SnapshotNode> topLevel = new ArrayList<SnapshotNode>();
+
+        int[] stack = new int[16];
+        int top = -1;
+        for (int i = 0; i < size; i++) {
+            Object[] row = rows.get(i);
+            this.ids[i] = ((Number) row[0]).intValue();
+            this.lefts[i] = ((Number) row[1]).longValue();
+            this.rights[i] = ((Number) row[2]).longValue();
+            this.levels[i] = ((Number) row[3]).intValue();
+            this.linkedTypeCodes[i] = ((Number) row[4]).intValue();
+            this.linkedIds[i] = (String) row[5];
+            this.nodes[i] = new SnapshotNode(this, i);
+            this.indexById.put(this.ids[i], i);
+
+            LinkedKey key = new LinkedKey(this.linkedTypeCodes[i], this.linkedIds[i]);
+            List<Integer> indexes = occurrences.get(key);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>(1);
+                occurrences.put(key, indexes);
+            }
+            indexes.add(i);
+
+            // close the subtrees ending before this node
+            while (top >= 0 && this.rights[stack[top]] < this.lefts[i]) {
+                this.ends[stack[top--]] = i - 1;
+            }
+            this.parents[i] = top >= 0 ? stack[top] : -1;
+            if (top < 0) {
+                topLevel.add(this.nodes[i]);
+            }
+            if (++top == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top] = i;
+        }
+        while (top >= 0) {
+            this.ends[stack[top--]] = size - 1;
+        }
+
+        this.indexesByLinkedKey = new HashMap<LinkedKey, int[]>(occurrences.size() * 2);
+        for (Map.Entry<LinkedKey, List<Integer>> entry : occurrences.entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            int[] array = new int[indexes.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = indexes.get(i);
+            }
+            this.indexesByLinkedKey.put(entry.getKey(), array);
+        }
+        this.roots = Collections.unmodifiableList(topLevel);
+    }
+
+    /**
+     * @return the root value of the tree
+     */
+    public int getRootValue() {
+        return rootValue;
+    }
+
+    /**
+     * @return the number of nodes of the tree
+     */
+    public int size() {
+        return this.nodes.length;
+    }
+
+    /**
+     * Returns the root node of the tree, or null if the tree is empty.
+     */
+    public SnapshotNode getRoot() {
+        return this.roots.isEmpty() ? null : this.roots.get(0);
+    }
+
+    /**
+     * Returns the top-level nodes. There is more than one only when the
+     * configuration has no root column and all trees share the same table
+     * space.
+     */
+    public List<SnapshotNode> getRoots() {
+        return this.roots;
+    }
+
+    /**
+     * Returns all nodes of the tree in preorder.
+     */
+    public List<SnapshotNode> getNodes() {
+        return range(0, this.nodes.length);
+    }
+
+    /**
+     * Returns the node with the given ID, or null if it is not in the tree.
+     */
+    public SnapshotNode getNode(int id) {
+        Integer index = this.indexById.get(id);
+        return index == null ? null : this.nodes[index];
+    }
+
+    /**
+     * Searches the nodes which have the given linked entity.
+     *
+     * @param linkedTypeClass Class type of the linked entity
+     * @param linkedId the ID of the linked entity
+     * @return the matching nodes, in preorder
+     */
+    public List<SnapshotNode> find(Class<?> linkedTypeClass, Object linkedId) {
+        return find(this.configuration.getLinkedTypeCode(linkedTypeClass), String.valueOf(linkedId));
+    }
+
+    List<SnapshotNode> find(int linkedTypeCode, String linkedId) {
+        int[] indexes = this.indexesByLinkedKey.get(new LinkedKey(linkedTypeCode, linkedId));
+        if (indexes == null) {
+            indexes = NO_INDEXES;
+        }
+        List<SnapshotNode> result = new ArrayList<SnapshotNode>(indexes.length);
+        for (int index : indexes) {
+            result.add(this.nodes[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the shape of the tree from the snapshot, without database
+     * access.
+     *
+     * @param largest
+     *            the number of largest subtrees to find
+     */
+    public TreeStatistics getStatistics(int largest) {
+        return TreeStatistics.of(this, largest);
+    }
+
+    Configuration getConfiguration() {
+        return configuration;
+    }
+
+    SnapshotNode node(int index) {
+        return this.nodes[index];
+    }
+
+    /**
+     * Returns an unmodifiable view of the nodes between the given indexes,
+     * without copying them.
+     */
+    List<SnapshotNode> range(int fromIndex, int toIndex) {
+        return Collections.unmodifiableList(Arrays.asList(this.nodes).subList(fromIndex, toIndex));
+    }
+
+    @Override
+    public String toString() {
+        return "[TreeSnapshot: root=" + this.rootValue + ", size=" + this.nodes.length + "]";
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The shape of a tree: the number of nodes on each level, the fan-out of the
+ * inner nodes, the distribution of the subtree sizes and the largest
+ * subtrees below the root. All values are held in primitive arrays, so the
+ * statistics are cheap to keep and to export.
+ *
+ * @see JpaNestedSetManager#getStatistics(int, int)
+ * @see TreeSnapshot#getStatistics(int)
+ * @author gabbol
+ */
+public final class TreeStatistics {
+    private final int rootValue;
+    private final long[] levelCounts;
+    private final long leafCount;
+    /** The distinct numbers of children of the inner nodes, ascending. */
+    private final int[] fanOuts;
+    /** The number of inner nodes having each fan-out. */
+    private final long[] fanOutCounts;
+    private final long[] sizeHistogram;
+    private final int[] largestIds;
+    private final long[] largestSizes;
+
+    TreeStatistics(int rootValue, long[] levelCounts, long leafCount, int[] fanOuts, long[] fanOutCounts,
+            long[] sizeHistogram, int[] largestIds, long[] largestSizes) {
+        this.rootValue = rootValue;
+        this.levelCounts = levelCounts;
+        this.leafCount = leafCount;
+        this.fanOuts = fanOuts;
+        this.fanOutCounts = fanOutCounts;
+        this.sizeHistogram = sizeHistogram;
+        this.largestIds = largestIds;
+        this.largestSizes = largestSizes;
+    }
+
+    /**
+     * @return the root value of the tree
+     */
+    public int getRootValue() {
+        return rootValue;
+    }
+
+    /**
+     * @return the number of nodes of the tree
+     */
+    public long getNodeCount() {
+        long count = 0;
+        for (long levelCount : this.levelCounts) {
+            count += levelCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the level of the deepest nodes, or -1 if the tree is empty
+     */
+    public int getMaxDepth() {
+        return this.levelCounts.length - 1;
+    }
+
+    /**
+     * @return the number of nodes on the given level, 0 for the root
+     */
+    public long getLevelCount(int level) {
+        return level >= 0 && level < this.levelCounts.length ? this.levelCounts[level] : 0;
+    }
+
+    /**
+     * @return the number of nodes on each level
+     */
+    public long[] getLevelCounts() {
+        return this.levelCounts.clone();
+    }
+
+    /**
+     * @return the number of nodes without children
+     */
+    public long getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * @return the greatest number of children of a node
+     */
+    public int getMaxFanOut() {
+        return this.fanOuts.length == 0 ? 0 : this.fanOuts[this.fanOuts.length - 1];
+    }
+
+    /**
+     * @return the average number of children of the nodes having children
+     */
+    public double getAverageFanOut() {
+        long inner = 0;
+        long children = 0;
+        for (int i = 0; i < this.fanOuts.length; i++) {
+            inner += this.fanOutCounts[i];
+            children += this.fanOuts[i] * this.fanOutCounts[i];
+        }
+        return inner == 0 ? 0 : (double) children / inner;
+    }
+
+    /**
+     * Returns the number of children that the given percentage of the nodes
+     * having children do not exceed, by the nearest rank.
+     *
+     * @param percentile
+     *            between 0 and 100
+     */
+    public int getFanOutPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Not a percentile: " + percentile);
+        }
+        long inner = 0;
+        for (long count : this.fanOutCounts) {
+            inner += count;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * inner));
+        for (int i = 0; i < this.fanOuts.length; i++) {
+            rank -= this.fanOutCounts[i];
+            if (rank <= 0) {
+                return this.fanOuts[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the distribution of the subtree sizes, the node included: the
+     * element k is the number of subtrees having between 2^k and 2^(k+1) - 1
+     * nodes, so the element 0 is the number of leaves.
+     */
+    public long[] getSizeHistogram() {
+        return this.sizeHistogram.clone();
+    }
+
+    /**
+     * @return the ids of the nodes with the largest subtrees, the roots of the
+     *         trees (level 0) excepted, the largest first
+     */
+    public int[] getLargestSubtreeIds() {
+        return this.largestIds.clone();
+    }
+
+    /**
+     * @return the number of nodes of the largest subtrees, in the order of
+     *         {@link #getLargestSubtreeIds()}
+     */
+    public long[] getLargestSubtreeSizes() {
+        return this.largestSizes.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "[TreeStatistics: root=" + this.rootValue + ", nodes=" + getNodeCount() + ", depth=" + getMaxDepth()
+                + ", maxFanOut=" + getMaxFanOut() + "]";
+    }
+
+    /**
+     * INTERNAL: Returns the index of the size histogram counting the subtrees
+     * of the given size.
+     */
+    static int sizeBucket(long size) {
+        return 63 - Long.numberOfLeadingZeros(size);
+    }
+
+    /**
+     * INTERNAL: Adds the given number of subtrees of the given size to a
+     * histogram, growing it if needed.
+     */
+    static long[] addToHistogram(long[] histogram, long size, long count) {
+        int bucket = sizeBucket(size);
+        long[] result = bucket < histogram.length ? histogram : Arrays.copyOf(histogram, bucket + 1);
+        result[bucket] += count;
+        return result;
+    }
+
+    /**
+     * INTERNAL: Computes the statistics of a snapshot. The subtree sizes are
+     * the numbers of nodes, which do not depend on the left/right values.
+     */
+    static TreeStatistics of(TreeSnapshot snapshot, int largest) {
+        int size = snapshot.size();
+        int[] childCounts = new int[size];
+        long[] levelCounts = new long[0];
+        long[] sizeHistogram = new long[0];
+        long leafCount = 0;
+        for (int i = 0; i < size; i++) {
+            int level = snapshot.levels[i];
+            if (level >= levelCounts.length) {
+                levelCounts = Arrays.copyOf(levelCounts, level + 1);
+            }
+            levelCounts[level]++;
+            if (snapshot.parents[i] >= 0) {
+                childCounts[snapshot.parents[i]]++;
+            }
+            if (snapshot.ends[i] == i) {
+                leafCount++;
+            }
+            sizeHistogram = addToHistogram(sizeHistogram, snapshot.ends[i] - i + 1, 1);
+        }
+
+        int[] sorted = sortedFanOuts(childCounts);
+        int[] fanOuts = new int[distinctCount(sorted)];
+        long[] fanOutCounts = new long[fanOuts.length];
+        groupFanOuts(sorted, fanOuts, fanOutCounts);
+
+        final TreeSnapshot s = snapshot;
+        Integer[] below = new Integer[size];
+        int belowCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (snapshot.parents[i] >= 0) {
+                below[belowCount++] = i;
+            }
+        }
+        Arrays.sort(below, 0, belowCount, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int size1 = s.ends[o1] - o1;
+                int size2 = s.ends[o2] - o2;
+                return size1 > size2 ? -1 : (size1 == size2 ? 0 : 1);
+            }
+        });
+        int k = Math.min(largest, belowCount);
+        int[] largestIds = new int[k];
+        long[] largestSizes = new long[k];
+        for (int i = 0; i < k; i++) {
+            largestIds[i] = snapshot.ids[below[i]];
+            largestSizes[i] = snapshot.ends[below[i]] - below[i] + 1;
+        }
+        return new TreeStatistics(snapshot.getRootValue(), levelCounts, leafCount, fanOuts, fanOutCounts,
+                sizeHistogram, largestIds, largestSizes);
+    }
+
+    /**
+     * INTERNAL: Returns the sorted numbers of children of the inner nodes,
+     * given the numbers of children of all nodes.
+     */
+    static int[] sortedFanOuts(int[] childCounts) {
+        int innerCount = 0;
+        for (int count : childCounts) {
+            if (count > 0) {
+                innerCount++;
+            }
+        }
+        int[] sorted = new int[innerCount];
+        int n = 0;
+        for (int count : childCounts) {
+            if (count > 0) {
+                sorted[n++] = count;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * INTERNAL: Returns the number of distinct values of a sorted array.
+     */
+    static int distinctCount(int[] sorted) {
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * INTERNAL: Groups sorted fan-outs into the two given arrays, sized by
+     * {@link #distinctCount(int[])}.
+     */
+    static void groupFanOuts(int[] sorted, int[] fanOuts, long[] fanOutCounts) {
+        int d = -1;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                fanOuts[++d] = sorted[i];
+            }
+            fanOutCounts[d]++;
+        }
+    }
+
+    /**
+     * INTERNAL: Reads rows (fan-out, number of nodes) ordered by fan-out into
+     * the two given arrays.
+     */
+    static void readFanOuts(List<Object[]> rows, int[] fanOuts, long[] fanOutCounts) {
+        for (int i = 0; i < fanOuts.length; i++) {
+            Object[] row = rows.get(i);
+            fanOuts[i] = ((Number) row[0]).intValue();
+            fanOutCounts[i] = ((Number) row[1]).longValue();
+        }
+    }
+}
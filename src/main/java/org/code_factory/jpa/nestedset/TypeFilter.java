@@ -9,8 +9,15 @@
 
 package org.code_factory.jpa.nestedset;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
- * A filter to select a collection of nodes based on the linked type class
+ * A filter to select a collection of nodes based on the linked type class.
+ * A filter accepts one or more linked types; the node queries compile it to a
+ * predicate on the linked type code column, so that the rejected nodes are not
+ * loaded.
  * 
  * @param <T> The linked entity type.
  * 
@@ -24,12 +31,103 @@ public class TypeFilter<T>  {
     public TypeFilter(Class<T> typeClass) {
         super();
         this.typeClass = typeClass;
+        this.typeClasses = new Class<?>[] { typeClass };
+    }
+
+    private TypeFilter(Class<?>[] typeClasses) {
+        this.typeClass = null;
+        this.typeClasses = typeClasses;
     }
 
     private Class<T> typeClass;
+    private final Class<?>[] typeClasses;
+
+    /**
+     * Creates a filter accepting any of the given linked types.
+     */
+    public static TypeFilter<Object> anyOf(Class<?>... typeClasses) {
+        return new TypeFilter<Object>(distinct(Arrays.asList(typeClasses)));
+    }
+
+    /**
+     * Creates a filter accepting the nodes accepted by any of the given
+     * filters.
+     */
+    public static TypeFilter<Object> any(TypeFilter<?>... filters) {
+        List<Class<?>> union = new ArrayList<Class<?>>();
+        for (TypeFilter<?> filter : filters) {
+            union.addAll(Arrays.asList(filter.typeClasses));
+        }
+        return new TypeFilter<Object>(distinct(union));
+    }
+
+    /**
+     * Creates a filter accepting the nodes accepted by all of the given
+     * filters. A node has a single linked type, so this is the intersection
+     * of the accepted types.
+     */
+    public static TypeFilter<Object> all(TypeFilter<?>... filters) {
+        if (filters.length == 0) {
+            throw new IllegalArgumentException("No filters given");
+        }
+        List<Class<?>> intersection = new ArrayList<Class<?>>(Arrays.asList(filters[0].typeClasses));
+        for (int i = 1; i < filters.length; i++) {
+            intersection.retainAll(Arrays.asList(filters[i].typeClasses));
+        }
+        return new TypeFilter<Object>(distinct(intersection));
+    }
+
+    private static Class<?>[] distinct(List<Class<?>> typeClasses) {
+        List<Class<?>> result = new ArrayList<Class<?>>(typeClasses.size());
+        for (Class<?> typeClass : typeClasses) {
+            if (!result.contains(typeClass)) {
+                result.add(typeClass);
+            }
+        }
+        return result.toArray(new Class<?>[result.size()]);
+    }
     
     public boolean accept(Node<? extends NodeInfo> node) {
-        return node.getLinkedTypeClass().equals(typeClass);
+        Class<?> linkedTypeClass = node.getLinkedTypeClass();
+        for (Class<?> accepted : this.typeClasses) {
+            if (accepted.equals(linkedTypeClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the linked type class accepted by this filter, or null if it
+     *         was composed of several types
+     */
+    public Class<T> getTypeClass() {
+        return typeClass;
+    }
+
+    /**
+     * @return the linked type classes accepted by this filter
+     */
+    public Class<?>[] getTypeClasses() {
+        return typeClasses.clone();
+    }
+
+    /**
+     * Returns the codes of the accepted linked types in the given
+     * configuration, leaving out the classes it does not link.
+     *
+     * @param configuration
+     * @return the codes, empty if the filter accepts no node
+     */
+    public int[] getLinkedTypeCodes(Configuration configuration) {
+        int[] codes = new int[this.typeClasses.length];
+        int n = 0;
+        for (Class<?> accepted : this.typeClasses) {
+            if (configuration.isLinkedType(accepted)) {
+                codes[n++] = configuration.getLinkedTypeCode(accepted);
+            }
+        }
+        return Arrays.copyOf(codes, n);
     }
 
 }
@@ -0,0 +1,31 @@
+package org.code_factory.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks one of the four long columns holding the nested interval of a node,
+ * as an alternative to the left and right columns of a nested set. The left
+ * and right bounds of the interval are fractions stored as a numerator and a
+ * denominator column each.
+ * <p>
+ * An entity with these columns is managed by a
+ * {@link org.code_factory.jpa.nestedset.JpaNestedIntervalManager} and must
+ * implement {@link org.code_factory.jpa.nestedset.IntervalNodeInfo}. Unlike
+ * the left and right columns, the interval columns are written through the
+ * entities and must be updatable.
+ *
+ * @author gabbol
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface IntervalColumn {
+    int LEFT_NUMERATOR = 0;
+    int LEFT_DENOMINATOR = 1;
+    int RIGHT_NUMERATOR = 2;
+    int RIGHT_DENOMINATOR = 3;
+
+    /**
+     * @return which part of the interval the column holds
+     */
+    int value();
+}
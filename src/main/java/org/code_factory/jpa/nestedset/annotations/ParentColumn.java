@@ -0,0 +1,17 @@
+package org.code_factory.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks the optional column holding the id of the parent node, null for the
+ * roots. When present, the parent and the children of a node are looked up
+ * by this column instead of by a left/right range, and the structural
+ * operations keep it in sync. The entity must implement
+ * {@link org.code_factory.jpa.nestedset.ParentNodeInfo}, and the column
+ * should be indexed.
+ *
+ * @author gabbol
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ParentColumn {}
@@ -0,0 +1,19 @@
+package org.code_factory.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks the optional string column holding the materialized path of a node:
+ * the ids of its ancestors and its own id, each followed by a slash, as in
+ * <code>/1/17/243/</code>. When present, the ancestors are read from the path
+ * of the node and the descendants are selected with
+ * <code>LIKE '/1/17/243/%'</code>, which can use an index on the column. The
+ * structural operations keep it in sync, so it should be mapped with
+ * <code>updatable = false</code> like the left/right columns. The entity must
+ * implement {@link org.code_factory.jpa.nestedset.PathNodeInfo}.
+ *
+ * @author gabbol
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface PathColumn {}
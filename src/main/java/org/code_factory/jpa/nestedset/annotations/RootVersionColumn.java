@@ -0,0 +1,16 @@
+package org.code_factory.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks the optional integer column holding the version of a tree.
+ * Only the value stored on the root node (left = 1) of each tree is used: every
+ * structural operation checks it against the version read by the manager and
+ * increments it. The column should be mapped with <code>updatable = false</code>
+ * like the left/right columns, since it is maintained through bulk updates.
+ *
+ * @author gabbol
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RootVersionColumn {}
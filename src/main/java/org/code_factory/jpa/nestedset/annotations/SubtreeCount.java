@@ -0,0 +1,14 @@
+package org.code_factory.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks an optional int or long column holding the number of nodes in the
+ * subtree of a node, the node included. The JpaNestedSetManager maintains it
+ * like the {@link SubtreeSum} columns.
+ *
+ * @author gabbol
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SubtreeCount {}
@@ -0,0 +1,23 @@
+package org.code_factory.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks an optional numeric column holding the sum of another field of the
+ * entity over the subtree of a node, the node included. Adding, deleting and
+ * moving a node only apply the sum of its subtree as a delta to the
+ * ancestors that gain or lose it, with one set-based update for each chain of
+ * ancestors. Changes of the summed field itself are not tracked; call
+ * <code>JpaNestedSetManager.rebuildSubtreeAggregates()</code> after them.
+ *
+ * @author gabbol
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SubtreeSum {
+
+    /**
+     * @return the name of the summed field
+     */
+    String of();
+}
@@ -0,0 +1,221 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset.dialect;
+
+import java.util.Map;
+
+import org.code_factory.jpa.nestedset.Configuration;
+
+/**
+ * Generates the native SQL used by the hot structural operations instead of
+ * the generic JPQL statements. The statements use JDBC-style <code>?</code>
+ * parameters and the table and column names discovered by the
+ * {@link Configuration}.
+ * <p>
+ * A dialect is detected from the JDBC URL of the persistence unit; when none
+ * matches, the managers fall back to JPQL.
+ *
+ * @author gabbol
+ */
+public abstract class Dialect {
+    private static final String[] URL_PROPERTIES = { "javax.persistence.jdbc.url", "eclipselink.jdbc.url",
+            "hibernate.connection.url", "openjpa.ConnectionURL" };
+
+    /**
+     * @return the name of the database
+     */
+    public abstract String getName();
+
+    /**
+     * @return true if the database supports <code>WITH RECURSIVE</code>
+     *         queries
+     */
+    public boolean supportsRecursiveQueries() {
+        return true;
+    }
+
+    /**
+     * Returns a statement that adds a delta to all left and right values in a
+     * range in one pass, instead of one statement for each column. The
+     * parameters are given by
+     * {@link #getShiftParameters(Configuration, long, long, long, int)}.
+     *
+     * @param config
+     * @param bounded
+     *            true if the range has an upper bound
+     * @return the update statement
+     */
+    public String getShiftSql(Configuration config, boolean bounded) {
+        String left = config.getColumnName(config.getLeftFieldName());
+        String right = config.getColumnName(config.getRightFieldName());
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(config.getTableName())
+                .append(" set ").append(left).append(" = case when ").append(range(left, bounded))
+                .append(" then ").append(left).append(" + ? else ").append(left).append(" end")
+                .append(", ").append(right).append(" = case when ").append(range(right, bounded))
+                .append(" then ").append(right).append(" + ? else ").append(right).append(" end")
+                .append(" where ").append(right).append(" >= ?");
+        if (bounded) {
+            sb.append(" and ").append(left).append(" <= ?");
+        }
+        if (config.getRootIdFieldName() != null) {
+            sb.append(" and ").append(config.getColumnName(config.getRootIdFieldName())).append(" = ?");
+        }
+        return sb.toString();
+    }
+
+    private static String range(String column, boolean bounded) {
+        return bounded ? column + " >= ? and " + column + " <= ?" : column + " >= ?";
+    }
+
+    /**
+     * Returns the parameters of the statement built by
+     * {@link #getShiftSql(Configuration, boolean)}.
+     *
+     * @param first
+     *            The first left/right value (inclusive) of the nodes to shift.
+     * @param last
+     *            The last left/right value (inclusive), or 0 if unbounded.
+     * @param delta
+     *            The offset by which to shift the values.
+     * @param rootId
+     *            The root/tree ID of the nodes to shift.
+     */
+    public Object[] getShiftParameters(Configuration config, long first, long last, long delta, int rootId) {
+        boolean bounded = last > 0;
+        boolean rooted = config.getRootIdFieldName() != null;
+        Object[] parameters = new Object[(bounded ? 8 : 5) + (rooted ? 1 : 0)];
+        int i = 0;
+        for (int column = 0; column < 2; column++) {
+            parameters[i++] = position(config, first);
+            if (bounded) {
+                parameters[i++] = position(config, last);
+            }
+            parameters[i++] = position(config, delta);
+        }
+        parameters[i++] = position(config, first);
+        if (bounded) {
+            parameters[i++] = position(config, last);
+        }
+        if (rooted) {
+            parameters[i++] = rootId;
+        }
+        return parameters;
+    }
+
+    /**
+     * Boxes a position as the type of the left and right columns.
+     */
+    private static Object position(Configuration config, long value) {
+        if (config.hasLongPositions()) {
+            return Long.valueOf(value);
+        }
+        if ((int) value != value) {
+            throw new ArithmeticException("The position " + value + " does not fit in an int column.");
+        }
+        return Integer.valueOf((int) value);
+    }
+
+    /**
+     * Converts an expression to the given type, for instance the linked id
+     * column of the nodes to the type of a numeric primary key, so that the
+     * key column can be compared with its index.
+     *
+     * @param expression a column or expression
+     * @param sqlType "integer" or "bigint"
+     * @return the converted expression
+     */
+    public String getCastSql(String expression, String sqlType) {
+        return "cast(" + expression + " as " + sqlType + ")";
+    }
+
+    /**
+     * Returns a query counting the positions between the given left and right
+     * values that are not used exactly once as a left or right value. A valid
+     * tree has none. The used positions are grouped in one pass over the
+     * rows: the positions used more than once are counted directly, and the
+     * unused ones are the difference between the size of the range and the
+     * number of groups. The bounds are inlined, like the other positions of
+     * the generated statements.
+     *
+     * @param config
+     * @param left the left value of the root
+     * @param right the right value of the root
+     * @param rootId the root/tree ID
+     * @return the count query
+     */
+    public String getPositionGapsSql(Configuration config, long left, long right, int rootId) {
+        String rootFilter = "";
+        if (config.getRootIdFieldName() != null) {
+            rootFilter = " and " + config.getColumnName(config.getRootIdFieldName()) + " = " + rootId;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("select coalesce(sum(case when g.c <> 1 then 1 else 0 end), 0) + ")
+                .append(right - left + 1).append(" - count(*) from (select v.p, count(*) c from (");
+        String[] columns = { config.getLeftFieldName(), config.getRightFieldName() };
+        for (int i = 0; i < columns.length; i++) {
+            String column = config.getColumnName(columns[i]);
+            if (i > 0) {
+                sb.append(" union all ");
+            }
+            sb.append("select ").append(column).append(" p from ").append(config.getTableName())
+                    .append(" where ").append(column).append(" between ").append(left).append(" and ")
+                    .append(right).append(rootFilter);
+        }
+        sb.append(") v group by v.p) g");
+        return sb.toString();
+    }
+
+    /**
+     * Returns the dialect matching the given JDBC URL.
+     *
+     * @param url a JDBC URL
+     * @return the dialect, or null if the database is not supported
+     */
+    public static Dialect forUrl(String url) {
+        if (url == null) {
+            return null;
+        }
+        if (url.startsWith("jdbc:postgresql:")) {
+            return new PostgreSQLDialect();
+        }
+        if (url.startsWith("jdbc:mysql:")) {
+            return new MySQLDialect();
+        }
+        if (url.startsWith("jdbc:hsqldb:")) {
+            return new HSQLDialect();
+        }
+        if (url.startsWith("jdbc:h2:")) {
+            return new H2Dialect();
+        }
+        return null;
+    }
+
+    /**
+     * Detects the dialect from the properties of an EntityManagerFactory.
+     *
+     * @param properties
+     * @return the dialect, or null if no supported JDBC URL is configured
+     */
+    public static Dialect detect(Map<String, Object> properties) {
+        for (String property : URL_PROPERTIES) {
+            Object url = properties.get(property);
+            if (url instanceof String) {
+                return forUrl((String) url);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Dialect: " + getName();
+    }
+}
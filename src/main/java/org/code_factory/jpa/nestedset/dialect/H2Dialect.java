@@ -0,0 +1,23 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset.dialect;
+
+/**
+ * {@link Dialect} for H2, usable in-process for tests.
+ *
+ * @author gabbol
+ */
+public class H2Dialect extends Dialect {
+
+    @Override
+    public String getName() {
+        return "H2";
+    }
+}
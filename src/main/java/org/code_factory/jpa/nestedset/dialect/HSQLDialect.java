@@ -0,0 +1,29 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset.dialect;
+
+/**
+ * {@link Dialect} for HSQLDB 1.8, usable in-process for tests. It has no
+ * recursive queries.
+ *
+ * @author gabbol
+ */
+public class HSQLDialect extends Dialect {
+
+    @Override
+    public String getName() {
+        return "HSQLDB";
+    }
+
+    @Override
+    public boolean supportsRecursiveQueries() {
+        return false;
+    }
+}
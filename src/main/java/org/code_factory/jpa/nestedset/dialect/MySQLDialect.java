@@ -0,0 +1,35 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset.dialect;
+
+/**
+ * {@link Dialect} for MySQL 5. Recursive queries are not available, so the
+ * trees are validated in memory.
+ *
+ * @author gabbol
+ */
+public class MySQLDialect extends Dialect {
+
+    @Override
+    public String getName() {
+        return "MySQL";
+    }
+
+    @Override
+    public boolean supportsRecursiveQueries() {
+        return false;
+    }
+
+    @Override
+    public String getCastSql(String expression, String sqlType) {
+        // MySQL only casts to the signed and unsigned integer types
+        return "cast(" + expression + " as signed)";
+    }
+}
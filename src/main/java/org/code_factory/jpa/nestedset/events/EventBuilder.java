@@ -53,11 +53,22 @@ public class EventBuilder  {
 		if (newEventNode == null) {
 			newEventNode = eventNode;
 		}
-		EventNode currentEventNode = roots.get(newEventNode.getId());
+		add(newEventNode);
+	}
+
+	/**
+	 * Merges an event tree already built from the root of a tree down to the
+	 * nodes involved, whose ancestors carry the operation
+	 * <code>{@link EventNode}.CHANGE</code>.
+	 * 
+	 * @param rootEventNode the event node of the root of the tree
+	 */
+	public void add(EventNode rootEventNode) {
+		EventNode currentEventNode = roots.get(rootEventNode.getId());
 		if (currentEventNode != null) {
-			merge(currentEventNode, newEventNode);
+			merge(currentEventNode, rootEventNode);
 		} else {
-			roots.put(newEventNode.getId(), newEventNode);
+			roots.put(rootEventNode.getId(), rootEventNode);
 		}
 	}
     
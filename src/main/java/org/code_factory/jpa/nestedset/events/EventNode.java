@@ -67,6 +67,7 @@ public class EventNode implements Serializable {
         super();
         this.nodeId = id;
         this.operation = operation;
+        this.linkedTypeClass = refTypeClass;
         this.linkedId = refId; 
     }
     
@@ -14,6 +14,8 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.code_factory.jpa.nestedset.model.Category;
+import org.code_factory.jpa.nestedset.model.Group;
+import org.code_factory.jpa.nestedset.model.User;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
@@ -158,6 +160,464 @@ public class BasicTest extends FunctionalNestedSetTest {
 
     }
 
+    @Test public void testDerivedSubtreeViews() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        // the deeper level is loaded and merged in preorder
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        assert 2 == root.getDescendants(1).size();
+        List<Node<Category>> descendants = root.getDescendants(2);
+        assert 3 == descendants.size();
+        assertEquals("Java", descendants.get(0).unwrap().getName());
+        assertEquals("Java EE", descendants.get(1).unwrap().getName());
+        assertEquals(".NET", descendants.get(2).unwrap().getName());
+
+        // the shallower views share the cached nodes
+        List<Node<Category>> children = root.getChildren();
+        assert 2 == children.size();
+        assert descendants.get(0) == children.get(0);
+        assert descendants.get(2) == root.getLastChild();
+        assert descendants.get(0) == root.getDescendants(1).get(0);
+        assert null == descendants.get(2).getFirstChild();
+    }
+
+    @Test public void testSiblingNavigation() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        // answered by queries
+        Node<Category> javaNode = nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        assert null == javaNode.getPrevSibling();
+        assertEquals(".NET", javaNode.getNextSibling().unwrap().getName());
+        assert null == javaNode.getNextSibling().getNextSibling();
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        assertEquals(".NET", root.getChildAt(1).unwrap().getName());
+        assert null == root.getChildAt(2);
+        Node<Category> jeeNode = javaNode.getFirstChild();
+        assert 1 == jeeNode.getAncestors(1).size();
+        assertEquals("Java", jeeNode.getAncestors(1).get(0).unwrap().getName());
+        assert 2 == jeeNode.getAncestors(0).size();
+
+        // answered from the cached children of the parent
+        javaNode.getParent().getChildren();
+        assertEquals("Java", javaNode.getNextSibling().getPrevSibling().unwrap().getName());
+        List<Node<Category>> siblings = javaNode.getSiblings();
+        assert 1 == siblings.size();
+        assertEquals(".NET", siblings.get(0).unwrap().getName());
+        assert root.getSiblings().isEmpty();
+    }
+
+    @Test public void testLeaves() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        Category phpCat = new Category();
+        phpCat.setName("PHP");
+        phpCat.setLinkedTypeCode(1);
+        nsm.getNode(em.find(Category.class, this.progCat.getId())).addChild(phpCat);
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        List<Node<Category>> leaves = root.getLeaves();
+        assert 3 == leaves.size();
+        assertEquals("Java EE", leaves.get(0).unwrap().getName());
+        assertEquals(".NET", leaves.get(1).unwrap().getName());
+        assertEquals("PHP", leaves.get(2).unwrap().getName());
+
+        // two pages of two and one leaves
+        Iterator<Node<Category>> it = root.iterateLeaves(null, 2);
+        for (Node<Category> leaf : leaves) {
+            assert it.hasNext();
+            assert leaf == it.next();
+        }
+        assert !it.hasNext();
+
+        it = root.iterateLeaves(new TypeFilter<User>(User.class), 10);
+        assertEquals("PHP", it.next().unwrap().getName());
+        assert !it.hasNext();
+
+        // derived from the cached descendants
+        root.getDescendants();
+        assert 3 == root.getLeaves().size();
+    }
+
+    @Test public void testLowestCommonAncestor() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        Node<Category> jeeNode = nsm.getNode(em.find(Category.class, jeeCat.getId()));
+        Node<Category> javaNode = nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        Node<Category> netNode = nsm.getNode(em.find(Category.class, this.netCat.getId()));
+        assertEquals("Programming", nsm.lowestCommonAncestor(jeeNode, netNode).unwrap().getName());
+        assert javaNode == nsm.lowestCommonAncestor(javaNode, jeeNode);
+        assert jeeNode == nsm.lowestCommonAncestor(jeeNode, jeeNode);
+
+        List<Node<Category>> path = nsm.pathBetween(jeeNode, netNode);
+        assert 4 == path.size();
+        assert jeeNode == path.get(0);
+        assert javaNode == path.get(1);
+        assertEquals("Programming", path.get(2).unwrap().getName());
+        assert netNode == path.get(3);
+        path = nsm.pathBetween(javaNode, jeeNode);
+        assert 2 == path.size();
+        assert javaNode == path.get(0);
+        assert jeeNode == path.get(1);
+    }
+
+    @Test public void testRollup() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        String[] names = { "rollup-ann", "rollup-bob", "rollup-cid" };
+        for (String name : names) {
+            User user = new User();
+            user.setName(name);
+            em.merge(user);
+        }
+        Node<Category> javaNode = nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        Node<Category> netNode = nsm.getNode(em.find(Category.class, this.netCat.getId()));
+        for (int i = 0; i < names.length; i++) {
+            Category userCat = new Category();
+            userCat.setName(names[i]);
+            userCat.setLinkedTypeCode(1);
+            userCat.setLinkedId(names[i]);
+            (i < 2 ? javaNode : netNode).addChild(userCat);
+        }
+        em.getTransaction().commit();
+
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        Rollup counts = nsm.rollup(root, User.class, null, Rollup.COUNT);
+        assert 3 + 3 == counts.size();
+        assert 3 == counts.get(this.progCat.getId(), 0);
+        assert 2 == counts.get(this.javaCat.getId(), 0);
+        assert 1 == counts.get(this.netCat.getId(), 0);
+
+        counts = nsm.rollup(javaNode, User.class, null, Rollup.COUNT);
+        assert !counts.contains(this.progCat.getId());
+        assert 2 == counts.get(this.javaCat.getId(), 0);
+        assert 0 == nsm.rollup(root, Group.class, null, Rollup.COUNT).size();
+    }
+
+    @Test public void testStatistics() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Node<Category> javaNode = nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        for (String name : new String[] { "Java EE", "Android", "Swing" }) {
+            Category cat = new Category();
+            cat.setName(name);
+            javaNode.addChild(cat);
+        }
+        em.getTransaction().commit();
+
+        int rootValue = this.progCat.getRootValue();
+        TreeStatistics[] all = { nsm.getStatistics(rootValue, 1), nsm.getSnapshot(rootValue).getStatistics(1) };
+        for (TreeStatistics stats : all) {
+            assert 6 == stats.getNodeCount();
+            assert 2 == stats.getMaxDepth();
+            assert 3 == stats.getLevelCount(2);
+            assert 4 == stats.getLeafCount();
+            assert 3 == stats.getMaxFanOut();
+            assert 2 == stats.getFanOutPercentile(50);
+            assert 3 == stats.getFanOutPercentile(100);
+            assert 2.5 == stats.getAverageFanOut();
+            long[] histogram = stats.getSizeHistogram();
+            assert 3 == histogram.length;
+            assert 4 == histogram[0] && 0 == histogram[1] && 2 == histogram[2];
+            assert this.javaCat.getId() == stats.getLargestSubtreeIds()[0];
+            assert 4 == stats.getLargestSubtreeSizes()[0];
+        }
+    }
+
+    @Test public void testChildrenPages() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        for (String name : new String[] { "PHP", "Ruby", "Go" }) {
+            Category cat = new Category();
+            cat.setName(name);
+            root.addChild(cat);
+        }
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        ChildrenPage<Category> page = root.getChildren(root.getLongLeftValue(), 2);
+        assert 5 == page.getTotalCount();
+        assert page.hasMore();
+        assertEquals("Java", page.getChildren().get(0).unwrap().getName());
+        assertEquals(".NET", page.getChildren().get(1).unwrap().getName());
+        assert page == root.getChildren(root.getLongLeftValue(), 2);
+
+        ChildrenPage<Category> second = page.next();
+        assertEquals("PHP", second.getChildren().get(0).unwrap().getName());
+        ChildrenPage<Category> last = second.next();
+        assert 1 == last.getChildren().size();
+        assertEquals("Go", last.getChildren().get(0).unwrap().getName());
+        assert !last.hasMore();
+        assert null == last.next();
+
+        // cut out of the cached children
+        root.getChildren();
+        page = root.getChildren(second.getNextAfterLeft(), 10);
+        assert 1 == page.getChildren().size();
+        assert last.getChildren().get(0) == page.getChildren().get(0);
+    }
+
+    @Test public void testTypeFilters() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Category phpCat = new Category();
+        phpCat.setName("PHP");
+        phpCat.setLinkedTypeCode(1);
+        nsm.getNode(em.find(Category.class, this.progCat.getId())).addChild(phpCat);
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        jeeCat.setLinkedTypeCode(1);
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        TypeFilter<User> users = new TypeFilter<User>(User.class);
+        TypeFilter<Group> groups = new TypeFilter<Group>(Group.class);
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        List<Node<Category>> children = root.getChildren(users);
+        assert 1 == children.size();
+        assertEquals("PHP", children.get(0).unwrap().getName());
+        assert 3 == root.getChildren(TypeFilter.anyOf(User.class, Group.class)).size();
+        assert 0 == root.getChildren(TypeFilter.all(users, groups)).size();
+
+        List<Node<Category>> descendants = root.getDescendants(0, users);
+        assert 2 == descendants.size();
+        assertEquals("Java EE", descendants.get(0).unwrap().getName());
+        assert 1 == root.getDescendants(1, users).size();
+        assert 2 == root.getDescendants(0, groups).size();
+
+        Node<Category> jeeNode = nsm.getNode(em.find(Category.class, jeeCat.getId()));
+        assert 2 == jeeNode.getAncestors(TypeFilter.any(groups)).size();
+        assert 0 == jeeNode.getAncestors(users).size();
+
+        // filtered in memory once cached
+        root.getDescendants();
+        assert descendants.get(1) == root.getChildren(users).get(0);
+    }
+
+    private static Category member(int linkedTypeCode, String linkedId) {
+        Category cat = new Category();
+        cat.setName(linkedId);
+        cat.setLinkedTypeCode(linkedTypeCode);
+        cat.setLinkedId(linkedId);
+        return cat;
+    }
+
+    /**
+     * Builds
+     *
+     *          staff
+     *         /     \
+     *       dev     ops
+     *        |       |
+     *       ann     dev
+     *
+     * where dev appears twice, so that ops reaches ann.
+     */
+    @Test public void testLinkedClosureCache() {
+    	JpaNestedSetManager nsm = getManager("category");
+        em.getTransaction().begin();
+        Node<Category> staff = nsm.createRoot(member(0, "staff"));
+        Node<Category> dev = staff.addChild(member(0, "dev"));
+        Node<Category> ops = staff.addChild(member(0, "ops"));
+        dev.addChild(member(1, "ann"));
+        ops.addChild(member(0, "dev"));
+        em.getTransaction().commit();
+
+        LinkedClosureCache cache = nsm.getLinkedClosureCache();
+        assert cache.reaches(Group.class, "ops", User.class, "ann");
+        assert cache.reaches(Group.class, "staff", Group.class, "dev");
+        assert !cache.reaches(Group.class, "dev", Group.class, "ops");
+        assertEquals("[ann]", cache.getReachedIds(Group.class, "ops", User.class).toString());
+        assert 1 == cache.getBuildCount();
+
+        em.getTransaction().begin();
+        dev.addChild(member(1, "bob"));
+        em.getTransaction().commit();
+        // ann is not on the changed path, so its closure is kept
+        assert !cache.reaches(User.class, "ann", Group.class, "dev");
+        assert 1 == cache.getBuildCount();
+        assert cache.reaches(Group.class, "ops", User.class, "bob");
+        assert 2 == cache.getBuildCount();
+    }
+
+    @Test public void testFindCache() {
+    	JpaNestedSetManager nsm = getManager("category");
+        nsm.setFindCache(1, 0);
+        em.getTransaction().begin();
+        Node<Category> staff = nsm.createRoot(member(0, "staff"));
+        Node<Category> dev = staff.addChild(member(0, "dev"));
+        staff.addChild(member(1, "ann"));
+        em.getTransaction().commit();
+
+        FindCache cache = nsm.getFindCache();
+        assert dev == nsm.<Category> find(Group.class, "dev").get(0);
+        assert dev == nsm.<Category> find(Group.class, "dev").get(0);
+        assert 1 == cache.getHitCount();
+        assert 1 == cache.getMissCount();
+        assert 1 == nsm.find(User.class, "ann").size();
+        assert 1 == cache.getEvictionCount();
+        assert 1 == cache.size();
+
+        // a second occurrence drops the cached nodes
+        em.getTransaction().begin();
+        dev.addChild(member(1, "ann"));
+        em.getTransaction().commit();
+        assert 0 == cache.size();
+        assert 2 == nsm.find(User.class, "ann").size();
+    }
+
+    @Test public void testMaxCachedNodes() {
+    	JpaNestedSetManager nsm = getManager("category");
+        nsm.setMaxCachedNodes(3);
+        em.getTransaction().begin();
+        Node<Category> staff = nsm.createRoot(member(0, "staff"));
+        staff.addChild(member(1, "ann"));
+        Node<Category> guests = nsm.createRoot(member(0, "guests"));
+        guests.addChild(member(1, "bob"));
+        Node<Category> admins = nsm.createRoot(member(0, "admins"));
+        em.getTransaction().commit();
+        // the nodes loaded by an operation are kept until the next lookup
+        assert 5 == nsm.getCachedNodeCount();
+
+        nsm.clear();
+        Node<Category> staffNode = nsm.getNode(staff.unwrap());
+        assert 1 == staffNode.getChildren().size();
+        Node<Category> guestsNode = nsm.getNode(guests.unwrap());
+        assert 1 == guestsNode.getChildren().size();
+        assert 4 == nsm.getCachedNodeCount();
+
+        // the nodes of the least recently used tree are dropped
+        nsm.getNode(admins.unwrap());
+        assert 3 == nsm.getCachedNodeCount();
+        assert 2 == nsm.getEvictedNodeCount();
+        assert guestsNode == nsm.getNode(guests.unwrap());
+        assert staffNode != nsm.getNode(staff.unwrap());
+
+        // the dropped nodes can no longer be modified
+        try {
+            staffNode.delete();
+            fail("Deleting an evicted node should fail.");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test public void testSharedPreorder() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        em.getTransaction().commit();
+        em.clear();
+        nsm.clear();
+
+        Node<Category> root = nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        List<Node<Category>> descendants = root.getDescendants();
+        assert 3 == descendants.size();
+        Node<Category> javaNode = descendants.get(0);
+        Node<Category> jeeNode = descendants.get(1);
+        assertEquals("Java EE", jeeNode.unwrap().getName());
+
+        // the relatives of the loaded nodes are views over the same list
+        assert jeeNode == javaNode.getChildren().get(0);
+        assert jeeNode == javaNode.getDescendants().get(0);
+        assert javaNode == jeeNode.getParent();
+        assert 2 == jeeNode.getAncestors().size();
+        assert root == jeeNode.getAncestors().get(0);
+        assert javaNode == jeeNode.getAncestors().get(1);
+        assert 2 == root.getChildren().size();
+        assert 0 == descendants.get(2).getChildren().size();
+        try {
+            descendants.remove(0);
+            assert false;
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test public void testSnapshots() {
+    	JpaNestedSetManager nsm = getManager("category");
+        this.createBasicTree();
+        int rootValue = this.progCat.getRootValue();
+
+        TreeSnapshot snapshot = nsm.getSnapshot(rootValue);
+        assert snapshot == nsm.getSnapshot(rootValue);
+        assert 3 == snapshot.size();
+        SnapshotNode root = snapshot.getRoot();
+        assert this.progCat.getId() == root.getId();
+        assert 2 == root.getChildren().size();
+        SnapshotNode javaNode = snapshot.getNode(this.javaCat.getId());
+        assert root == javaNode.getParent();
+        assert javaNode.isDescendantOf(root);
+        assert 2 == javaNode.getLeftValue();
+        assert 1 == javaNode.getAncestors().size();
+
+        // readers keep the previous snapshot until the change is published
+        em.getTransaction().begin();
+        Category jeeCat = new Category();
+        jeeCat.setName("Java EE");
+        nsm.getNode(em.find(Category.class, this.javaCat.getId())).addChild(jeeCat);
+        em.getTransaction().commit();
+        assert snapshot == nsm.getSnapshot(rootValue);
+        assert 3 == snapshot.size();
+
+        nsm.publishSnapshots();
+        TreeSnapshot published = nsm.getSnapshot(rootValue);
+        assert snapshot != published;
+        assert 4 == published.size();
+        assert 8 == published.getRoot().getRightValue();
+        assert published.getNode(this.javaCat.getId()) == published.getNode(jeeCat.getId()).getParent();
+        assert 3 == snapshot.size();
+    }
+
     @Test public void testAddingNodesToTree() {
     	 
     	JpaNestedSetManager nsm = getManager("category");
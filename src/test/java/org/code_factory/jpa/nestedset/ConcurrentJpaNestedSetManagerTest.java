@@ -0,0 +1,146 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.code_factory.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the trees modified by a thread stay locked, and their snapshots
+ * current, until the end of its transaction.
+ */
+public class ConcurrentJpaNestedSetManagerTest extends FunctionalNestedSetTest {
+
+    @Test
+    public void testPublishBeforeCommit() {
+        ConcurrentJpaNestedSetManager nsm = new ConcurrentJpaNestedSetManager(getManager("category")
+                .getConfiguration());
+        nsm.setEntityManager(em);
+        Category root = new Category();
+        root.setName("Programming");
+        em.getTransaction().begin();
+        nsm.createRoot(root);
+        nsm.commit();
+        nsm.publishSnapshots();
+        TreeSnapshot snapshot = nsm.getSnapshot(root.getRootValue());
+        assert 1 == snapshot.size();
+
+        // the tree only becomes stale once the transaction has ended
+        em.getTransaction().begin();
+        Category java = new Category();
+        java.setName("Java");
+        nsm.getNode(root).addChild(java);
+        nsm.publishSnapshots();
+        assert snapshot == nsm.getSnapshot(root.getRootValue());
+        nsm.commit();
+
+        nsm.publishSnapshots();
+        TreeSnapshot published = nsm.getSnapshot(root.getRootValue());
+        assert 2 == published.size();
+        assert java.getId() == published.getRoot().getChildren().get(0).getId();
+    }
+
+    @Test
+    public void testWriterWaitsForRollback() throws InterruptedException {
+        final ConcurrentJpaNestedSetManager nsm = new ConcurrentJpaNestedSetManager(getManager("category")
+                .getConfiguration());
+        nsm.setEntityManager(em);
+        final Category root = new Category();
+        root.setName("Programming");
+        em.getTransaction().begin();
+        nsm.createRoot(root);
+        nsm.commit();
+
+        // the first thread modifies the tree and keeps it locked
+        em.getTransaction().begin();
+        Category java = new Category();
+        java.setName("Java");
+        nsm.getNode(root).addChild(java);
+
+        // a second thread modifying the same tree waits for the first one
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                EntityManager em2 = emFactory.createEntityManager();
+                nsm.setEntityManager(em2);
+                try {
+                    em2.getTransaction().begin();
+                    Node<Category> rootNode = nsm.getNode(em2.find(Category.class, root.getId()));
+                    Category net = new Category();
+                    net.setName(".NET");
+                    rootNode.addChild(net);
+                    nsm.commit();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                    nsm.rollback();
+                } finally {
+                    nsm.setEntityManager(null);
+                    em2.close();
+                    done.countDown();
+                }
+            }
+        };
+        writer.start();
+        assert !done.await(500, TimeUnit.MILLISECONDS) : "The second writer must wait for the first one.";
+
+        // the rollback restores the positions the second thread works with
+        nsm.rollback();
+        assert done.await(10, TimeUnit.SECONDS);
+        assert failure[0] == null : failure[0];
+
+        em.clear();
+        nsm.clear();
+        Node<Category> rootNode = nsm.getNode(em.find(Category.class, root.getId()));
+        assert 4 == rootNode.getRightValue();
+        assert 1 == rootNode.getChildren().size();
+        Node<Category> netNode = rootNode.getChildren().get(0);
+        assert ".NET".equals(netNode.unwrap().getName());
+        assert 2 == netNode.getLeftValue();
+        assert 3 == netNode.getRightValue();
+    }
+
+    @Test
+    public void testTreesLockedInOrder() {
+        ConcurrentJpaNestedSetManager nsm = new ConcurrentJpaNestedSetManager(getManager("category")
+                .getConfiguration());
+        nsm.setEntityManager(em);
+        Category first = new Category();
+        first.setName("Programming");
+        Category second = new Category();
+        second.setName("Design");
+        em.getTransaction().begin();
+        nsm.createRoot(first);
+        nsm.createRoot(second);
+        nsm.commit();
+        Node<Category> secondNode = nsm.getNode(second);
+        assert !em.contains(secondNode.unwrap()) : "The cached entities are shared and must be detached.";
+
+        em.getTransaction().begin();
+        Category java = new Category();
+        java.setName("Java");
+        secondNode.addChild(java);
+        try {
+            Category net = new Category();
+            net.setName(".NET");
+            nsm.getNode(first).addChild(net);
+            assert false : "The trees must be modified in increasing order of their root values.";
+        } catch (IllegalStateException expected) {
+        } finally {
+            nsm.rollback();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.code_factory.jpa.nestedset.model.Category;
+import org.h2.jdbcx.JdbcDataSource;
+import org.testng.annotations.Test;
+
+/**
+ * Runs the structural operations of the JDBC engine on an in-process H2
+ * database.
+ */
+public class JdbcNestedSetManagerTest {
+
+    private JdbcNestedSetManager createManager(String name) throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        Connection connection = dataSource.getConnection();
+        Statement st = connection.createStatement();
+        st.execute("create table junit_category (id integer auto_increment primary key, name varchar(255),"
+                + " lft integer, rgt integer, level integer, rootId integer, version integer,"
+                + " linkedId varchar(255), linkedTypeCode integer)");
+        st.close();
+        connection.close();
+
+        Configuration config = new Configuration("category", Category.class);
+        config.setRootVersionFieldName(null);
+        return new JdbcNestedSetManager(config, dataSource);
+    }
+
+    private static Category category(String name) {
+        Category category = new Category();
+        category.setName(name);
+        category.setLinkedId(name);
+        return category;
+    }
+
+    /**
+     * Builds
+     *
+     *           Programming
+     *            /       \
+     *         Java       .NET
+     *          |
+     *         JEE
+     *
+     * then moves JEE below .NET and deletes Java.
+     */
+    @Test
+    public void testStructuralOperations() throws Exception {
+        JdbcNestedSetManager nsm = createManager("jdbc-structure");
+        Node<Category> prog = nsm.createRoot(category("prog"));
+        Node<Category> java = prog.addChild(category("java"));
+        Node<Category> net = prog.addChild(category("net"));
+        Node<Category> jee = java.addChild(category("jee"));
+        assert 1 == prog.getLeftValue();
+        assert 8 == prog.getRightValue();
+        assert nsm.isValidTree(prog.getRootValue());
+
+        jee.moveAsLastChildOf(net);
+        assert 2 == jee.getLevel();
+        assert nsm.isValidTree(prog.getRootValue());
+
+        java.delete();
+        assert nsm.isValidTree(prog.getRootValue());
+
+        nsm.clear();
+        Node<Category> root = nsm.<Category> getRoots().get(0);
+        assert 6 == root.getRightValue();
+        List<Node<Category>> children = root.getChildren();
+        assert 1 == children.size();
+        assert "net".equals(children.get(0).getLinkedId());
+        assert "jee".equals(children.get(0).getFirstChild().getLinkedId());
+        assert "net".equals(nsm.<Category> getNode(jee.getId()).getParent().getLinkedId());
+    }
+
+    /**
+     * Moves a subtree of the first tree as the next sibling of its root, which
+     * turns it into the second tree.
+     */
+    @Test
+    public void testMoveBetweenTrees() throws Exception {
+        JdbcNestedSetManager nsm = createManager("jdbc-trees");
+        Node<Category> first = nsm.createRoot(category("first"));
+        Node<Category> child = first.addChild(category("child"));
+        child.addChild(category("grandchild"));
+        Node<Category> other = nsm.createRoot(category("other"));
+        assert 2 == other.getRootValue();
+
+        child.moveAsNextSiblingOf(first);
+        assert 2 == child.getRootValue();
+        assert child.isRoot();
+
+        List<Node<Category>> roots = nsm.<Category> getRoots();
+        assert 3 == roots.size();
+        assert "child".equals(roots.get(1).getLinkedId());
+        assert "other".equals(roots.get(2).getLinkedId());
+        for (Node<Category> root : roots) {
+            assert nsm.isValidTree(root.getRootValue());
+        }
+        assert 1 == roots.get(1).getDescendants().get(0).getLevel();
+    }
+
+    /**
+     * Adds the children of a node as one batch and reads them back with their
+     * other columns.
+     */
+    @Test
+    public void testAddChildren() throws Exception {
+        JdbcNestedSetManager nsm = createManager("jdbc-batch");
+        Node<Category> prog = nsm.createRoot(category("Programming"));
+        Node<Category> java = prog.addChild(category("Java"));
+        List<Node<Category>> added = nsm.addChildren(java,
+                Arrays.asList(category("JEE"), category("JSE"), category("JME")));
+        assert 3 == added.size();
+        assert 10 == prog.getRightValue();
+        assert 9 == java.getRightValue();
+        assert 3 == added.get(0).getLeftValue();
+        assert 8 == added.get(2).getRightValue();
+        assert nsm.isValidTree(prog.getRootValue());
+
+        nsm.clear();
+        Node<Category> jse = nsm.getNode(added.get(1).getId());
+        assert "JSE".equals(jse.unwrap().getName());
+        assert 2 == jse.getLevel();
+        assert "Java".equals(jse.getParent().unwrap().getName());
+        List<Node<Category>> children = nsm.<Category> getNode(java.getId()).getChildren();
+        assert 3 == children.size();
+        assert "JME".equals(children.get(2).unwrap().getName());
+    }
+
+    /**
+     * Loads the linked entities through the loader set on the manager.
+     */
+    @Test
+    public void testLookupLinkedObject() throws Exception {
+        JdbcNestedSetManager nsm = createManager("jdbc-linked");
+        Node<Category> prog = nsm.createRoot(category("prog"));
+        try {
+            prog.lookupLinkedObject();
+            assert false : "A manager without loader cannot load linked entities.";
+        } catch (IllegalStateException expected) {
+        }
+
+        final Map<Object, Object> entities = new HashMap<Object, Object>();
+        entities.put("prog", "Programming");
+        nsm.setLinkedObjectLoader(new LinkedObjectLoader() {
+            @Override
+            public Object load(Class<?> linkedTypeClass, Object primaryKey) {
+                return entities.get(primaryKey);
+            }
+        });
+        assert "Programming".equals(prog.lookupLinkedObject());
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.Iterator;
+
+import org.code_factory.jpa.nestedset.model.Folder;
+import org.code_factory.jpa.nestedset.model.Member;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the open-addressing identity map through growth, removal and
+ * removal while iterating.
+ */
+public class NodeIdentityMapTest {
+
+    private static Node<Member> node(int id) {
+        Member member = new Member();
+        member.setId(id);
+        return new JpaNode<Member>(member, null);
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        NodeIdentityMap map = new NodeIdentityMap();
+        for (int id = 0; id < 1000; id++) {
+            map.put(new Key(Member.class, id), node(id));
+        }
+        assert 1000 == map.size();
+        assert 500 == map.get(Member.class, 500).getId();
+        assert null == map.get(Folder.class, 500);
+        assert null == map.get(Member.class, 1000);
+
+        for (int id = 0; id < 1000; id += 2) {
+            assert null != map.remove(Member.class, id);
+        }
+        assert 500 == map.size();
+        assert null == map.get(Member.class, 2);
+        assert 3 == map.get(new Key(Member.class, 3)).getId();
+
+        // removed slots are reused
+        map.put(new Key(Member.class, 2), node(2));
+        assert 501 == map.size();
+        assert 2 == map.get(Member.class, 2).getId();
+    }
+
+    @Test
+    public void testRemoveWhileIterating() {
+        NodeIdentityMap map = new NodeIdentityMap();
+        for (int id = 1; id <= 100; id++) {
+            map.put(new Key(Member.class, id), node(id));
+        }
+        int seen = 0;
+        for (Iterator<Node<?>> it = map.values().iterator(); it.hasNext();) {
+            Node<?> node = it.next();
+            seen++;
+            if (node.getId() > 50) {
+                it.remove();
+            }
+        }
+        assert 100 == seen;
+        assert 50 == map.size();
+        assert 50 == map.values().size();
+        assert null == map.get(Member.class, 51);
+        assert 50 == map.entrySet().size();
+
+        map.clear();
+        assert 0 == map.size();
+        assert !map.values().iterator().hasNext();
+    }
+}
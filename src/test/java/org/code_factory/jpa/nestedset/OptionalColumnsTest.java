@@ -0,0 +1,223 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.List;
+
+import org.code_factory.jpa.nestedset.model.Folder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the structural operations maintain the parent, path and subtree
+ * aggregate columns and the closure table.
+ *
+ * @author gabbol
+ */
+public class OptionalColumnsTest extends FunctionalNestedSetTest {
+    private Folder homeFolder;
+    private Folder docsFolder;
+    private Folder musicFolder;
+    private Folder draftsFolder;
+
+    @AfterMethod
+    @Override protected void closeEntityManager() {
+        super.closeEntityManager();
+        this.homeFolder = null;
+        this.docsFolder = null;
+        this.musicFolder = null;
+        this.draftsFolder = null;
+    }
+
+    /**
+     * Helper method that creates a folder tree that looks as follows:
+     *
+     *              home (10)
+     *            /         \
+     *        docs (5)    music (1)
+     *          |
+     *      drafts (100)
+     *
+     */
+    private JpaNestedSetManager createFolderTree(Configuration config) {
+        JpaNestedSetManager nsm = new JpaNestedSetManager(config, em);
+        this.homeFolder = new Folder();
+        this.homeFolder.setName("home");
+        this.homeFolder.setSize(10);
+
+        this.docsFolder = new Folder();
+        this.docsFolder.setName("docs");
+        this.docsFolder.setSize(5);
+
+        this.musicFolder = new Folder();
+        this.musicFolder.setName("music");
+        this.musicFolder.setSize(1);
+
+        this.draftsFolder = new Folder();
+        this.draftsFolder.setName("drafts");
+        this.draftsFolder.setSize(100);
+
+        em.getTransaction().begin();
+        nsm.deleteAll();
+        Node<Folder> rootNode = nsm.createRoot(this.homeFolder);
+        Node<Folder> docsNode = rootNode.addChild(this.docsFolder);
+        rootNode.addChild(this.musicFolder);
+        docsNode.addChild(this.draftsFolder);
+        em.getTransaction().commit();
+        return nsm;
+    }
+
+    private Folder reload(Folder folder) {
+        return em.find(Folder.class, folder.getId());
+    }
+
+    @Test public void testParentColumn() {
+        JpaNestedSetManager nsm = createFolderTree(new Configuration("folder", Folder.class));
+        assert nsm.getConfiguration().hasParentColumn();
+        assert null == this.homeFolder.getParentId();
+        assert this.docsFolder.getId() == this.draftsFolder.getParentId();
+
+        em.getTransaction().begin();
+        nsm.getNode(this.draftsFolder).moveAsNextSiblingOf(nsm.getNode(this.musicFolder));
+        em.getTransaction().commit();
+        em.getTransaction().begin();
+        nsm.getNode(this.musicFolder).moveAsLastChildOf(nsm.getNode(this.docsFolder));
+        em.getTransaction().commit();
+
+        em.clear();
+        nsm.clear();
+        List<Node<Folder>> children = nsm.getNode(reload(this.homeFolder)).getChildren();
+        assert 2 == children.size();
+        assert "docs".equals(children.get(0).unwrap().getName());
+        assert "drafts".equals(children.get(1).unwrap().getName());
+        assert this.homeFolder.getId() == children.get(1).unwrap().getParentId();
+        Node<Folder> musicNode = children.get(0).getChildren().get(0);
+        assert "music".equals(musicNode.unwrap().getName());
+        assert this.docsFolder.getId() == musicNode.unwrap().getParentId();
+        assert "docs".equals(musicNode.getParent().unwrap().getName());
+    }
+
+    @Test public void testPathColumn() {
+        JpaNestedSetManager nsm = createFolderTree(new Configuration("folder", Folder.class));
+        assert nsm.getConfiguration().hasPathColumn();
+        int home = this.homeFolder.getId();
+        int docs = this.docsFolder.getId();
+        int music = this.musicFolder.getId();
+        int drafts = this.draftsFolder.getId();
+        assert ("/" + home + "/").equals(this.homeFolder.getPath());
+        assert ("/" + home + "/" + docs + "/" + drafts + "/").equals(this.draftsFolder.getPath());
+
+        em.getTransaction().begin();
+        nsm.getNode(this.draftsFolder).moveAsNextSiblingOf(nsm.getNode(this.musicFolder));
+        em.getTransaction().commit();
+        em.getTransaction().begin();
+        nsm.getNode(this.docsFolder).moveAsLastChildOf(nsm.getNode(this.musicFolder));
+        em.getTransaction().commit();
+
+        em.clear();
+        nsm.clear();
+        assert ("/" + home + "/" + drafts + "/").equals(reload(this.draftsFolder).getPath());
+        Node<Folder> docsNode = nsm.getNode(reload(this.docsFolder));
+        assert ("/" + home + "/" + music + "/" + docs + "/").equals(docsNode.unwrap().getPath());
+        List<Node<Folder>> ancestors = docsNode.getAncestors();
+        assert 2 == ancestors.size();
+        assert "home".equals(ancestors.get(0).unwrap().getName());
+        assert "music".equals(ancestors.get(1).unwrap().getName());
+        assert "music".equals(docsNode.getParent().unwrap().getName());
+
+        List<Node<Folder>> descendants = nsm.getNode(reload(this.homeFolder)).getDescendants();
+        assert 3 == descendants.size();
+        assert "music".equals(descendants.get(0).unwrap().getName());
+        assert "docs".equals(descendants.get(1).unwrap().getName());
+        assert "drafts".equals(descendants.get(2).unwrap().getName());
+    }
+
+    private long closureRows() {
+        return ((Number) em.createNativeQuery("select count(*) from junit_folder_closure").getSingleResult())
+                .longValue();
+    }
+
+    @Test public void testClosureTable() {
+        em.getTransaction().begin();
+        em.createNativeQuery("create table if not exists junit_folder_closure"
+                + " (ancestor_id integer not null, descendant_id integer not null, depth integer not null,"
+                + " primary key (ancestor_id, descendant_id))").executeUpdate();
+        em.getTransaction().commit();
+        Configuration config = new Configuration("folder", Folder.class);
+        config.setClosureTableName("junit_folder_closure");
+        JpaNestedSetManager nsm = createFolderTree(config);
+        // 4 own rows, 3 rows below home, drafts below docs
+        assert 8 == closureRows();
+
+        em.getTransaction().begin();
+        nsm.getNode(this.docsFolder).moveAsLastChildOf(nsm.getNode(this.musicFolder));
+        em.getTransaction().commit();
+        assert 10 == closureRows();
+
+        em.clear();
+        nsm.clear();
+        Node<Folder> draftsNode = nsm.getNode(reload(this.draftsFolder));
+        List<Node<Folder>> ancestors = draftsNode.getAncestors();
+        assert 3 == ancestors.size();
+        assert "home".equals(ancestors.get(0).unwrap().getName());
+        assert "music".equals(ancestors.get(1).unwrap().getName());
+        assert "docs".equals(ancestors.get(2).unwrap().getName());
+        assert "docs".equals(draftsNode.getParent().unwrap().getName());
+
+        Node<Folder> homeNode = nsm.getNode(reload(this.homeFolder));
+        assert 1 == homeNode.getChildren().size();
+        assert 3 == homeNode.getDescendants().size();
+
+        em.getTransaction().begin();
+        draftsNode.delete();
+        em.getTransaction().commit();
+        // the rows of drafts are removed with it
+        assert 6 == closureRows();
+
+        em.getTransaction().begin();
+        nsm.rebuildClosureTable();
+        em.getTransaction().commit();
+        assert 6 == closureRows();
+    }
+
+    @Test public void testSubtreeAggregates() {
+        JpaNestedSetManager nsm = createFolderTree(new Configuration("folder", Folder.class));
+        assert nsm.getConfiguration().hasSubtreeAggregates();
+        assert 4 == this.homeFolder.getSubtreeCount();
+        assert 116 == this.homeFolder.getSubtreeSize();
+        assert 105 == this.docsFolder.getSubtreeSize();
+        assert 1 == this.draftsFolder.getSubtreeCount();
+
+        em.getTransaction().begin();
+        nsm.getNode(this.draftsFolder).moveAsLastChildOf(nsm.getNode(this.musicFolder));
+        em.getTransaction().commit();
+
+        em.clear();
+        nsm.clear();
+        assert 4 == reload(this.homeFolder).getSubtreeCount();
+        assert 116 == reload(this.homeFolder).getSubtreeSize();
+        assert 1 == reload(this.docsFolder).getSubtreeCount();
+        assert 5 == reload(this.docsFolder).getSubtreeSize();
+        assert 2 == reload(this.musicFolder).getSubtreeCount();
+        assert 101 == reload(this.musicFolder).getSubtreeSize();
+
+        em.getTransaction().begin();
+        nsm.getNode(reload(this.musicFolder)).delete();
+        em.getTransaction().commit();
+
+        em.clear();
+        nsm.clear();
+        assert 2 == reload(this.homeFolder).getSubtreeCount();
+        assert 15 == reload(this.homeFolder).getSubtreeSize();
+        em.getTransaction().begin();
+        assert 0 == nsm.rebuildSubtreeAggregates();
+        em.getTransaction().commit();
+    }
+}
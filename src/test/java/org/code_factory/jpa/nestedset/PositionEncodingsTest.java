@@ -0,0 +1,165 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.List;
+
+import org.code_factory.jpa.nestedset.model.Area;
+import org.code_factory.jpa.nestedset.model.Group;
+import org.code_factory.jpa.nestedset.model.Region;
+import org.code_factory.jpa.nestedset.model.Territory;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the structural operations on trees whose positions do not fit in an
+ * int: long left and right values, and nested intervals.
+ *
+ * @author gabbol
+ */
+public class PositionEncodingsTest extends FunctionalNestedSetTest {
+    private static final long BASE = 5000000000L;
+
+    /**
+     * Helper method that adds the given areas below the root, so that the
+     * tree looks as follows:
+     *
+     *              World
+     *            /       \
+     *        Europe      Asia
+     *          |
+     *        Italy
+     *
+     */
+    private <T extends Area> void addAreas(Node<T> worldNode, T europe, T asia, T italy) {
+        europe.setName("Europe");
+        asia.setName("Asia");
+        italy.setName("Italy");
+        Node<T> europeNode = worldNode.addChild(europe);
+        worldNode.addChild(asia);
+        europeNode.addChild(italy);
+    }
+
+    @Test public void testLongPositions() {
+        Configuration config = new Configuration("region", Region.class);
+        assert config.hasLongPositions();
+        JpaNestedSetManager nsm = new JpaNestedSetManager(config, em);
+        Region world = new Region();
+        world.setName("World");
+        world.setLongLeftValue(BASE);
+        world.setLongRightValue(BASE + 1);
+        world.setLevel(0);
+        Region asia = new Region();
+        Region italy = new Region();
+
+        em.getTransaction().begin();
+        nsm.deleteAll();
+        em.persist(world);
+        Node<Region> worldNode = nsm.getNode(world);
+        addAreas(worldNode, new Region(), asia, italy);
+        em.getTransaction().commit();
+        assert BASE + 7 == worldNode.getLongRightValue();
+        assert BASE + 2 == italy.getLongLeftValue();
+
+        em.getTransaction().begin();
+        nsm.getNode(italy).moveAsLastChildOf(nsm.getNode(asia));
+        em.getTransaction().commit();
+
+        em.clear();
+        nsm.clear();
+        worldNode = nsm.getNode(em.find(Region.class, world.getId()));
+        assert BASE + 7 == worldNode.getLongRightValue();
+        List<Node<Region>> children = worldNode.getChildren();
+        assert 2 == children.size();
+        assert BASE + 1 == children.get(0).getLongLeftValue();
+        assert BASE + 2 == children.get(0).getLongRightValue();
+        Node<Region> italyNode = children.get(1).getFirstChild();
+        assert "Italy".equals(italyNode.unwrap().getName());
+        assert BASE + 4 == italyNode.getLongLeftValue();
+        assert 2 == italyNode.getLevel();
+    }
+
+    @Test public void testNestedIntervals() {
+        Configuration config = new Configuration("territory", Territory.class);
+        assert Configuration.NESTED_INTERVALS == config.getEncoding();
+        NestedSetManager nsm = AbstractNestedSetManager.create(config, em);
+        assert nsm instanceof JpaNestedIntervalManager;
+        Territory world = new Territory();
+        world.setName("World");
+        Territory europe = new Territory();
+        Territory asia = new Territory();
+        Territory italy = new Territory();
+
+        em.getTransaction().begin();
+        nsm.deleteAll();
+        Node<Territory> worldNode = nsm.createRoot(world);
+        addAreas(worldNode, europe, asia, italy);
+        Territory japan = new Territory();
+        japan.setName("Japan");
+        nsm.getNode(asia).addChild(japan);
+        em.getTransaction().commit();
+        assert 1 == worldNode.getRootValue();
+        assert nsm.getNode(italy).isDescendantOf(worldNode);
+        assert !nsm.getNode(italy).isDescendantOf(nsm.getNode(asia));
+        assert nsm.isValidTree(1);
+
+        // moves Italy in front of Japan
+        em.getTransaction().begin();
+        nsm.getNode(italy).moveAsPrevSiblingOf(nsm.getNode(japan));
+        nsm.getNode(europe).delete();
+        em.getTransaction().commit();
+        assert nsm.isValidTree(1);
+
+        em.clear();
+        nsm.clear();
+        worldNode = nsm.<Territory> getRoots().get(0);
+        List<Node<Territory>> children = worldNode.getChildren();
+        assert 1 == children.size();
+        assert "Asia".equals(children.get(0).unwrap().getName());
+        List<Node<Territory>> descendants = worldNode.getDescendants();
+        assert 3 == descendants.size();
+        assert "Italy".equals(descendants.get(1).unwrap().getName());
+        assert "Japan".equals(descendants.get(2).unwrap().getName());
+        assert 2 == descendants.get(1).getLevel();
+        assert "Asia".equals(descendants.get(2).getParent().unwrap().getName());
+
+        // the children are paged by slot
+        ChildrenPage<Territory> page = children.get(0).getChildren(0, 1);
+        assert 2 == page.getTotalCount();
+        assert "Italy".equals(page.getChildren().get(0).unwrap().getName());
+        page = page.next();
+        assert "Japan".equals(page.getChildren().get(0).unwrap().getName());
+        assert !page.hasMore();
+
+        TreeSnapshot snapshot = nsm.getSnapshot(1);
+        assert 8 == snapshot.getRoots().get(0).getRightValue();
+
+        // the nodes have the left and right values of the same tree as a nested set
+        assert 1 == worldNode.getLeftValue();
+        assert 8 == worldNode.getRightValue();
+        assert 3 == descendants.get(1).getLeftValue();
+        assert 4 == descendants.get(1).getRightValue();
+        assert 5 == descendants.get(2).getLeftValue();
+
+        // the rollup is added up in memory
+        em.getTransaction().begin();
+        for (Node<Territory> node : descendants.subList(1, 3)) {
+            Group group = new Group();
+            group.setName("rollup-" + node.unwrap().getName());
+            em.merge(group);
+            node.unwrap().setLinkedId(group.getName());
+        }
+        em.getTransaction().commit();
+        Rollup counts = nsm.rollup(worldNode, Group.class, null, Rollup.COUNT);
+        assert 4 == counts.size();
+        assert 2 == counts.get(worldNode.getId(), 0);
+        assert 2 == counts.get(children.get(0).getId(), 0);
+        assert 1 == counts.get(descendants.get(2).getId(), 0);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import javax.persistence.EntityManager;
+
+import org.code_factory.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the optimistic versioning of the trees.
+ */
+public class RootVersionTest extends FunctionalNestedSetTest {
+
+    @Test
+    public void testConcurrentWriterOnSameRoot() {
+        JpaNestedSetManager nsm = getManager("category");
+        Category root = new Category();
+        root.setName("Programming");
+        em.getTransaction().begin();
+        nsm.createRoot(root);
+        em.getTransaction().commit();
+
+        // the first writer reads the tree
+        Node<Category> rootNode = nsm.getNode(root);
+
+        // a second writer modifies the same tree and commits
+        EntityManager em2 = emFactory.createEntityManager();
+        try {
+            JpaNestedSetManager nsm2 = new JpaNestedSetManager(nsm.getConfiguration(), em2);
+            em2.getTransaction().begin();
+            Category java = new Category();
+            java.setName("Java");
+            nsm2.getNode(em2.find(Category.class, root.getId())).addChild(java);
+            em2.getTransaction().commit();
+        } finally {
+            em2.close();
+        }
+
+        em.getTransaction().begin();
+        Category net = new Category();
+        net.setName(".NET");
+        try {
+            rootNode.addChild(net);
+            fail("A stale tree must not be modified.");
+        } catch (RootVersionConflictException expected) {
+            assertEquals(root.getRootValue(), expected.getRootValue());
+        }
+        em.getTransaction().rollback();
+
+        // the manager keeps the stale version until it is cleared
+        em.getTransaction().begin();
+        try {
+            nsm.getNode(root).addChild(net);
+            fail("A stale tree must not be modified before the manager is cleared.");
+        } catch (RootVersionConflictException expected) {
+            assertEquals(root.getRootValue(), expected.getRootValue());
+        }
+        em.getTransaction().rollback();
+
+        // after clearing the manager the operation can be retried
+        em.clear();
+        nsm.clear();
+        em.getTransaction().begin();
+        rootNode = nsm.getNode(em.find(Category.class, root.getId()));
+        Node<Category> netNode = rootNode.addChild(net);
+        em.getTransaction().commit();
+        assert 4 == netNode.getLeftValue();
+        assert 5 == netNode.getRightValue();
+        assert 6 == rootNode.getRightValue();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset;
+
+import java.util.List;
+
+import org.code_factory.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that an edit session writes the final state of a batch of changes.
+ */
+public class TreeEditSessionTest extends FunctionalNestedSetTest {
+
+    /**
+     * Builds
+     *
+     *           Programming
+     *            /       \
+     *         Java       .NET
+     *
+     * and turns it in one session into
+     *
+     *           Programming
+     *            /       \
+     *          .NET      Java
+     *                     |
+     *                    JEE
+     */
+    @Test
+    public void testBatchedChanges() {
+        JpaNestedSetManager nsm = getManager("category");
+        Category prog = new Category();
+        prog.setName("Programming");
+        Category java = new Category();
+        java.setName("Java");
+        Category net = new Category();
+        net.setName(".NET");
+        Category jee = new Category();
+        jee.setName("JEE");
+        Category scala = new Category();
+        scala.setName("Scala");
+
+        em.getTransaction().begin();
+        Node<Category> rootNode = nsm.createRoot(prog);
+        rootNode.addChild(java);
+        rootNode.addChild(net);
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        TreeEditSession<Category> session = nsm.openEditSession(rootNode);
+        session.moveAsFirstChildOf(net, prog);
+        session.addChild(java, jee);
+        session.addChild(net, scala);
+        session.moveAsLastChildOf(scala, java);
+        session.delete(scala);
+        session.commit();
+        em.getTransaction().commit();
+        assert !session.isOpen();
+
+        em.clear();
+        nsm.clear();
+        rootNode = nsm.getNode(em.find(Category.class, prog.getId()));
+        assert 1 == rootNode.getLeftValue();
+        assert 8 == rootNode.getRightValue();
+        List<Node<Category>> children = rootNode.getChildren();
+        assert 2 == children.size();
+        assertEquals(".NET", children.get(0).unwrap().getName());
+        assert 2 == children.get(0).getLeftValue();
+        assert 3 == children.get(0).getRightValue();
+        assertEquals("Java", children.get(1).unwrap().getName());
+        assert 4 == children.get(1).getLeftValue();
+        assert 7 == children.get(1).getRightValue();
+        Node<Category> jeeNode = children.get(1).getFirstChild();
+        assertEquals("JEE", jeeNode.unwrap().getName());
+        assert 2 == jeeNode.getLevel();
+    }
+}
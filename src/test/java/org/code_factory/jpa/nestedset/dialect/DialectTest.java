@@ -0,0 +1,158 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.code_factory.jpa.nestedset.dialect;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+import org.code_factory.jpa.nestedset.Configuration;
+import org.code_factory.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+
+/**
+ * Runs the native statements of the in-process dialects over plain JDBC, on
+ * the tree
+ *
+ *           Programming (1, 6)
+ *            /       \
+ *       Java (2, 3)  .NET (4, 5)
+ */
+public class DialectTest extends TestCase {
+    private final Configuration config = new Configuration("category", Category.class);
+
+    private Connection createTree(String driver, String url) throws Exception {
+        Class.forName(driver);
+        Connection connection = DriverManager.getConnection(url, "sa", "");
+        Statement st = connection.createStatement();
+        st.execute("create table junit_category (id integer primary key, lft integer, rgt integer,"
+                + " level integer, rootId integer)");
+        st.execute("insert into junit_category values (1, 1, 6, 0, 1)");
+        st.execute("insert into junit_category values (2, 2, 3, 1, 1)");
+        st.execute("insert into junit_category values (3, 4, 5, 1, 1)");
+        st.execute("insert into junit_category values (4, 1, 2, 0, 2)");
+        st.close();
+        return connection;
+    }
+
+    private void dropTree(Connection connection) throws SQLException {
+        Statement st = connection.createStatement();
+        st.execute("drop table junit_category");
+        st.close();
+        connection.close();
+    }
+
+    private void shift(Connection connection, Dialect dialect, int first, int last, int delta) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(dialect.getShiftSql(config, last > 0));
+        Object[] parameters = dialect.getShiftParameters(config, first, last, delta, 1);
+        for (int i = 0; i < parameters.length; i++) {
+            ps.setObject(i + 1, parameters[i]);
+        }
+        ps.executeUpdate();
+        ps.close();
+    }
+
+    private String positions(Connection connection, int id) throws SQLException {
+        Statement st = connection.createStatement();
+        ResultSet rs = st.executeQuery("select lft, rgt from junit_category where id = " + id);
+        rs.next();
+        String result = rs.getInt(1) + "," + rs.getInt(2);
+        st.close();
+        return result;
+    }
+
+    private long count(Connection connection, String sql) throws SQLException {
+        Statement st = connection.createStatement();
+        ResultSet rs = st.executeQuery(sql);
+        rs.next();
+        long result = rs.getLong(1);
+        st.close();
+        return result;
+    }
+
+    private void checkShift(Connection connection, Dialect dialect) throws SQLException {
+        // make room for a last child of .NET
+        shift(connection, dialect, 5, 0, 2);
+        assertEquals("1,8", positions(connection, 1));
+        assertEquals("2,3", positions(connection, 2));
+        assertEquals("4,7", positions(connection, 3));
+        assertEquals("1,2", positions(connection, 4));
+
+        // move the range of Java only
+        shift(connection, dialect, 2, 3, 10);
+        assertEquals("12,13", positions(connection, 2));
+        assertEquals("1,8", positions(connection, 1));
+        assertEquals("4,7", positions(connection, 3));
+    }
+
+    @Test
+    public void testShiftH2() throws Exception {
+        Connection connection = createTree("org.h2.Driver", "jdbc:h2:mem:dialect-shift");
+        try {
+            checkShift(connection, new H2Dialect());
+        } finally {
+            dropTree(connection);
+        }
+    }
+
+    @Test
+    public void testShiftHSQLDB() throws Exception {
+        Connection connection = createTree("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:dialect-shift");
+        try {
+            checkShift(connection, new HSQLDialect());
+        } finally {
+            dropTree(connection);
+        }
+    }
+
+    @Test
+    public void testPositionGapsH2() throws Exception {
+        Connection connection = createTree("org.h2.Driver", "jdbc:h2:mem:dialect-gaps");
+        try {
+            Dialect dialect = new H2Dialect();
+            assertEquals(0, count(connection, dialect.getPositionGapsSql(config, 1, 6, 1)));
+            Statement st = connection.createStatement();
+            st.execute("update junit_category set lft = 3 where id = 3");
+            st.close();
+            assertEquals(2, count(connection, dialect.getPositionGapsSql(config, 1, 6, 1)));
+        } finally {
+            dropTree(connection);
+        }
+    }
+
+    @Test
+    public void testPositionGapsHSQLDB() throws Exception {
+        Connection connection = createTree("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:dialect-gaps");
+        try {
+            Dialect dialect = new HSQLDialect();
+            assertEquals(0, count(connection, dialect.getPositionGapsSql(config, 1, 6, 1)));
+            Statement st = connection.createStatement();
+            st.execute("update junit_category set lft = 3 where id = 3");
+            st.close();
+            assertEquals(2, count(connection, dialect.getPositionGapsSql(config, 1, 6, 1)));
+        } finally {
+            dropTree(connection);
+        }
+    }
+
+    @Test
+    public void testDetection() {
+        assert Dialect.forUrl("jdbc:postgresql://localhost:5432/test") instanceof PostgreSQLDialect;
+        assert Dialect.forUrl("jdbc:mysql://localhost:3306/test") instanceof MySQLDialect;
+        assert Dialect.forUrl("jdbc:hsqldb:mem:test") instanceof HSQLDialect;
+        assert Dialect.forUrl("jdbc:h2:mem:test") instanceof H2Dialect;
+        assertNull(Dialect.forUrl("jdbc:derby:test"));
+    }
+}
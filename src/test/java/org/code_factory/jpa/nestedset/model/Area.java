@@ -0,0 +1,96 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.code_factory.jpa.nestedset.model;
+
+import javax.persistence.Basic;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+
+import org.code_factory.jpa.nestedset.NodeInfo;
+import org.code_factory.jpa.nestedset.annotations.LevelColumn;
+import org.code_factory.jpa.nestedset.annotations.LinkedIdColumn;
+import org.code_factory.jpa.nestedset.annotations.LinkedType;
+import org.code_factory.jpa.nestedset.annotations.LinkedTypeColumn;
+
+/**
+ * The columns shared by the single-tree models of the position encodings,
+ * which add their own left and right columns.
+ *
+ * @author gabbol
+ */
+@MappedSuperclass
+public abstract class Area implements NodeInfo {
+	@Id
+	@GeneratedValue
+	private int id;
+	private String name;
+
+	@LevelColumn
+	private int level;
+
+	@LinkedIdColumn
+	@Basic()
+	private String linkedId = null;
+
+	@LinkedTypeColumn({ @LinkedType(code = 0, entityClass = Group.class) })
+	@Basic()
+	private int linkedTypeCode = 0;
+
+	@Override
+	public int getId() {
+		return this.id;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public int getLevel() {
+		return this.level;
+	}
+
+	@Override
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public int getRootValue() {
+		return 0;
+	}
+
+	@Override
+	public void setRootValue(int value) {
+	}
+
+	@Override
+	public String toString() {
+		return "[" + getClass().getSimpleName() + ": id=" + this.id + ", name=" + this.name + "]";
+	}
+
+	public String getLinkedId() {
+		return linkedId;
+	}
+
+	public void setLinkedId(String linkedId) {
+		this.linkedId = linkedId;
+	}
+
+	public int getLinkedTypeCode() {
+		return linkedTypeCode;
+	}
+
+	public void setLinkedTypeCode(int linkedTypeCode) {
+		this.linkedTypeCode = linkedTypeCode;
+	}
+
+}
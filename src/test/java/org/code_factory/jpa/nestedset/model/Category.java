@@ -19,6 +19,7 @@ import org.code_factory.jpa.nestedset.annotations.LinkedType;
 import org.code_factory.jpa.nestedset.annotations.LinkedTypeColumn;
 import org.code_factory.jpa.nestedset.annotations.RightColumn;
 import org.code_factory.jpa.nestedset.annotations.RootColumn;
+import org.code_factory.jpa.nestedset.annotations.RootVersionColumn;
 
 /**
  * @author robo
@@ -41,6 +42,9 @@ public class Category implements NodeInfo {
 	private int level;
 	@RootColumn
 	private int rootId;
+	@RootVersionColumn
+	@Column(updatable = false)
+	private int version;
 
 	@LinkedIdColumn
 	@Basic()
@@ -0,0 +1,180 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.code_factory.jpa.nestedset.model;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+import org.code_factory.jpa.nestedset.ParentNodeInfo;
+import org.code_factory.jpa.nestedset.PathNodeInfo;
+import org.code_factory.jpa.nestedset.annotations.LeftColumn;
+import org.code_factory.jpa.nestedset.annotations.LevelColumn;
+import org.code_factory.jpa.nestedset.annotations.LinkedIdColumn;
+import org.code_factory.jpa.nestedset.annotations.LinkedType;
+import org.code_factory.jpa.nestedset.annotations.LinkedTypeColumn;
+import org.code_factory.jpa.nestedset.annotations.ParentColumn;
+import org.code_factory.jpa.nestedset.annotations.PathColumn;
+import org.code_factory.jpa.nestedset.annotations.RightColumn;
+import org.code_factory.jpa.nestedset.annotations.SubtreeCount;
+import org.code_factory.jpa.nestedset.annotations.SubtreeSum;
+
+/**
+ * A single-tree model with all the optional columns: parent, materialized
+ * path and subtree aggregates.
+ *
+ * @author gabbol
+ */
+@Entity(name="junit_folder")
+public class Folder implements ParentNodeInfo, PathNodeInfo {
+	@Id
+	@GeneratedValue
+	private int id;
+	private String name;
+	private long size;
+
+	@LeftColumn
+	@Column(updatable = false)
+	private int lft;
+	@RightColumn
+	@Column(updatable = false)
+	private int rgt;
+	@LevelColumn
+	@Column(updatable = false)
+	private int level;
+	@ParentColumn
+	@Column(updatable = false)
+	private Integer parentId;
+	@PathColumn
+	@Column(updatable = false)
+	private String path;
+	@SubtreeCount
+	@Column(updatable = false)
+	private int subtreeCount;
+	@SubtreeSum(of = "size")
+	@Column(updatable = false)
+	private long subtreeSize;
+
+	@LinkedIdColumn
+	@Basic()
+	private String linkedId = null;
+
+	@LinkedTypeColumn({ @LinkedType(code = 0, entityClass = Group.class) })
+	@Basic()
+	private int linkedTypeCode = 0;
+
+	@Override
+	public int getId() {
+		return this.id;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	@Override
+	public Integer getParentId() {
+		return this.parentId;
+	}
+
+	@Override
+	public void setParentId(Integer parentId) {
+		this.parentId = parentId;
+	}
+
+	@Override
+	public String getPath() {
+		return this.path;
+	}
+
+	@Override
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public int getSubtreeCount() {
+		return this.subtreeCount;
+	}
+
+	public long getSubtreeSize() {
+		return this.subtreeSize;
+	}
+
+	@Override
+	public int getLeftValue() {
+		return this.lft;
+	}
+
+	@Override
+	public int getRightValue() {
+		return this.rgt;
+	}
+
+	@Override
+	public void setLeftValue(int value) {
+		this.lft = value;
+	}
+
+	@Override
+	public void setRightValue(int value) {
+		this.rgt = value;
+	}
+
+	@Override
+	public int getLevel() {
+		return this.level;
+	}
+
+	@Override
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public int getRootValue() {
+		return 0;
+	}
+
+	@Override
+	public void setRootValue(int value) {
+	}
+
+	@Override
+	public String toString() {
+		return "[Folder: id=" + this.id + ", name=" + this.name + "]";
+	}
+
+	public String getLinkedId() {
+		return linkedId;
+	}
+
+	public void setLinkedId(String linkedId) {
+		this.linkedId = linkedId;
+	}
+
+	public int getLinkedTypeCode() {
+		return linkedTypeCode;
+	}
+
+	public void setLinkedTypeCode(int linkedTypeCode) {
+		this.linkedTypeCode = linkedTypeCode;
+	}
+
+}
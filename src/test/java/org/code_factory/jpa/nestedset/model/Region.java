@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.code_factory.jpa.nestedset.model;
+
+import javax.persistence.Entity;
+
+import org.code_factory.jpa.nestedset.LongNodeInfo;
+import org.code_factory.jpa.nestedset.annotations.LeftColumn;
+import org.code_factory.jpa.nestedset.annotations.RightColumn;
+
+/**
+ * An area with long left and right columns.
+ *
+ * @author gabbol
+ */
+@Entity(name="junit_region")
+public class Region extends Area implements LongNodeInfo {
+	@LeftColumn
+	private long lft;
+	@RightColumn
+	private long rgt;
+
+	@Override
+	public long getLongLeftValue() {
+		return this.lft;
+	}
+
+	@Override
+	public long getLongRightValue() {
+		return this.rgt;
+	}
+
+	@Override
+	public void setLongLeftValue(long value) {
+		this.lft = value;
+	}
+
+	@Override
+	public void setLongRightValue(long value) {
+		this.rgt = value;
+	}
+
+	@Override
+	public int getLeftValue() {
+		return (int) this.lft;
+	}
+
+	@Override
+	public int getRightValue() {
+		return (int) this.rgt;
+	}
+
+	@Override
+	public void setLeftValue(int value) {
+		this.lft = value;
+	}
+
+	@Override
+	public void setRightValue(int value) {
+		this.rgt = value;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package org.code_factory.jpa.nestedset.model;
+
+import javax.persistence.Entity;
+
+import org.code_factory.jpa.nestedset.IntervalNodeInfo;
+import org.code_factory.jpa.nestedset.annotations.IntervalColumn;
+
+/**
+ * An area stored as nested intervals.
+ *
+ * @author gabbol
+ */
+@Entity(name="junit_territory")
+public class Territory extends Area implements IntervalNodeInfo {
+	@IntervalColumn(IntervalColumn.LEFT_NUMERATOR)
+	private long lnum;
+	@IntervalColumn(IntervalColumn.LEFT_DENOMINATOR)
+	private long lden;
+	@IntervalColumn(IntervalColumn.RIGHT_NUMERATOR)
+	private long rnum;
+	@IntervalColumn(IntervalColumn.RIGHT_DENOMINATOR)
+	private long rden;
+
+	@Override
+	public long getLeftNumerator() {
+		return this.lnum;
+	}
+
+	@Override
+	public long getLeftDenominator() {
+		return this.lden;
+	}
+
+	@Override
+	public long getRightNumerator() {
+		return this.rnum;
+	}
+
+	@Override
+	public long getRightDenominator() {
+		return this.rden;
+	}
+
+	@Override
+	public void setLeftNumerator(long value) {
+		this.lnum = value;
+	}
+
+	@Override
+	public void setLeftDenominator(long value) {
+		this.lden = value;
+	}
+
+	@Override
+	public void setRightNumerator(long value) {
+		this.rnum = value;
+	}
+
+	@Override
+	public void setRightDenominator(long value) {
+		this.rden = value;
+	}
+
+	@Override
+	public int getLeftValue() {
+		return 0;
+	}
+
+	@Override
+	public int getRightValue() {
+		return 0;
+	}
+
+	@Override
+	public void setLeftValue(int value) {
+	}
+
+	@Override
+	public void setRightValue(int value) {
+	}
+
+}